@@ -0,0 +1,161 @@
+package com.vodafone.datafusion.plugins.delta.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of transfer buffers, shared by all the plugin stages running in the same executor.
+ * Transfer buffers are several MB, so allocating them for every file fills the heap with short lived big arrays.
+ * Buffers are given back after every file and reused by the next one, so in steady state no buffer is allocated.
+ * Taking a buffer never waits: when the pool is empty a new one is allocated, and buffers given back when the pool
+ * already keeps its capacity are dropped, so idle memory is bounded by the capacity times the buffer size.
+ * Heap buffers have a backing array, direct buffers are kept off the heap.
+ */
+public class BufferPool {
+    private static final Logger LOG = LoggerFactory.getLogger(BufferPool.class);
+
+    private static final Map<String, BufferPool> POOLS = new HashMap<>();
+
+    private final int bufferSize;
+    private final boolean direct;
+    private final Deque<ByteBuffer> free = new ArrayDeque<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private int capacity;
+
+    /**
+     *
+     * @param bufferSize    bytes of every buffer
+     * @param direct        true for off heap buffers
+     * @param capacity      max idle buffers kept
+     */
+    BufferPool(int bufferSize, boolean direct, int capacity) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Get the shared pool of a buffer size and mode, creating it only the first time.
+     * A stage needing more buffers than the current capacity raises it.
+     *
+     * @param bufferSize    bytes of every buffer
+     * @param direct        true for off heap buffers
+     * @param capacity      max idle buffers kept
+     * @return shared pool
+     */
+    public static synchronized BufferPool shared(int bufferSize, boolean direct, int capacity) {
+        String key = (direct ? "direct-" : "heap-") + bufferSize;
+        BufferPool pool = POOLS.get(key);
+        if (pool == null) {
+            LOG.debug("[SFTP Delta] Creating {} buffer pool of {} bytes.", direct ? "direct" : "heap", bufferSize);
+            pool = new BufferPool(bufferSize, direct, capacity);
+            POOLS.put(key, pool);
+        }
+        pool.ensureCapacity(capacity);
+        return pool;
+    }
+
+    /**
+     * Take a buffer of the pool size
+     *
+     * @return empty buffer
+     */
+    public ByteBuffer acquire() {
+        return acquire(bufferSize);
+    }
+
+    /**
+     * Take a buffer limited to a size. Sizes above the pool size get a buffer that is not pooled.
+     *
+     * @param size  bytes needed
+     * @return empty buffer, with its limit at the given size
+     */
+    public ByteBuffer acquire(int size) {
+        if (size > bufferSize) {
+            misses.incrementAndGet();
+            return allocate(size);
+        }
+
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = free.pollFirst();
+        }
+        if (buffer != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            buffer = allocate(bufferSize);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Give back a buffer taken from this pool. Buffers of another size or mode are ignored.
+     *
+     * @param buffer    buffer not used any more, may be null
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+            return;
+        }
+        synchronized (this) {
+            // last released first, so the buffers in use stay hot and the rest may be dropped
+            if (free.size() < capacity) {
+                free.addFirst(buffer);
+            }
+        }
+    }
+
+    /**
+     * @return bytes of every buffer
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return true for off heap buffers
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * @return buffers taken from the pool
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return buffers allocated because the pool was empty
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return idle buffers kept
+     */
+    public synchronized int getIdle() {
+        return free.size();
+    }
+
+    private synchronized void ensureCapacity(int capacity) {
+        this.capacity = Math.max(this.capacity, capacity);
+    }
+
+    private ByteBuffer allocate(int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+}
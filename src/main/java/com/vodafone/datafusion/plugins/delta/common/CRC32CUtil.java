@@ -0,0 +1,168 @@
+package com.vodafone.datafusion.plugins.delta.common;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Ints;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Constructor;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C helpers to verify GCS objects, which expose their CRC32C as the base64 of its big endian bytes.
+ * Composed objects have no MD5, only the CRC32C of the concatenated content, so the checksums of the parts are
+ * combined to get the expected one.
+ * It is the only CRC32C of the plugins: the JDK one, accelerated by the CPU, when the JVM has it, and the Guava one
+ * otherwise.
+ */
+public class CRC32CUtil {
+    private static final Logger LOG = LoggerFactory.getLogger(CRC32CUtil.class);
+    private static final int POLYNOMIAL = 0x82F63B78;
+    private static final Constructor<? extends Checksum> JDK_CRC32C = jdkCrc32c();
+
+    private CRC32CUtil() {
+    }
+
+    /**
+     * @return empty CRC32C checksum
+     */
+    public static Checksum newChecksum() {
+        if (null != JDK_CRC32C) {
+            try {
+                return JDK_CRC32C.newInstance();
+            } catch (ReflectiveOperationException ex) {
+                LOG.debug("[SFTP Delta] JDK CRC32C not usable: {}", ex.getMessage());
+            }
+        }
+        return new GuavaCrc32c();
+    }
+
+    /**
+     * CRC32C of a block of bytes
+     *
+     * @param bytes     bytes
+     * @param off       first byte
+     * @param len       number of bytes
+     * @return CRC32C value
+     */
+    public static int crc32c(byte[] bytes, int off, int len) {
+        Checksum crc = newChecksum();
+        crc.update(bytes, off, len);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * CRC32C in the format used by GCS
+     *
+     * @param crc   CRC32C value
+     * @return base64 of the big endian bytes
+     */
+    public static String toBase64(int crc) {
+        return BaseEncoding.base64().encode(Ints.toByteArray(crc));
+    }
+
+    /**
+     * CRC32C of two concatenated blocks, from the CRC32C of each block
+     *
+     * @param crc1      CRC32C of the first block
+     * @param crc2      CRC32C of the second block
+     * @param length2   bytes of the second block
+     * @return CRC32C of the concatenation
+     */
+    public static int combine(int crc1, int crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+
+        // operator for one zero bit, then squared to get the operators for two and four zero bits
+        int[] even = new int[32];
+        int[] odd = new int[32];
+        odd[0] = POLYNOMIAL;
+        int row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        square(even, odd);
+        square(odd, even);
+
+        // apply length2 zero bytes to crc1, one bit of the length at a time
+        do {
+            square(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = times(even, crc1);
+            }
+            length2 >>>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = times(odd, crc1);
+            }
+            length2 >>>= 1;
+        } while (length2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static int times(int[] matrix, int vector) {
+        int sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(int[] square, int[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Constructor<? extends Checksum> jdkCrc32c() {
+        try {
+            return (Constructor<? extends Checksum>) Class.forName("java.util.zip.CRC32C").getConstructor();
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * CRC32C of Guava, for JVMs without the JDK one
+     */
+    private static class GuavaCrc32c implements Checksum {
+        private Hasher hasher = Hashing.crc32c().newHasher();
+        private Long value;
+
+        @Override
+        public void update(int b) {
+            hasher.putByte((byte) b);
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            hasher.putBytes(b, off, len);
+        }
+
+        @Override
+        public long getValue() {
+            // a hasher can only be read once
+            if (null == value) {
+                value = hasher.hash().asInt() & 0xFFFFFFFFL;
+            }
+            return value;
+        }
+
+        @Override
+        public void reset() {
+            hasher = Hashing.crc32c().newHasher();
+            value = null;
+        }
+    }
+}
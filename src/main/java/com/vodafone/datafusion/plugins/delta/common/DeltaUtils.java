@@ -2,30 +2,35 @@ package com.vodafone.datafusion.plugins.delta.common;
 
 import com.google.api.gax.paging.Page;
 import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.ReadChannel;
+import com.google.cloud.WriteChannel;
 import com.google.cloud.storage.*;
+import com.google.common.io.BaseEncoding;
 import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.SftpException;
 import io.cdap.cdap.api.data.schema.Schema;
 import io.cdap.cdap.etl.api.batch.BatchSinkContext;
 import io.cdap.cdap.etl.api.batch.BatchSourceContext;
 import io.cdap.plugin.common.LineageRecorder;
-import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.JobContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.math.BigInteger;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.security.MessageDigest;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Objects;
 import java.util.stream.Collectors;
 
 import static com.vodafone.datafusion.plugins.delta.constants.Constants.*;
@@ -60,7 +65,7 @@ public class DeltaUtils {
     public static String readGCSFile(GoogleCredentials credentials, String bucketName, String objectName) throws Exception {
         String fileContent;
         try {
-            Storage storage = StorageOptions.newBuilder().setCredentials(credentials).build().getService();
+            Storage storage = GCPClientCache.getStorage(credentials);
             Blob blob = storage.get(bucketName, objectName);
             fileContent = new String(blob.getContent());
             LOG.debug("[SFTP Delta] GCS object value: " + fileContent);
@@ -71,6 +76,101 @@ public class DeltaUtils {
         return fileContent;
     }
 
+    /**
+     * Open a GCS object as a stream. Only one chunk of the object is kept in memory.
+     *
+     * @param blob          GCS object
+     * @param chunkSize     bytes requested to GCS on each read
+     * @return object content stream
+     */
+    public static InputStream openGCSStream(Blob blob, int chunkSize) {
+        ReadChannel reader = blob.reader();
+        reader.setChunkSize(chunkSize);
+        return Channels.newInputStream(reader);
+    }
+
+    /**
+     * Write a stream into a GCS object through a pooled buffer, whose size is also the upload chunk size.
+     * Heap buffers are filled straight from the stream, direct ones through a small channel buffer. The client write
+     * channel copies every buffer into its chunk and retries failed chunks; it is only closed, finishing the upload,
+     * once the whole stream was written, so a failed stream leaves no partial object.
+     *
+     * @param storage       GCS client
+     * @param blobInfo      target object
+     * @param in            content stream
+     * @param buffers       transfer buffers, heap or direct
+     * @return written object
+     * @throws IOException
+     */
+    public static Blob writeGCSFile(Storage storage, BlobInfo blobInfo, InputStream in, BufferPool buffers)
+            throws IOException {
+        ByteBuffer buffer = buffers.acquire();
+        try {
+            WriteChannel writer = storage.writer(blobInfo);
+            writer.setChunkSize(buffer.capacity());
+            ReadableByteChannel reader = buffer.hasArray() ? null : Channels.newChannel(in);
+            boolean eof = false;
+            while (!eof) {
+                buffer.clear();
+                while (buffer.hasRemaining() && !eof) {
+                    if (buffer.hasArray()) {
+                        int read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                        eof = read < 0;
+                        buffer.position(buffer.position() + Math.max(read, 0));
+                    } else {
+                        eof = reader.read(buffer) < 0;
+                    }
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    writer.write(buffer);
+                }
+            }
+            writer.close();
+        } finally {
+            buffers.release(buffer);
+        }
+        return storage.get(blobInfo.getBlobId());
+    }
+
+    /**
+     * Write content produced into a stream as a resumable upload of a GCS object.
+     * The upload is only finished once the whole content was written: if the content fails, the upload is left
+     * unfinished, so neither a partial object nor the loss of the object already under the name is possible.
+     *
+     * @param storage       GCS client
+     * @param blobInfo      target object
+     * @param chunkSize     bytes sent to GCS on each request
+     * @param content       writes the content into the stream
+     * @return written object
+     * @throws IOException
+     */
+    public static Blob writeGCSFile(Storage storage, BlobInfo blobInfo, int chunkSize, ContentWriter content)
+            throws IOException {
+        WriteChannel writer = storage.writer(blobInfo);
+        writer.setChunkSize(chunkSize);
+        content.writeTo(new FilterOutputStream(Channels.newOutputStream(writer)) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                // closing the channel finishes the upload, so only a complete content does it
+            }
+        });
+        writer.close();
+        return storage.get(blobInfo.getBlobId());
+    }
+
+    /**
+     * Content of an object written into a stream
+     */
+    public interface ContentWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
     /**
      *
      * @param serviceAccountType
@@ -81,28 +181,11 @@ public class DeltaUtils {
      */
     public static GoogleCredentials getGCPCredentials(String serviceAccountType, String serviceAccountJSON, String serviceFilePath)
             throws Exception {
-        LOG.debug("[SFTP Delta] Getting GCP credentials.");
-        GoogleCredentials credentials;
-        try {
-            if (serviceAccountType.equals(JSON)) {
-                assert serviceAccountJSON != null;
-                credentials = GoogleCredentials.fromStream(new ByteArrayInputStream(serviceAccountJSON.getBytes()));
-            } else {
-                assert serviceFilePath != null;
-                if (serviceFilePath.equals(AUTO_DETECT)) {
-                    credentials = GoogleCredentials.getApplicationDefault();
-                } else {
-                    credentials = GoogleCredentials.fromStream(new FileInputStream(serviceFilePath));
-                }
-            }
-        } catch (Exception ex) {
-            LOG.error("[SFTP Delta] Error getting GCP credentials: " + ex.getMessage());
-            throw new Exception(ex);
-        }
-        return credentials;
+        return getGCPCredentials(serviceAccountType, serviceAccountType.equals(JSON) ? serviceAccountJSON : serviceFilePath);
     }
 
     /**
+     * Credentials of a service account, parsed once per executor
      *
      * @param serviceAccountType
      * @param serviceAccount
@@ -112,44 +195,37 @@ public class DeltaUtils {
     public static GoogleCredentials getGCPCredentials(String serviceAccountType, String serviceAccount)
             throws Exception {
         LOG.debug("[SFTP Delta] Getting GCP credentials.");
-        GoogleCredentials credentials;
         try {
-            if (serviceAccountType.equals(JSON)) {
-                assert serviceAccount != null;
-                credentials = GoogleCredentials.fromStream(new ByteArrayInputStream(serviceAccount.getBytes()));
-            } else {
-                assert serviceAccount != null;
-                if (serviceAccount.equals(AUTO_DETECT)) {
-                    credentials = GoogleCredentials.getApplicationDefault();
-                } else {
-                    credentials = GoogleCredentials.fromStream(new FileInputStream(serviceAccount));
-                }
-            }
+            return GCPClientCache.getCredentials(serviceAccountType, serviceAccount,
+                    () -> loadGCPCredentials(serviceAccountType, serviceAccount));
         } catch (Exception ex) {
             LOG.error("[SFTP Delta] Error getting GCP credentials: " + ex.getMessage());
             throw new Exception(ex);
         }
-        return credentials;
+    }
+
+    private static GoogleCredentials loadGCPCredentials(String serviceAccountType, String serviceAccount)
+            throws IOException {
+        assert serviceAccount != null;
+        if (serviceAccountType.equals(JSON)) {
+            return GoogleCredentials.fromStream(new ByteArrayInputStream(serviceAccount.getBytes()));
+        } else if (serviceAccount.equals(AUTO_DETECT)) {
+            return GoogleCredentials.getApplicationDefault();
+        }
+        try (FileInputStream stream = new FileInputStream(serviceAccount)) {
+            return GoogleCredentials.fromStream(stream);
+        }
     }
 
     /**
+     * GCS client of a service account, shared by the stages running in the same executor
      *
      * @param serviceAccountType
      * @param serviceAccount
      * @return
      */
     public static Storage getGCPStorage(String serviceAccountType, String serviceAccount) throws Exception {
-        GoogleCredentials credentials;
-        Storage storage;
-
-        credentials = DeltaUtils
-                .getGCPCredentials(serviceAccountType, serviceAccount);
-
-        storage = StorageOptions.newBuilder()
-                .setCredentials(credentials)
-                .build().getService();
-
-        return storage;
+        return GCPClientCache.getStorage(getGCPCredentials(serviceAccountType, serviceAccount));
     }
 
     /**
@@ -164,7 +240,7 @@ public class DeltaUtils {
                                     String objectName, String newValue) throws Exception{
         LOG.debug("[SFTP Delta] Updating GCS delta file.");
         try {
-            Storage storage = StorageOptions.newBuilder().setCredentials(credentials).build().getService();
+            Storage storage = GCPClientCache.getStorage(credentials);
             Blob blob = storage.get(bucketName, objectName);
             if (null == blob || !blob.exists()){
                 BlobId blobId = BlobId.of(bucketName, objectName);
@@ -191,15 +267,32 @@ public class DeltaUtils {
      * @return
      */
     public static boolean checkGCSbucket(GoogleCredentials credentials, String gsPath) throws Exception{
-        Storage storage = StorageOptions.newBuilder().setCredentials(credentials).build().getService();
+        boolean exists;
         try{
-            storage.list(GCSPath.from(gsPath).getBucket());
+            exists = GCPClientCache.bucketExists(credentials, GCSPath.from(gsPath).getBucket());
         } catch (Exception ex) {
             throw new Exception("[SFTP Delta] Bucket does not exist.");
         }
+        if (!exists) {
+            throw new Exception("[SFTP Delta] Bucket does not exist.");
+        }
         return true;
     }
 
+    /**
+     * List options that only request the fields used by the delta sources, in pages as big as GCS allows.
+     *
+     * @param options   other list options
+     * @return list options
+     */
+    public static Storage.BlobListOption[] listingOptions(Storage.BlobListOption... options) {
+        Storage.BlobListOption[] listing = Arrays.copyOf(options, options.length + 2);
+        listing[options.length] = Storage.BlobListOption.pageSize(LISTING_PAGE_SIZE);
+        listing[options.length + 1] = Storage.BlobListOption.fields(
+                Storage.BlobField.NAME, Storage.BlobField.SIZE, Storage.BlobField.TIME_CREATED);
+        return listing;
+    }
+
     /**
      *  Informs if a object exists inside a bucket in GCS
      *
@@ -208,12 +301,14 @@ public class DeltaUtils {
      * @return
      */
     public static boolean checkGCSobject(GoogleCredentials credentials,String gsPath){
-        Storage storage = StorageOptions.newBuilder().setCredentials(credentials).build().getService();
+        Storage storage = GCPClientCache.getStorage(credentials);
 
         Page<Blob>blobs=
                 storage.list(GCSPath.from(gsPath).getBucket(),
                         Storage.BlobListOption.prefix(GCSPath.from(gsPath).getName()),
-                        Storage.BlobListOption.currentDirectory());
+                        Storage.BlobListOption.currentDirectory(),
+                        Storage.BlobListOption.pageSize(1),
+                        Storage.BlobListOption.fields(Storage.BlobField.NAME));
 
         return blobs.getValues().iterator().hasNext();
     }
@@ -224,7 +319,7 @@ public class DeltaUtils {
      * @param context
      * @return
      */
-    public static long getSafetyTime(TaskAttemptContext context) {
+    public static long getSafetyTime(JobContext context) {
         Long safetyReadTime;
 
         try {
@@ -263,23 +358,29 @@ public class DeltaUtils {
     }
 
     /**
+     * Sftp connector over a session from the JVM wide session cache.
+     * Closing the connector gives the session back to the cache.
      *
      * @param connConfig
      * @return
      * @throws Exception
      */
     public static SFTPConnector getSftpConnector(SFTPConnectorConfig connConfig) throws Exception{
-        SFTPConnector conn;
-
-        if (connConfig.authType.equals(CONN_PRIVATEKEY_SELECT)) {
-            conn = new SFTPConnector(connConfig.sftpServer, connConfig.sftpPort,
-                    connConfig.sftpUser, connConfig.getPrivateKey(), connConfig.proxyIP,connConfig.proxyPort, connConfig.getPassphrase(), connConfig.getSSHProperties());
-        } else {
-            conn = new SFTPConnector(connConfig.sftpServer, connConfig.sftpPort,
-                    connConfig.sftpUser, connConfig.sftpPass, connConfig.proxyIP,connConfig.proxyPort, connConfig.getSSHProperties());
-        }
+        return SFTPSessionCache.acquire(connConfig);
+    }
 
-        return conn;
+    /**
+     * Sftp connector over sessions from the JVM wide session cache, with a limit of channels per session.
+     * Closing the connector gives the session back to the cache.
+     *
+     * @param connConfig                sftp connection configuration
+     * @param maxChannelsPerSession     max channels open on each session
+     * @return sftp connector
+     * @throws Exception
+     */
+    public static SFTPConnector getSftpConnector(SFTPConnectorConfig connConfig, int maxChannelsPerSession)
+            throws Exception {
+        return SFTPSessionCache.acquire(connConfig, maxChannelsPerSession);
     }
 
     /**
@@ -296,21 +397,45 @@ public class DeltaUtils {
         }
     }
 
-    public static boolean checkLineage(Blob blob, MessageDigest messageDigest, InputStream inputStream)
-            throws Exception {
-        String SFTPMD5 = md5(messageDigest);
-        String gcsMD5 = blob != null ? blob.getMd5ToHexString() : null;
-        boolean isEncripted = blob.getName().endsWith(ENCRYPT_EXTENSION);
-
-        if (!Objects.equals(SFTPMD5, gcsMD5) && !isEncripted) {
-            LOG.error("[SFTP Delta] MD5 does not match origin-target {}: {} <-> {} ", blob.getName(), SFTPMD5, gcsMD5);
-            inputStream.close();
+    /**
+     * Compare the MD5 of the other side of the transfer with the GCS object MD5
+     *
+     * @param blob      GCS object
+     * @param SFTPMD5   hex MD5 of the sftp file
+     * @return true if equal
+     * @throws IOException if MD5 does not match
+     */
+    public static boolean checkLineage(Blob blob, String SFTPMD5) throws IOException {
+        String gcsMD5 = blob != null ? blob.getMd5() : null;
+        byte[] sftpRaw = null == SFTPMD5 ? null : BaseEncoding.base16().lowerCase().decode(SFTPMD5.toLowerCase());
+        byte[] gcsRaw = null == gcsMD5 ? null : BaseEncoding.base64().decode(gcsMD5);
+
+        if (null == sftpRaw || !Arrays.equals(sftpRaw, gcsRaw)) {
+            LOG.error("[SFTP Delta] MD5 does not match origin-target {}: {} <-> {} ", blob.getName(), SFTPMD5,
+                    blob.getMd5ToHexString());
             throw new IOException("Check MD5 Error");
         }
 
         return true;
     }
 
+    /**
+     * Compare the size of the sftp file with the GCS object size
+     *
+     * @param blob      GCS object
+     * @param sftpSize  sftp file size
+     * @return true if equal
+     * @throws IOException if size does not match
+     */
+    public static boolean checkSize(Blob blob, long sftpSize) throws IOException {
+        if (blob.getSize() == null || blob.getSize() != sftpSize) {
+            LOG.error("[SFTP Delta] Size does not match origin-target {}: {} <-> {} ", blob.getName(), blob.getSize(), sftpSize);
+            throw new IOException("Check size Error");
+        }
+
+        return true;
+    }
+
     /**
      * Change directory in sftp server to folder where files will be written
      *
@@ -346,20 +471,4 @@ public class DeltaUtils {
         return now.isBefore(dateTime);
     }
 
-    /**
-     * md5 conversor
-     * @param md    message digest value
-     * @return
-     */
-    private static String md5(MessageDigest md) {
-        byte[] raw = md.digest();
-        BigInteger bigInt = new BigInteger(1, raw);
-        StringBuilder hash = new StringBuilder(bigInt.toString(16));
-        while (hash.length() < 32) {
-            hash.insert(0, '0');
-        }
-
-        return hash.toString();
-    }
-
 }
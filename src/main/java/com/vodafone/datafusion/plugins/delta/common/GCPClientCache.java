@@ -0,0 +1,198 @@
+package com.vodafone.datafusion.plugins.delta.common;
+
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+import com.google.cloud.storage.StorageOptions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.*;
+import static java.net.HttpURLConnection.HTTP_FORBIDDEN;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * JVM wide cache of GCP credentials and GCS clients, shared by all the plugin stages running in the same executor.
+ * Credentials are parsed once per service account, and every credentials get a single client, so its HTTP
+ * connections are reused. Access tokens in use are refreshed in background before they expire, so requests do not
+ * wait for a refresh.
+ * Buckets found by some credentials are remembered, so every stage does not check them again.
+ * Every map is bounded and forgets entries not used for a while. Clients and buckets are kept by the identity of
+ * their credentials, and go with them.
+ */
+public class GCPClientCache {
+    private static final Logger LOG = LoggerFactory.getLogger(GCPClientCache.class);
+
+    private static final Cache<String, GoogleCredentials> CREDENTIALS = CacheBuilder.newBuilder()
+            .maximumSize(GCP_CACHE_MAX_ENTRIES)
+            .expireAfterAccess(GCP_CACHE_EXPIRY_MS, TimeUnit.MILLISECONDS)
+            .build();
+    // weak keys are compared by identity
+    private static final Cache<GoogleCredentials, Storage> STORAGES = CacheBuilder.newBuilder()
+            .weakKeys()
+            .maximumSize(GCP_CACHE_MAX_ENTRIES)
+            .expireAfterAccess(GCP_CACHE_EXPIRY_MS, TimeUnit.MILLISECONDS)
+            .build();
+    private static final Cache<GoogleCredentials, Set<String>> BUCKETS = CacheBuilder.newBuilder()
+            .weakKeys()
+            .maximumSize(GCP_CACHE_MAX_ENTRIES)
+            .expireAfterAccess(GCP_CACHE_EXPIRY_MS, TimeUnit.MILLISECONDS)
+            .build();
+    private static ScheduledExecutorService refresher;
+
+    private GCPClientCache() {
+    }
+
+    /**
+     * Get the credentials of a service account, loading them only the first time.
+     *
+     * @param serviceAccountType    filePath or json
+     * @param serviceAccount        service account file path, auto-detect or json
+     * @param loader                loads the credentials when they are not cached
+     * @return cached credentials
+     * @throws Exception If the credentials can not be loaded
+     */
+    public static GoogleCredentials getCredentials(String serviceAccountType, String serviceAccount,
+                                                   Callable<GoogleCredentials> loader) throws Exception {
+        GoogleCredentials credentials;
+        try {
+            credentials = CREDENTIALS.get(cacheKey(serviceAccountType, serviceAccount), loader);
+        } catch (ExecutionException | UncheckedExecutionException ex) {
+            throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+        }
+        startRefresher();
+        return credentials;
+    }
+
+    /**
+     * Get the GCS client of some credentials, building it only the first time.
+     *
+     * @param credentials   GCP credentials
+     * @return cached GCS client
+     */
+    public static Storage getStorage(GoogleCredentials credentials) {
+        Storage storage;
+        try {
+            storage = STORAGES.get(credentials, () -> {
+                LOG.debug("[SFTP Delta] Creating GCS client.");
+                return StorageOptions.newBuilder()
+                        .setCredentials(credentials)
+                        .build().getService();
+            });
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException(ex.getCause());
+        }
+        startRefresher();
+        return storage;
+    }
+
+    /**
+     * Number of credentials and GCS clients cached
+     *
+     * @return cached entries
+     */
+    static long size() {
+        return CREDENTIALS.size() + STORAGES.size();
+    }
+
+    /**
+     * Check that a bucket exists and can be used, only the first time for some credentials.
+     * The bucket metadata is requested with just its name. Accounts allowed to use objects but not to read the
+     * bucket metadata get a forbidden error, then the check lists one object name instead.
+     *
+     * @param credentials   GCP credentials
+     * @param bucket        bucket name
+     * @return true if the bucket exists
+     */
+    public static boolean bucketExists(GoogleCredentials credentials, String bucket) {
+        return bucketExists(credentials, getStorage(credentials), bucket);
+    }
+
+    static boolean bucketExists(GoogleCredentials credentials, Storage storage, String bucket) {
+        Set<String> known = BUCKETS.getIfPresent(credentials);
+        if (known != null && known.contains(bucket)) {
+            return true;
+        }
+
+        boolean exists;
+        try {
+            exists = null != storage.get(bucket, Storage.BucketGetOption.fields(Storage.BucketField.NAME));
+        } catch (StorageException ex) {
+            if (ex.getCode() != HTTP_FORBIDDEN) {
+                throw ex;
+            }
+            LOG.debug("[SFTP Delta] Bucket {} metadata not readable, listing it.", bucket);
+            storage.list(bucket, Storage.BlobListOption.pageSize(1), Storage.BlobListOption.fields(Storage.BlobField.NAME));
+            exists = true;
+        }
+
+        if (exists) {
+            Set<String> buckets = BUCKETS.asMap().computeIfAbsent(credentials, c -> ConcurrentHashMap.newKeySet());
+            if (buckets.size() >= GCP_CACHE_MAX_ENTRIES) {
+                buckets.clear();
+            }
+            buckets.add(bucket);
+        }
+        return exists;
+    }
+
+    /**
+     * Refresh the access tokens in use that expire within the refresh margin.
+     */
+    static void refreshExpiring() {
+        Set<GoogleCredentials> cached = Collections.newSetFromMap(new IdentityHashMap<>());
+        cached.addAll(CREDENTIALS.asMap().values());
+        cached.addAll(STORAGES.asMap().keySet());
+
+        long limit = System.currentTimeMillis() + GCP_TOKEN_REFRESH_MARGIN_MS;
+        for (GoogleCredentials credentials : cached) {
+            AccessToken token = credentials.getAccessToken();
+            if (token == null || token.getExpirationTime() == null || token.getExpirationTime().getTime() > limit) {
+                continue;
+            }
+            try {
+                LOG.debug("[SFTP Delta] Refreshing GCP access token.");
+                credentials.refresh();
+            } catch (Exception ex) {
+                LOG.warn("[SFTP Delta] Error refreshing GCP access token: {}", ex.getMessage());
+            }
+        }
+    }
+
+    private static synchronized void startRefresher() {
+        if (refresher == null) {
+            refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("gcp-token-refresher")
+                    .setDaemon(true)
+                    .build());
+            refresher.scheduleWithFixedDelay(GCPClientCache::refreshExpiring, GCP_TOKEN_REFRESH_PERIOD_MS,
+                    GCP_TOKEN_REFRESH_PERIOD_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Identity of a service account. Hashed so private keys are not kept as map keys.
+     *
+     * @param serviceAccountType    filePath or json
+     * @param serviceAccount        service account file path, auto-detect or json
+     * @return cache key
+     */
+    static String cacheKey(String serviceAccountType, String serviceAccount) {
+        String identity = String.join("\u0000", String.valueOf(serviceAccountType), String.valueOf(serviceAccount));
+        return Hashing.sha256().hashString(identity, UTF_8).toString();
+    }
+}
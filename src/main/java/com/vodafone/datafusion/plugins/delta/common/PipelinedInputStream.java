@@ -0,0 +1,212 @@
+package com.vodafone.datafusion.plugins.delta.common;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stream that reads its source ahead on another thread, so reading the source and writing the target overlap.
+ * A producer fills a ring of pooled buffers from the source while the reader of this stream drains them, so a transfer
+ * goes at the speed of its slower side instead of the sum of both. The time each side waits for the other is added to
+ * the given stalls: a read stall means the target is slower, a write stall means the source is slower.
+ * Closing the stream lets the producer finish the buffer it is reading, then closes the source.
+ */
+public class PipelinedInputStream extends InputStream {
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final InputStream source;
+    private final BufferPool buffers;
+    private final Stalls stalls;
+    private final List<ByteBuffer> ring;
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<ByteBuffer> filled;
+    private final Future<?> producer;
+
+    private volatile boolean closed;
+    private volatile IOException error;
+    private ByteBuffer current;
+    private boolean eof;
+
+    /**
+     *
+     * @param source    stream to read ahead
+     * @param depth     buffers in the ring
+     * @param buffers   heap buffers of the ring
+     * @param executor  pool running the producer, with a thread free for every open stream
+     * @param stalls    waits of both sides, shared by the streams of a stage
+     */
+    public PipelinedInputStream(InputStream source, int depth, BufferPool buffers, ExecutorService executor,
+                                Stalls stalls) {
+        this.source = source;
+        this.buffers = buffers;
+        this.stalls = stalls;
+        this.ring = new ArrayList<>(depth);
+        this.free = new ArrayBlockingQueue<>(depth);
+        // room for every buffer and the end mark, so the producer never waits to hand them over
+        this.filled = new ArrayBlockingQueue<>(depth + 1);
+        for (int i = 0; i < depth; i++) {
+            ByteBuffer buffer = buffers.acquire();
+            ring.add(buffer);
+            free.add(buffer);
+        }
+        this.producer = executor.submit(this::produce);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureAvailable()) {
+            return -1;
+        }
+        return current.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureAvailable()) {
+            return -1;
+        }
+        int n = Math.min(len, current.remaining());
+        current.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        // every buffer goes back to the producer, so it is not left waiting for one
+        if (current != null) {
+            free.offer(current);
+            current = null;
+        }
+        ByteBuffer buffer;
+        while ((buffer = filled.poll()) != null) {
+            if (buffer != END) {
+                free.offer(buffer);
+            }
+        }
+
+        try {
+            producer.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ignored) {
+        } finally {
+            source.close();
+            for (ByteBuffer pooled : ring) {
+                buffers.release(pooled);
+            }
+        }
+    }
+
+    private boolean ensureAvailable() throws IOException {
+        while (current == null || !current.hasRemaining()) {
+            if (eof || closed) {
+                return false;
+            }
+            if (current != null) {
+                free.offer(current);
+                current = null;
+            }
+
+            ByteBuffer next;
+            long start = System.nanoTime();
+            try {
+                next = filled.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the source");
+            } finally {
+                stalls.write.addAndGet(System.nanoTime() - start);
+            }
+
+            if (next == END) {
+                eof = true;
+                if (error != null) {
+                    throw error;
+                }
+                return false;
+            }
+            current = next;
+        }
+        return true;
+    }
+
+    private void produce() {
+        try {
+            while (!closed) {
+                ByteBuffer buffer;
+                long start = System.nanoTime();
+                try {
+                    buffer = free.take();
+                } finally {
+                    stalls.read.addAndGet(System.nanoTime() - start);
+                }
+
+                buffer.clear();
+                int read = ByteStreams.read(source, buffer.array(), buffer.arrayOffset(), buffer.capacity());
+                buffer.limit(read);
+                if (read > 0) {
+                    filled.add(buffer);
+                }
+                if (read < buffer.capacity()) {
+                    break;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            error = new InterruptedIOException("Interrupted while reading the source");
+        } catch (IOException ex) {
+            error = ex;
+        } catch (RuntimeException ex) {
+            error = new IOException(ex.getMessage(), ex);
+        } finally {
+            filled.add(END);
+        }
+    }
+
+    /**
+     * Time spent by the pipelines of a stage waiting for the other side
+     */
+    public static class Stalls {
+        private final AtomicLong read = new AtomicLong();
+        private final AtomicLong write = new AtomicLong();
+
+        /**
+         * @return milliseconds the source readers waited for a free buffer, because the target was slower
+         */
+        public long getReadStallMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(read.get());
+        }
+
+        /**
+         * @return milliseconds the target writers waited for data, because the source was slower
+         */
+        public long getWriteStallMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(write.get());
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.vodafone.datafusion.plugins.delta.common;
+
+import com.google.common.io.ByteStreams;
+import com.jcraft.jsch.ChannelSftp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Ordered stream over a remote file read in chunks on several channels at the same time.
+ * Every chunk is fetched from its offset on a channel borrowed from the connector, and at most a window of chunks is
+ * read ahead, so memory is bounded by the window times the chunk size. On high latency links every channel keeps its
+ * own requests in flight, instead of one channel limited by the ssh window and the round trip time.
+ * The stream ends at the size given when it is opened, and fails if the file is shorter.
+ * Chunks are read into pooled buffers, given back once they are consumed.
+ */
+public class RangedSftpInputStream extends InputStream {
+    private final SFTPConnector conn;
+    private final String path;
+    private final long size;
+    private final int chunkSize;
+    private final int window;
+    private final ExecutorService executor;
+    private final BufferPool buffers;
+
+    private final Deque<Future<ByteBuffer>> chunks = new ArrayDeque<>();
+    private long nextOffset;
+    private ByteBuffer current;
+    private boolean eof;
+
+    /**
+     *
+     * @param conn          sftp connector, channels are borrowed from it
+     * @param path          remote file path
+     * @param size          bytes to read
+     * @param chunkSize     bytes of every chunk
+     * @param window        chunks read at the same time
+     * @param executor      pool reading the chunks
+     * @param buffers       heap buffers of the chunks
+     */
+    public RangedSftpInputStream(SFTPConnector conn, String path, long size, int chunkSize, int window,
+                                 ExecutorService executor, BufferPool buffers) {
+        this(conn, path, 0, size, chunkSize, window, executor, buffers);
+    }
+
+    /**
+     *
+     * @param conn          sftp connector, channels are borrowed from it
+     * @param path          remote file path
+     * @param offset        first byte to read
+     * @param size          size of the file, the stream ends there
+     * @param chunkSize     bytes of every chunk
+     * @param window        chunks read at the same time
+     * @param executor      pool reading the chunks
+     * @param buffers       heap buffers of the chunks
+     */
+    public RangedSftpInputStream(SFTPConnector conn, String path, long offset, long size, int chunkSize, int window,
+                                 ExecutorService executor, BufferPool buffers) {
+        this.conn = conn;
+        this.path = path;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.window = window;
+        this.executor = executor;
+        this.buffers = buffers;
+        this.nextOffset = offset;
+        fill();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureAvailable()) {
+            return -1;
+        }
+        return current.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureAvailable()) {
+            return -1;
+        }
+        int n = Math.min(len, current.remaining());
+        current.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.remaining();
+    }
+
+    /**
+     * Stop reading ahead. Chunks being read finish on their own, so their channels are given back in a clean state.
+     */
+    @Override
+    public void close() {
+        eof = true;
+        for (Future<ByteBuffer> chunk : chunks) {
+            if (chunk.isDone() && !chunk.isCancelled()) {
+                try {
+                    buffers.release(chunk.get());
+                } catch (Exception ignored) {
+                }
+            } else {
+                chunk.cancel(false);
+            }
+        }
+        chunks.clear();
+        buffers.release(current);
+        current = null;
+    }
+
+    private boolean ensureAvailable() throws IOException {
+        while (current == null || !current.hasRemaining()) {
+            Future<ByteBuffer> chunk = chunks.pollFirst();
+            if (eof || chunk == null) {
+                return false;
+            }
+            // given back before waiting, so a failed wait does not give it back again on close
+            buffers.release(current);
+            current = null;
+            current = await(chunk);
+            fill();
+        }
+        return true;
+    }
+
+    private void fill() {
+        while (chunks.size() < window && nextOffset < size) {
+            long offset = nextOffset;
+            int length = (int) Math.min(chunkSize, size - offset);
+            chunks.addLast(executor.submit(() -> readChunk(offset, length)));
+            nextOffset += length;
+        }
+    }
+
+    private ByteBuffer readChunk(long offset, int length) throws Exception {
+        ByteBuffer chunk = buffers.acquire(length);
+        boolean read = false;
+        ChannelSftp channel = conn.borrowChannel();
+        try (InputStream in = channel.get(path, null, offset)) {
+            if (ByteStreams.read(in, chunk.array(), chunk.arrayOffset(), length) < length) {
+                throw new EOFException("File " + path + " is shorter than " + size + " bytes");
+            }
+            read = true;
+            return chunk;
+        } finally {
+            conn.returnChannel(channel);
+            if (!read) {
+                buffers.release(chunk);
+            }
+        }
+    }
+
+    private ByteBuffer await(Future<ByteBuffer> chunk) throws IOException {
+        try {
+            return chunk.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new InterruptedIOException("Interrupted while reading " + path);
+        } catch (ExecutionException ex) {
+            close();
+            throw new IOException("Error reading " + path + ": " + ex.getCause().getMessage(), ex.getCause());
+        }
+    }
+}
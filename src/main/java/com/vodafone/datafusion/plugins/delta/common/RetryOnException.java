@@ -17,6 +17,7 @@ public class RetryOnException {
 
     private int numRetries;
     private long timeToWaitMS;
+    private int retries;
 
     public RetryOnException(String _numRetries,
                             String _timeToWait) {
@@ -36,6 +37,14 @@ public class RetryOnException {
         return (numRetries >= 0);
     }
 
+    /**
+     * Number of retries done so far.
+     * @return  retries
+     */
+    public int getRetries() {
+        return retries;
+    }
+
     /**
      * Waits for timeToWaitMS. Ignores any interrupted exception
      */
@@ -59,6 +68,7 @@ public class RetryOnException {
         if(!shouldRetry()) {
             throw new Exception("[SFTP Delta] Retry limit exceeded for file: "  + fileName);
         }
+        retries++;
         LOG.info("[SFTP Delta] Retrying connection for file: "  + fileName);
         waitUntilNextTry();
     }
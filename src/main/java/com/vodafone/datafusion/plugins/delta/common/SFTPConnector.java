@@ -5,21 +5,37 @@ import com.jcraft.jsch.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 import static com.vodafone.datafusion.plugins.delta.constants.Constants.*;
 
 /**
  * Class to connect to SFTP server.
+ * Besides the main channel, keeps a bounded pool of sftp channels multiplexed over the ssh sessions of the connection.
+ * Sessions carry a limited number of channels each, so a big pool is spread over several sessions.
  */
 public class SFTPConnector implements AutoCloseable {
     private static final Logger LOG = LoggerFactory.getLogger(SFTPConnector.class);
-    private final Session session;
+    private final SFTPSessionPool sessions;
     private final Channel channel;
+    private final Runnable onClose;
+    private boolean closed;
 
     private String connID;
 
+    private final Deque<ChannelSftp> idleChannels = new ArrayDeque<>();
+    private int maxChannels = DEFAULT_MAX_SFTP_CHANNELS;
+    private int channelsInUse;
+    private long borrows;
+    private long borrowWaitNanos;
+    private volatile Boolean serverHash;
+
     /**
      * Informs if connection is done
      *
@@ -48,21 +64,11 @@ public class SFTPConnector implements AutoCloseable {
      */
     public SFTPConnector(String host, int port, String userName, String password, String proxyIP,Integer proxyPort,Map<String, String> sessionProperties)
             throws Exception {
-        LOG.debug("[SFTP Delta] Connecting to SFTP server via password.");
-        JSch jsch = new JSch();
-        this.session = jsch.getSession(userName, host, port);
-        session.setPassword(password);
-        LOG.debug("[SFTP Delta] Connection properties: {}", sessionProperties);
-        Properties properties = new Properties();
-        properties.putAll(sessionProperties);
-        session.setConfig(properties);
-        if(!Strings.isNullOrEmpty(proxyIP) && proxyPort!=null){
-            session.setProxy(new ProxyHTTP(proxyIP, proxyPort));
-        }
-        LOG.debug("[SFTP Delta] Connecting to Host: {}, Port: {}, with User: {}", host, port, userName);
-        session.connect(TIMEOUT);
-        channel = session.openChannel(CONN_SFTP);
-        channel.connect();
+        this.sessions = new SFTPSessionPool(
+                () -> openSession(host, port, userName, password, proxyIP, proxyPort, sessionProperties),
+                DEFAULT_MAX_SFTP_CHANNELS);
+        this.onClose = sessions::closeAll;
+        channel = sessions.open(CONN_SFTP, true);
         LOG.debug("[SFTP Delta] Connected.");
         connID = host + port + userName;
     }
@@ -82,10 +88,80 @@ public class SFTPConnector implements AutoCloseable {
      */
     public SFTPConnector(String host, int port, String userName, byte[] privateKey,String proxyIP,Integer proxyPort,
                          byte[] passphrase, Map<String, String> sessionProperties) throws JSchException {
+        this.sessions = new SFTPSessionPool(
+                () -> openSession(host, port, userName, privateKey, proxyIP, proxyPort, passphrase, sessionProperties),
+                DEFAULT_MAX_SFTP_CHANNELS);
+        this.onClose = sessions::closeAll;
+        channel = sessions.open(CONN_SFTP, true);
+        LOG.debug("[SFTP Delta] Connected.");
+        connID = host + port + userName;
+    }
+
+    /**
+     * Connector over shared sessions. Only its own channels are closed on {@link #close()}, the sessions are handed
+     * back through onClose.
+     *
+     * @param sessions  sessions of the connection
+     * @param connID    connection id
+     * @param onClose   called once the connector is closed
+     * @throws JSchException
+     */
+    SFTPConnector(SFTPSessionPool sessions, String connID, Runnable onClose) throws JSchException {
+        this.sessions = sessions;
+        this.onClose = onClose;
+        channel = sessions.open(CONN_SFTP, true);
+        this.connID = connID;
+    }
+
+    /**
+     * Open a ssh session with password authentication
+     *
+     * @param host      connection host
+     * @param port      connection port
+     * @param userName  connection user
+     * @param password  connection password
+     * @param proxyIP   connection proxyIP
+     * @param proxyPort connection proxyPort
+     * @param sessionProperties session properties
+     * @return connected session
+     * @throws JSchException
+     */
+    static Session openSession(String host, int port, String userName, String password, String proxyIP, Integer proxyPort,
+                               Map<String, String> sessionProperties) throws JSchException {
+        LOG.debug("[SFTP Delta] Connecting to SFTP server via password.");
+        JSch jsch = new JSch();
+        Session session = jsch.getSession(userName, host, port);
+        session.setPassword(password);
+        connectSession(session, host, port, userName, proxyIP, proxyPort, sessionProperties);
+        return session;
+    }
+
+    /**
+     * Open a ssh session with private key authentication
+     *
+     * @param host          connection host
+     * @param port          connection port
+     * @param userName      connection user
+     * @param privateKey    connection private key
+     * @param proxyIP       connection proxyIP
+     * @param proxyPort     connection proxyPort
+     * @param passphrase    passphrase
+     * @param sessionProperties session properties
+     * @return connected session
+     * @throws JSchException
+     */
+    static Session openSession(String host, int port, String userName, byte[] privateKey, String proxyIP, Integer proxyPort,
+                               byte[] passphrase, Map<String, String> sessionProperties) throws JSchException {
         LOG.debug("[SFTP Delta] Connecting to SFTP server private key.");
         JSch jsch = new JSch();
         jsch.addIdentity(KEY, privateKey, null, passphrase);
-        this.session = jsch.getSession(userName, host, port);
+        Session session = jsch.getSession(userName, host, port);
+        connectSession(session, host, port, userName, proxyIP, proxyPort, sessionProperties);
+        return session;
+    }
+
+    private static void connectSession(Session session, String host, int port, String userName, String proxyIP,
+                                       Integer proxyPort, Map<String, String> sessionProperties) throws JSchException {
         LOG.debug("[SFTP Delta] Connection properties: {}", sessionProperties);
         Properties properties = new Properties();
         properties.putAll(sessionProperties);
@@ -95,10 +171,9 @@ public class SFTPConnector implements AutoCloseable {
         }
         LOG.debug("[SFTP Delta] Connecting to Host: {}, Port: {}, with User: {}", host, port, userName);
         session.connect(TIMEOUT);
-        channel = session.openChannel(CONN_SFTP);
-        channel.connect();
-        LOG.debug("[SFTP Delta] Connected.");
-        connID = host + port + userName;
+        // the session notices a connection lost without being closed after the unanswered keepalives
+        session.setServerAliveInterval(SFTP_SERVER_ALIVE_INTERVAL_MS);
+        session.setServerAliveCountMax(SFTP_SERVER_ALIVE_COUNT_MAX);
     }
 
     /**
@@ -109,24 +184,153 @@ public class SFTPConnector implements AutoCloseable {
         return (ChannelSftp) channel;
     }
 
+    /**
+     * MD5 of a remote file computed by the server with the check-file or md5-hash sftp extensions, so the file does
+     * not have to be read back. A server without them is only asked once per connection.
+     *
+     * @param remotePath    absolute path of the file
+     * @return hex MD5, or null if the server cannot compute it
+     */
+    public String getServerMD5(String remotePath) {
+        if (Boolean.FALSE.equals(serverHash)) {
+            return null;
+        }
+        ChannelSubsystem subsystem = null;
+        try {
+            subsystem = (ChannelSubsystem) sessions.open(CONN_SUBSYSTEM, false);
+            subsystem.setSubsystem(CONN_SFTP);
+            SFTPFileHash hash = new SFTPFileHash(subsystem.getInputStream(), subsystem.getOutputStream());
+            subsystem.connect(TIMEOUT * 1000);
+            serverHash = hash.init();
+            if (!serverHash) {
+                LOG.warn("[SFTP Delta] SFTP server has no file hash extension, written files are read back instead.");
+                return null;
+            }
+            return hash.md5(remotePath);
+        } catch (Exception ex) {
+            LOG.warn("[SFTP Delta] SFTP server could not hash {}: {}", remotePath, ex.getMessage());
+            return null;
+        } finally {
+            if (subsystem != null) {
+                sessions.close(subsystem);
+            }
+        }
+    }
+
+    /**
+     * Set the upper bound of pooled channels. Servers usually allow 10 channels per session (MaxSessions), so channels
+     * beyond the limit of a session are opened on more sessions.
+     *
+     * @param maxChannels   max number of borrowed channels
+     */
+    public synchronized void setMaxChannels(int maxChannels) {
+        this.maxChannels = Math.max(1, maxChannels);
+        notifyAll();
+    }
+
+    /**
+     * Borrow a sftp channel from the pool. Waits while all the channels are in use.
+     * Broken channels are reopened. The channel must be returned with {@link #returnChannel(ChannelSftp)}.
+     *
+     * @return connected sftp channel
+     * @throws JSchException
+     * @throws InterruptedException
+     */
+    public ChannelSftp borrowChannel() throws JSchException, InterruptedException {
+        ChannelSftp sftpChannel;
+        long start = System.nanoTime();
+        synchronized (this) {
+            while (channelsInUse >= maxChannels) {
+                wait();
+            }
+            channelsInUse++;
+            borrows++;
+            borrowWaitNanos += System.nanoTime() - start;
+            sftpChannel = idleChannels.poll();
+        }
+
+        try {
+            if (sftpChannel == null || !sftpChannel.isConnected() || sftpChannel.isClosed()) {
+                if (sftpChannel != null) {
+                    LOG.debug("[SFTP Delta] Reopening broken SFTP channel.");
+                    sessions.close(sftpChannel);
+                }
+                sftpChannel = (ChannelSftp) sessions.open(CONN_SFTP, true);
+            }
+        } catch (JSchException ex) {
+            releaseSlot();
+            throw ex;
+        }
+        return sftpChannel;
+    }
+
+    /**
+     * Give back a borrowed channel to the pool.
+     *
+     * @param sftpChannel   borrowed channel
+     */
+    public void returnChannel(ChannelSftp sftpChannel) {
+        if (sftpChannel == null) {
+            return;
+        }
+        synchronized (this) {
+            if (sftpChannel.isConnected()) {
+                idleChannels.push(sftpChannel);
+                sftpChannel = null;
+            }
+        }
+        if (sftpChannel != null) {
+            sessions.close(sftpChannel);
+        }
+        releaseSlot();
+    }
+
+    /**
+     * @return number of channels borrowed right now
+     */
+    public synchronized int getChannelsInUse() {
+        return channelsInUse;
+    }
+
+    /**
+     * @return number of borrow calls
+     */
+    public synchronized long getBorrows() {
+        return borrows;
+    }
+
+    /**
+     * @return total time waited to borrow a channel, in milliseconds
+     */
+    public synchronized long getBorrowWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(borrowWaitNanos);
+    }
+
+    private synchronized void releaseSlot() {
+        channelsInUse--;
+        notifyAll();
+    }
+
     @Override
     public void close() {
-        if (channel != null) {
-            try {
-                channel.disconnect();
-                LOG.debug("[SFTP Delta] Closed SFTP channel.");
-            } catch (Throwable t) {
-                LOG.warn("[SFTP Delta] Error disconnecting sftp channel.", t);
+        List<ChannelSftp> idle;
+        synchronized (this) {
+            if (closed) {
+                return;
             }
+            closed = true;
+            idle = new ArrayList<>(idleChannels);
+            idleChannels.clear();
+        }
+        for (ChannelSftp idleChannel : idle) {
+            sessions.close(idleChannel);
         }
 
-        if (session != null) {
-            try {
-                session.disconnect();
-                LOG.debug("[SFTP Delta] Closed SFTP session.");
-            } catch (Throwable t) {
-                LOG.warn("[SFTP Delta] Error disconnecting sftp session.", t);
-            }
+        if (channel != null) {
+            sessions.close(channel);
+            LOG.debug("[SFTP Delta] Closed SFTP channel.");
         }
+
+        onClose.run();
     }
 }
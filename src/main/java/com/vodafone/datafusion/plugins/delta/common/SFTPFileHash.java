@@ -0,0 +1,172 @@
+package com.vodafone.datafusion.plugins.delta.common;
+
+import com.google.common.io.BaseEncoding;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * MD5 of a remote file computed by the sftp server itself, through the check-file or md5-hash extensions of the SFTP
+ * protocol drafts. JSch has no API for extended requests, so the protocol is spoken over a sftp subsystem channel of
+ * its own. No command is run on the server, so it also works on chrooted internal-sftp accounts when the server
+ * offers one of the extensions.
+ */
+class SFTPFileHash {
+    static final String CHECK_FILE = "check-file";
+    static final String MD5_HASH = "md5-hash";
+
+    private static final int SSH_FXP_INIT = 1;
+    private static final int SSH_FXP_VERSION = 2;
+    private static final int SSH_FXP_STATUS = 101;
+    private static final int SSH_FXP_EXTENDED = 200;
+    private static final int SSH_FXP_EXTENDED_REPLY = 201;
+    private static final int SFTP_VERSION = 3;
+    private static final int MAX_PACKET_LENGTH = 256 * 1024;
+    private static final int MD5_LENGTH = 16;
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Set<String> extensions = new HashSet<>();
+    private int requestId;
+
+    private interface Payload {
+        void write(DataOutputStream data) throws IOException;
+    }
+
+    /**
+     *
+     * @param in    input stream of the sftp subsystem
+     * @param out   output stream of the sftp subsystem
+     */
+    SFTPFileHash(InputStream in, OutputStream out) {
+        this.in = new DataInputStream(in);
+        this.out = new DataOutputStream(out);
+    }
+
+    /**
+     * Exchange the protocol versions, which tells the extensions of the server
+     *
+     * @return true if the server can hash files
+     * @throws IOException If the server does not answer as an sftp server
+     */
+    boolean init() throws IOException {
+        send(SSH_FXP_INIT, data -> data.writeInt(SFTP_VERSION));
+        DataInputStream version = receive(SSH_FXP_VERSION);
+        version.readInt();
+        while (version.available() > 0) {
+            extensions.add(new String(readString(version), UTF_8));
+            readString(version);
+        }
+        return extensions.contains(CHECK_FILE) || extensions.contains(MD5_HASH);
+    }
+
+    /**
+     * MD5 of a whole file, with check-file if the server has it and md5-hash otherwise
+     *
+     * @param path  absolute path of the file
+     * @return hex MD5, or null if the server has none of the extensions
+     * @throws IOException If the server fails to hash the file
+     */
+    String md5(String path) throws IOException {
+        byte[] name = path.getBytes(UTF_8);
+        byte[] hash;
+        if (extensions.contains(CHECK_FILE)) {
+            // no offset, no length and no block size: one hash of the whole file
+            send(SSH_FXP_EXTENDED, data -> {
+                writeString(data, "check-file-name".getBytes(UTF_8));
+                writeString(data, name);
+                writeString(data, "md5".getBytes(UTF_8));
+                data.writeLong(0);
+                data.writeLong(0);
+                data.writeInt(0);
+            });
+            DataInputStream reply = receive(SSH_FXP_EXTENDED_REPLY);
+            readString(reply);
+            String algorithm = new String(readString(reply), UTF_8);
+            if (!"md5".equals(algorithm)) {
+                throw new IOException("Server hashed " + path + " with " + algorithm);
+            }
+            hash = new byte[reply.available()];
+            reply.readFully(hash);
+        } else if (extensions.contains(MD5_HASH)) {
+            // an empty quick check hash asks for the hash of the whole file
+            send(SSH_FXP_EXTENDED, data -> {
+                writeString(data, MD5_HASH.getBytes(UTF_8));
+                writeString(data, name);
+                data.writeLong(0);
+                data.writeLong(0);
+                writeString(data, new byte[0]);
+            });
+            DataInputStream reply = receive(SSH_FXP_EXTENDED_REPLY);
+            readString(reply);
+            hash = readString(reply);
+        } else {
+            return null;
+        }
+        if (hash.length != MD5_LENGTH) {
+            throw new IOException("Server returned no MD5 of " + path);
+        }
+        return BaseEncoding.base16().lowerCase().encode(hash);
+    }
+
+    private void send(int type, Payload payload) throws IOException {
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(packet);
+        data.writeByte(type);
+        if (type != SSH_FXP_INIT) {
+            data.writeInt(++requestId);
+        }
+        payload.write(data);
+        out.writeInt(packet.size());
+        packet.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * Read a packet of the expected type, after its request id if it answers a request
+     */
+    private DataInputStream receive(int type) throws IOException {
+        int length = in.readInt();
+        if (length < 1 || length > MAX_PACKET_LENGTH) {
+            throw new IOException("Invalid sftp packet length " + length);
+        }
+        byte[] packet = new byte[length];
+        in.readFully(packet);
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(packet, 1, length - 1));
+        if (packet[0] == SSH_FXP_STATUS) {
+            data.readInt();
+            throw new IOException("Server refused the request with status " + data.readInt());
+        }
+        if ((packet[0] & 0xff) != type) {
+            throw new IOException("Unexpected sftp packet type " + (packet[0] & 0xff));
+        }
+        if (type != SSH_FXP_VERSION && data.readInt() != requestId) {
+            throw new IOException("Unexpected sftp request id");
+        }
+        return data;
+    }
+
+    private static void writeString(DataOutputStream data, byte[] value) throws IOException {
+        data.writeInt(value.length);
+        data.write(value);
+    }
+
+    private static byte[] readString(DataInputStream data) throws IOException {
+        int length = data.readInt();
+        if (length < 0 || length > data.available()) {
+            throw new IOException("Invalid sftp string length " + length);
+        }
+        byte[] value = new byte[length];
+        data.readFully(value);
+        return value;
+    }
+}
@@ -0,0 +1,199 @@
+package com.vodafone.datafusion.plugins.delta.common;
+
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * JVM wide cache of ssh sessions, shared by all the plugin stages running in the same executor.
+ * Sessions are keyed by host, port, user, authentication and proxy, and every connection keeps a pool of sessions with
+ * a limited number of channels each, shared by all its connectors. Sessions without channels are disconnected after
+ * being idle for a while.
+ */
+public class SFTPSessionCache {
+    private static final Logger LOG = LoggerFactory.getLogger(SFTPSessionCache.class);
+
+    private static final ConcurrentMap<String, CachedPool> SESSIONS = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService evictor;
+
+    private SFTPSessionCache() {
+    }
+
+    /**
+     * Get a connector over the cached sessions of a connection, connecting only if no session has a free channel.
+     * Closing the connector gives its channels back to the cache.
+     *
+     * @param connConfig    sftp connection configuration
+     * @return sftp connector with its own channel
+     * @throws JSchException
+     */
+    public static SFTPConnector acquire(SFTPConnectorConfig connConfig) throws JSchException {
+        return acquire(connConfig, DEFAULT_MAX_SFTP_CHANNELS);
+    }
+
+    /**
+     * Get a connector over the cached sessions of a connection, connecting only if no session has a free channel.
+     * Closing the connector gives its channels back to the cache.
+     *
+     * @param connConfig                sftp connection configuration
+     * @param maxChannelsPerSession     max channels open on each session, below the MaxSessions of the server
+     * @return sftp connector with its own channel
+     * @throws JSchException
+     */
+    public static SFTPConnector acquire(SFTPConnectorConfig connConfig, int maxChannelsPerSession)
+            throws JSchException {
+        String connID = connConfig.sftpServer + connConfig.sftpPort + connConfig.sftpUser;
+        return acquire(cacheKey(connConfig), connID, maxChannelsPerSession,
+                () -> new SFTPSessionPool(() -> openSession(connConfig), maxChannelsPerSession));
+    }
+
+    /**
+     * Get a connector over the pool of a cache key. Only the lookup of the key is locked, and only for that key:
+     * sessions are connected and channels opened by the pool, so a slow server does not hold back other connections.
+     *
+     * @param key                       cache key of the connection
+     * @param connID                    connection ID for the logs
+     * @param maxChannelsPerSession     max channels open on each session
+     * @param newPool                   creates the pool of a key not cached yet
+     * @return sftp connector with its own channel
+     * @throws JSchException
+     */
+    static SFTPConnector acquire(String key, String connID, int maxChannelsPerSession,
+                                 Supplier<SFTPSessionPool> newPool) throws JSchException {
+        CachedPool cached = SESSIONS.compute(key, (k, current) -> {
+            CachedPool pooled = null != current ? current : new CachedPool(newPool.get());
+            pooled.users++;
+            return pooled;
+        });
+        cached.pool.limitChannelsPerSession(maxChannelsPerSession);
+        startEvictor();
+
+        try {
+            SFTPConnector conn = new SFTPConnector(cached.pool, connID, () -> release(key, cached));
+            LOG.debug("[SFTP Delta] SFTP connector to {} over {} cached sessions.", connID, cached.pool.size());
+            return conn;
+        } catch (JSchException | RuntimeException ex) {
+            release(key, cached);
+            throw ex;
+        }
+    }
+
+    /**
+     * Number of sessions currently cached
+     *
+     * @return cached sessions
+     */
+    public static int size() {
+        int size = 0;
+        for (CachedPool cached : SESSIONS.values()) {
+            size += cached.pool.size();
+        }
+        return size;
+    }
+
+    /**
+     * @param key   cache key of the connection
+     * @return if the connection has a pool in the cache
+     */
+    static boolean isCached(String key) {
+        return SESSIONS.containsKey(key);
+    }
+
+    private static void release(String key, CachedPool cached) {
+        SESSIONS.computeIfPresent(key, (k, current) -> {
+            if (current == cached) {
+                current.users--;
+            }
+            return current;
+        });
+    }
+
+    /**
+     * Disconnect the sessions without channels that have been idle for longer than the timeout.
+     */
+    static void evictIdle() {
+        evictIdle(System.currentTimeMillis());
+    }
+
+    /**
+     * Disconnect the sessions without channels idle at a given time, and drop the connections without sessions or
+     * connectors.
+     *
+     * @param now   current time in milliseconds
+     */
+    static void evictIdle(long now) {
+        for (Map.Entry<String, CachedPool> entry : SESSIONS.entrySet()) {
+            entry.getValue().pool.evictIdle(now, SFTP_SESSION_IDLE_TIMEOUT_MS);
+            SESSIONS.computeIfPresent(entry.getKey(),
+                    (k, cached) -> cached.users == 0 && cached.pool.size() == 0 ? null : cached);
+        }
+    }
+
+    private static synchronized void startEvictor() {
+        if (evictor == null) {
+            evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("sftp-session-evictor")
+                    .setDaemon(true)
+                    .build());
+            evictor.scheduleWithFixedDelay(SFTPSessionCache::evictIdle, SFTP_SESSION_EVICTION_PERIOD_MS,
+                    SFTP_SESSION_EVICTION_PERIOD_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static Session openSession(SFTPConnectorConfig connConfig) throws JSchException {
+        if (CONN_PRIVATEKEY_SELECT.equals(connConfig.authType)) {
+            return SFTPConnector.openSession(connConfig.sftpServer, connConfig.sftpPort, connConfig.sftpUser,
+                    connConfig.getPrivateKey(), connConfig.proxyIP, connConfig.proxyPort, connConfig.getPassphrase(),
+                    connConfig.getSSHProperties());
+        }
+        return SFTPConnector.openSession(connConfig.sftpServer, connConfig.sftpPort, connConfig.sftpUser,
+                connConfig.sftpPass, connConfig.proxyIP, connConfig.proxyPort, connConfig.getSSHProperties());
+    }
+
+    /**
+     * Identity of a connection. Hashed so credentials are not kept as map keys.
+     *
+     * @param connConfig    sftp connection configuration
+     * @return cache key
+     */
+    static String cacheKey(SFTPConnectorConfig connConfig) {
+        String identity = String.join("\u0000",
+                String.valueOf(connConfig.sftpServer),
+                String.valueOf(connConfig.sftpPort),
+                String.valueOf(connConfig.sftpUser),
+                String.valueOf(connConfig.authType),
+                String.valueOf(connConfig.sftpPass),
+                String.valueOf(connConfig.privateKey),
+                String.valueOf(connConfig.passphrase),
+                String.valueOf(connConfig.proxyIP),
+                String.valueOf(connConfig.proxyPort),
+                String.valueOf(connConfig.sshProperties));
+        return Hashing.sha256().hashString(identity, UTF_8).toString();
+    }
+
+    /**
+     * Pool of a connection and the connectors open over it, counted under the lock of its key
+     */
+    private static class CachedPool {
+        private final SFTPSessionPool pool;
+        private int users;
+
+        CachedPool(SFTPSessionPool pool) {
+            this.pool = pool;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package com.vodafone.datafusion.plugins.delta.common;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.*;
+
+/**
+ * Ssh sessions of one sftp connection and the channels open on each of them.
+ * Servers limit the channels of a session (MaxSessions, 10 by default in OpenSSH), so every session carries at most
+ * a fixed number of channels and a new session is opened when all of them are full. A session refusing a channel below
+ * the limit gets no more channels, and is disconnected once its last channel is closed.
+ * Channels are opened outside the lock of the pool, and only one session of the pool is connected at a time.
+ * A session left without channels for a while may have lost its connection without noticing, so it is sent a keepalive
+ * before it is used again and discarded if that fails.
+ */
+class SFTPSessionPool {
+    private static final Logger LOG = LoggerFactory.getLogger(SFTPSessionPool.class);
+
+    private final SessionOpener opener;
+    private final Object connectLock = new Object();
+    private final List<PooledSession> sessions = new ArrayList<>();
+    private final Map<Channel, PooledSession> channels = new IdentityHashMap<>();
+    private int maxChannelsPerSession;
+    private long probeIdleMs = SFTP_SESSION_PROBE_IDLE_MS;
+
+    /**
+     * Opens a connected ssh session
+     */
+    interface SessionOpener {
+        Session open() throws JSchException;
+    }
+
+    /**
+     *
+     * @param opener                    connects a new session
+     * @param maxChannelsPerSession     max channels open on each session
+     */
+    SFTPSessionPool(SessionOpener opener, int maxChannelsPerSession) {
+        this.opener = opener;
+        this.maxChannelsPerSession = Math.max(1, maxChannelsPerSession);
+    }
+
+    /**
+     * Lower the channels per session. Pools are shared by stages, so the smallest limit asked for is kept.
+     *
+     * @param maxChannelsPerSession     max channels open on each session
+     */
+    synchronized void limitChannelsPerSession(int maxChannelsPerSession) {
+        this.maxChannelsPerSession = Math.max(1, Math.min(this.maxChannelsPerSession, maxChannelsPerSession));
+    }
+
+    /**
+     * Set how long a session stays without channels before it is probed on its next use
+     *
+     * @param probeIdleMs   idle milliseconds
+     */
+    synchronized void setProbeIdle(long probeIdleMs) {
+        this.probeIdleMs = probeIdleMs;
+    }
+
+    /**
+     * Open a channel on a session with free channels, connecting a new session if all of them are full
+     *
+     * @param type      channel type
+     * @param connect   connect the channel, subsystem channels are connected by the caller once their streams are set
+     * @return channel, given back with {@link #close(Channel)}
+     * @throws JSchException If no session can be connected or a new session refuses the channel
+     */
+    Channel open(String type, boolean connect) throws JSchException {
+        while (true) {
+            PooledSession pooled = reserve();
+            boolean connected = false;
+            if (pooled == null) {
+                synchronized (connectLock) {
+                    // another thread may have connected a session while this one waited
+                    pooled = reserve();
+                    if (pooled == null) {
+                        pooled = new PooledSession(opener.open());
+                        connected = true;
+                        synchronized (this) {
+                            pooled.channels++;
+                            sessions.add(pooled);
+                            LOG.debug("[SFTP Delta] Opened SFTP session {} of the connection.", sessions.size());
+                        }
+                    }
+                }
+            }
+
+            Channel channel;
+            try {
+                channel = openChannel(pooled.session, type, connect);
+            } catch (JSchException ex) {
+                LOG.debug("[SFTP Delta] SFTP session refused a channel: {}", ex.getMessage());
+                refused(pooled);
+                if (connected) {
+                    throw ex;
+                }
+                continue;
+            }
+            synchronized (this) {
+                channels.put(channel, pooled);
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * Disconnect a channel opened with {@link #open(String, boolean)} and free its place in the session
+     *
+     * @param channel   channel to close
+     */
+    void close(Channel channel) {
+        try {
+            channel.disconnect();
+        } catch (Throwable t) {
+            LOG.warn("[SFTP Delta] Error disconnecting sftp channel.", t);
+        }
+        PooledSession pooled;
+        synchronized (this) {
+            pooled = channels.remove(channel);
+            if (pooled == null) {
+                return;
+            }
+            pooled.channels--;
+            pooled.lastUsed = System.currentTimeMillis();
+            if (pooled.channels > 0 || (!pooled.full && isConnected(pooled.session))) {
+                return;
+            }
+            sessions.remove(pooled);
+        }
+        disconnect(pooled.session);
+    }
+
+    /**
+     * Disconnect the sessions without channels that have been idle for longer than the timeout
+     *
+     * @param now       current time in milliseconds
+     * @param timeout   idle milliseconds
+     */
+    void evictIdle(long now, long timeout) {
+        List<PooledSession> idle = new ArrayList<>();
+        synchronized (this) {
+            Iterator<PooledSession> it = sessions.iterator();
+            while (it.hasNext()) {
+                PooledSession pooled = it.next();
+                if (pooled.channels == 0 && (now - pooled.lastUsed > timeout || !isConnected(pooled.session))) {
+                    idle.add(pooled);
+                    it.remove();
+                }
+            }
+        }
+        for (PooledSession pooled : idle) {
+            LOG.debug("[SFTP Delta] Closing idle SFTP session.");
+            disconnect(pooled.session);
+        }
+    }
+
+    /**
+     * Disconnect every session, with the channels still open on them
+     */
+    void closeAll() {
+        List<PooledSession> all;
+        synchronized (this) {
+            all = new ArrayList<>(sessions);
+            sessions.clear();
+            channels.clear();
+        }
+        for (PooledSession pooled : all) {
+            disconnect(pooled.session);
+        }
+    }
+
+    /**
+     * @return number of sessions
+     */
+    synchronized int size() {
+        return sessions.size();
+    }
+
+    /**
+     * @return number of open channels
+     */
+    synchronized int openChannels() {
+        return channels.size();
+    }
+
+    /**
+     * Open a channel on a session. The server refuses it when the session has too many channels.
+     */
+    Channel openChannel(Session session, String type, boolean connect) throws JSchException {
+        Channel channel = session.openChannel(type);
+        if (connect) {
+            try {
+                channel.connect();
+            } catch (JSchException ex) {
+                channel.disconnect();
+                throw ex;
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * @return if the session is still connected
+     */
+    boolean isConnected(Session session) {
+        return session.isConnected();
+    }
+
+    /**
+     * Send a keepalive to a session. A connection that was closed without the session noticing fails to send it.
+     *
+     * @return if the keepalive was sent
+     */
+    boolean isAlive(Session session) {
+        try {
+            session.sendKeepAliveMsg();
+            return true;
+        } catch (Exception ex) {
+            LOG.debug("[SFTP Delta] SFTP session keepalive failed: {}", ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Disconnect a session, with the channels still open on it
+     */
+    void disconnect(Session session) {
+        try {
+            session.disconnect();
+        } catch (Throwable t) {
+            LOG.warn("[SFTP Delta] Error disconnecting sftp session.", t);
+        }
+    }
+
+    private PooledSession reserve() {
+        List<PooledSession> dead = new ArrayList<>();
+        PooledSession pooled = reserve(dead);
+        for (PooledSession session : dead) {
+            LOG.debug("[SFTP Delta] Discarding idle SFTP session that lost its connection.");
+            disconnect(session.session);
+        }
+        return pooled;
+    }
+
+    /**
+     * Reserve a channel on a connected session with free channels
+     *
+     * @param dead  idle sessions that failed their keepalive, to be disconnected outside the lock
+     * @return reserved session, null if none has free channels
+     */
+    private synchronized PooledSession reserve(List<PooledSession> dead) {
+        long now = System.currentTimeMillis();
+        Iterator<PooledSession> it = sessions.iterator();
+        while (it.hasNext()) {
+            PooledSession pooled = it.next();
+            if (!isConnected(pooled.session)) {
+                pooled.full = true;
+                if (pooled.channels == 0) {
+                    it.remove();
+                }
+                continue;
+            }
+            if (pooled.full || pooled.channels >= maxChannelsPerSession) {
+                continue;
+            }
+            if (pooled.channels == 0 && now - pooled.lastUsed >= probeIdleMs) {
+                if (!isAlive(pooled.session)) {
+                    it.remove();
+                    dead.add(pooled);
+                    continue;
+                }
+                pooled.lastUsed = now;
+            }
+            pooled.channels++;
+            return pooled;
+        }
+        return null;
+    }
+
+    private void refused(PooledSession pooled) {
+        synchronized (this) {
+            pooled.channels--;
+            pooled.full = true;
+            if (pooled.channels > 0) {
+                return;
+            }
+            sessions.remove(pooled);
+        }
+        disconnect(pooled.session);
+    }
+
+    private static class PooledSession {
+        private final Session session;
+        private int channels;
+        private boolean full;
+        private long lastUsed = System.currentTimeMillis();
+
+        PooledSession(Session session) {
+            this.session = session;
+        }
+    }
+}
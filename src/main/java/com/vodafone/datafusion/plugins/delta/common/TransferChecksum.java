@@ -0,0 +1,307 @@
+package com.vodafone.datafusion.plugins.delta.common;
+
+import com.google.cloud.storage.BlobInfo;
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Ints;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.*;
+
+/**
+ * Checksum of the bytes of a transfer, compared with the one GCS keeps for the object.
+ * CRC32C is available for every object, including composite ones, and costs much less CPU than MD5. It is computed by
+ * {@link CRC32CUtil}. MD5 is kept for tools that compare MD5 hashes, and none only checks the size. Checksums are
+ * compared as raw bytes.
+ * The checksum covers the bytes actually stored in GCS, so encrypted files are verified on their ciphertext.
+ */
+public abstract class TransferChecksum {
+    private static final Logger LOG = LoggerFactory.getLogger(TransferChecksum.class);
+
+    private long count;
+
+    /**
+     * New checksum of a type
+     *
+     * @param type  crc32c, md5 or none
+     * @return empty checksum
+     */
+    public static TransferChecksum of(String type) {
+        switch (type) {
+            case CHECKSUM_CRC32C:
+                return new Crc32c();
+            case CHECKSUM_MD5:
+                return new Md5();
+            case CHECKSUM_NONE:
+                return new None();
+            default:
+                throw new IllegalArgumentException("Unknown checksum " + type);
+        }
+    }
+
+    /**
+     * CRC32C of a block of bytes
+     *
+     * @param bytes     bytes
+     * @param off       first byte
+     * @param len       number of bytes
+     * @return CRC32C value
+     */
+    public static int crc32c(byte[] bytes, int off, int len) {
+        return CRC32CUtil.crc32c(bytes, off, len);
+    }
+
+    /**
+     * @return checksum name, as used in the configuration
+     */
+    public abstract String getName();
+
+    /**
+     * Add bytes to the checksum
+     *
+     * @param bytes     bytes
+     * @param off       first byte
+     * @param len       number of bytes
+     */
+    public void update(byte[] bytes, int off, int len) {
+        count += len;
+        doUpdate(bytes, off, len);
+    }
+
+    /**
+     * Start again, for a new attempt of the transfer
+     */
+    public void reset() {
+        count = 0;
+        doReset();
+    }
+
+    /**
+     * @return bytes added to the checksum
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return raw checksum of the bytes added, null for none
+     */
+    public abstract byte[] value();
+
+    /**
+     * Stream that adds every byte read to this checksum
+     *
+     * @param in    stream to read
+     * @return checked stream
+     */
+    public InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b >= 0) {
+                    update(new byte[]{(byte) b}, 0, 1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(b, off, len);
+                if (n > 0) {
+                    update(b, off, n);
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                // skipped bytes must be in the checksum too
+                byte[] buffer = new byte[(int) Math.min(n, 8192)];
+                long skipped = 0;
+                int read;
+                while (skipped < n && (read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped))) > 0) {
+                    skipped += read;
+                }
+                return skipped;
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Stream that adds every byte written to this checksum
+     *
+     * @param out   stream to write
+     * @return checked stream
+     */
+    public OutputStream wrap(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                update(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                update(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Compare the bytes added with the GCS object
+     *
+     * @param blob  GCS object
+     * @return true if size and checksum are equal
+     * @throws IOException if they do not match
+     */
+    public boolean verify(BlobInfo blob) throws IOException {
+        if (null == blob) {
+            throw new IOException("Check " + getName() + " Error, object not found");
+        }
+        if (null != blob.getSize() && blob.getSize() != count) {
+            LOG.error("[SFTP Delta] Size does not match origin-target {}: {} <-> {}", blob.getName(), count, blob.getSize());
+            throw new IOException("Check size Error");
+        }
+
+        byte[] expected = expected(blob);
+        byte[] actual = value();
+        if (null != actual && !Arrays.equals(actual, expected)) {
+            LOG.error("[SFTP Delta] {} does not match origin-target {}: {} <-> {}", getName(), blob.getName(),
+                    encode(actual), null == expected ? null : encode(expected));
+            throw new IOException("Check " + getName() + " Error");
+        }
+        return true;
+    }
+
+    protected abstract void doUpdate(byte[] bytes, int off, int len);
+
+    protected abstract void doReset();
+
+    /**
+     * @param blob  GCS object
+     * @return raw checksum kept by GCS, null if there is none
+     */
+    protected abstract byte[] expected(BlobInfo blob);
+
+    private static byte[] decode(String base64) {
+        return null == base64 ? null : BaseEncoding.base64().decode(base64);
+    }
+
+    private static String encode(byte[] raw) {
+        return BaseEncoding.base64().encode(raw);
+    }
+
+    static class Crc32c extends TransferChecksum {
+        private final Checksum crc = CRC32CUtil.newChecksum();
+
+        @Override
+        public String getName() {
+            return CHECKSUM_CRC32C;
+        }
+
+        @Override
+        public byte[] value() {
+            return Ints.toByteArray((int) crc.getValue());
+        }
+
+        @Override
+        protected void doUpdate(byte[] bytes, int off, int len) {
+            crc.update(bytes, off, len);
+        }
+
+        @Override
+        protected void doReset() {
+            crc.reset();
+        }
+
+        @Override
+        protected byte[] expected(BlobInfo blob) {
+            return decode(blob.getCrc32c());
+        }
+    }
+
+    static class Md5 extends TransferChecksum {
+        private final MessageDigest digest;
+
+        Md5() {
+            try {
+                digest = MessageDigest.getInstance(MD5);
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        public String getName() {
+            return CHECKSUM_MD5;
+        }
+
+        @Override
+        public byte[] value() {
+            // reading a digest resets it, so a copy is read
+            try {
+                return ((MessageDigest) digest.clone()).digest();
+            } catch (CloneNotSupportedException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        protected void doUpdate(byte[] bytes, int off, int len) {
+            digest.update(bytes, off, len);
+        }
+
+        @Override
+        protected void doReset() {
+            digest.reset();
+        }
+
+        @Override
+        protected byte[] expected(BlobInfo blob) {
+            return decode(blob.getMd5());
+        }
+    }
+
+    static class None extends TransferChecksum {
+        @Override
+        public String getName() {
+            return CHECKSUM_NONE;
+        }
+
+        @Override
+        public byte[] value() {
+            return null;
+        }
+
+        @Override
+        protected void doUpdate(byte[] bytes, int off, int len) {
+        }
+
+        @Override
+        protected void doReset() {
+        }
+
+        @Override
+        protected byte[] expected(BlobInfo blob) {
+            return null;
+        }
+    }
+}
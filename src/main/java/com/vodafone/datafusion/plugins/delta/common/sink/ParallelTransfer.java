@@ -0,0 +1,88 @@
+package com.vodafone.datafusion.plugins.delta.common.sink;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.TRANSFER_QUEUE_FACTOR;
+
+/**
+ * Bounded worker pool used by sinks to transfer several files at the same time.
+ * Submitting blocks while the queue is full, so memory is bounded by the number of workers.
+ */
+public class ParallelTransfer implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelTransfer.class);
+
+    private final ExecutorService executor;
+    private final Semaphore slots;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * Parallel transfer pool
+     *
+     * @param name          thread name prefix
+     * @param concurrency   number of workers
+     */
+    public ParallelTransfer(String name, int concurrency) {
+        this.executor = Executors.newFixedThreadPool(concurrency, new ThreadFactoryBuilder()
+                .setNameFormat(name + "-%d")
+                .setDaemon(true)
+                .build());
+        this.slots = new Semaphore(concurrency * TRANSFER_QUEUE_FACTOR);
+        LOG.debug("[SFTP Delta] Started {} transfer workers.", concurrency);
+    }
+
+    /**
+     * Queue a transfer. Blocks while all the slots are in use.
+     *
+     * @param task  transfer to execute
+     * @throws Exception if a previous transfer failed
+     */
+    public void submit(Callable<Void> task) throws Exception {
+        checkFailure();
+        slots.acquire();
+        try {
+            executor.execute(() -> {
+                try {
+                    task.call();
+                } catch (Throwable t) {
+                    LOG.error("[SFTP Delta] Transfer worker error: " + t.getMessage());
+                    failure.compareAndSet(null, t);
+                } finally {
+                    slots.release();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            slots.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Wait until every queued transfer is finished.
+     *
+     * @throws Exception if any transfer failed
+     */
+    public void awaitCompletion() throws Exception {
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            LOG.debug("[SFTP Delta] Waiting for transfer workers to finish.");
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws Exception {
+        Throwable t = failure.get();
+        if (t != null) {
+            throw new Exception("[SFTP Delta] Parallel transfer failed: " + t.getMessage(), t);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
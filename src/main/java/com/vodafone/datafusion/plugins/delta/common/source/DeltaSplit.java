@@ -1,28 +1,162 @@
 package com.vodafone.datafusion.plugins.delta.common.source;
 
+import com.google.common.hash.Hashing;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.mapreduce.InputSplit;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
- * No Split necessary
+ * Partition of the listing. Each split lists the directories assigned to it, plus the files
+ * of the root directory whose name hashes to its partition.
+ * A split with a single partition lists everything.
+ * When the files were already listed while planning, the split carries its serialized records and their size.
+ * Records are carried without their connection, which holds the credentials: the split only keeps a hashed reference
+ * to it, and the reader sets the connection of the plugin configuration back after checking the reference.
  */
 public class DeltaSplit extends InputSplit implements Writable {
-    @Override
-    public void write(DataOutput dataOutput) {
+    private int partition;
+    private int numPartitions = 1;
+    private List<String> directories = new ArrayList<>();
+    private boolean listed;
+    private List<String> records = new ArrayList<>();
+    private String connection;
+    private long length;
+
+    public DeltaSplit() {
+    }
+
+    /**
+     * Split with the files listed while planning
+     *
+     * @param connection  reference to the connection of the records
+     * @param records     serialized records of the split, without their connection
+     * @param length      total bytes of the files
+     */
+    public DeltaSplit(String connection, List<String> records, long length) {
+        this.listed = true;
+        this.connection = connection;
+        this.records = new ArrayList<>(records);
+        this.length = length;
+    }
+
+    /**
+     *
+     * @param partition         index of this split
+     * @param numPartitions     total number of splits
+     * @param directories       top level directories assigned to this split
+     */
+    public DeltaSplit(int partition, int numPartitions, List<String> directories) {
+        this.partition = partition;
+        this.numPartitions = numPartitions;
+        this.directories = new ArrayList<>(directories);
+    }
+
+    public int getPartition() {
+        return partition;
+    }
+
+    public int getNumPartitions() {
+        return numPartitions;
+    }
 
+    public List<String> getDirectories() {
+        return Collections.unmodifiableList(directories);
+    }
+
+    /**
+     * If the files were listed while planning, so the reader does not have to list them again
+     *
+     * @return true if the split carries its records
+     */
+    public boolean isListed() {
+        return listed;
+    }
+
+    public List<String> getRecords() {
+        return Collections.unmodifiableList(records);
+    }
+
+    /**
+     * Check the records were listed with the connection the reader is configured with
+     *
+     * @param connection    connection of the plugin configuration
+     * @throws IOException If the records were listed with another connection
+     */
+    public void checkConnection(String connection) throws IOException {
+        if (!connectionReference(connection).equals(this.connection)) {
+            throw new IOException("The connection of the split does not match the plugin configuration.");
+        }
+    }
+
+    /**
+     * Reference to a connection. Hashed so credentials are not written in the splits.
+     *
+     * @param connection    connection of the records
+     * @return connection reference
+     */
+    public static String connectionReference(String connection) {
+        return Hashing.sha256().hashString(String.valueOf(connection), UTF_8).toString();
+    }
+
+    /**
+     * If a root file name belongs to this split
+     *
+     * @param name  file name
+     * @return true if the file has to be listed by this split
+     */
+    public boolean isAssigned(String name) {
+        return numPartitions <= 1 || Math.floorMod(name.hashCode(), numPartitions) == partition;
     }
 
     @Override
-    public void readFields(DataInput dataInput) {
+    public void write(DataOutput dataOutput) throws IOException {
+        WritableUtils.writeVInt(dataOutput, partition);
+        WritableUtils.writeVInt(dataOutput, numPartitions);
+        WritableUtils.writeVInt(dataOutput, directories.size());
+        for (String directory : directories) {
+            WritableUtils.writeString(dataOutput, directory);
+        }
+        dataOutput.writeBoolean(listed);
+        WritableUtils.writeVInt(dataOutput, records.size());
+        for (String record : records) {
+            Text.writeString(dataOutput, record);
+        }
+        WritableUtils.writeString(dataOutput, connection);
+        WritableUtils.writeVLong(dataOutput, length);
+    }
 
+    @Override
+    public void readFields(DataInput dataInput) throws IOException {
+        partition = WritableUtils.readVInt(dataInput);
+        numPartitions = WritableUtils.readVInt(dataInput);
+        int size = WritableUtils.readVInt(dataInput);
+        directories = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            directories.add(WritableUtils.readString(dataInput));
+        }
+        listed = dataInput.readBoolean();
+        size = WritableUtils.readVInt(dataInput);
+        records = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            records.add(Text.readString(dataInput));
+        }
+        connection = WritableUtils.readString(dataInput);
+        length = WritableUtils.readVLong(dataInput);
     }
 
     @Override
     public long getLength() {
-        return 0;
+        return length;
     }
 
     @Override
@@ -0,0 +1,103 @@
+package com.vodafone.datafusion.plugins.delta.common.source;
+
+import com.google.gson.ExclusionStrategy;
+import com.google.gson.FieldAttributes;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.apache.hadoop.mapreduce.InputSplit;
+
+import java.util.*;
+import java.util.function.ToLongFunction;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.CONNECTION;
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.MAX_SPLITS;
+
+/**
+ * Distributes listed files between splits so every split carries about the same number of bytes.
+ */
+public class SplitPlanner {
+    // records are serialized without their connection, the splits only reference it
+    private static final Gson gson = new GsonBuilder().setExclusionStrategies(new ExclusionStrategy() {
+        @Override
+        public boolean shouldSkipField(FieldAttributes field) {
+            return CONNECTION.equals(field.getName());
+        }
+
+        @Override
+        public boolean shouldSkipClass(Class<?> clazz) {
+            return false;
+        }
+    }).create();
+
+    private SplitPlanner() {
+    }
+
+    /**
+     * Splits carrying the listed records, balanced by size
+     *
+     * @param files         listed files
+     * @param size          size of a file
+     * @param targetSize    target bytes per split
+     * @param connection    connection of the files, only referenced by the splits
+     * @return splits, at least one
+     */
+    public static <T> List<InputSplit> planSplits(List<T> files, ToLongFunction<T> size, long targetSize,
+                                                  String connection) {
+        String reference = DeltaSplit.connectionReference(connection);
+        List<InputSplit> splits = new ArrayList<>();
+        for (List<T> bin : binPack(files, size, targetSize, MAX_SPLITS)) {
+            List<String> records = new ArrayList<>(bin.size());
+            long length = 0;
+            for (T file : bin) {
+                records.add(gson.toJson(file));
+                length += size.applyAsLong(file);
+            }
+            splits.add(new DeltaSplit(reference, records, length));
+        }
+        if (splits.isEmpty()) {
+            splits.add(new DeltaSplit(reference, Collections.emptyList(), 0));
+        }
+        return splits;
+    }
+
+    /**
+     * Bin pack the files, biggest first, always into the split with fewer bytes.
+     * The number of splits is the total size divided by the target, at least one and at most maxSplits.
+     *
+     * @param files         listed files
+     * @param size          size of a file
+     * @param targetSize    target bytes per split
+     * @param maxSplits     upper bound of splits
+     * @return files of every split, no split is empty
+     */
+    public static <T> List<List<T>> binPack(List<T> files, ToLongFunction<T> size, long targetSize, int maxSplits) {
+        long total = 0;
+        for (T file : files) {
+            total += size.applyAsLong(file);
+        }
+        long bins = targetSize > 0 ? (total + targetSize - 1) / targetSize : 1;
+        int numSplits = (int) Math.max(1, Math.min(Math.min(bins, maxSplits), files.size()));
+
+        List<T> sorted = new ArrayList<>(files);
+        sorted.sort(Comparator.comparingLong(size).reversed());
+
+        List<List<T>> splits = new ArrayList<>(numSplits);
+        long[] loads = new long[numSplits];
+        PriorityQueue<Integer> lightest = new PriorityQueue<>(numSplits,
+                Comparator.<Integer>comparingLong(i -> loads[i]).thenComparingInt(i -> i));
+        for (int i = 0; i < numSplits; i++) {
+            splits.add(new ArrayList<>());
+            lightest.add(i);
+        }
+
+        for (T file : sorted) {
+            int i = lightest.poll();
+            splits.get(i).add(file);
+            loads[i] += size.applyAsLong(file);
+            lightest.add(i);
+        }
+
+        splits.removeIf(List::isEmpty);
+        return splits;
+    }
+}
@@ -7,6 +7,66 @@ public class Constants {
     public static final String PREVIEW_ENABLED = "exec.preview";
     public static final String SFTP_TO_GCS_BUFFERSIZE = "SFTPtoGCS.buffer_size";
     public static final int DEFAULT_BUFFER_SIZE = 15 * 1024 * 1024;
+    public static final String SFTP_TO_GCS_CONCURRENCY = "SFTPtoGCS.concurrency";
+    public static final String SFTP_TO_GCS_COMPOSITE_PARTS = "SFTPtoGCS.composite_parts";
+    public static final String SFTP_TO_GCS_READ_PARALLELISM = "SFTPtoGCS.read_parallelism";
+    public static final String SFTP_TO_GCS_BUFFER_POOL = "SFTPtoGCS.buffer_pool";
+    public static final String SFTP_TO_GCS_PIPELINE_DEPTH = "SFTPtoGCS.pipeline_depth";
+    public static final int DEFAULT_READ_PARALLELISM = 1;
+    public static final int MAX_READ_PARALLELISM = 16;
+    public static final int RANGED_READ_CHUNK_SIZE = 4 * 1024 * 1024;
+    public static final String SFTP_DELTA_LISTING_THREADS = "SFTPDeltaSource.listing_threads";
+    public static final int DEFAULT_LISTING_THREADS = 4;
+    public static final int LISTING_PREFETCH_FACTOR = 4;
+    public static final String GS_DELTA_LISTING_THREADS = "GSDeltaSource.listing_threads";
+    public static final int MAX_GCS_LISTING_THREADS = 16;
+    public static final int LISTING_PAGE_SIZE = 1000;
+    public static final String GCS_TO_SFTP_BUFFERSIZE = "GCStoSFTP.buffer_size";
+    public static final String GCS_TO_SFTP_PIPELINE_DEPTH = "GCStoSFTP.pipeline_depth";
+    public static final int DEFAULT_PIPELINE_DEPTH = 0;
+    public static final int MIN_PIPELINE_DEPTH = 2;
+    public static final int MAX_PIPELINE_DEPTH = 16;
+    public static final int PIPELINE_BUFFER_SIZE = 1024 * 1024;
+    public static final int DEFAULT_READ_CHUNK_SIZE = 2 * 1024 * 1024;
+    public static final int DEFAULT_CONCURRENCY = 1;
+    public static final int MAX_CONCURRENCY = 32;
+    public static final int TRANSFER_QUEUE_FACTOR = 2;
+    public static final int DEFAULT_SPLITS = 1;
+    public static final int MAX_SPLITS = 64;
+    public static final long MB = 1024 * 1024L;
+    public static final int DEFAULT_COMPOSITE_PARTS = 8;
+    public static final int MAX_COMPOSITE_PARTS = 32;
+    public static final long MIN_COMPOSITE_PART_SIZE = 8 * MB;
+    public static final String COMPOSITE_PARTS_PREFIX = "_sftpdelta_composite/";
+    public static final int RESUMABLE_CHUNK_GRANULARITY = 256 * 1024;
+    public static final int RESUMABLE_CHUNK_ATTEMPTS = 3;
+    public static final String CHECKPOINT_EXTENSION = ".checkpoint";
+    public static final String BUFFER_POOL_HEAP = "heap";
+    public static final String BUFFER_POOL_DIRECT = "direct";
+    public static final String PARTIAL_EXTENSION = ".partial";
+    public static final int ENCRYPTION_BUFFERS = 3;
+    public static final String SFTP_TO_GCS_ENCRYPTION_THREADS = "SFTPtoGCS.encryption_threads";
+    public static final String SFTP_TO_GCS_ENCRYPTION_PIPE_SIZE = "SFTPtoGCS.encryption_pipe_size";
+    public static final int DEFAULT_ENCRYPTION_PIPE_SIZE = 1024 * 1024;
+    public static final String SFTP_TO_GCS_KEY_CACHE_TTL = "SFTPtoGCS.key_cache_ttl";
+    public static final String GCS_TO_SFTP_KEY_CACHE_TTL = "GCStoSFTP.key_cache_ttl";
+    public static final long DEFAULT_KEY_CACHE_TTL = 60 * 60 * 1000L;
+    public static final long KEY_CACHE_EVICTION_PERIOD_MS = 60 * 1000L;
+    public static final String SFTP_TO_GCS_CRYPTO_PROVIDER = "SFTPtoGCS.crypto_provider";
+    public static final String GCS_TO_SFTP_CRYPTO_PROVIDER = "GCStoSFTP.crypto_provider";
+    public static final String CRYPTO_PROVIDER_BC = "bc";
+    public static final String CRYPTO_PROVIDER_JCE = "jce";
+    public static final int DEFAULT_MAX_SFTP_CHANNELS = 8;
+    public static final String SFTP_TO_GCS_CHANNELS_PER_SESSION = "SFTPtoGCS.channels_per_session";
+    public static final long SFTP_SESSION_IDLE_TIMEOUT_MS = 5 * 60 * 1000L;
+    public static final long SFTP_SESSION_EVICTION_PERIOD_MS = 30 * 1000L;
+    public static final long SFTP_SESSION_PROBE_IDLE_MS = 10 * 1000L;
+    public static final int SFTP_SERVER_ALIVE_INTERVAL_MS = 30 * 1000;
+    public static final int SFTP_SERVER_ALIVE_COUNT_MAX = 3;
+    public static final long GCP_TOKEN_REFRESH_MARGIN_MS = 10 * 60 * 1000L;
+    public static final long GCP_TOKEN_REFRESH_PERIOD_MS = 60 * 1000L;
+    public static final int GCP_CACHE_MAX_ENTRIES = 64;
+    public static final long GCP_CACHE_EXPIRY_MS = 60 * 60 * 1000L;
     public static final Long DEFAULT_SAFETY_READ_TIME = 300L;
     public static final int TIMEOUT = 300;
     public static final int MAX_WAIT_TIME = 300;
@@ -33,11 +93,18 @@ public class Constants {
     public static final String METRICS_TRANSFERED_ON = "transferred_on";
     public static final String METRICS_TRANSFER_TIME = "transfer_time";
     public static final String METRICS_TRANSFER_RETRIES = "transfer_retries";
+    public static final String METRICS_SFTP_CHANNELS_IN_USE = "sftp_channels_in_use";
+    public static final String METRICS_SFTP_CHANNEL_WAIT = "sftp_channel_wait_ms";
+    public static final String METRICS_BUFFER_POOL_HITS = "buffer_pool_hits";
+    public static final String METRICS_BUFFER_POOL_MISSES = "buffer_pool_misses";
+    public static final String METRICS_PIPELINE_READ_STALL = "pipeline_read_stall_ms";
+    public static final String METRICS_PIPELINE_WRITE_STALL = "pipeline_write_stall_ms";
 
     public static final String MD5 = "MD5";
 
     public static final String CONN_PRIVATEKEY_SELECT = "privatekey";
     public static final String CONN_SFTP = "sftp";
+    public static final String CONN_SUBSYSTEM = "subsystem";
 
     public static final String TRUE_STRING = "true";
     public static final String JSON = "json";
@@ -63,6 +130,25 @@ public class Constants {
     public static final String REMOVE = "remove";
     public static final String TIME_TO_WAIT = "timeToWait";
     public static final String NUM_RETRIES = "numRetries";
+    public static final String CONCURRENCY = "concurrency";
+    public static final String COMPOSITE_THRESHOLD = "compositeThreshold";
+    public static final String CHECKPOINT_PATH = "checkpointPath";
+    public static final String NUM_SPLITS = "numSplits";
+    public static final String SPLIT_SIZE = "splitSize";
+    public static final String MAX_DEPTH = "maxDepth";
+    public static final String PRUNE_BY_MTIME = "pruneByMtime";
+    public static final String DATE_PATH_PATTERN = "datePathPattern";
+    public static final String LISTING_SHARDS = "listingShards";
+    public static final String SHARDS_PREFIXES = "prefixes";
+    public static final String VERIFICATION = "verification";
+    public static final String VERIFY_DIGEST = "digest";
+    public static final String VERIFY_SIZE = "size";
+    public static final String VERIFY_SERVER_HASH = "serverHash";
+    public static final String VERIFY_READ_BACK = "readBack";
+    public static final String CHECKSUM = "checksum";
+    public static final String CHECKSUM_CRC32C = "crc32c";
+    public static final String CHECKSUM_MD5 = "md5";
+    public static final String CHECKSUM_NONE = "none";
 
     public static final String SFTP_SERVER = "sftpServer";
     public static final String SFTP_PORT = "sftpPort";
@@ -82,6 +168,17 @@ public class Constants {
     public static final String PROXY_PORT = "proxyPort";
     public static final String ENCRYPTION_PUBLIC_KEY_FILE_PATH = "publicKeyPath";
     public static final String NAME_ENCRYPTION = "encryption";
+    public static final String ENCRYPTION_CIPHER = "encryptionCipher";
+    public static final String CIPHER_AES_256 = "AES-256";
+    public static final String CIPHER_AES_128 = "AES-128";
+    public static final String CIPHER_CAST5 = "CAST5";
+    public static final String COMPRESSION = "compression";
+    public static final String COMPRESSION_LEVEL = "compressionLevel";
+    public static final String COMPRESSION_NONE = "none";
+    public static final String COMPRESSION_ZIP = "zip";
+    public static final String COMPRESSION_ZLIB = "zlib";
+    public static final String COMPRESSION_BZIP2 = "bzip2";
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
     public static final String ENCRYPTION_PRIVATE_KEY_FILE_PATH = "privateKeyPath";
     public static final String ENCRYPTION_PRIVATE_KEY_PASSWORD = "privateKeyPassword";
 
@@ -0,0 +1,47 @@
+package com.vodafone.datafusion.plugins.delta.encryption;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPUtil;
+
+import java.security.Provider;
+import java.security.Security;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.*;
+
+/**
+ * Security providers shared by all the PGP operations.
+ * Creating a BouncyCastle provider registers every algorithm it has, so a new one for every file costs more than the
+ * encryption of small files. Providers are thread safe, so one instance is enough.
+ */
+public final class CryptoProviders {
+    public static final Provider BC = new BouncyCastleProvider();
+
+    private CryptoProviders() {
+    }
+
+    /**
+     * Get the provider of the symmetric cipher of the file contents. BouncyCastle keeps building and parsing the
+     * OpenPGP packets and encrypting the session keys in any case.
+     * The JCE providers of the JVM use the AES instructions of the processor, several times faster than the pure Java
+     * AES of BouncyCastle. Ciphers the JVM does not have, like CAST5, stay on BouncyCastle.
+     *
+     * @param provider  content provider: bc or jce
+     * @param cipher    OpenPGP symmetric algorithm
+     * @return provider of the cipher
+     */
+    public static Provider content(String provider, int cipher) {
+        if (!CRYPTO_PROVIDER_JCE.equals(provider)) {
+            return BC;
+        }
+        String name = PGPUtil.getSymmetricCipherName(cipher);
+        Provider[] providers = null != name ? Security.getProviders("Cipher." + name) : null;
+        if (null != providers) {
+            for (Provider jce : providers) {
+                if (!BC.getName().equals(jce.getName())) {
+                    return jce;
+                }
+            }
+        }
+        return BC;
+    }
+}
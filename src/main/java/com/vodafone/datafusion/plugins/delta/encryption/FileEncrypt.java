@@ -1,40 +1,29 @@
 package com.vodafone.datafusion.plugins.delta.encryption;
 
-import com.google.cloud.storage.Blob;
+import com.google.common.io.ByteStreams;
 import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.SftpException;
-import com.vodafone.datafusion.plugins.delta.common.FileMetaData;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataInputStream;
-import org.bouncycastle.bcpg.ArmoredOutputStream;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openpgp.*;
 import org.bouncycastle.openpgp.operator.KeyFingerPrintCalculator;
-import org.bouncycastle.openpgp.operator.PBESecretKeyDecryptor;
+import org.bouncycastle.openpgp.operator.PGPDataDecryptor;
+import org.bouncycastle.openpgp.operator.PublicKeyDataDecryptorFactory;
 import org.bouncycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
 import org.bouncycastle.openpgp.operator.bc.BcPublicKeyDataDecryptorFactory;
-import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
-import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
-import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
+import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchProviderException;
-import java.security.SecureRandom;
-import java.util.Date;
+import java.security.Provider;
 import java.util.Iterator;
 
-import static com.vodafone.datafusion.plugins.delta.constants.Constants.MD5;
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.PARTIAL_EXTENSION;
 
 public class FileEncrypt {
     private static final Logger LOG = LoggerFactory.getLogger(FileEncrypt.class);
 
     static Configuration conf;
-    static PGPPrivateKey sKey = null;
-    static ChannelSftp channelSftp = null;
 
     static {
         conf = new Configuration();
@@ -43,40 +32,32 @@ public class FileEncrypt {
         conf.set("fs.file.impl", org.apache.hadoop.fs.LocalFileSystem.class.getName());
     }
 
-    public static InputStream encryptPipeFile(ChannelSftp sftpChannel, FileMetaData fileMetaData, PGPPublicKey encKey, Integer bufferSize) throws IOException {
-        PipedOutputStream outPipe = new PipedOutputStream();
-        PipedInputStream inPipe = new PipedInputStream();
-        inPipe.connect(outPipe);
-        channelSftp = sftpChannel;
-
-        new Thread(
-                () -> {
-                    try {
-                        encryptFile(outPipe, fileMetaData, encKey, bufferSize, false, true);
-                    } catch (IOException e) {
-                        LOG.error("[SFTP Delta] Encryption IO error: " + e.getMessage());
-                    } catch (NoSuchProviderException e) {
-                        LOG.error("[SFTP Delta] Encryption Provider error: " + e.getMessage());
-                    } finally {
-                        try {
-                            outPipe.close();
-                        } catch (IOException e) {
-                            LOG.error("[SFTP Delta] Encryption close error: " + e.getMessage());
-                        }
-                    }
-                })
-                .start();
-        return inPipe;
-    }
-
-    public static void decryptFileIS(ChannelSftp sftpChannel, Blob blob, String privateKeyPath, char[] passwd, String filename) throws Exception {
+    /**
+     * Decrypt a stream into a sftp file. Packets are decoded as they are read and the literal data is streamed to the
+     * sftp server, so memory use does not depend on the file size. The data is written under a partial name and only
+     * renamed to the file name once the integrity check passed, so a file failing it never replaces the file under
+     * that name. The content is deciphered on the given provider, and the session key and packets always on
+     * BouncyCastle.
+     *
+     * @param sftpChannel       sftp channel, in the target directory
+     * @param encryptedStream   encrypted content, read to its end
+     * @param privateKeyPath    secret key ring path in the sftp server
+     * @param passwd            passphrase of the private key
+     * @param filename          decrypted file name
+     * @param keyCacheTtl       milliseconds the private key is used without checking its file
+     * @param provider          provider of the content cipher: bc or jce
+     * @throws IntegrityException    if the file fails the integrity check
+     * @throws Exception             if the file can not be decrypted
+     */
+    public static void decryptFileIS(ChannelSftp sftpChannel, InputStream encryptedStream, String privateKeyPath,
+                                     char[] passwd, String filename, long keyCacheTtl, String provider)
+            throws Exception {
         final KeyFingerPrintCalculator FP_CALC = new BcKeyFingerprintCalculator();
-        MessageDigest messageDigest = MessageDigest.getInstance(MD5);
-        InputStream inputStream = new DigestInputStream(new ByteArrayInputStream(blob.getContent()), messageDigest);
-        inputStream = PGPUtil.getDecoderStream(inputStream);
+        InputStream inputStream = PGPUtil.getDecoderStream(encryptedStream);
         InputStream unc = null;
         InputStream clear = null;
-        InputStream keyIn = null;
+        String partialName = filename + PARTIAL_EXTENSION;
+        boolean partial = false;
         try {
             PGPObjectFactory pgpF = new PGPObjectFactory(inputStream, FP_CALC);
             PGPEncryptedDataList enc;
@@ -93,34 +74,36 @@ public class FileEncrypt {
             Iterator it = enc.getEncryptedDataObjects();
 
             PGPPublicKeyEncryptedData pbe = null;
+            PGPPrivateKey sKey = null;
 
-            if (null != privateKeyPath && !privateKeyPath.isEmpty()) {
-                try {
-                    keyIn = sftpChannel.get(privateKeyPath);
-                } catch (Exception e) {
-                    throw new IllegalArgumentException("Error reading private key.");
-                }
+            if (null == privateKeyPath || privateKeyPath.isEmpty()) {
+                throw new IllegalArgumentException("Error reading private key.");
             }
-            while (it.hasNext()) {
+            while (sKey == null && it.hasNext()) {
                 pbe = (PGPPublicKeyEncryptedData) it.next();
                 LOG.debug("[SFTP Delta] Private Key id=" + pbe.getKeyID());
-                sKey = findSecretKey(keyIn, pbe.getKeyID(), passwd);
+                sKey = findSecretKey(sftpChannel, privateKeyPath, pbe.getKeyID(), passwd, keyCacheTtl);
             }
-            keyIn.close();
 
             if (sKey == null) {
                 LOG.error("[SFTP Delta] Secret key not found.");
                 throw new IllegalArgumentException("[SFTP Delta] Secret key not found.");
             }
 
-            clear = pbe.getDataStream(new BcPublicKeyDataDecryptorFactory(sKey));
+            clear = pbe.getDataStream(new ContentDecryptorFactory(sKey, provider));
             PGPObjectFactory plainFact = new PGPObjectFactory(clear, FP_CALC);
             Object message = plainFact.nextObject();
 
+            if (message instanceof PGPCompressedData) {
+                PGPCompressedData cData = (PGPCompressedData) message;
+                message = new PGPObjectFactory(cData.getDataStream(), FP_CALC).nextObject();
+            }
+
             if (message instanceof PGPLiteralData) {
                 PGPLiteralData ld = (PGPLiteralData) message;
                 unc = ld.getInputStream();
-                sftpChannel.put(unc, filename);
+                partial = true;
+                sftpChannel.put(unc, partialName);
             } else if (message instanceof PGPOnePassSignatureList) {
                 throw new PGPException("[SFTP Delta] Encrypted file contains a signed message - not literal data.");
             } else {
@@ -129,95 +112,112 @@ public class FileEncrypt {
 
             if (pbe.isIntegrityProtected()) {
                 if (!pbe.verify()) {
-                    LOG.debug("[SFTP Delta] failed integrity check");
-                } else {
-                    LOG.debug("[SFTP Delta] integrity check passed");
+                    LOG.error("[SFTP Delta] File {} failed integrity check", filename);
+                    throw new IntegrityException("[SFTP Delta] Decrypted file failed integrity check.");
                 }
+                LOG.debug("[SFTP Delta] integrity check passed");
             } else {
-                LOG.debug("[SFTP Delta] no integrity check");
+                LOG.warn("[SFTP Delta] File {} has no integrity check", filename);
             }
+
+            // the checksum covers the whole encrypted object, including what the decoder left unread
+            ByteStreams.exhaust(encryptedStream);
+            replace(sftpChannel, partialName, filename);
+            partial = false;
         } catch (Exception exception) {
             LOG.error("[SFTP Delta] Decrypt error: " + exception.getMessage());
+            if (partial) {
+                removePartial(sftpChannel, partialName, exception);
+            }
             throw exception;
         } finally {
-            if(null != keyIn) keyIn.close();
             if(null != inputStream) inputStream.close();
             if(null != clear) clear.close();
             if(null != unc) unc.close();
         }
     }
 
-    private static void encryptFile(OutputStream out, FileMetaData fileMetaData, PGPPublicKey encKey, Integer bufferSize, boolean armor, boolean withIntegrityCheck) throws IOException, NoSuchProviderException {
-        if (armor) {
-            out = new ArmoredOutputStream(out);
-        }
-
+    /**
+     * Rename a file over another one. Sftp servers do not rename over an existing file, so if the rename fails and the
+     * file exists, it is removed and the rename repeated.
+     *
+     * @param sftpChannel   sftp channel
+     * @param from          file to rename
+     * @param to            new name
+     * @throws SftpException
+     */
+    private static void replace(ChannelSftp sftpChannel, String from, String to) throws SftpException {
         try {
-            PGPEncryptedDataGenerator cPk = new PGPEncryptedDataGenerator(new JcePGPDataEncryptorBuilder(PGPEncryptedData.CAST5)
-                    .setWithIntegrityPacket(withIntegrityCheck).setSecureRandom(new SecureRandom()).setProvider(new BouncyCastleProvider()));
-
-            cPk.addMethod(new JcePublicKeyKeyEncryptionMethodGenerator(encKey).setProvider(new BouncyCastleProvider()));
-
-            OutputStream cOut = cPk.open(out, new byte[bufferSize]);
-
-            writeFileToLiteralData(cOut, PGPLiteralData.BINARY, fileMetaData, new byte[bufferSize]);
-
-            cOut.close();
-
-            if (armor) {
-                out.close();
+            sftpChannel.rename(from, to);
+        } catch (SftpException ex) {
+            try {
+                sftpChannel.stat(to);
+            } catch (SftpException missing) {
+                throw ex;
             }
-        } catch (PGPException e) {
-            LOG.error("[SFTP Delta] Encryption error: " + e);
-            if (e.getUnderlyingException() != null) {
-                e.getUnderlyingException().printStackTrace();
-            }
-        } catch (SftpException e) {
-            LOG.error("[SFTP Delta] Encryption Sftp error: " + e);
+            LOG.debug("[SFTP Delta] Replacing file {}.", to);
+            sftpChannel.rm(to);
+            sftpChannel.rename(from, to);
         }
     }
 
-    private static void writeFileToLiteralData(OutputStream outStream, char literalDataType, FileMetaData fileMetaData, byte[] bytesArray) throws IOException, SftpException {
-        PGPLiteralDataGenerator literalDataGenerator = new PGPLiteralDataGenerator();
-        OutputStream outputStream = literalDataGenerator.open(outStream, literalDataType, fileMetaData.getPath().getName(), new Date(fileMetaData.getLastModifiedTime()), bytesArray);
-        pipeFileContents(fileMetaData, outputStream, bytesArray.length);
+    /**
+     * Remove a partial file after a failure. A removal failure is added to the original failure instead of hiding it.
+     *
+     * @param sftpChannel   sftp channel
+     * @param partialName   partial file
+     * @param failure       failure of the decryption
+     */
+    private static void removePartial(ChannelSftp sftpChannel, String partialName, Exception failure) {
+        try {
+            sftpChannel.rm(partialName);
+        } catch (Exception ex) {
+            LOG.warn("[SFTP Delta] Partial file {} could not be removed: {}", partialName, ex.getMessage());
+            failure.addSuppressed(ex);
+        }
     }
 
-    private static void pipeFileContents(FileMetaData fileMetadata, OutputStream outputStream, int bytesArraySize) throws IOException, SftpException {
-        InputStream inputStream;
-        if (null != channelSftp) {
-            inputStream = channelSftp.get(fileMetadata.getPath().toString());
-        } else {
-            inputStream = fileMetadata.getFileSystem().open(fileMetadata.getPath());
+    private static PGPPrivateKey findSecretKey(ChannelSftp sftpChannel, String privateKeyPath, long keyID, char[] pass,
+                                               long keyCacheTtl) throws PGPException {
+        try {
+            return PGPKeyCache.getPrivateKey(sftpChannel, privateKeyPath, keyID, pass, keyCacheTtl);
+        } catch (Exception ex) {
+            LOG.error("[SFTP Delta] Private Key could not be read.");
+            throw new PGPException("Private Key could not be read", ex);
         }
-        byte[] bytes = new byte[bytesArraySize];
+    }
 
-        int bufferBytes;
-        while ((bufferBytes = inputStream.read(bytes)) > 0) {
-            outputStream.write(bytes, 0, bufferBytes);
+    /**
+     * Recovers the session key with BouncyCastle and deciphers the content on the provider of its cipher.
+     * The JCE providers only have the CFB mode of the files with integrity packet, older files stay on BouncyCastle.
+     */
+    static class ContentDecryptorFactory implements PublicKeyDataDecryptorFactory {
+        private final PGPPrivateKey privateKey;
+        private final String provider;
+        private final PublicKeyDataDecryptorFactory bcFactory;
+
+        ContentDecryptorFactory(PGPPrivateKey privateKey, String provider) {
+            this.privateKey = privateKey;
+            this.provider = provider;
+            this.bcFactory = new BcPublicKeyDataDecryptorFactory(privateKey);
         }
 
-        outputStream.close();
-        inputStream.close();
-    }
+        @Override
+        public byte[] recoverSessionData(int keyAlgorithm, byte[][] secKeyData) throws PGPException {
+            return bcFactory.recoverSessionData(keyAlgorithm, secKeyData);
+        }
 
-    private static PGPPrivateKey findSecretKey(InputStream keyIn, long keyID, char[] pass)
-            throws PGPException {
-        PGPPrivateKey privateKey;
-        try {
-            PGPSecretKeyRingCollection pgpSec = new PGPSecretKeyRingCollection(PGPUtil.getDecoderStream(keyIn), new BcKeyFingerprintCalculator());
-            PGPSecretKey pgpSecKey = pgpSec.getSecretKey(keyID);
-            if (pgpSecKey == null) {
-                return null;
+        @Override
+        public PGPDataDecryptor createDataDecryptor(boolean withIntegrityPacket, int encAlgorithm, byte[] key)
+                throws PGPException {
+            Provider contentProvider = CryptoProviders.content(provider, encAlgorithm);
+            if (!withIntegrityPacket || contentProvider == CryptoProviders.BC) {
+                return bcFactory.createDataDecryptor(withIntegrityPacket, encAlgorithm, key);
             }
-            PBESecretKeyDecryptor secretKeyDecryptor = new JcePBESecretKeyDecryptorBuilder()
-                    .setProvider(new BouncyCastleProvider()).build(pass);
-
-            privateKey = pgpSecKey.extractPrivateKey(secretKeyDecryptor);
-        } catch (Exception ex) {
-            LOG.error("[SFTP Delta] Private Key could not be read.");
-            throw new PGPException("Private Key could not be read");
+            LOG.debug("[SFTP Delta] Decrypting on {}.", contentProvider.getName());
+            return new JcePublicKeyDataDecryptorFactoryBuilder().setProvider(CryptoProviders.BC)
+                    .setContentProvider(contentProvider).build(privateKey)
+                    .createDataDecryptor(true, encAlgorithm, key);
         }
-        return privateKey;
     }
 }
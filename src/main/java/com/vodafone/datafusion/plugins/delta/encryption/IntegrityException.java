@@ -0,0 +1,15 @@
+package com.vodafone.datafusion.plugins.delta.encryption;
+
+import org.bouncycastle.openpgp.PGPException;
+
+/**
+ * A decrypted file failed its PGP integrity check, so its contents can not be trusted.
+ * Unlike other transfer errors it fails the pipeline instead of being logged.
+ */
+public class IntegrityException extends PGPException {
+    private static final long serialVersionUID = 1L;
+
+    public IntegrityException(String message) {
+        super(message);
+    }
+}
@@ -72,7 +72,7 @@ public class PGPCertUtil {
         if (pgpSecKey == null) {
             return null;
         }
-        return pgpSecKey.extractPrivateKey(new JcePBESecretKeyDecryptorBuilder().setProvider("BC").build(pass));
+        return pgpSecKey.extractPrivateKey(new JcePBESecretKeyDecryptorBuilder().setProvider(CryptoProviders.BC).build(pass));
     }
 
     public static PGPSecretKey readSecretKey(String fileName) throws IOException, PGPException, IllegalArgumentException {
@@ -0,0 +1,267 @@
+package com.vodafone.datafusion.plugins.delta.encryption;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpException;
+import com.vodafone.datafusion.plugins.delta.common.BufferPool;
+import com.vodafone.datafusion.plugins.delta.common.FileMetaData;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.openpgp.*;
+import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.*;
+
+/**
+ * PGP encryption of sftp files, shared by the transfers of a stage.
+ * Files are either encrypted into a pipe by a bounded pool of threads, so the number of encryption threads does not
+ * grow with the number of files, or written directly into the target stream by the thread of the transfer.
+ * Every file is encrypted with its own generators and buffers, so any number of files may be encrypted at the same
+ * time. Encryption errors fail the read of the pipe instead of ending the encrypted stream early.
+ * Files are encrypted with the configured cipher, AES by default, and may be compressed before, which makes text files
+ * several times smaller. The cipher runs on BouncyCastle or, with the jce provider, on the JVM, which uses the AES
+ * instructions of the processor.
+ */
+public class PGPEncryptor implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(PGPEncryptor.class);
+
+    private final ExecutorService executor;
+    private final int pipeSize;
+    private final BufferPool buffers;
+    private final int cipher;
+    private final int compression;
+    private final int compressionLevel;
+    private final Provider contentProvider;
+
+    /**
+     *
+     * @param name      thread name prefix
+     * @param threads   max files encrypted into pipes at the same time
+     * @param pipeSize  bytes buffered by every pipe
+     * @param buffers   heap buffers of the encryption
+     */
+    public PGPEncryptor(String name, int threads, int pipeSize, BufferPool buffers) {
+        this(name, threads, pipeSize, buffers, CIPHER_AES_128, COMPRESSION_NONE, DEFAULT_COMPRESSION_LEVEL,
+                CRYPTO_PROVIDER_BC);
+    }
+
+    /**
+     *
+     * @param name              thread name prefix
+     * @param threads           max files encrypted into pipes at the same time
+     * @param pipeSize          bytes buffered by every pipe
+     * @param buffers           heap buffers of the encryption
+     * @param cipher            symmetric cipher: AES-128, AES-256 or CAST5
+     * @param compression       compression before the encryption: none, zip, zlib or bzip2
+     * @param compressionLevel  zip and zlib level, from 1 to 9
+     * @param provider          provider of the cipher: bc or jce
+     */
+    public PGPEncryptor(String name, int threads, int pipeSize, BufferPool buffers, String cipher, String compression,
+                        int compressionLevel, String provider) {
+        this.cipher = cipherTag(cipher);
+        this.compression = compressionTag(compression);
+        this.compressionLevel = compressionLevel;
+        this.contentProvider = CryptoProviders.content(provider, this.cipher);
+        LOG.debug("[SFTP Delta] Encrypting with {} on {}.", cipher, contentProvider.getName());
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat(name + "-encrypt-%d")
+                .setDaemon(true)
+                .build());
+        this.pipeSize = pipeSize;
+        this.buffers = buffers;
+    }
+
+    /**
+     * Encrypt a file into a pipe on a thread of the pool. Files wait for a free thread when all are in use.
+     *
+     * @param sftpChannel   sftp channel, null to read the file from its file system
+     * @param fileMetaData  file to encrypt
+     * @param encKey        public key
+     * @return encrypted content stream, failing if the encryption fails
+     * @throws IOException
+     */
+    public InputStream encrypt(ChannelSftp sftpChannel, FileMetaData fileMetaData, PGPPublicKey encKey) throws IOException {
+        PipedOutputStream outPipe = new PipedOutputStream();
+        EncryptedPipe inPipe = new EncryptedPipe(outPipe, pipeSize);
+
+        inPipe.task = executor.submit(() -> {
+            try (OutputStream out = outPipe) {
+                encrypt(out, sftpChannel, fileMetaData, encKey);
+            }
+            return null;
+        });
+        return inPipe;
+    }
+
+    /**
+     * Encrypt a file directly into a stream, on the calling thread
+     *
+     * @param out           target stream, not closed
+     * @param sftpChannel   sftp channel, null to read the file from its file system
+     * @param fileMetaData  file to encrypt
+     * @param encKey        public key
+     * @throws IOException
+     */
+    public void encrypt(OutputStream out, ChannelSftp sftpChannel, FileMetaData fileMetaData, PGPPublicKey encKey)
+            throws IOException {
+        ByteBuffer packetBuffer = buffers.acquire();
+        ByteBuffer literalBuffer = buffers.acquire();
+        ByteBuffer readBuffer = buffers.acquire();
+        try {
+            PGPEncryptedDataGenerator cPk = new PGPEncryptedDataGenerator(new JcePGPDataEncryptorBuilder(cipher)
+                    .setWithIntegrityPacket(true).setSecureRandom(new SecureRandom()).setProvider(contentProvider));
+
+            cPk.addMethod(new JcePublicKeyKeyEncryptionMethodGenerator(encKey).setProvider(CryptoProviders.BC));
+
+            OutputStream cOut = cPk.open(out, packetBuffer.array());
+
+            if (compression == CompressionAlgorithmTags.UNCOMPRESSED) {
+                writeFileToLiteralData(cOut, sftpChannel, PGPLiteralData.BINARY, fileMetaData, literalBuffer.array(),
+                        readBuffer.array());
+            } else {
+                // the compressed packet has no length, so it needs no buffer of its own
+                PGPCompressedDataGenerator comData = new PGPCompressedDataGenerator(compression, compressionLevel);
+                writeFileToLiteralData(comData.open(cOut), sftpChannel, PGPLiteralData.BINARY, fileMetaData,
+                        literalBuffer.array(), readBuffer.array());
+                comData.close();
+            }
+
+            cOut.close();
+        } catch (PGPException e) {
+            LOG.error("[SFTP Delta] Encryption error: " + e);
+            throw new IOException("Encryption error: " + e.getMessage(), e);
+        } catch (SftpException e) {
+            LOG.error("[SFTP Delta] Encryption Sftp error: " + e);
+            throw new IOException("Encryption Sftp error: " + e.getMessage(), e);
+        } finally {
+            buffers.release(packetBuffer);
+            buffers.release(literalBuffer);
+            buffers.release(readBuffer);
+        }
+    }
+
+    /**
+     * Stop the encryption threads. Pipes still being read fail.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @param cipher    cipher name
+     * @return OpenPGP symmetric algorithm
+     */
+    static int cipherTag(String cipher) {
+        switch (cipher) {
+            case CIPHER_AES_256:
+                return SymmetricKeyAlgorithmTags.AES_256;
+            case CIPHER_AES_128:
+                return SymmetricKeyAlgorithmTags.AES_128;
+            case CIPHER_CAST5:
+                return SymmetricKeyAlgorithmTags.CAST5;
+            default:
+                throw new IllegalArgumentException("Unknown cipher " + cipher);
+        }
+    }
+
+    /**
+     * @param compression   compression name
+     * @return OpenPGP compression algorithm
+     */
+    static int compressionTag(String compression) {
+        switch (compression) {
+            case COMPRESSION_NONE:
+                return CompressionAlgorithmTags.UNCOMPRESSED;
+            case COMPRESSION_ZIP:
+                return CompressionAlgorithmTags.ZIP;
+            case COMPRESSION_ZLIB:
+                return CompressionAlgorithmTags.ZLIB;
+            case COMPRESSION_BZIP2:
+                return CompressionAlgorithmTags.BZIP2;
+            default:
+                throw new IllegalArgumentException("Unknown compression " + compression);
+        }
+    }
+
+    private static void writeFileToLiteralData(OutputStream outStream, ChannelSftp channelSftp, char literalDataType, FileMetaData fileMetaData, byte[] bytesArray, byte[] readArray) throws IOException, SftpException {
+        PGPLiteralDataGenerator literalDataGenerator = new PGPLiteralDataGenerator();
+        OutputStream outputStream = literalDataGenerator.open(outStream, literalDataType, fileMetaData.getPath().getName(), new Date(fileMetaData.getLastModifiedTime()), bytesArray);
+        pipeFileContents(channelSftp, fileMetaData, outputStream, readArray);
+    }
+
+    private static void pipeFileContents(ChannelSftp channelSftp, FileMetaData fileMetadata, OutputStream outputStream, byte[] bytes) throws IOException, SftpException {
+        InputStream inputStream;
+        if (null != channelSftp) {
+            inputStream = channelSftp.get(fileMetadata.getPath().toString());
+        } else {
+            inputStream = fileMetadata.getFileSystem().open(fileMetadata.getPath());
+        }
+        try {
+            int bufferBytes;
+            while ((bufferBytes = inputStream.read(bytes)) > 0) {
+                outputStream.write(bytes, 0, bufferBytes);
+            }
+            outputStream.close();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Read end of an encryption pipe. The end of the pipe waits for the encryption, and fails if it failed.
+     */
+    private static class EncryptedPipe extends PipedInputStream {
+        private volatile Future<?> task;
+
+        EncryptedPipe(PipedOutputStream src, int pipeSize) throws IOException {
+            super(src, pipeSize);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) {
+                checkTask();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n < 0) {
+                checkTask();
+            }
+            return n;
+        }
+
+        private void checkTask() throws IOException {
+            try {
+                task.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the encryption", ex);
+            } catch (ExecutionException ex) {
+                throw new IOException("Encryption failed: " + ex.getCause().getMessage(), ex.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.vodafone.datafusion.plugins.delta.encryption;
+
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.PGPSecretKeyRingCollection;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.KEY_CACHE_EVICTION_PERIOD_MS;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * JVM wide cache of the PGP keys read from sftp servers, shared by all the plugin stages running in the same executor.
+ * Key rings are downloaded and parsed once per key file, and private keys are extracted with their passphrase once per
+ * key id, so the slow passphrase key derivation is not repeated for every encrypted file.
+ * Cached keys are used without any request to the server until their time to live ends. Then the size and
+ * modification time of a public key file are compared with the cached ones, and the key is only read again if they
+ * changed. Private keys are dropped when their time to live ends, and extracted again when they are next needed.
+ * Private keys are cached per passphrase, kept as a hash, so a wrong passphrase never gets a cached key.
+ * Keys are loaded under a lock of their own cache key, so a slow server or key derivation only holds back the
+ * callers waiting for the same key.
+ */
+public class PGPKeyCache {
+    private static final Logger LOG = LoggerFactory.getLogger(PGPKeyCache.class);
+
+    private static final ConcurrentMap<String, Entry<PGPPublicKey>> PUBLIC_KEYS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Entry<PGPSecretKeyRingCollection>> SECRET_RINGS =
+            new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Entry<PGPPrivateKey>> PRIVATE_KEYS = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService evictor;
+
+    private PGPKeyCache() {
+    }
+
+    /**
+     * Get the encryption key of a public key ring in a sftp server
+     *
+     * @param sftpChannel   sftp channel
+     * @param path          key ring path
+     * @param ttl           milliseconds the key is used without checking the file, 0 to always read it
+     * @return public key
+     * @throws Exception If the key can not be read
+     */
+    public static PGPPublicKey getPublicKey(ChannelSftp sftpChannel, String path, long ttl) throws Exception {
+        return get(PUBLIC_KEYS, location(sftpChannel, path), ttl, () -> stamp(sftpChannel, path), () -> {
+            LOG.debug("[SFTP Delta] Reading public key {}.", path);
+            return PGPCertUtil.readPublicKey(path, sftpChannel);
+        });
+    }
+
+    /**
+     * Get a private key of a secret key ring in a sftp server, extracted with its passphrase
+     *
+     * @param sftpChannel   sftp channel
+     * @param path          secret key ring path
+     * @param keyID         id of the key
+     * @param passphrase    passphrase of the key
+     * @param ttl           milliseconds the key is kept, 0 to always read it
+     * @return private key, null if the ring has no key with that id
+     * @throws Exception If the key ring can not be read or the key can not be extracted
+     */
+    public static PGPPrivateKey getPrivateKey(ChannelSftp sftpChannel, String path, long keyID, char[] passphrase,
+                                              long ttl) throws Exception {
+        String location = location(sftpChannel, path);
+        Callable<String> stamp = () -> stamp(sftpChannel, path);
+        String key = location + "\u0000" + Long.toHexString(keyID) + "\u0000"
+                + Hashing.sha256().hashString(location + new String(passphrase), UTF_8);
+
+        startEvictor();
+        return get(PRIVATE_KEYS, key, ttl, null, () -> {
+            // other key ids and passphrases of the same file reuse the parsed ring, while the file does not change
+            String version = ttl > 0 ? stamp.call() : null;
+            Entry<PGPSecretKeyRingCollection> ring = version != null ? SECRET_RINGS.get(location) : null;
+            if (ring == null || !version.equals(ring.stamp)) {
+                LOG.debug("[SFTP Delta] Reading secret key ring {}.", path);
+                try (InputStream keyIn = new BufferedInputStream(sftpChannel.get(path))) {
+                    ring = new Entry<>(new PGPSecretKeyRingCollection(PGPUtil.getDecoderStream(keyIn),
+                            new BcKeyFingerprintCalculator()), version);
+                }
+                if (version != null) {
+                    SECRET_RINGS.put(location, ring);
+                }
+            }
+            PGPSecretKey secretKey = ring.getValue().getSecretKey(keyID);
+            if (secretKey == null) {
+                return null;
+            }
+            LOG.debug("[SFTP Delta] Extracting private key {}.", Long.toHexString(keyID));
+            return secretKey.extractPrivateKey(new JcePBESecretKeyDecryptorBuilder()
+                    .setProvider(CryptoProviders.BC).build(passphrase));
+        });
+    }
+
+    /**
+     * Get a cached value, loading it when it is not cached, or its time to live ended and its file changed.
+     * Null values are not cached. Only the callers of the same key wait for its load.
+     *
+     * @param cache     cache of the values
+     * @param key       cache key
+     * @param ttl       milliseconds the value is used without checking its file, 0 to always load it
+     * @param stamp     reads the version of the file, compared when the time to live ends; null to load the value
+     *                  again whenever its time to live ends
+     * @param loader    loads the value
+     * @return cached or loaded value
+     * @throws Exception If the value can not be loaded
+     */
+    static <T> T get(ConcurrentMap<String, Entry<T>> cache, String key, long ttl, Callable<String> stamp,
+                     Callable<T> loader) throws Exception {
+        if (ttl <= 0) {
+            return loader.call();
+        }
+
+        Entry<T> entry = cache.computeIfAbsent(key, k -> new Entry<>());
+        synchronized (entry) {
+            long now = System.currentTimeMillis();
+            if (entry.value != null && now < entry.expires) {
+                return entry.value;
+            }
+
+            try {
+                String version = null != stamp ? stamp.call() : null;
+                if (entry.value == null || version == null || !version.equals(entry.stamp)) {
+                    // a failed load does not leave the value of the old file
+                    entry.value = null;
+                    entry.value = loader.call();
+                    entry.stamp = version;
+                }
+                entry.expires = now + ttl;
+                return entry.value;
+            } finally {
+                if (entry.value == null) {
+                    cache.remove(key, entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop the values whose time to live ended at a given time
+     *
+     * @param cache     cache of the values
+     * @param now       current time in milliseconds
+     */
+    static <T> void evictExpired(ConcurrentMap<String, Entry<T>> cache, long now) {
+        cache.values().removeIf(entry -> entry.isExpired(now));
+    }
+
+    private static synchronized void startEvictor() {
+        if (evictor == null) {
+            evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("pgp-key-evictor")
+                    .setDaemon(true)
+                    .build());
+            evictor.scheduleWithFixedDelay(() -> evictExpired(PRIVATE_KEYS, System.currentTimeMillis()),
+                    KEY_CACHE_EVICTION_PERIOD_MS, KEY_CACHE_EVICTION_PERIOD_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static String location(ChannelSftp sftpChannel, String path) throws JSchException {
+        Session session = sftpChannel.getSession();
+        return session.getUserName() + "@" + session.getHost() + ":" + session.getPort() + path;
+    }
+
+    private static String stamp(ChannelSftp sftpChannel, String path) throws Exception {
+        SftpATTRS attrs = sftpChannel.stat(path);
+        return attrs.getSize() + ":" + attrs.getMTime();
+    }
+
+    /**
+     * Cached value of a key, guarded by its own lock
+     */
+    static class Entry<T> {
+        private T value;
+        private String stamp;
+        private long expires;
+
+        Entry() {
+        }
+
+        Entry(T value, String stamp) {
+            this.value = value;
+            this.stamp = stamp;
+        }
+
+        synchronized T getValue() {
+            return value;
+        }
+
+        synchronized boolean isExpired(long now) {
+            return value != null && now >= expires;
+        }
+    }
+}
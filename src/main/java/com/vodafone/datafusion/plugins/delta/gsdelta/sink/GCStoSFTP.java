@@ -3,12 +3,15 @@ package com.vodafone.datafusion.plugins.delta.gsdelta.sink;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.storage.*;
 import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.jcraft.jsch.Channel;
 import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.SftpException;
 import com.vodafone.datafusion.plugins.delta.common.*;
 import com.vodafone.datafusion.plugins.delta.common.sink.DeltaOutputFormatProvider;
 import com.vodafone.datafusion.plugins.delta.encryption.FileEncrypt;
+import com.vodafone.datafusion.plugins.delta.encryption.IntegrityException;
 import com.vodafone.datafusion.plugins.delta.encryption.PGPCertUtil;
 import io.cdap.cdap.api.annotation.Description;
 import io.cdap.cdap.api.annotation.Name;
@@ -28,9 +31,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static com.vodafone.datafusion.plugins.delta.common.DeltaUtils.emitLineage;
 import static com.vodafone.datafusion.plugins.delta.constants.Constants.*;
@@ -45,9 +48,9 @@ public class GCStoSFTP extends BatchSink<StructuredRecord, Void, Void> {
 
     private ChannelSftp sftpChannel;
     private SFTPConnector sftpConnector;
-    private MessageDigest messageDigest;
+    private TransferChecksum checksum;
     private Storage storage;
-    private GoogleCredentials credentials = null;
+    private GoogleCredentials credentials;
 
     private InputStream privateKeyStream;
 
@@ -60,6 +63,14 @@ public class GCStoSFTP extends BatchSink<StructuredRecord, Void, Void> {
 
     private long fileRetries;
 
+    int chunkSize;
+    int pipelineDepth;
+    long keyCacheTtl;
+    String cryptoProvider;
+    private ExecutorService pipelinePool;
+    private BufferPool pipelineBuffers;
+    private final PipelinedInputStream.Stalls pipelineStalls = new PipelinedInputStream.Stalls();
+
     public GCStoSFTP(GCStoSFTPConfig config) {
         this.config = config;
     }
@@ -103,6 +114,38 @@ public class GCStoSFTP extends BatchSink<StructuredRecord, Void, Void> {
         seenOn = String.valueOf(context.getLogicalStartTime());
         runId = context.getMetrics().getTags().get("wfr");
 
+        try {
+            chunkSize = Integer.parseInt(Objects.requireNonNull(context.getArguments().get(GCS_TO_SFTP_BUFFERSIZE))) * 1024 * 1024;
+            LOG.debug("[SFTP Delta] Sink chunkSize param: {}", chunkSize);
+        } catch (Exception e) {
+            chunkSize = DEFAULT_READ_CHUNK_SIZE;
+        }
+
+        try {
+            pipelineDepth = Integer.parseInt(Objects.requireNonNull(context.getArguments().get(GCS_TO_SFTP_PIPELINE_DEPTH)));
+            LOG.debug("[SFTP Delta] Sink pipeline depth param: {}", pipelineDepth);
+        } catch (Exception e) {
+            pipelineDepth = DEFAULT_PIPELINE_DEPTH;
+        }
+        pipelineDepth = Math.min(pipelineDepth, MAX_PIPELINE_DEPTH);
+        // off unless asked for; files are written one at a time, so one thread reads ahead the file being written
+        if (pipelineDepth >= MIN_PIPELINE_DEPTH) {
+            pipelinePool = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat(GCS_TO_SFTP_NAME + "-pipeline-%d")
+                    .setDaemon(true)
+                    .build());
+            pipelineBuffers = BufferPool.shared(PIPELINE_BUFFER_SIZE, false, pipelineDepth);
+        }
+
+        try {
+            keyCacheTtl = Long.parseLong(Objects.requireNonNull(context.getArguments().get(GCS_TO_SFTP_KEY_CACHE_TTL))) * 1000;
+            LOG.debug("[SFTP Delta] Sink key cache ttl param: {}", keyCacheTtl);
+        } catch (Exception e) {
+            keyCacheTtl = DEFAULT_KEY_CACHE_TTL;
+        }
+        cryptoProvider = CRYPTO_PROVIDER_JCE.equals(context.getArguments().get(GCS_TO_SFTP_CRYPTO_PROVIDER))
+                ? CRYPTO_PROVIDER_JCE : CRYPTO_PROVIDER_BC;
+
         if (!Strings.isNullOrEmpty(config.archiveOriginals) && !Strings.isNullOrEmpty(config.archiveOption)
                 && config.archiveOriginals.equals("yes") && config.archiveOption.equals("rename")
                 && Strings.isNullOrEmpty(config.targetPath) && !config.targetPath.startsWith(GS_ROOT)){
@@ -162,9 +205,9 @@ public class GCStoSFTP extends BatchSink<StructuredRecord, Void, Void> {
             return;
         }
 
-        if (null == credentials){
-            storage = DeltaUtils.getGCPStorage(input.get(SCHEMA_CONNECTION_TYPE), input.get(SCHEMA_CONNECTION));
-        }
+        // records may come from different service accounts, the cache parses each one once
+        credentials = DeltaUtils.getGCPCredentials(input.get(SCHEMA_CONNECTION_TYPE), input.get(SCHEMA_CONNECTION));
+        storage = GCPClientCache.getStorage(credentials);
 
         GCSPath gcsPath = GCSPath.from(input.get(SCHEMA_FULLFILENAME));
         BlobId blobId = BlobId.of(gcsPath.getBucket(), gcsPath.getName());
@@ -173,23 +216,20 @@ public class GCStoSFTP extends BatchSink<StructuredRecord, Void, Void> {
         boolean isEncrypted = blob.getName().endsWith(ENCRYPT_EXTENSION);
 
         if (!Strings.isNullOrEmpty(config.sftpPath) && null != blob) {
-            InputStream writtenStream = null;
-            DigestInputStream cis = null;
             try{
-                messageDigest = MessageDigest.getInstance(MD5);
+                checksum = TransferChecksum.of(config.getChecksum());
 
-                writtenStream = retryPolicyStorage(config, blob, input.get(SCHEMA_BASENAME), input.get(SCHEMA_FULLFILENAME));
+                String writtenFile = retryPolicyStorage(config, blob, input.get(SCHEMA_BASENAME), input.get(SCHEMA_FULLFILENAME));
 
-                boolean checkLineage = false;
-                if (!isEncrypted && null != writtenStream) {
-                    cis = new DigestInputStream(writtenStream, messageDigest);
-                    checkLineage = DeltaUtils.checkLineage(blob, messageDigest, cis);
-                    if (!checkLineage) {
-                        throw new Exception("[SFTP Delta] Error writing file.");
-                    }
+                // decrypted files differ from the object, so the encrypted bytes read are verified instead
+                boolean checkLineage = isEncrypted && null != config.privateKeyPath
+                        ? checksum.verify(blob)
+                        : verifyTransfer(blob, writtenFile);
+                if (!checkLineage) {
+                    throw new Exception("[SFTP Delta] Error writing file.");
                 }
 
-                if((checkLineage || isEncrypted) && config.archiveOriginals.equals(YES)) {
+                if(checkLineage && config.archiveOriginals.equals(YES)) {
                     if (config.archiveOption.equals(RENAME)) {
                         LOG.debug("[SFTP Delta] Archiving file: " + input.get(SCHEMA_FILENAME));
                         archiveGCSFile(input.get(SCHEMA_FULLFILENAME), config.targetPath);
@@ -202,17 +242,21 @@ public class GCStoSFTP extends BatchSink<StructuredRecord, Void, Void> {
                 LOG.info("[SFTP Delta] File {} was written to sftp path: {}", (String) input.get(SCHEMA_FILENAME), config.sftpPath);
                 setMetrics(blob, input, startTime);
                 LOG.info("[SFTP Delta] Transferred {} bytes: from {} to {}", input.get(SIZE), input.get(SCHEMA_FULLFILENAME), config.sftpPath);
+            } catch (IntegrityException e) {
+                // a tampered or corrupt file fails the pipeline, other errors are only logged like in the SFTP to GCS sink
+                LOG.error("[SFTP Delta] File {} could not be written to sftp path", (String) input.get(SCHEMA_FILENAME));
+                throw e;
             } catch (Exception e){
                 LOG.error("[SFTP Delta] File {} could not be written to sftp path", (String) input.get(SCHEMA_FILENAME));
-            } finally {
-                if (null != writtenStream) writtenStream.close();
-                if (null != cis) cis.close();
             }
         }
     }
 
     @Override
     public void destroy() {
+        if (pipelinePool != null) {
+            pipelinePool.shutdownNow();
+        }
         if (sftpConnector != null) {
             try {
                 sftpConnector.close();
@@ -223,17 +267,47 @@ public class GCStoSFTP extends BatchSink<StructuredRecord, Void, Void> {
         }
     }
 
+    /**
+     * Verify the written file following the configured verification strategy
+     *
+     * @param blob          GCS object
+     * @param filename      written file, relative to the current sftp directory
+     * @return true if the file is correct
+     * @throws Exception
+     */
+    private boolean verifyTransfer(Blob blob, String filename) throws Exception {
+        switch (config.getVerification()) {
+            case VERIFY_SIZE:
+                return DeltaUtils.checkSize(blob, sftpChannel.stat(filename).getSize());
+            case VERIFY_SERVER_HASH:
+                String remotePath = sftpChannel.pwd() + SLASH + filename;
+                String serverMD5 = sftpConnector.getServerMD5(remotePath);
+                if (null != serverMD5) {
+                    return DeltaUtils.checkLineage(blob, serverMD5);
+                }
+                LOG.debug("[SFTP Delta] Server hash of {} not available, reading it back.", filename);
+                // falls through to the read back
+            case VERIFY_READ_BACK:
+                checksum.reset();
+                try (InputStream writtenStream = checksum.wrap(sftpChannel.get(filename))) {
+                    ByteStreams.exhaust(writtenStream);
+                }
+                return checksum.verify(blob);
+            default:
+                return checksum.verify(blob);
+        }
+    }
+
     /**
      *
      * @param config            SFTPtoGCSConfig configuration
      * @param blob              Blob object to write in sftp
      * @param fullfilePath      file name complete path
-     * @return
+     * @return written file name, relative to the current sftp directory
      * @throws Exception
      */
-    private InputStream retryPolicyStorage(GCStoSFTPConfig config, Blob blob, String basename, String fullfilePath) throws Exception{
-        InputStream writtenStream;
-        DigestInputStream cis = null;
+    private String retryPolicyStorage(GCStoSFTPConfig config, Blob blob, String basename, String fullfilePath) throws Exception{
+        InputStream cis = null;
         boolean isEncrypted = false;
         int retries = 0;
 
@@ -252,13 +326,15 @@ public class GCStoSFTP extends BatchSink<StructuredRecord, Void, Void> {
 
                 DeltaUtils.cdToSftpPath(sftpChannel, config.sftpPath, filePath);
 
+                // the checksum covers the bytes read from GCS, so encrypted objects are verified on their ciphertext
+                checksum.reset();
+                cis = checksum.wrap(pipelined(DeltaUtils.openGCSStream(blob, chunkSize)));
                 if (isEncrypted && null != config.privateKeyPath) {
-                    FileEncrypt.decryptFileIS(sftpChannel, blob, config.privateKeyPath, config.privateKeyPassword.toCharArray(), filename);
+                    FileEncrypt.decryptFileIS(sftpChannel, cis, config.privateKeyPath, config.privateKeyPassword.toCharArray(),
+                            filename, keyCacheTtl, cryptoProvider);
                 } else {
-                    cis = new DigestInputStream(new ByteArrayInputStream(blob.getContent()), messageDigest);
                     sftpChannel.put(cis, filename);
                 }
-                writtenStream = sftpChannel.get(filename);
                 break;
             } catch (SftpException ex) {
                 retryHandler.exceptionOccurred(filename);
@@ -274,7 +350,20 @@ public class GCStoSFTP extends BatchSink<StructuredRecord, Void, Void> {
 
         fileRetries = retries;
 
-        return writtenStream;
+        return filename;
+    }
+
+    /**
+     * Read a GCS stream ahead on the pipeline thread when the pipeline is enabled
+     *
+     * @param in    GCS stream
+     * @return pipelined stream
+     */
+    private InputStream pipelined(InputStream in) {
+        if (pipelinePool == null) {
+            return in;
+        }
+        return new PipelinedInputStream(in, pipelineDepth, pipelineBuffers, pipelinePool, pipelineStalls);
     }
 
     /**
@@ -339,6 +428,11 @@ public class GCStoSFTP extends BatchSink<StructuredRecord, Void, Void> {
         metrics.gauge(metricBase + METRICS_TRANSFER_RETRIES, fileRetries);
         metrics.gauge(metricBase + METRICS_TRANSFER_TIME, Math.toIntExact(endTime - startTime));
         metrics.count(metricBase + METRICS_UPLOADED_FILES, 1);
+        if (pipelinePool != null) {
+            String runBase = pipelineName + METRICS_SEPARATOR + runId + METRICS_SEPARATOR;
+            metrics.gauge(runBase + METRICS_PIPELINE_READ_STALL, pipelineStalls.getReadStallMillis());
+            metrics.gauge(runBase + METRICS_PIPELINE_WRITE_STALL, pipelineStalls.getWriteStallMillis());
+        }
 
         LOG.info("[SFTP Delta] Processed file {} -> init {} - finish {}", inputFile.get(SCHEMA_FILENAME), startTime, endTime);
     }
@@ -120,6 +120,19 @@ public class GCStoSFTPConfig extends PluginConfig {
     @Nullable
     public final String privateKeyPassword;
 
+    @Name(VERIFICATION)
+    @Description("How written files are verified: digest of the sent bytes, remote size, " +
+            "server side hash or reading the file back.")
+    @Macro
+    @Nullable
+    public final String verification;
+
+    @Name(CHECKSUM)
+    @Description("Checksum comparing the transferred bytes with the GCS object: crc32c, md5 or none.")
+    @Macro
+    @Nullable
+    public final String checksum;
+
     /**
      *
      * @param referenceName
@@ -140,6 +153,8 @@ public class GCStoSFTPConfig extends PluginConfig {
      * @param proxyPort
      * @param privateKeyPath
      * @param privateKeyPassword
+     * @param verification
+     * @param checksum
      */
     public GCStoSFTPConfig(
             String referenceName,
@@ -159,7 +174,9 @@ public class GCStoSFTPConfig extends PluginConfig {
             @Nullable String proxyIP,
             @Nullable Integer proxyPort,
             @Nullable String privateKeyPath,
-            @Nullable String privateKeyPassword
+            @Nullable String privateKeyPassword,
+            @Nullable String verification,
+            @Nullable String checksum
     ) {
         this.referenceName = referenceName;
         this.sftpServer = sftpServer;
@@ -179,6 +196,32 @@ public class GCStoSFTPConfig extends PluginConfig {
         this.proxyPort=proxyPort;
         this.privateKeyPath=privateKeyPath;
         this.privateKeyPassword=privateKeyPassword;
+        this.verification=verification;
+        this.checksum=checksum;
+    }
+
+    /**
+     * Verification strategy of written files
+     *
+     * @return verification strategy, digest if not set
+     */
+    public String getVerification() {
+        if (Strings.isNullOrEmpty(verification) || verification.startsWith(MACRO)) {
+            return VERIFY_DIGEST;
+        }
+        return verification;
+    }
+
+    /**
+     * Checksum verifying the transferred files
+     *
+     * @return checksum type, crc32c if not set
+     */
+    public String getChecksum() {
+        if (Strings.isNullOrEmpty(checksum) || checksum.startsWith(MACRO)) {
+            return CHECKSUM_CRC32C;
+        }
+        return checksum;
     }
 
     /**
@@ -231,5 +274,19 @@ public class GCStoSFTPConfig extends PluginConfig {
                         .withConfigProperty(TIME_TO_WAIT);
             }
         }
+
+        String verify = getVerification();
+        if (!VERIFY_DIGEST.equals(verify) && !VERIFY_SIZE.equals(verify)
+                && !VERIFY_SERVER_HASH.equals(verify) && !VERIFY_READ_BACK.equals(verify)) {
+            collector.addFailure("Invalid Verification value.", "Ensure the value.")
+                    .withConfigProperty(VERIFICATION);
+        }
+
+        String checksumType = getChecksum();
+        if (!CHECKSUM_CRC32C.equals(checksumType) && !CHECKSUM_MD5.equals(checksumType)
+                && !CHECKSUM_NONE.equals(checksumType)) {
+            collector.addFailure("Invalid Checksum value.", "Ensure the value.")
+                    .withConfigProperty(CHECKSUM);
+        }
     }
 }
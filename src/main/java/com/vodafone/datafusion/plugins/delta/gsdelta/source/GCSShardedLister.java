@@ -0,0 +1,184 @@
+package com.vodafone.datafusion.plugins.delta.gsdelta.source;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.Storage;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.SHARDS_PREFIXES;
+
+/**
+ * Recursive GCS listing split in shards listed at the same time.
+ * Shards are the first level prefixes below the listed prefix, or name ranges starting at the characters of a
+ * configured range. Results are merged in name order, the same order as a single listing.
+ */
+public class GCSShardedLister {
+    private static final Logger LOG = LoggerFactory.getLogger(GCSShardedLister.class);
+
+    private final Storage storage;
+    private final int threads;
+
+    /**
+     *
+     * @param storage   GCS client
+     * @param threads   shards listed at the same time
+     */
+    public GCSShardedLister(Storage storage, int threads) {
+        this.storage = storage;
+        this.threads = threads;
+    }
+
+    /**
+     * List a prefix recursively
+     *
+     * @param bucket    bucket name
+     * @param prefix    prefix to list, ending with /
+     * @param shards    "prefixes" or a character range, for example 0-9a-f
+     * @param mapper    converts a blob to a result, null to skip it
+     * @param options   additional list options
+     * @return mapped blobs in name order
+     * @throws Exception If any shard fails
+     */
+    public <T> List<T> list(String bucket, String prefix, String shards, Function<Blob, T> mapper,
+                            Storage.BlobListOption... options) throws Exception {
+        List<Shard<T>> plan = SHARDS_PREFIXES.equals(shards)
+                ? planPrefixes(bucket, prefix, mapper, options)
+                : planRange(prefix, parseRange(shards));
+        LOG.info("[SFTP Delta] Listing gs://{}/{} in {} shards.", bucket, prefix, plan.size());
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("gcs-listing-%d")
+                .setDaemon(true)
+                .build());
+        try {
+            List<Future<List<T>>> results = new ArrayList<>(plan.size());
+            for (Shard<T> shard : plan) {
+                results.add(shard.listed != null ? null : executor.submit(() -> listShard(bucket, shard, mapper, options)));
+            }
+
+            List<T> merged = new ArrayList<>();
+            for (int i = 0; i < plan.size(); i++) {
+                merged.addAll(plan.get(i).listed != null ? plan.get(i).listed : results.get(i).get());
+            }
+            return merged;
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private <T> List<T> listShard(String bucket, Shard<T> shard, Function<Blob, T> mapper,
+                                  Storage.BlobListOption... options) {
+        List<Storage.BlobListOption> shardOptions = new ArrayList<>(shard.options);
+        shardOptions.addAll(Arrays.asList(options));
+        List<T> listed = new ArrayList<>();
+        for (Blob blob : storage.list(bucket, shardOptions.toArray(new Storage.BlobListOption[0])).iterateAll()) {
+            T mapped = mapper.apply(blob);
+            if (mapped != null) {
+                listed.add(mapped);
+            }
+        }
+        return listed;
+    }
+
+    /**
+     * One shard for every first level prefix. Objects of the first level are mapped while planning.
+     */
+    private <T> List<Shard<T>> planPrefixes(String bucket, String prefix, Function<Blob, T> mapper,
+                                            Storage.BlobListOption... options) {
+        List<Storage.BlobListOption> firstLevel = new ArrayList<>(Arrays.asList(
+                Storage.BlobListOption.prefix(prefix), Storage.BlobListOption.currentDirectory()));
+        firstLevel.addAll(Arrays.asList(options));
+
+        List<Shard<T>> plan = new ArrayList<>();
+        for (Blob blob : storage.list(bucket, firstLevel.toArray(new Storage.BlobListOption[0])).iterateAll()) {
+            if (blob.isDirectory()) {
+                plan.add(Shard.toList(blob.getName(),
+                        Collections.singletonList(Storage.BlobListOption.prefix(blob.getName()))));
+            } else {
+                T mapped = mapper.apply(blob);
+                plan.add(Shard.listed(blob.getName(),
+                        mapped != null ? Collections.singletonList(mapped) : Collections.<T>emptyList()));
+            }
+        }
+        plan.sort(Comparator.comparing(shard -> shard.key));
+        return plan;
+    }
+
+    /**
+     * Contiguous name ranges starting at every character of the range, covering the whole prefix.
+     */
+    private <T> List<Shard<T>> planRange(String prefix, List<Character> characters) {
+        List<Shard<T>> plan = new ArrayList<>();
+        for (int i = 0; i <= characters.size(); i++) {
+            List<Storage.BlobListOption> options = new ArrayList<>();
+            options.add(Storage.BlobListOption.prefix(prefix));
+            if (i > 0) {
+                options.add(Storage.BlobListOption.startOffset(prefix + characters.get(i - 1)));
+            }
+            if (i < characters.size()) {
+                options.add(Storage.BlobListOption.endOffset(prefix + characters.get(i)));
+            }
+            plan.add(Shard.toList(i == 0 ? prefix : prefix + characters.get(i - 1), options));
+        }
+        return plan;
+    }
+
+    /**
+     * Characters of a range like 0-9a-f, sorted and without duplicates
+     *
+     * @param range character range
+     * @return characters
+     */
+    public static List<Character> parseRange(String range) {
+        TreeSet<Character> characters = new TreeSet<>();
+        for (int i = 0; i < range.length(); i++) {
+            char from = range.charAt(i);
+            if (i + 2 < range.length() && range.charAt(i + 1) == '-') {
+                char to = range.charAt(i + 2);
+                if (to < from) {
+                    throw new IllegalArgumentException("Invalid character range " + from + "-" + to);
+                }
+                for (char c = from; c <= to; c++) {
+                    characters.add(c);
+                }
+                i += 2;
+            } else {
+                characters.add(from);
+            }
+        }
+        if (characters.isEmpty()) {
+            throw new IllegalArgumentException("Empty character range");
+        }
+        return new ArrayList<>(characters);
+    }
+
+    private static class Shard<T> {
+        private final String key;
+        private final List<Storage.BlobListOption> options;
+        private final List<T> listed;
+
+        private Shard(String key, List<Storage.BlobListOption> options, List<T> listed) {
+            this.key = key;
+            this.options = options;
+            this.listed = listed;
+        }
+
+        static <T> Shard<T> toList(String key, List<Storage.BlobListOption> options) {
+            return new Shard<>(key, options, null);
+        }
+
+        static <T> Shard<T> listed(String key, List<T> listed) {
+            return new Shard<>(key, Collections.emptyList(), listed);
+        }
+    }
+}
@@ -1,17 +1,38 @@
 package com.vodafone.datafusion.plugins.delta.gsdelta.source;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.vodafone.datafusion.plugins.delta.common.source.DeltaSplit;
+import com.vodafone.datafusion.plugins.delta.common.source.SplitPlanner;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.mapreduce.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.CONF_JSON_PACKAGE_KEY;
+
 public class GSDeltaInputFormat extends InputFormat<NullWritable, GSDeltaRecord> {
+    private static final Logger LOG = LoggerFactory.getLogger(GSDeltaInputFormat.class);
+    private static final Gson gson = new GsonBuilder().create();
 
     @Override
-    public List<InputSplit> getSplits(JobContext jobContext) {
-        return Collections.singletonList(new DeltaSplit());
+    public List<InputSplit> getSplits(JobContext jobContext) throws IOException {
+        GSDeltaSourceConfig config = gson.fromJson(jobContext.getConfiguration().get(CONF_JSON_PACKAGE_KEY),
+                GSDeltaSourceConfig.class);
+        if (config.getSplitSize() <= 0) {
+            return Collections.singletonList(new DeltaSplit());
+        }
+
+        GSDeltaRecordReader lister = new GSDeltaRecordReader();
+        List<GSDeltaRecord> files = lister.listFiles(jobContext);
+        List<InputSplit> splits = SplitPlanner.planSplits(files, file -> file.size, config.getSplitSize(),
+                lister.getConnection());
+        LOG.info("[SFTP Delta] {} files planned in {} splits.", files.size(), splits.size());
+        return splits;
     }
 
     @Override
@@ -4,17 +4,19 @@ import com.google.api.gax.paging.Page;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.storage.Blob;
 import com.google.cloud.storage.Storage;
-import com.google.cloud.storage.StorageOptions;
 import com.google.common.base.Strings;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.jcraft.jsch.SftpException;
 import com.vodafone.datafusion.plugins.delta.common.DeltaUtils;
+import com.vodafone.datafusion.plugins.delta.common.GCPClientCache;
 import com.vodafone.datafusion.plugins.delta.common.GCSPath;
 import com.vodafone.datafusion.plugins.delta.common.source.DeltaDelta;
+import com.vodafone.datafusion.plugins.delta.common.source.DeltaSplit;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.slf4j.Logger;
@@ -24,6 +26,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
 
 import static com.vodafone.datafusion.plugins.delta.constants.Constants.*;
 import static java.util.stream.Collectors.toList;
@@ -50,13 +53,43 @@ public class GSDeltaRecordReader extends RecordReader<NullWritable, GSDeltaRecor
 
     private Storage storage;
     private GoogleCredentials credentials;
+    private int listingThreads;
 
     @Override
     public void initialize(InputSplit inputSplit,
                            TaskAttemptContext taskAttemptContext) throws IOException {
         LOG.debug("[SFTP Delta] Initializing record reader.");
+        DeltaSplit split = (DeltaSplit) inputSplit;
+        List<GSDeltaRecord> fileList;
+        if (split.isListed()) {
+            config = gson.fromJson(taskAttemptContext.getConfiguration().get(CONF_JSON_PACKAGE_KEY),
+                    GSDeltaSourceConfig.class);
+            split.checkConnection(getConnection());
+            fileList = new ArrayList<>();
+            for (String record : split.getRecords()) {
+                GSDeltaRecord file = gson.fromJson(record, GSDeltaRecord.class);
+                file.connection = getConnection();
+                fileList.add(file);
+            }
+            LOG.info("[SFTP Delta] Reading {} files, {} bytes, listed while planning.", fileList.size(), split.getLength());
+        } else {
+            fileList = listFiles(taskAttemptContext);
+        }
+
+        this.records = fileList.iterator();
+        this.current = 0;
+        this.total = fileList.size();
+    }
 
-        Configuration conf = taskAttemptContext.getConfiguration();
+    /**
+     * List the files of the configured path
+     *
+     * @param context   job context
+     * @return files to be transferred
+     * @throws IOException If the files can not be listed
+     */
+    List<GSDeltaRecord> listFiles(JobContext context) throws IOException {
+        Configuration conf = context.getConfiguration();
         configJson = conf.get(CONF_JSON_PACKAGE_KEY);
 
         config = gson.fromJson(configJson, GSDeltaSourceConfig.class);
@@ -70,21 +103,15 @@ public class GSDeltaRecordReader extends RecordReader<NullWritable, GSDeltaRecor
             credentials = DeltaUtils
                     .getGCPCredentials(config.serviceAccountType, config.serviceAccountJSON, config.serviceFilePath);
 
-            storage = StorageOptions.newBuilder()
-                    .setCredentials(credentials)
-                    .build().getService();
+            storage = GCPClientCache.getStorage(credentials);
 
-            safetyReadTime = DeltaUtils.getSafetyTime(taskAttemptContext);
+            safetyReadTime = DeltaUtils.getSafetyTime(context);
             toTime = Long.parseLong(conf.get(CONF_LOGICAL_START_TIME)) / 1000 - safetyReadTime;
 
             fromTime = DeltaDelta.getFromTime(config);
+            listingThreads = getListingThreads(conf);
 
-            ArrayList<GSDeltaRecord> fileList;
-            fileList = listDirectory(GCSPath.from(config.gcsPath), config.recursive);
-
-            this.records = fileList.iterator();
-            this.current = 0;
-            this.total = fileList.size();
+            return listDirectory(GCSPath.from(config.gcsPath), config.recursive);
         } catch (Exception ex) {
             LOG.error("[SFTP Delta] An error occurred initializing record reader: " + ex.getMessage());
             ex.printStackTrace();
@@ -160,7 +187,7 @@ public class GSDeltaRecordReader extends RecordReader<NullWritable, GSDeltaRecor
      * @param gcsPath        The origin directory
      * @throws SftpException If any SFTP errors occur
      */
-    private ArrayList listDirectory(GCSPath gcsPath, String recursive) throws Exception{
+    private ArrayList<GSDeltaRecord> listDirectory(GCSPath gcsPath, String recursive) throws Exception{
         LOG.info("[SFTP Delta] Listing directory: " + config.gcsPath);
 
         DeltaUtils.checkGCSbucket(credentials, config.gcsPath);
@@ -172,34 +199,31 @@ public class GSDeltaRecordReader extends RecordReader<NullWritable, GSDeltaRecor
         } else {
             prefix = gcsPath.getName();
         }
+        if (Boolean.parseBoolean(recursive) && !Strings.isNullOrEmpty(config.listingShards)) {
+            GCSShardedLister lister = new GCSShardedLister(storage, listingThreads);
+            ArrayList<GSDeltaRecord> fileList = new ArrayList<>(
+                    lister.list(gcsPath.getBucket(), prefix, config.listingShards, blob -> toRecord(gcsPath, blob),
+                            DeltaUtils.listingOptions()));
+            LOG.info("[SFTP Delta] Number of files listed: " + fileList.size());
+            return fileList;
+        }
         if(Boolean.parseBoolean(recursive)){
             blobs = storage.list(
                     gcsPath.getBucket(),
-                    Storage.BlobListOption.prefix(prefix));
+                    DeltaUtils.listingOptions(Storage.BlobListOption.prefix(prefix)));
         }else{
             blobs = storage.list(
                     gcsPath.getBucket(),
-                    Storage.BlobListOption.prefix(prefix),
-                    Storage.BlobListOption.currentDirectory());
+                    DeltaUtils.listingOptions(Storage.BlobListOption.prefix(prefix),
+                            Storage.BlobListOption.currentDirectory()));
         }
 
         ArrayList<GSDeltaRecord> fileList = new ArrayList<>();
 
         for (Blob blob : blobs.iterateAll()) {
-            if(isSubfolder(gcsPath.getName(), blob.getName())  && isNewFile(blob) && isMatches(blob)){
-                String connection = null;
-                if(config.serviceAccountType.equals("filePath")) {
-                    connection = config.serviceFilePath;
-                } else if (config.serviceAccountType.equals("json")) {
-                    connection = config.serviceAccountJSON;
-                }
-                fileList.add(new GSDeltaRecord(
-                        config.serviceAccountType,
-                        connection,
-                        config.getFullPath(),
-                        blob.getName(),
-                        blob.getSize(),
-                        (int) (long) blob.getCreateTime()));
+            GSDeltaRecord record = toRecord(gcsPath, blob);
+            if (record != null) {
+                fileList.add(record);
             }
         }
 
@@ -210,6 +234,57 @@ public class GSDeltaRecordReader extends RecordReader<NullWritable, GSDeltaRecor
         return fileList;
     }
 
+    /**
+     * Connection of the records: the service account file path or json of the configuration
+     *
+     * @return connection of the listed records
+     */
+    String getConnection() {
+        if (config.serviceAccountType.equals("filePath")) {
+            return config.serviceFilePath;
+        } else if (config.serviceAccountType.equals("json")) {
+            return config.serviceAccountJSON;
+        }
+        return null;
+    }
+
+    /**
+     * Record of a listed blob, if it passes the filters
+     *
+     * @param gcsPath   The origin directory
+     * @param blob      listed blob
+     * @return record, null if the blob is filtered out
+     */
+    private GSDeltaRecord toRecord(GCSPath gcsPath, Blob blob) {
+        if(isSubfolder(gcsPath.getName(), blob.getName())  && isNewFile(blob) && isMatches(blob)){
+            return new GSDeltaRecord(
+                    config.serviceAccountType,
+                    getConnection(),
+                    config.getFullPath(),
+                    blob.getName(),
+                    blob.getSize(),
+                    (int) (long) blob.getCreateTime());
+        }
+        return null;
+    }
+
+    /**
+     * Number of shards listed at the same time, from the runtime arguments
+     *
+     * @param conf  job configuration
+     * @return listing threads
+     */
+    private static int getListingThreads(Configuration conf) {
+        int threads;
+        try {
+            threads = Integer.parseInt(Objects.requireNonNull(conf.get(GS_DELTA_LISTING_THREADS)));
+            LOG.debug("[SFTP Delta] Source listing threads param: {}", threads);
+        } catch (Exception e) {
+            threads = DEFAULT_LISTING_THREADS;
+        }
+        return Math.max(1, Math.min(threads, MAX_GCS_LISTING_THREADS));
+    }
+
     private boolean isSubfolder(String basePath, String blobPath) {
         String path = blobPath.endsWith(SLASH)? blobPath.substring(0, blobPath.length()-1) : blobPath;
         boolean isSubfolder = !basePath.equals(path);
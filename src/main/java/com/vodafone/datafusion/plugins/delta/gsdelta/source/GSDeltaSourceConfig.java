@@ -69,6 +69,20 @@ public class GSDeltaSourceConfig  extends PluginConfig {
     @Nullable
     public final String serviceAccountJSON;
 
+    @Name(SPLIT_SIZE)
+    @Description("Target MB per task. When set, files are listed while planning and distributed between " +
+            "the tasks by size.")
+    @Macro
+    @Nullable
+    public final String splitSize;
+
+    @Name(LISTING_SHARDS)
+    @Description("Recursive listings are split in shards listed at the same time: 'prefixes' for one shard per " +
+            "first level directory, or a character range like 0-9a-f for one shard per starting character.")
+    @Macro
+    @Nullable
+    public final String listingShards;
+
     public GSDeltaSourceConfig(String referenceName,
                                String gcsPath,
                                @Nullable String regexFilter,
@@ -77,7 +91,9 @@ public class GSDeltaSourceConfig  extends PluginConfig {
                                @Nullable Long fromDelta,
                                String serviceAccountType,
                                @Nullable String serviceFilePath,
-                               @Nullable String serviceAccountJSON) {
+                               @Nullable String serviceAccountJSON,
+                               @Nullable String splitSize,
+                               @Nullable String listingShards) {
 
         this.referenceName = referenceName;
         this.gcsPath = gcsPath;
@@ -88,6 +104,8 @@ public class GSDeltaSourceConfig  extends PluginConfig {
         this.serviceAccountType = serviceAccountType;
         this.serviceFilePath = serviceFilePath;
         this.serviceAccountJSON = serviceAccountJSON;
+        this.splitSize = splitSize;
+        this.listingShards = listingShards;
     }
 
     public String getFullPath() {
@@ -101,6 +119,18 @@ public class GSDeltaSourceConfig  extends PluginConfig {
         return fullPath;
     }
 
+    /**
+     * Target bytes per split
+     *
+     * @return bytes, 0 if splits are not planned by size
+     */
+    public long getSplitSize() {
+        if (Strings.isNullOrEmpty(splitSize) || splitSize.startsWith(MACRO)) {
+            return 0;
+        }
+        return Long.parseLong(splitSize) * MB;
+    }
+
     public void validate(FailureCollector collector) {
         try {
             if(!Strings.isNullOrEmpty(gcsPath) && !gcsPath.startsWith(MACRO)) {
@@ -124,6 +154,28 @@ public class GSDeltaSourceConfig  extends PluginConfig {
             }
         }
 
+        if (!Strings.isNullOrEmpty(listingShards) && !listingShards.startsWith(MACRO)
+                && !SHARDS_PREFIXES.equals(listingShards)) {
+            try {
+                GCSShardedLister.parseRange(listingShards);
+            } catch (IllegalArgumentException e) {
+                collector.addFailure("Invalid Listing shards: " + e.getMessage(), "Use 'prefixes' or a character range.")
+                        .withConfigProperty(LISTING_SHARDS);
+            }
+        }
+
+        if (!Strings.isNullOrEmpty(splitSize) && !splitSize.startsWith(MACRO)) {
+            try {
+                if (Long.parseLong(splitSize) <= 0) {
+                    collector.addFailure("Invalid Split size value.", "Ensure the value is greater than 0.")
+                            .withConfigProperty(SPLIT_SIZE);
+                }
+            } catch (NumberFormatException e) {
+                collector.addFailure("Invalid Split size value.", "Ensure the value.")
+                        .withConfigProperty(SPLIT_SIZE);
+            }
+        }
+
         if (!Strings.isNullOrEmpty(persistDelta)) {
             String[] schemes = {HDFS, FILE, GS};
             UrlValidator urlValidator = new UrlValidator(schemes, UrlValidator.ALLOW_LOCAL_URLS);
@@ -0,0 +1,171 @@
+package com.vodafone.datafusion.plugins.delta.sftpdelta.sink;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Ints;
+import com.jcraft.jsch.ChannelSftp;
+import com.vodafone.datafusion.plugins.delta.common.BufferPool;
+import com.vodafone.datafusion.plugins.delta.common.CRC32CUtil;
+import com.vodafone.datafusion.plugins.delta.common.DeltaUtils;
+import com.vodafone.datafusion.plugins.delta.common.RetryOnException;
+import com.vodafone.datafusion.plugins.delta.common.SFTPConnector;
+import com.vodafone.datafusion.plugins.delta.common.TransferChecksum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.*;
+
+/**
+ * Upload of a big SFTP file as a GCS composite object.
+ * The file is read in byte ranges, each one on its own borrowed channel, and every range is uploaded as a temporary
+ * part object at the same time. The parts are then composed into the target object and deleted.
+ * Parts are kept under their own prefix of the target bucket, away from the target path, so readers of that path
+ * never see them and leftovers of killed tasks are easy to find and expire.
+ * Composite objects have no MD5, so every part and the composed object are verified with their CRC32C.
+ */
+public class CompositeUpload {
+    private static final Logger LOG = LoggerFactory.getLogger(CompositeUpload.class);
+
+    private final Storage storage;
+    private final SFTPConnector conn;
+    private final ExecutorService executor;
+    private final BufferPool buffers;
+    private final String numRetries;
+    private final String timeToWait;
+    private final AtomicInteger retries = new AtomicInteger();
+
+    /**
+     *
+     * @param storage       GCS client
+     * @param conn          sftp connector, channels are borrowed from it
+     * @param executor      pool uploading the parts
+     * @param buffers       upload buffers of the parts
+     * @param numRetries    retries of every part
+     * @param timeToWait    seconds between retries
+     */
+    public CompositeUpload(Storage storage, SFTPConnector conn, ExecutorService executor, BufferPool buffers,
+                           String numRetries, String timeToWait) {
+        this.storage = storage;
+        this.conn = conn;
+        this.executor = executor;
+        this.buffers = buffers;
+        this.numRetries = numRetries;
+        this.timeToWait = timeToWait;
+    }
+
+    /**
+     * Upload a file in parts and compose them into the target object
+     *
+     * @param sourcePath    sftp file path
+     * @param size          bytes of the file
+     * @param target        target object
+     * @param parts         max number of parts
+     * @return composed object
+     * @throws Exception If any part fails after its retries, or the composed object is corrupted
+     */
+    public Blob upload(String sourcePath, long size, BlobInfo target, int parts) throws Exception {
+        int numParts = numParts(size, parts);
+        long partSize = (size + numParts - 1) / numParts;
+        String partPrefix = COMPOSITE_PARTS_PREFIX + UUID.randomUUID() + SLASH;
+        LOG.debug("[SFTP Delta] Uploading {} in {} parts.", sourcePath, numParts);
+
+        List<BlobId> partIds = new ArrayList<>(numParts);
+        List<Future<Integer>> results = new ArrayList<>(numParts);
+        try {
+            for (int i = 0; i < numParts; i++) {
+                long offset = i * partSize;
+                long length = Math.min(partSize, size - offset);
+                BlobId partId = BlobId.of(target.getBucket(), partPrefix + i);
+                partIds.add(partId);
+                results.add(executor.submit(() -> uploadPart(sourcePath, BlobInfo.newBuilder(partId).build(),
+                        offset, length)));
+            }
+
+            int crc = 0;
+            for (int i = 0; i < numParts; i++) {
+                int partCrc = results.get(i).get();
+                crc = i == 0 ? partCrc : CRC32CUtil.combine(crc, partCrc, Math.min(partSize, size - i * partSize));
+            }
+
+            Storage.ComposeRequest.Builder compose = Storage.ComposeRequest.newBuilder().setTarget(target);
+            for (BlobId partId : partIds) {
+                compose.addSource(partId.getName());
+            }
+            Blob blob = storage.compose(compose.build());
+
+            if (blob.getSize() != size || !CRC32CUtil.toBase64(crc).equals(blob.getCrc32c())) {
+                storage.delete(blob.getBlobId());
+                throw new IOException("Composed object " + target.getName() + " does not match " + sourcePath);
+            }
+            return blob;
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+        } finally {
+            // parts still uploading after a failure must finish before they are deleted
+            for (Future<Integer> result : results) {
+                try {
+                    result.get();
+                } catch (Exception ignored) {
+                }
+            }
+            try {
+                storage.delete(partIds);
+            } catch (Exception ex) {
+                LOG.warn("[SFTP Delta] Error deleting composite parts of {}: {}", target.getName(), ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return retries of all the parts
+     */
+    public int getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Number of parts of a file, so no part is smaller than the minimum part size
+     *
+     * @param size      bytes of the file
+     * @param parts     max number of parts
+     * @return number of parts, at least one
+     */
+    static int numParts(long size, int parts) {
+        long bySize = (size + MIN_COMPOSITE_PART_SIZE - 1) / MIN_COMPOSITE_PART_SIZE;
+        return (int) Math.max(1, Math.min(Math.min(parts, MAX_COMPOSITE_PARTS), bySize));
+    }
+
+    private int uploadPart(String sourcePath, BlobInfo part, long offset, long length) throws Exception {
+        RetryOnException retryHandler = new RetryOnException(numRetries, timeToWait);
+        while (true) {
+            ChannelSftp channel = conn.borrowChannel();
+            TransferChecksum crc = TransferChecksum.of(CHECKSUM_CRC32C);
+            try (InputStream in = crc.wrap(ByteStreams.limit(channel.get(sourcePath, null, offset), length))) {
+                Blob blob = DeltaUtils.writeGCSFile(storage, part, in, buffers);
+                if (crc.getCount() != length || !crc.verify(blob)) {
+                    throw new IOException("Part " + part.getName() + " does not match " + sourcePath);
+                }
+                return Ints.fromByteArray(crc.value());
+            } catch (Exception ex) {
+                LOG.debug("[SFTP Delta] Error uploading part {}: {}", part.getName(), ex.getMessage());
+                retryHandler.exceptionOccurred(sourcePath);
+                retries.incrementAndGet();
+            } finally {
+                conn.returnChannel(channel);
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package com.vodafone.datafusion.plugins.delta.sftpdelta.sink;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.gson.Gson;
+import com.jcraft.jsch.SftpATTRS;
+import com.vodafone.datafusion.plugins.delta.common.BufferPool;
+import com.vodafone.datafusion.plugins.delta.common.CRC32CUtil;
+import com.vodafone.datafusion.plugins.delta.common.GCSPath;
+import com.vodafone.datafusion.plugins.delta.common.TransferChecksum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.*;
+import static java.net.HttpURLConnection.HTTP_GONE;
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Resumable upload of a SFTP file to GCS that survives retries and task restarts.
+ * The file is sent in chunks over a GCS resumable upload session. After every chunk is committed, the session URI,
+ * the committed offset and the CRC32C so far are saved as a JSON checkpoint object, so the next attempt goes on from
+ * the last committed chunk and only reads the missing range of the file. GCS may commit only part of a chunk, so its
+ * committed offset is queried after every chunk and the rest of the chunk is sent again before the checkpoint. Checkpoints of a file that changed, of another
+ * target or with a session outside the GCS host are ignored. Checkpoints hold no credentials, the current client
+ * sends the chunks. The object is verified with the CRC32C of the whole file, accumulated over the attempts.
+ */
+public class ResumableUpload {
+    private static final Logger LOG = LoggerFactory.getLogger(ResumableUpload.class);
+    private static final Gson gson = new Gson();
+
+    private final Storage storage;
+    private final ResumableUploadRpc rpc;
+    private final String bucket;
+    private final String prefix;
+    private final int chunkSize;
+    private final BufferPool buffers;
+
+    /**
+     * Opens the source file from an offset
+     */
+    public interface Source {
+        InputStream open(long offset) throws Exception;
+    }
+
+    /**
+     *
+     * @param storage           GCS client
+     * @param checkpointPath    GCS folder of the checkpoints
+     * @param buffers           heap buffers, their size rounded up to the GCS chunk granularity is committed between
+     *                          checkpoints
+     */
+    public ResumableUpload(Storage storage, GCSPath checkpointPath, BufferPool buffers) {
+        this.storage = storage;
+        this.rpc = new ResumableUploadRpc(storage);
+        this.bucket = checkpointPath.getBucket();
+        String name = checkpointPath.getName();
+        this.prefix = name.isEmpty() || name.endsWith(SLASH) ? name : name + SLASH;
+        this.chunkSize = alignChunkSize(buffers.getBufferSize());
+        this.buffers = buffers;
+    }
+
+    /**
+     * Upload a file, going on from its checkpoint if there is one
+     *
+     * @param sourcePath    sftp file path
+     * @param attrs         sftp file attributes
+     * @param target        target object
+     * @param source        opens the sftp file from an offset
+     * @return uploaded object
+     * @throws Exception If the upload fails, the checkpoint is kept for the next attempt
+     */
+    public Blob upload(String sourcePath, SftpATTRS attrs, BlobInfo target, Source source) throws Exception {
+        BlobId checkpointId = checkpointId(target);
+        Checkpoint checkpoint = load(checkpointId, sourcePath, attrs, target);
+
+        String uploadId;
+        long offset;
+        int crc;
+        if (checkpoint != null) {
+            LOG.info("[SFTP Delta] Resuming upload of {} from byte {}.", sourcePath, checkpoint.offset);
+            uploadId = checkpoint.uploadId;
+            offset = checkpoint.offset;
+            crc = checkpoint.crc32c;
+        } else {
+            uploadId = rpc.open(target);
+            offset = 0;
+            crc = 0;
+        }
+
+        ByteBuffer buffer = buffers.acquire(chunkSize);
+        try (InputStream in = source.open(offset)) {
+            byte[] chunk = buffer.array();
+            boolean last = false;
+            while (!last) {
+                // only a short chunk, even an empty one, finishes the upload
+                int read = ByteStreams.read(in, chunk, 0, chunkSize);
+                last = read < chunkSize;
+                writeChunk(uploadId, chunk, offset, read, last);
+                crc = CRC32CUtil.combine(crc, TransferChecksum.crc32c(chunk, 0, read), read);
+                offset += read;
+                if (!last) {
+                    save(checkpointId, new Checkpoint(sourcePath, attrs, target, chunkSize, uploadId, offset, crc));
+                }
+            }
+        } catch (StorageException ex) {
+            if (ex.getCode() == HTTP_NOT_FOUND || ex.getCode() == HTTP_GONE) {
+                LOG.warn("[SFTP Delta] Upload session of {} expired, starting again.", sourcePath);
+                delete(checkpointId);
+            }
+            throw ex;
+        } finally {
+            buffers.release(buffer);
+        }
+
+        delete(checkpointId);
+        Blob blob = storage.get(target.getBlobId());
+        if (null == blob || blob.getSize() != offset || !CRC32CUtil.toBase64(crc).equals(blob.getCrc32c())) {
+            LOG.error("[SFTP Delta] CRC32C does not match origin-target {}: {} <-> {}", target.getName(),
+                    CRC32CUtil.toBase64(crc), null == blob ? null : blob.getCrc32c());
+            throw new IOException("Check CRC32C Error");
+        }
+        return blob;
+    }
+
+    /**
+     * Send a chunk until GCS committed all of it
+     *
+     * @param uploadId  session URI
+     * @param chunk     chunk bytes
+     * @param offset    offset of the chunk in the object
+     * @param length    chunk length
+     * @param last      true if the chunk finishes the object
+     * @throws IOException If GCS does not commit the chunk
+     */
+    private void writeChunk(String uploadId, byte[] chunk, long offset, int length, boolean last)
+            throws IOException {
+        int sent = 0;
+        int attempts = 0;
+        while (true) {
+            rpc.write(uploadId, chunk, sent, offset + sent, length - sent, last);
+            if (last) {
+                return;
+            }
+            long committed = rpc.getCommittedOffset(uploadId);
+            if (committed == offset + length) {
+                return;
+            }
+            if (committed < offset || committed > offset + length) {
+                throw new IOException("Unexpected committed offset " + committed + " of chunk at " + offset);
+            }
+            attempts = committed > offset + sent ? 1 : attempts + 1;
+            if (attempts >= RESUMABLE_CHUNK_ATTEMPTS) {
+                throw new IOException("Chunk at " + offset + " not committed after " + attempts + " attempts");
+            }
+            LOG.debug("[SFTP Delta] GCS committed {} of {} bytes of chunk at {}, sending the rest again.",
+                    committed - offset, length, offset);
+            sent = (int) (committed - offset);
+        }
+    }
+
+    /**
+     * Smallest multiple of the GCS chunk granularity not below the given size
+     *
+     * @param chunkSize     requested chunk size
+     * @return aligned chunk size
+     */
+    static int alignChunkSize(int chunkSize) {
+        int chunks = Math.max(1, (chunkSize + RESUMABLE_CHUNK_GRANULARITY - 1) / RESUMABLE_CHUNK_GRANULARITY);
+        return chunks * RESUMABLE_CHUNK_GRANULARITY;
+    }
+
+    private BlobId checkpointId(BlobInfo target) {
+        String key = Hashing.sha256().hashString(target.getBucket() + SLASH + target.getName(), UTF_8).toString();
+        return BlobId.of(bucket, prefix + key + CHECKPOINT_EXTENSION);
+    }
+
+    private Checkpoint load(BlobId checkpointId, String sourcePath, SftpATTRS attrs, BlobInfo target) {
+        try {
+            Blob blob = storage.get(checkpointId);
+            if (null == blob) {
+                return null;
+            }
+            Checkpoint checkpoint = deserialize(blob.getContent());
+            if (!checkpoint.isSessionOf(storage.getOptions().getHost())) {
+                LOG.warn("[SFTP Delta] Ignoring upload checkpoint of {}, its session is not a GCS upload.", sourcePath);
+            } else if (checkpoint.matches(sourcePath, attrs, target, chunkSize)) {
+                return checkpoint;
+            } else {
+                LOG.info("[SFTP Delta] Ignoring upload checkpoint of {}, the file changed.", sourcePath);
+            }
+        } catch (Exception ex) {
+            LOG.warn("[SFTP Delta] Ignoring unreadable upload checkpoint of {}: {}", sourcePath, ex.getMessage());
+        }
+        delete(checkpointId);
+        return null;
+    }
+
+    private void save(BlobId checkpointId, Checkpoint checkpoint) throws IOException {
+        storage.create(BlobInfo.newBuilder(checkpointId).build(), serialize(checkpoint));
+    }
+
+    private void delete(BlobId checkpointId) {
+        try {
+            storage.delete(checkpointId);
+        } catch (Exception ex) {
+            LOG.warn("[SFTP Delta] Error deleting upload checkpoint {}: {}", checkpointId.getName(), ex.getMessage());
+        }
+    }
+
+    /**
+     * Checkpoint as JSON
+     *
+     * @param checkpoint    upload checkpoint
+     * @return checkpoint bytes
+     */
+    static byte[] serialize(Checkpoint checkpoint) {
+        return gson.toJson(checkpoint).getBytes(UTF_8);
+    }
+
+    /**
+     * Checkpoint from JSON
+     *
+     * @param bytes     checkpoint bytes
+     * @return upload checkpoint
+     * @throws IOException If it is not a complete checkpoint
+     */
+    static Checkpoint deserialize(byte[] bytes) throws IOException {
+        Checkpoint checkpoint = gson.fromJson(new String(bytes, UTF_8), Checkpoint.class);
+        if (null == checkpoint || null == checkpoint.sourcePath || null == checkpoint.target
+                || null == checkpoint.uploadId) {
+            throw new IOException("Incomplete upload checkpoint");
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Committed state of an upload
+     */
+    static class Checkpoint {
+        private final String sourcePath;
+        private final long size;
+        private final int mTime;
+        private final String target;
+        private final int chunkSize;
+        private final String uploadId;
+        private final long offset;
+        private final int crc32c;
+
+        Checkpoint(String sourcePath, SftpATTRS attrs, BlobInfo target, int chunkSize, String uploadId, long offset,
+                   int crc32c) {
+            this.sourcePath = sourcePath;
+            this.size = attrs.getSize();
+            this.mTime = attrs.getMTime();
+            this.target = target.getBucket() + SLASH + target.getName();
+            this.chunkSize = chunkSize;
+            this.uploadId = uploadId;
+            this.offset = offset;
+            this.crc32c = crc32c;
+        }
+
+        boolean matches(String sourcePath, SftpATTRS attrs, BlobInfo target, int chunkSize) {
+            return this.sourcePath.equals(sourcePath) && size == attrs.getSize() && mTime == attrs.getMTime()
+                    && this.target.equals(target.getBucket() + SLASH + target.getName())
+                    && this.chunkSize == chunkSize;
+        }
+
+        /**
+         * The client sends its credentials to the session URI, so only sessions of its own GCS host are used
+         *
+         * @param host  GCS host of the client
+         * @return true if the session is an upload of that host
+         */
+        boolean isSessionOf(String host) {
+            return uploadId.startsWith(host + "/upload/");
+        }
+
+        long getOffset() {
+            return offset;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.vodafone.datafusion.plugins.delta.sftpdelta.sink;
+
+import com.google.api.services.storage.model.StorageObject;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.spi.v1.StorageRpc;
+
+import java.util.Collections;
+
+/**
+ * GCS resumable upload session calls used by {@link ResumableUpload}.
+ * The public write channel of the client can not go on with a session of another task, so the sessions are driven
+ * through the internal {@link StorageRpc} of google-cloud-storage 1.113.12. It is not a stable API: this is the only
+ * class using it and has to be checked again whenever the client version changes.
+ */
+class ResumableUploadRpc {
+    private final StorageRpc rpc;
+
+    ResumableUploadRpc(Storage storage) {
+        this.rpc = (StorageRpc) storage.getOptions().getRpc();
+    }
+
+    /**
+     * Start an upload session
+     *
+     * @param target    target object
+     * @return session URI
+     */
+    String open(BlobInfo target) {
+        return rpc.open(new StorageObject().setBucket(target.getBucket()).setName(target.getName())
+                .setContentType(target.getContentType()), Collections.emptyMap());
+    }
+
+    /**
+     * Send bytes of the upload. GCS may commit only part of a chunk that is not the last one,
+     * see {@link #getCommittedOffset(String)}.
+     *
+     * @param uploadId      session URI
+     * @param chunk         bytes to send
+     * @param chunkOffset   first byte to send in the chunk
+     * @param offset        offset of that byte in the object
+     * @param length        bytes to send
+     * @param last          true if they finish the object
+     */
+    void write(String uploadId, byte[] chunk, int chunkOffset, long offset, int length, boolean last) {
+        rpc.write(uploadId, chunk, chunkOffset, offset, length, last);
+    }
+
+    /**
+     * Bytes committed by GCS, from which the upload has to go on
+     *
+     * @param uploadId  session URI
+     * @return committed offset
+     */
+    long getCommittedOffset(String uploadId) {
+        return rpc.getCurrentUploadOffset(uploadId);
+    }
+}
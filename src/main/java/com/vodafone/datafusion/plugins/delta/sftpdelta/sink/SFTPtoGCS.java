@@ -2,15 +2,18 @@ package com.vodafone.datafusion.plugins.delta.sftpdelta.sink;
 
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.storage.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpATTRS;
 import com.jcraft.jsch.SftpException;
 import com.splunk.*;
 import com.vodafone.datafusion.plugins.delta.common.*;
 import com.vodafone.datafusion.plugins.delta.common.sink.DeltaOutputFormatProvider;
-import com.vodafone.datafusion.plugins.delta.encryption.FileEncrypt;
-import com.vodafone.datafusion.plugins.delta.encryption.PGPCertUtil;
+import com.vodafone.datafusion.plugins.delta.common.sink.ParallelTransfer;
+import com.vodafone.datafusion.plugins.delta.encryption.PGPEncryptor;
+import com.vodafone.datafusion.plugins.delta.encryption.PGPKeyCache;
 import io.cdap.cdap.api.annotation.Description;
 import io.cdap.cdap.api.annotation.Name;
 import io.cdap.cdap.api.annotation.Plugin;
@@ -28,9 +31,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.InputStream;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import org.bouncycastle.openpgp.PGPPublicKey;
@@ -47,9 +53,17 @@ public class SFTPtoGCS extends BatchSink<StructuredRecord, Void, Void> {
     private static final Gson gson = new GsonBuilder().create();
     private final SFTPtoGCSConfig config;
 
-    SFTPConnectorConfig connConfig;
-    private ChannelSftp sftpChannel = null;
-    private SFTPConnector conn;
+    private final Map<String, SFTPConnector> connectors = new ConcurrentHashMap<>();
+    private ParallelTransfer transferPool;
+    private ExecutorService partPool;
+    private ExecutorService readPool;
+    private BufferPool heapBuffers;
+    private BufferPool transferBuffers;
+    private BufferPool chunkBuffers;
+    private ExecutorService pipelinePool;
+    private BufferPool pipelineBuffers;
+    private PGPEncryptor encryptor;
+    private final PipelinedInputStream.Stalls pipelineStalls = new PipelinedInputStream.Stalls();
     private boolean isPreviewEnabled;
 
     private Storage storage;
@@ -60,11 +74,16 @@ public class SFTPtoGCS extends BatchSink<StructuredRecord, Void, Void> {
     private String pipelineName;
     private String runId;
     private String seenOn;
-    private long fileRetries;
 
     int bufSize;
+    int concurrency;
+    int compositeParts;
+    int readParallelism;
+    int pipelineDepth;
+    int encryptionPipeSize;
+    long keyCacheTtl;
+    int channelsPerSession;
 
-    private PGPPublicKey pubKey = null;
     static Configuration conf;
 
     static {
@@ -133,14 +152,28 @@ public class SFTPtoGCS extends BatchSink<StructuredRecord, Void, Void> {
             bufSize = DEFAULT_BUFFER_SIZE;
         }
 
+        try {
+            concurrency = Integer.parseInt(Objects.requireNonNull(context.getArguments().get(SFTP_TO_GCS_CONCURRENCY)));
+            LOG.debug("[SFTP Delta] Sink concurrency param: {}", concurrency);
+        } catch (Exception e) {
+            concurrency = config.getConcurrency();
+        }
+        concurrency = Math.max(1, Math.min(concurrency, MAX_CONCURRENCY));
+
+        try {
+            channelsPerSession = Integer.parseInt(Objects.requireNonNull(context.getArguments().get(SFTP_TO_GCS_CHANNELS_PER_SESSION)));
+            LOG.debug("[SFTP Delta] Sink channels per session param: {}", channelsPerSession);
+        } catch (Exception e) {
+            channelsPerSession = DEFAULT_MAX_SFTP_CHANNELS;
+        }
+        channelsPerSession = Math.max(1, channelsPerSession);
+
         try {
             assert config.serviceAccountType != null;
             credentials = DeltaUtils
                     .getGCPCredentials(config.serviceAccountType, config.serviceAccountJSON, config.serviceFilePath);
 
-            storage = StorageOptions.newBuilder()
-                    .setCredentials(credentials)
-                    .build().getService();
+            storage = GCPClientCache.getStorage(credentials);
 
             if(!DeltaUtils.checkGCSbucket(credentials, config.path)){
                 throw new Exception("[SFTP Delta] Bucket does not exist");
@@ -149,18 +182,145 @@ public class SFTPtoGCS extends BatchSink<StructuredRecord, Void, Void> {
             LOG.error("[SFTP Delta] Error defining GCS storage: " + ex.getMessage());
             throw new Exception(ex);
         }
+        gcsPath = GCSPath.from(config.path);
         metrics = context.getMetrics();
+
+        if (concurrency > 1) {
+            transferPool = new ParallelTransfer(SFTP_TO_GCS_NAME, concurrency);
+        }
+
+        if (config.getCompositeThreshold() > 0 && !config.encryption.equals("PGP")) {
+            try {
+                compositeParts = Integer.parseInt(Objects.requireNonNull(context.getArguments().get(SFTP_TO_GCS_COMPOSITE_PARTS)));
+                LOG.debug("[SFTP Delta] Sink composite parts param: {}", compositeParts);
+            } catch (Exception e) {
+                compositeParts = DEFAULT_COMPOSITE_PARTS;
+            }
+            compositeParts = Math.max(1, Math.min(compositeParts, MAX_COMPOSITE_PARTS));
+            partPool = Executors.newFixedThreadPool(compositeParts, new ThreadFactoryBuilder()
+                    .setNameFormat(SFTP_TO_GCS_NAME + "-part-%d")
+                    .setDaemon(true)
+                    .build());
+        }
+
+        try {
+            readParallelism = Integer.parseInt(Objects.requireNonNull(context.getArguments().get(SFTP_TO_GCS_READ_PARALLELISM)));
+            LOG.debug("[SFTP Delta] Sink read parallelism param: {}", readParallelism);
+        } catch (Exception e) {
+            readParallelism = DEFAULT_READ_PARALLELISM;
+        }
+        readParallelism = Math.max(DEFAULT_READ_PARALLELISM, Math.min(readParallelism, MAX_READ_PARALLELISM));
+        if (readParallelism > DEFAULT_READ_PARALLELISM) {
+            readPool = Executors.newFixedThreadPool(readParallelism, new ThreadFactoryBuilder()
+                    .setNameFormat(SFTP_TO_GCS_NAME + "-read-%d")
+                    .setDaemon(true)
+                    .build());
+        }
+
+        // encryption and resumable uploads need heap arrays, single stream and composite uploads may use direct buffers
+        int buffersPerTransfer = config.encryption.equals("PGP") ? ENCRYPTION_BUFFERS : 1;
+        int capacity = concurrency * buffersPerTransfer + (partPool != null ? compositeParts : 0);
+        heapBuffers = BufferPool.shared(bufSize, false, capacity);
+        transferBuffers = BUFFER_POOL_DIRECT.equals(context.getArguments().get(SFTP_TO_GCS_BUFFER_POOL))
+                ? BufferPool.shared(bufSize, true, capacity)
+                : heapBuffers;
+        if (readPool != null) {
+            chunkBuffers = BufferPool.shared(RANGED_READ_CHUNK_SIZE, false, concurrency * (readParallelism + 1));
+        }
+
+        try {
+            pipelineDepth = Integer.parseInt(Objects.requireNonNull(context.getArguments().get(SFTP_TO_GCS_PIPELINE_DEPTH)));
+            LOG.debug("[SFTP Delta] Sink pipeline depth param: {}", pipelineDepth);
+        } catch (Exception e) {
+            pipelineDepth = DEFAULT_PIPELINE_DEPTH;
+        }
+        pipelineDepth = Math.min(pipelineDepth, MAX_PIPELINE_DEPTH);
+        // off unless asked for; one buffer can not be read and written at the same time, so a pipeline needs two
+        if (pipelineDepth >= MIN_PIPELINE_DEPTH) {
+            pipelinePool = Executors.newFixedThreadPool(concurrency, new ThreadFactoryBuilder()
+                    .setNameFormat(SFTP_TO_GCS_NAME + "-pipeline-%d")
+                    .setDaemon(true)
+                    .build());
+            pipelineBuffers = BufferPool.shared(PIPELINE_BUFFER_SIZE, false, concurrency * pipelineDepth);
+        }
+
+        if (config.encryption.equals("PGP")) {
+            int encryptionThreads;
+            try {
+                encryptionThreads = Integer.parseInt(Objects.requireNonNull(context.getArguments().get(SFTP_TO_GCS_ENCRYPTION_THREADS)));
+                LOG.debug("[SFTP Delta] Sink encryption threads param: {}", encryptionThreads);
+            } catch (Exception e) {
+                encryptionThreads = concurrency;
+            }
+            encryptionThreads = Math.max(1, Math.min(encryptionThreads, concurrency));
+            try {
+                encryptionPipeSize = Integer.parseInt(Objects.requireNonNull(context.getArguments().get(SFTP_TO_GCS_ENCRYPTION_PIPE_SIZE))) * 1024;
+                LOG.debug("[SFTP Delta] Sink encryption pipe size param: {}", encryptionPipeSize);
+            } catch (Exception e) {
+                encryptionPipeSize = DEFAULT_ENCRYPTION_PIPE_SIZE;
+            }
+            encryptionPipeSize = Math.max(0, encryptionPipeSize);
+            try {
+                keyCacheTtl = Long.parseLong(Objects.requireNonNull(context.getArguments().get(SFTP_TO_GCS_KEY_CACHE_TTL))) * 1000;
+                LOG.debug("[SFTP Delta] Sink key cache ttl param: {}", keyCacheTtl);
+            } catch (Exception e) {
+                keyCacheTtl = DEFAULT_KEY_CACHE_TTL;
+            }
+            String cryptoProvider = CRYPTO_PROVIDER_JCE.equals(context.getArguments().get(SFTP_TO_GCS_CRYPTO_PROVIDER))
+                    ? CRYPTO_PROVIDER_JCE : CRYPTO_PROVIDER_BC;
+            encryptor = new PGPEncryptor(SFTP_TO_GCS_NAME, encryptionThreads,
+                    encryptionPipeSize > 0 ? encryptionPipeSize : DEFAULT_ENCRYPTION_PIPE_SIZE, heapBuffers,
+                    config.getEncryptionCipher(), config.getCompression(), config.getCompressionLevel(),
+                    cryptoProvider);
+        }
     }
 
     @Override
     public void transform(StructuredRecord input, Emitter<KeyValue<Void, Void>> emitter) throws Exception {
+        if (transferPool != null) {
+            transferPool.submit(() -> {
+                transferFile(input);
+                return null;
+            });
+        } else {
+            transferFile(input);
+        }
+    }
+
+    /**
+     * Transfer one file from SFTP to GCS
+     *
+     * @param input     structured record with the file to transfer
+     * @throws Exception
+     */
+    private void transferFile(StructuredRecord input) throws Exception {
         long startTime = System.currentTimeMillis();
-        String gcsFilename;
         String jsonConnection = input.get(CONNECTION);
-        String filename = input.get(FILENAME);
 
-        connConfig = gson.fromJson(jsonConnection, SFTPConnectorConfig.class);
-        gcsPath = GCSPath.from(config.path);
+        SFTPConnectorConfig connConfig = gson.fromJson(jsonConnection, SFTPConnectorConfig.class);
+        SFTPConnector conn = getConnector(connConfig);
+        ChannelSftp sftpChannel = acquireChannel(conn);
+        try {
+            transferFile(input, conn, sftpChannel, connConfig, startTime);
+        } finally {
+            releaseChannel(conn, sftpChannel);
+        }
+    }
+
+    /**
+     * Transfer one file from SFTP to GCS using the given channel
+     *
+     * @param input         structured record with the file to transfer
+     * @param conn          sftp connector of the channel
+     * @param sftpChannel   sftp channel
+     * @param connConfig    sftp connection of the record
+     * @param startTime     processing start time
+     * @throws Exception
+     */
+    private void transferFile(StructuredRecord input, SFTPConnector conn, ChannelSftp sftpChannel,
+                              SFTPConnectorConfig connConfig, long startTime) throws Exception {
+        String gcsFilename;
+        String filename = input.get(FILENAME);
 
         String fullSourcePath = connConfig.sftpPath + filename;
         String gPath = gcsPath.getUri().getPath();
@@ -171,27 +331,26 @@ public class SFTPtoGCS extends BatchSink<StructuredRecord, Void, Void> {
             gcsFilename = gcsPath.getUri().getPath().substring(1) + filename;
         }
 
-        if (conn == null || !conn.isConnected(connConfig.sftpServer, connConfig.sftpPort, connConfig.sftpUser)) {
-            if (conn != null) {
-                conn.close();
-            }
-            conn = DeltaUtils.getSftpConnector(connConfig);
-            sftpChannel = conn.getSftpChannel();
+        PGPPublicKey encKey = null;
+        if (config.encryption.equals("PGP")) {
+            encKey = getPublicKey(sftpChannel);
         }
 
-        if (config.encryption.equals("PGP") && null == pubKey) {
-            try {
-                pubKey = PGPCertUtil.readPublicKey(config.publicKeyPath, sftpChannel);
-                LOG.debug("[SFTP Delta] Retrieved PublicKey");
-            } catch (PGPException ex) {
-                LOG.error("[SFTP Delta] Error reading PublicKey: " + ex.getMessage());
-            } catch (SftpException sftpException) {
-                LOG.error("[SFTP Delta] Error reading file for PublicKey: " + sftpException.getMessage());
+        if (isPreviewEnabled) {
+            LOG.debug("[SFTP Delta] Preview enabled to path: {} -> {} - {}", fullSourcePath, gcsPath.getBucket(), gcsFilename);
+            return;
+        }
+
+        if (partPool != null) {
+            long size = sftpChannel.stat(fullSourcePath).getSize();
+            if (size >= config.getCompositeThreshold()) {
+                transferComposite(input, conn, sftpChannel, fullSourcePath, gcsFilename, size, startTime);
+                return;
             }
         }
 
-        if (isPreviewEnabled) {
-            LOG.debug("[SFTP Delta] Preview enabled to path: {} -> {} - {}", fullSourcePath, gcsPath.getBucket(), gcsFilename);
+        if (config.getCheckpointPath() != null && !config.encryption.equals("PGP")) {
+            transferResumable(input, conn, sftpChannel, fullSourcePath, gcsFilename, startTime);
             return;
         }
 
@@ -201,46 +360,206 @@ public class SFTPtoGCS extends BatchSink<StructuredRecord, Void, Void> {
             fileMetaData = new FileMetaData(sftpChannel, fullSourcePath, conf);
         }
 
-        InputStream inputStream;
-        if (config.encryption.equals("PGP")) {
-            inputStream = FileEncrypt.encryptPipeFile(sftpChannel, fileMetaData, pubKey, bufSize);
-        } else {
-            inputStream = sftpChannel.get(fullSourcePath);
-        }
+        FileMetaData encMetaData = fileMetaData;
+        PGPPublicKey publicKey = encKey;
+        Callable<InputStream> source = () -> config.encryption.equals("PGP")
+                ? pipelined(encryptor.encrypt(sftpChannel, encMetaData, publicKey))
+                : openSourceStream(conn, sftpChannel, fullSourcePath);
 
-        MessageDigest messageDigest = MessageDigest.getInstance(MD5);
-        DigestInputStream cis = new DigestInputStream(inputStream, messageDigest);
+        TransferChecksum checksum = TransferChecksum.of(config.getChecksum());
 
         try {
             LOG.debug("[SFTP Delta] Processing file: " + fullSourcePath);
 
-            Blob blob = retryPolicyStorage(config, filename, gcsFilename, cis);
-            boolean checkLineage = DeltaUtils.checkLineage(blob, messageDigest, inputStream);
+            RetryOnException retryHandler = new RetryOnException(config.numRetries, config.timeToWait);
+            Blob blob = config.encryption.equals("PGP") && encryptionPipeSize == 0
+                    ? retryEncryptedStorage(filename, gcsFilename, checksum, sftpChannel, encMetaData, publicKey, retryHandler)
+                    : retryPolicyStorage(config, filename, gcsFilename, checksum, source, retryHandler);
+            boolean checkLineage = checksum.verify(blob);
+
+            finishTransfer(input, sftpChannel, fullSourcePath, blob, checkLineage, startTime, retryHandler.getRetries());
+        } catch (Exception ex) {
+            LOG.error("[SFTP Delta] File transfer error {}: {}", filename.substring(1), ex.getMessage());
+        }
+    }
 
-            if(checkLineage && config.archiveOriginals.equals(YES)) {
-                if (config.archiveOption.equals(RENAME)) {
-                    LOG.debug("[SFTP Delta] Archiving file: " + filename);
-                    archiveSftpFile(fullSourcePath, config.targetPath.concat(filename));
-                } else if (config.archiveOption.equals(REMOVE)) {
-                    LOG.debug("[SFTP Delta] Removing file: " + filename);
-                    deleteSftpFile(fullSourcePath);
+    /**
+     * Transfer one file from SFTP to GCS as a resumable upload. Retries, and later attempts of the same file, go on
+     * from the last checkpoint and only read the missing range.
+     *
+     * @param input             structured record with the file to transfer
+     * @param conn              sftp connector of the channel
+     * @param sftpChannel       sftp channel
+     * @param fullSourcePath    sftp file path
+     * @param gcsFilename       gcs file name with complete path
+     * @param startTime         processing start time
+     */
+    private void transferResumable(StructuredRecord input, SFTPConnector conn, ChannelSftp sftpChannel,
+                                   String fullSourcePath, String gcsFilename, long startTime) {
+        String filename = input.get(FILENAME);
+        try {
+            LOG.debug("[SFTP Delta] Processing file as resumable upload: " + fullSourcePath);
+
+            SftpATTRS attrs = sftpChannel.stat(fullSourcePath);
+            ResumableUpload upload = new ResumableUpload(storage, GCSPath.from(config.getCheckpointPath()), heapBuffers);
+            RetryOnException retryHandler = new RetryOnException(config.numRetries, config.timeToWait);
+            Blob blob;
+            while (true) {
+                try {
+                    blob = upload.upload(fullSourcePath, attrs, targetBlobInfo(gcsFilename),
+                            offset -> openSourceStream(conn, sftpChannel, fullSourcePath, offset, attrs.getSize()));
+                    break;
+                } catch (Exception ex) {
+                    LOG.debug("[SFTP Delta] Resumable upload error {}: {}", filename, ex.getMessage());
+                    retryHandler.exceptionOccurred(filename);
                 }
             }
 
-            LOG.info("[SFTP Delta] {} last modification time: {}", fullSourcePath, input.get(MTIME));
-            setMetrics(blob, input, startTime);
-            sendSplunkEvents(blob, input, startTime);
-            LOG.info("[SFTP Delta] Transferred {} bytes: from {} to {}", input.get(SIZE), fullSourcePath, config.path);
+            finishTransfer(input, sftpChannel, fullSourcePath, blob, true, startTime, retryHandler.getRetries());
+        } catch (Exception ex) {
+            LOG.error("[SFTP Delta] File transfer error {}: {}", filename.substring(1), ex.getMessage());
+        }
+    }
+
+    /**
+     * Open a sftp file. Files bigger than a chunk are read in ranges on several channels when read parallelism is set.
+     *
+     * @param conn              sftp connector of the channel
+     * @param sftpChannel       sftp channel
+     * @param fullSourcePath    sftp file path
+     * @return file content stream
+     * @throws SftpException
+     */
+    private InputStream openSourceStream(SFTPConnector conn, ChannelSftp sftpChannel, String fullSourcePath)
+            throws SftpException {
+        if (readPool != null) {
+            return openSourceStream(conn, sftpChannel, fullSourcePath, 0, sftpChannel.stat(fullSourcePath).getSize());
+        }
+        return pipelined(sftpChannel.get(fullSourcePath));
+    }
+
+    /**
+     * Open a sftp file from an offset
+     *
+     * @param conn              sftp connector of the channel
+     * @param sftpChannel       sftp channel
+     * @param fullSourcePath    sftp file path
+     * @param offset            first byte to read
+     * @param size              size of the file
+     * @return file content stream
+     * @throws SftpException
+     */
+    private InputStream openSourceStream(SFTPConnector conn, ChannelSftp sftpChannel, String fullSourcePath,
+                                         long offset, long size) throws SftpException {
+        if (readPool != null && size - offset > RANGED_READ_CHUNK_SIZE) {
+            return new RangedSftpInputStream(conn, fullSourcePath, offset, size, RANGED_READ_CHUNK_SIZE,
+                    readParallelism, readPool, chunkBuffers);
+        }
+        return pipelined(sftpChannel.get(fullSourcePath, null, offset));
+    }
+
+    /**
+     * Read a stream ahead on a pipeline thread when the pipeline is enabled. Ranged reads are already read ahead.
+     *
+     * @param in    source stream
+     * @return pipelined stream
+     */
+    private InputStream pipelined(InputStream in) {
+        if (pipelinePool == null) {
+            return in;
+        }
+        return new PipelinedInputStream(in, pipelineDepth, pipelineBuffers, pipelinePool, pipelineStalls);
+    }
+
+    /**
+     * Transfer one big file from SFTP to GCS as a composite object, verified with its CRC32C
+     *
+     * @param input             structured record with the file to transfer
+     * @param conn              sftp connector, the parts borrow their channels from it
+     * @param sftpChannel       sftp channel
+     * @param fullSourcePath    sftp file path
+     * @param gcsFilename       gcs file name with complete path
+     * @param size              bytes of the file
+     * @param startTime         processing start time
+     */
+    private void transferComposite(StructuredRecord input, SFTPConnector conn, ChannelSftp sftpChannel,
+                                   String fullSourcePath, String gcsFilename, long size, long startTime) {
+        String filename = input.get(FILENAME);
+        try {
+            LOG.debug("[SFTP Delta] Processing file as composite upload: " + fullSourcePath);
+
+            CompositeUpload upload = new CompositeUpload(storage, conn, partPool, transferBuffers,
+                    config.numRetries, config.timeToWait);
+            Blob blob = upload.upload(fullSourcePath, size, targetBlobInfo(gcsFilename), compositeParts);
+
+            finishTransfer(input, sftpChannel, fullSourcePath, blob, true, startTime, upload.getRetries());
         } catch (Exception ex) {
             LOG.error("[SFTP Delta] File transfer error {}: {}", filename.substring(1), ex.getMessage());
-        } finally {
-            cis.close();
         }
     }
 
+    /**
+     * Archive the original file of a verified transfer and report it
+     *
+     * @param input             structured record with the transferred file
+     * @param sftpChannel       sftp channel
+     * @param fullSourcePath    sftp file path
+     * @param blob              uploaded gcs file
+     * @param checkLineage      if the uploaded file was verified
+     * @param startTime         processing start time
+     * @param retries           upload retries
+     */
+    private void finishTransfer(StructuredRecord input, ChannelSftp sftpChannel, String fullSourcePath, Blob blob,
+                                boolean checkLineage, long startTime, long retries) {
+        String filename = input.get(FILENAME);
+        if(checkLineage && config.archiveOriginals.equals(YES)) {
+            if (config.archiveOption.equals(RENAME)) {
+                LOG.debug("[SFTP Delta] Archiving file: " + filename);
+                archiveSftpFile(sftpChannel, fullSourcePath, config.targetPath.concat(filename));
+            } else if (config.archiveOption.equals(REMOVE)) {
+                LOG.debug("[SFTP Delta] Removing file: " + filename);
+                deleteSftpFile(sftpChannel, fullSourcePath);
+            }
+        }
+
+        LOG.info("[SFTP Delta] {} last modification time: {}", fullSourcePath, input.get(MTIME));
+        setMetrics(blob, input, startTime, retries);
+        setBufferMetrics();
+        sendSplunkEvents(blob, input, startTime);
+        LOG.info("[SFTP Delta] Transferred {} bytes: from {} to {}", input.get(SIZE), fullSourcePath, config.path);
+    }
+
+    /**
+     * Wait for the queued transfers and release the resources of the sink. Failures of earlier transfers already fail
+     * the next record, a failure of the last transfers fails the task here.
+     */
     @Override
     public void destroy() {
-        if (conn != null) {
+        Exception transferFailure = null;
+        if (transferPool != null) {
+            try {
+                transferPool.awaitCompletion();
+            } catch (Exception e) {
+                LOG.error(e.getMessage());
+                transferFailure = e;
+            } finally {
+                transferPool.close();
+            }
+        }
+        if (partPool != null) {
+            partPool.shutdownNow();
+        }
+        if (readPool != null) {
+            readPool.shutdownNow();
+        }
+        if (pipelinePool != null) {
+            pipelinePool.shutdownNow();
+        }
+        if (encryptor != null) {
+            encryptor.close();
+        }
+
+        for (SFTPConnector conn : connectors.values()) {
             try {
                 conn.close();
             } catch (Exception e) {
@@ -248,15 +567,96 @@ public class SFTPtoGCS extends BatchSink<StructuredRecord, Void, Void> {
                 e.printStackTrace();
             }
         }
+        connectors.clear();
+
+        if (transferFailure != null) {
+            throw new IllegalStateException(transferFailure.getMessage(), transferFailure);
+        }
+    }
+
+    /**
+     * Get the sftp connector of the record. All the workers share one ssh session per server.
+     *
+     * @param connConfig    sftp connection of the record
+     * @return sftp connector
+     * @throws Exception
+     */
+    private SFTPConnector getConnector(SFTPConnectorConfig connConfig) throws Exception {
+        String connID = connConfig.sftpServer + connConfig.sftpPort + connConfig.sftpUser;
+        SFTPConnector conn = connectors.get(connID);
+        if (conn == null) {
+            synchronized (connectors) {
+                conn = connectors.get(connID);
+                if (conn == null) {
+                    conn = DeltaUtils.getSftpConnector(connConfig, channelsPerSession);
+                    // composite parts and ranged reads borrow their own channels besides the ones of the transfers,
+                    // spread over as many sessions as the channels per session need
+                    conn.setMaxChannels(concurrency + (partPool != null ? compositeParts : 0)
+                            + (readPool != null ? readParallelism : 0));
+                    connectors.put(connID, conn);
+                }
+            }
+        }
+        return conn;
+    }
+
+    /**
+     * Serial transfers use the main channel, parallel workers borrow one from the connector pool
+     *
+     * @param conn  sftp connector
+     * @return sftp channel
+     * @throws Exception
+     */
+    private ChannelSftp acquireChannel(SFTPConnector conn) throws Exception {
+        if (transferPool == null) {
+            return conn.getSftpChannel();
+        }
+        ChannelSftp sftpChannel = conn.borrowChannel();
+        String metricBase = pipelineName + METRICS_SEPARATOR + runId + METRICS_SEPARATOR;
+        metrics.gauge(metricBase + METRICS_SFTP_CHANNELS_IN_USE, conn.getChannelsInUse());
+        metrics.gauge(metricBase + METRICS_SFTP_CHANNEL_WAIT, conn.getBorrowWaitMillis());
+        return sftpChannel;
+    }
+
+    /**
+     * Give back a channel taken with {@link #acquireChannel(SFTPConnector)}
+     *
+     * @param conn          sftp connector
+     * @param sftpChannel   sftp channel
+     */
+    private void releaseChannel(SFTPConnector conn, ChannelSftp sftpChannel) {
+        if (transferPool != null) {
+            conn.returnChannel(sftpChannel);
+        }
+    }
+
+    /**
+     * Get the public key from the key cache, shared by all the workers and stages
+     *
+     * @param sftpChannel   sftp channel
+     * @return public key, null if it can not be read
+     */
+    private PGPPublicKey getPublicKey(ChannelSftp sftpChannel) {
+        try {
+            return PGPKeyCache.getPublicKey(sftpChannel, config.publicKeyPath, keyCacheTtl);
+        } catch (PGPException ex) {
+            LOG.error("[SFTP Delta] Error reading PublicKey: " + ex.getMessage());
+        } catch (SftpException sftpException) {
+            LOG.error("[SFTP Delta] Error reading file for PublicKey: " + sftpException.getMessage());
+        } catch (Exception ex) {
+            LOG.error("[SFTP Delta] Error reading PublicKey: " + ex.getMessage());
+        }
+        return null;
     }
 
     /**
      * archive file in SFTP channel
      *
+     * @param sftpChannel       sftp channel
      * @param sourceFilePath    original sftp file to archive
      * @param targetFilePath    target path to archive file
      */
-    private void archiveSftpFile(String sourceFilePath, String targetFilePath) {
+    private void archiveSftpFile(ChannelSftp sftpChannel, String sourceFilePath, String targetFilePath) {
         try {
             if(sourceFilePath.equals(targetFilePath)) {
                 throw new Exception("Origin and target directories are equal.");
@@ -272,9 +672,10 @@ public class SFTPtoGCS extends BatchSink<StructuredRecord, Void, Void> {
     /**
      * delete file in SFTP channel
      *
+     * @param sftpChannel       sftp channel
      * @param sourceFilePath    original sftp file to delete
      */
-    private void deleteSftpFile(String sourceFilePath) {
+    private void deleteSftpFile(ChannelSftp sftpChannel, String sourceFilePath) {
         try {
             sftpChannel.rm(sourceFilePath);
             LOG.debug("[SFTP Delta] File {} has been deleted.", sourceFilePath);
@@ -288,46 +689,88 @@ public class SFTPtoGCS extends BatchSink<StructuredRecord, Void, Void> {
      * @param config        SFTPtoGCSConfig configuration
      * @param filename      file name without complete path
      * @param gcsFilename   gcs file name with complete path
-     * @param cis           input stream
+     * @param checksum      checksum of the uploaded bytes
+     * @param source        opens the file stream, once per attempt
+     * @param retryHandler  retry policy
      * @return
      * @throws Exception
      */
-    private Blob retryPolicyStorage(SFTPtoGCSConfig config, String filename, String gcsFilename, DigestInputStream cis) throws Exception{
+    private Blob retryPolicyStorage(SFTPtoGCSConfig config, String filename, String gcsFilename,
+                                    TransferChecksum checksum, Callable<InputStream> source,
+                                    RetryOnException retryHandler) throws Exception{
         Blob blob;
-        String contentType = "application/octet-stream";
+        BlobInfo blobInfo = targetBlobInfo(gcsFilename);
 
-        if (config.encryption.equals("PGP")) {
-            gcsFilename += ".pgp";
-            contentType = "application/pgp-encrypted";
-        }
-
-        BlobId blobId = BlobId.of(gcsPath.getBucket(), gcsFilename);
-        BlobInfo blobInfo = BlobInfo.newBuilder(blobId).setContentType(contentType).build();
-        
-        RetryOnException retryHandler = new RetryOnException(config.numRetries, config.timeToWait);
-        int retries = 0;
         while(true) {
-            try {
-                blob = storage.createFrom(blobInfo, cis, bufSize);
+            // every attempt reads the file from the start, so the checksum only covers the last one
+            checksum.reset();
+            try (InputStream cis = checksum.wrap(source.call())) {
+                blob = DeltaUtils.writeGCSFile(storage, blobInfo, cis, transferBuffers);
                 break;
             } catch (Exception ex) {
                 retryHandler.exceptionOccurred(filename);
-                retries++;
-                continue;
             }
         }
-        fileRetries = retries;
         return blob;
     }
 
+    /**
+     * Encrypt a file directly into the upload channel of GCS, on the transfer thread, retrying as configured
+     *
+     * @param filename          sftp file name
+     * @param gcsFilename       gcs file name with complete path
+     * @param checksum          checksum of the bytes uploaded
+     * @param sftpChannel       sftp channel
+     * @param fileMetaData      file to encrypt
+     * @param encKey            public key
+     * @param retryHandler      retries of the file
+     * @return uploaded object
+     * @throws Exception
+     */
+    private Blob retryEncryptedStorage(String filename, String gcsFilename, TransferChecksum checksum,
+                                       ChannelSftp sftpChannel, FileMetaData fileMetaData, PGPPublicKey encKey,
+                                       RetryOnException retryHandler) throws Exception {
+        BlobInfo blobInfo = targetBlobInfo(gcsFilename);
+
+        while (true) {
+            checksum.reset();
+            try {
+                // a failed encryption leaves its upload unfinished, never a truncated object under the target name
+                return DeltaUtils.writeGCSFile(storage, blobInfo, bufSize,
+                        out -> encryptor.encrypt(checksum.wrap(out), sftpChannel, fileMetaData, encKey));
+            } catch (Exception ex) {
+                retryHandler.exceptionOccurred(filename);
+            }
+        }
+    }
+
+    /**
+     * Target object of a file
+     *
+     * @param gcsFilename   gcs file name with complete path
+     * @return target object, with the pgp extension if the file is encrypted
+     */
+    private BlobInfo targetBlobInfo(String gcsFilename) {
+        String contentType = "application/octet-stream";
+
+        if (config.encryption.equals("PGP")) {
+            gcsFilename += ".pgp";
+            contentType = "application/pgp-encrypted";
+        }
+
+        BlobId blobId = BlobId.of(gcsPath.getBucket(), gcsFilename);
+        return BlobInfo.newBuilder(blobId).setContentType(contentType).build();
+    }
+
     /**
      * Process metrics
      *
      * @param blob          gcs file
      * @param inputFile     structured record
      * @param startTime     processing start time
+     * @param fileRetries   upload retries
      */
-    private void setMetrics(Blob blob, StructuredRecord inputFile, Long startTime){
+    private void setMetrics(Blob blob, StructuredRecord inputFile, Long startTime, long fileRetries){
         long endTime = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
         String metricBase = pipelineName + METRICS_SEPARATOR
                 + runId + METRICS_SEPARATOR
@@ -344,6 +787,24 @@ public class SFTPtoGCS extends BatchSink<StructuredRecord, Void, Void> {
         LOG.info("[SFTP Delta] Processed file {} -> init {} - finish {}", inputFile.get("fullfilename"), startTime, endTime);
     }
 
+    /**
+     * Buffer pool and pipeline metrics of the run. Pools are shared by the stages of the executor, so the counts are
+     * theirs too.
+     */
+    private void setBufferMetrics() {
+        String metricBase = pipelineName + METRICS_SEPARATOR + runId + METRICS_SEPARATOR;
+        long hits = heapBuffers.getHits() + (transferBuffers != heapBuffers ? transferBuffers.getHits() : 0)
+                + (chunkBuffers != null ? chunkBuffers.getHits() : 0);
+        long misses = heapBuffers.getMisses() + (transferBuffers != heapBuffers ? transferBuffers.getMisses() : 0)
+                + (chunkBuffers != null ? chunkBuffers.getMisses() : 0);
+        metrics.gauge(metricBase + METRICS_BUFFER_POOL_HITS, hits);
+        metrics.gauge(metricBase + METRICS_BUFFER_POOL_MISSES, misses);
+        if (pipelinePool != null) {
+            metrics.gauge(metricBase + METRICS_PIPELINE_READ_STALL, pipelineStalls.getReadStallMillis());
+            metrics.gauge(metricBase + METRICS_PIPELINE_WRITE_STALL, pipelineStalls.getWriteStallMillis());
+        }
+    }
+
     /**
      * Splunk events
      *
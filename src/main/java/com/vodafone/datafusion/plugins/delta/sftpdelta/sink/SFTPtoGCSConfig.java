@@ -62,6 +62,30 @@ public class SFTPtoGCSConfig extends PluginConfig {
     @Nullable
     public final String timeToWait;
 
+    @Description("Number of files transferred at the same time.\nNo over 32 allowed.")
+    @Name(CONCURRENCY)
+    @Macro
+    @Nullable
+    public final String concurrency;
+
+    @Description("Files of at least this many MB are uploaded in parallel parts composed in GCS.\nEmpty disables it.")
+    @Name(COMPOSITE_THRESHOLD)
+    @Macro
+    @Nullable
+    public final String compositeThreshold;
+
+    @Description("GCS folder where the state of unfinished uploads is saved, so retries resume them.\nEmpty disables it.")
+    @Name(CHECKPOINT_PATH)
+    @Macro
+    @Nullable
+    public final String checkpointPath;
+
+    @Description("Checksum verifying the uploaded files: crc32c, md5 or none.\nComposite and resumable uploads always use crc32c.")
+    @Name(CHECKSUM)
+    @Macro
+    @Nullable
+    public final String checksum;
+
     @Name(ENCRYPTION_PUBLIC_KEY_FILE_PATH)
     @Description("Public key path used for encryption.")
     @Macro
@@ -73,6 +97,24 @@ public class SFTPtoGCSConfig extends PluginConfig {
     @Description("Specify the encryption algorithm. If None is selected then data is not encrypted.")
     protected String encryption = EncryptionType.PGP.getType();
 
+    @Name(ENCRYPTION_CIPHER)
+    @Description("Symmetric cipher of the PGP encryption: AES-128, AES-256 or CAST5.")
+    @Macro
+    @Nullable
+    public final String encryptionCipher;
+
+    @Name(COMPRESSION)
+    @Description("Compression of the files before the PGP encryption: none, zip, zlib or bzip2.")
+    @Macro
+    @Nullable
+    public final String compression;
+
+    @Name(COMPRESSION_LEVEL)
+    @Description("Level of the zip and zlib compression, from 1 (fastest) to 9 (smallest).")
+    @Macro
+    @Nullable
+    public final String compressionLevel;
+
     /**
      * SFTP to GCStorage configuration
      *
@@ -81,6 +123,13 @@ public class SFTPtoGCSConfig extends PluginConfig {
      * @param referenceName
      * @param serviceFilePath
      * @param serviceAccountType
+     * @param concurrency
+     * @param compositeThreshold
+     * @param checkpointPath
+     * @param checksum
+     * @param encryptionCipher
+     * @param compression
+     * @param compressionLevel
      */
     public SFTPtoGCSConfig(
             @Nullable String serviceAccountJSON,
@@ -94,8 +143,14 @@ public class SFTPtoGCSConfig extends PluginConfig {
             @Nullable String numRetries,
             @Nullable String timeToWait,
             String encryption,
-            @Nullable String publicKeyPath
-
+            @Nullable String publicKeyPath,
+            @Nullable String concurrency,
+            @Nullable String compositeThreshold,
+            @Nullable String checkpointPath,
+            @Nullable String checksum,
+            @Nullable String encryptionCipher,
+            @Nullable String compression,
+            @Nullable String compressionLevel
     ) {
         this.serviceAccountJSON = serviceAccountJSON;
         this.path = path;
@@ -109,6 +164,98 @@ public class SFTPtoGCSConfig extends PluginConfig {
         this.timeToWait = timeToWait;
         this.encryption = encryption;
         this.publicKeyPath = publicKeyPath;
+        this.concurrency = concurrency;
+        this.compositeThreshold = compositeThreshold;
+        this.checkpointPath = checkpointPath;
+        this.checksum = checksum;
+        this.encryptionCipher = encryptionCipher;
+        this.compression = compression;
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Number of parallel transfers
+     *
+     * @return concurrency, 1 if not set
+     */
+    public int getConcurrency() {
+        if (Strings.isNullOrEmpty(concurrency) || concurrency.startsWith(MACRO)) {
+            return DEFAULT_CONCURRENCY;
+        }
+        return Integer.parseInt(concurrency);
+    }
+
+    /**
+     * Minimum size of the files uploaded as composite objects
+     *
+     * @return threshold in bytes, 0 if composite uploads are disabled
+     */
+    public long getCompositeThreshold() {
+        if (Strings.isNullOrEmpty(compositeThreshold) || compositeThreshold.startsWith(MACRO)) {
+            return 0;
+        }
+        return Long.parseLong(compositeThreshold) * MB;
+    }
+
+    /**
+     * GCS folder of the upload checkpoints
+     *
+     * @return checkpoint path, null if resumable uploads are disabled
+     */
+    @Nullable
+    public String getCheckpointPath() {
+        if (Strings.isNullOrEmpty(checkpointPath) || checkpointPath.startsWith(MACRO)) {
+            return null;
+        }
+        return checkpointPath;
+    }
+
+    /**
+     * Checksum verifying the transferred files
+     *
+     * @return checksum type, crc32c if not set
+     */
+    public String getChecksum() {
+        if (Strings.isNullOrEmpty(checksum) || checksum.startsWith(MACRO)) {
+            return CHECKSUM_CRC32C;
+        }
+        return checksum;
+    }
+
+    /**
+     * Symmetric cipher of the PGP encryption
+     *
+     * @return cipher name, AES-128 if not set
+     */
+    public String getEncryptionCipher() {
+        if (Strings.isNullOrEmpty(encryptionCipher) || encryptionCipher.startsWith(MACRO)) {
+            return CIPHER_AES_128;
+        }
+        return encryptionCipher;
+    }
+
+    /**
+     * Compression before the PGP encryption
+     *
+     * @return compression name, none if not set
+     */
+    public String getCompression() {
+        if (Strings.isNullOrEmpty(compression) || compression.startsWith(MACRO)) {
+            return COMPRESSION_NONE;
+        }
+        return compression;
+    }
+
+    /**
+     * Level of the zip and zlib compression
+     *
+     * @return level, 6 if not set
+     */
+    public int getCompressionLevel() {
+        if (Strings.isNullOrEmpty(compressionLevel) || compressionLevel.startsWith(MACRO)) {
+            return DEFAULT_COMPRESSION_LEVEL;
+        }
+        return Integer.parseInt(compressionLevel);
     }
 
     /**
@@ -151,6 +298,76 @@ public class SFTPtoGCSConfig extends PluginConfig {
                         .withConfigProperty(TIME_TO_WAIT);
             }
         }
+
+        if (!Strings.isNullOrEmpty(concurrency) && !concurrency.startsWith(MACRO)){
+            try{
+                int value = Integer.parseInt(concurrency);
+                if (value < 1 || value > MAX_CONCURRENCY) {
+                    collector.addFailure("Invalid Concurrency value.", "Ensure the value.")
+                            .withConfigProperty(CONCURRENCY);
+                }
+            } catch (NumberFormatException ex){
+                collector.addFailure("Invalid Concurrency value.", "Ensure the value.")
+                        .withConfigProperty(CONCURRENCY);
+            }
+        }
+
+        if (!Strings.isNullOrEmpty(compositeThreshold) && !compositeThreshold.startsWith(MACRO)){
+            try{
+                if (Long.parseLong(compositeThreshold) <= ZERO) {
+                    collector.addFailure("Invalid Composite upload threshold value.", "Ensure the value.")
+                            .withConfigProperty(COMPOSITE_THRESHOLD);
+                }
+            } catch (NumberFormatException ex){
+                collector.addFailure("Invalid Composite upload threshold value.", "Ensure the value.")
+                        .withConfigProperty(COMPOSITE_THRESHOLD);
+            }
+        }
+
+        if (!Strings.isNullOrEmpty(checkpointPath) && !checkpointPath.startsWith(MACRO)){
+            try{
+                if (!checkpointPath.startsWith(GS_ROOT)) {
+                    throw new IllegalArgumentException(checkpointPath);
+                }
+                GCSPath.from(checkpointPath);
+            } catch (Exception ex){
+                collector.addFailure("Invalid Upload checkpoint path. GCS Paths should start with gs://",
+                        "Ensure the value.").withConfigProperty(CHECKPOINT_PATH);
+            }
+        }
+
+        String checksumType = getChecksum();
+        if (!CHECKSUM_CRC32C.equals(checksumType) && !CHECKSUM_MD5.equals(checksumType)
+                && !CHECKSUM_NONE.equals(checksumType)) {
+            collector.addFailure("Invalid Checksum value.", "Ensure the value.")
+                    .withConfigProperty(CHECKSUM);
+        }
+
+        String cipher = getEncryptionCipher();
+        if (!CIPHER_AES_256.equals(cipher) && !CIPHER_AES_128.equals(cipher) && !CIPHER_CAST5.equals(cipher)) {
+            collector.addFailure("Invalid Cipher value.", "Ensure the value.")
+                    .withConfigProperty(ENCRYPTION_CIPHER);
+        }
+
+        String compressionType = getCompression();
+        if (!COMPRESSION_NONE.equals(compressionType) && !COMPRESSION_ZIP.equals(compressionType)
+                && !COMPRESSION_ZLIB.equals(compressionType) && !COMPRESSION_BZIP2.equals(compressionType)) {
+            collector.addFailure("Invalid Compression value.", "Ensure the value.")
+                    .withConfigProperty(COMPRESSION);
+        }
+
+        if (!Strings.isNullOrEmpty(compressionLevel) && !compressionLevel.startsWith(MACRO)){
+            try{
+                int value = Integer.parseInt(compressionLevel);
+                if (value < 1 || value > 9) {
+                    collector.addFailure("Invalid Compression level value.", "Ensure the value.")
+                            .withConfigProperty(COMPRESSION_LEVEL);
+                }
+            } catch (NumberFormatException ex){
+                collector.addFailure("Invalid Compression level value.", "Ensure the value.")
+                        .withConfigProperty(COMPRESSION_LEVEL);
+            }
+        }
     }
 
     private enum EncryptionType {
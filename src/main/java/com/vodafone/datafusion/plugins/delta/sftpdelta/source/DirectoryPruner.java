@@ -0,0 +1,85 @@
+package com.vodafone.datafusion.plugins.delta.sftpdelta.source;
+
+import com.google.common.base.Strings;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.SLASH;
+
+/**
+ * Decides which subdirectories have to be listed for a delta window.
+ * Directories not modified since the last execution can be skipped, on servers where the directory modification time
+ * changes when files are created. Date partitioned trees, like yyyy/MM/dd, can be limited to the partitions of the
+ * delta window. Date patterns are compared as text, so they have to go from years to seconds and be zero padded.
+ */
+public class DirectoryPruner {
+    private final String root;
+    private final boolean pruneByMtime;
+    private final long fromTime;
+    private final List<String> lowerBounds = new ArrayList<>();
+    private final List<String> upperBounds = new ArrayList<>();
+    private final List<SimpleDateFormat> formats = new ArrayList<>();
+
+    /**
+     *
+     * @param root              listed path
+     * @param pruneByMtime      skip directories not modified after fromTime
+     * @param datePathPattern   date pattern of the subdirectories, null if not partitioned by date
+     * @param fromTime          start of the delta window, in seconds
+     * @param toTime            end of the delta window, in seconds
+     */
+    public DirectoryPruner(String root, boolean pruneByMtime, String datePathPattern, long fromTime, long toTime) {
+        this.root = root.endsWith(SLASH) ? root : root + SLASH;
+        this.pruneByMtime = pruneByMtime;
+        this.fromTime = fromTime;
+
+        if (!Strings.isNullOrEmpty(datePathPattern)) {
+            String[] segments = datePathPattern.split(SLASH);
+            for (int i = 1; i <= segments.length; i++) {
+                SimpleDateFormat format = new SimpleDateFormat(
+                        String.join(SLASH, Arrays.copyOfRange(segments, 0, i)));
+                format.setTimeZone(TimeZone.getTimeZone("UTC"));
+                format.setLenient(false);
+                formats.add(format);
+                lowerBounds.add(format.format(fromTime * 1000));
+                upperBounds.add(format.format(toTime * 1000));
+            }
+        }
+    }
+
+    /**
+     * If a subdirectory may contain files of the delta window
+     *
+     * @param path      absolute path of the subdirectory
+     * @param mTime     modification time of the subdirectory, in seconds
+     * @return true if it has to be listed
+     */
+    public synchronized boolean descend(String path, int mTime) {
+        if (pruneByMtime && mTime <= fromTime) {
+            return false;
+        }
+        if (formats.isEmpty() || !path.startsWith(root)) {
+            return true;
+        }
+
+        String relative = path.substring(root.length());
+        int depth = relative.split(SLASH).length;
+        if (depth > formats.size()) {
+            return true;
+        }
+
+        SimpleDateFormat format = formats.get(depth - 1);
+        ParsePosition position = new ParsePosition(0);
+        Date date = format.parse(relative, position);
+        if (date == null || position.getIndex() != relative.length() || !format.format(date).equals(relative)) {
+            return false;
+        }
+        return relative.compareTo(lowerBounds.get(depth - 1)) >= 0 && relative.compareTo(upperBounds.get(depth - 1)) <= 0;
+    }
+}
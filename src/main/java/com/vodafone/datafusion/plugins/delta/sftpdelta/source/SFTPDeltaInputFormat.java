@@ -1,18 +1,56 @@
 package com.vodafone.datafusion.plugins.delta.sftpdelta.source;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.jcraft.jsch.ChannelSftp;
+import com.vodafone.datafusion.plugins.delta.common.DeltaUtils;
+import com.vodafone.datafusion.plugins.delta.common.SFTPConnector;
+import com.vodafone.datafusion.plugins.delta.common.SFTPConnectorConfig;
 import com.vodafone.datafusion.plugins.delta.common.source.DeltaSplit;
+import com.vodafone.datafusion.plugins.delta.common.source.SplitPlanner;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.mapreduce.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.util.Collections;
-import java.util.List;
+import java.io.IOException;
+import java.util.*;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.*;
 
 
 public class SFTPDeltaInputFormat extends InputFormat<NullWritable, SFTPDeltaRecord> {
+    private static final Logger LOG = LoggerFactory.getLogger(SFTPDeltaInputFormat.class);
+    private static final Gson gson = new GsonBuilder().create();
 
     @Override
-    public List<InputSplit> getSplits(JobContext jobContext) {
-        return Collections.singletonList(new DeltaSplit());
+    public List<InputSplit> getSplits(JobContext jobContext) throws IOException {
+        SFTPDeltaSourceConfig config = gson.fromJson(jobContext.getConfiguration().get(CONF_JSON_PACKAGE_KEY),
+                SFTPDeltaSourceConfig.class);
+        if (config.getSplitSize() > 0) {
+            return planBySize(jobContext, config);
+        }
+
+        int numSplits = config.getNumSplits();
+        if (numSplits <= 1) {
+            return Collections.singletonList(new DeltaSplit());
+        }
+
+        List<String> directories = config.getMaxDepth() > 0 ? listDirectories(config) : Collections.emptyList();
+        List<List<String>> assignment = new ArrayList<>(numSplits);
+        for (int i = 0; i < numSplits; i++) {
+            assignment.add(new ArrayList<>());
+        }
+        for (int i = 0; i < directories.size(); i++) {
+            assignment.get(i % numSplits).add(directories.get(i));
+        }
+
+        List<InputSplit> splits = new ArrayList<>(numSplits);
+        for (int i = 0; i < numSplits; i++) {
+            splits.add(new DeltaSplit(i, numSplits, assignment.get(i)));
+        }
+        LOG.info("[SFTP Delta] Listing split in {} tasks, {} top level directories.", numSplits, directories.size());
+        return splits;
     }
 
     @Override
@@ -20,4 +58,56 @@ public class SFTPDeltaInputFormat extends InputFormat<NullWritable, SFTPDeltaRec
             InputSplit inputSplit, TaskAttemptContext taskAttemptContext) {
         return new SFTPDeltaRecordReader();
     }
+
+    /**
+     * List the files while planning and bin pack them into splits by size
+     *
+     * @param jobContext    job context
+     * @param config        source configuration
+     * @return splits carrying their files
+     * @throws IOException If the files can not be listed
+     */
+    private List<InputSplit> planBySize(JobContext jobContext, SFTPDeltaSourceConfig config) throws IOException {
+        SFTPDeltaRecordReader lister = new SFTPDeltaRecordReader();
+        List<SFTPDeltaRecord> files;
+        try {
+            files = lister.listFiles(jobContext, new DeltaSplit());
+        } finally {
+            lister.close();
+        }
+
+        List<InputSplit> splits = SplitPlanner.planSplits(files, file -> file.size, config.getSplitSize(),
+                lister.getConnection());
+        LOG.info("[SFTP Delta] {} files planned in {} splits.", files.size(), splits.size());
+        return splits;
+    }
+
+    /**
+     * Top level directories of the configured path
+     *
+     * @param config    source configuration
+     * @return sorted directory names
+     * @throws IOException If the directory can not be listed
+     */
+    private List<String> listDirectories(SFTPDeltaSourceConfig config) throws IOException {
+        SFTPConnectorConfig connConfig = new SFTPConnectorConfig(config.sftpServer, config.sftpPort, config.sftpPath,
+                config.sftpUser, config.sftpPass, config.proxyIP, config.proxyPort, config.authType, config.privateKey,
+                config.passphrase, config.sshProperties);
+        try (SFTPConnector conn = DeltaUtils.getSftpConnector(connConfig)) {
+            List<String> directories = new ArrayList<>();
+            // ls returns a raw Vector of LsEntry
+            for (Object file : conn.getSftpChannel().ls(config.sftpPath)) {
+                ChannelSftp.LsEntry entry = (ChannelSftp.LsEntry) file;
+                String name = entry.getFilename();
+                if (entry.getAttrs().isDir() && !name.equals(DOT) && !name.equals(DOUBLE_DOT)) {
+                    directories.add(name);
+                }
+            }
+            Collections.sort(directories);
+            return directories;
+        } catch (Exception ex) {
+            LOG.error("[SFTP Delta] An error occurred planning splits: " + ex.getMessage());
+            throw new IOException(ex);
+        }
+    }
 }
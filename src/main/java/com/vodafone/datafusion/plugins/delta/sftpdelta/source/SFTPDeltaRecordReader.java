@@ -1,6 +1,7 @@
 package com.vodafone.datafusion.plugins.delta.sftpdelta.source;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.Iterators;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.jcraft.jsch.ChannelSftp;
@@ -10,9 +11,11 @@ import com.vodafone.datafusion.plugins.delta.common.SFTPConnector;
 import com.vodafone.datafusion.plugins.delta.common.SFTPConnectorConfig;
 import com.vodafone.datafusion.plugins.delta.common.DeltaUtils;
 import com.vodafone.datafusion.plugins.delta.common.source.DeltaDelta;
+import com.vodafone.datafusion.plugins.delta.common.source.DeltaSplit;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.slf4j.Logger;
@@ -20,9 +23,10 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
 
 import static com.vodafone.datafusion.plugins.delta.constants.Constants.*;
-import static java.util.stream.Collectors.toList;
 
 
 /**
@@ -33,18 +37,21 @@ public class SFTPDeltaRecordReader extends RecordReader<NullWritable, SFTPDeltaR
     private static final Gson gson = new GsonBuilder().create();
 
     private int total, current;
+    private boolean finished;
     private Long safetyReadTime;
     private Long toTime;
     private Long fromTime;
 
     private SFTPDeltaRecord data;
 
-    private Iterator<SFTPDeltaRecord> records;
+    private Iterator<SFTPDeltaRecord> records = Collections.emptyIterator();
 
     private SFTPDeltaSourceConfig config;
 
     private ChannelSftp sftpChannel;
     private SFTPConnector conn;
+    private SFTPDirectoryWalker walker;
+    private DirectoryPruner pruner;
     private String configJson;
     private String connectorJson;
 
@@ -52,7 +59,53 @@ public class SFTPDeltaRecordReader extends RecordReader<NullWritable, SFTPDeltaR
     public void initialize(InputSplit inputSplit,
                            TaskAttemptContext taskAttemptContext) throws IOException {
         LOG.debug("[SFTP Delta] Initializing record reader.");
-        Configuration conf = taskAttemptContext.getConfiguration();
+        DeltaSplit split = (DeltaSplit) inputSplit;
+        if (split.isListed()) {
+            readConfig(taskAttemptContext.getConfiguration());
+            split.checkConnection(connectorJson);
+            records = Iterators.transform(split.getRecords().iterator(), record -> {
+                SFTPDeltaRecord file = gson.fromJson(record, SFTPDeltaRecord.class);
+                file.connection = connectorJson;
+                return file;
+            });
+            total = split.getRecords().size();
+            LOG.info("[SFTP Delta] Reading {} files, {} bytes, listed while planning.", total, split.getLength());
+        } else {
+            openListing(taskAttemptContext, split);
+        }
+        current = 0;
+    }
+
+    /**
+     * List the files of a split
+     *
+     * @param context   job context
+     * @param split     split to list
+     * @return files to be transferred
+     * @throws IOException If the files can not be listed
+     */
+    List<SFTPDeltaRecord> listFiles(JobContext context, DeltaSplit split) throws IOException {
+        openListing(context, split);
+        List<SFTPDeltaRecord> fileList = new ArrayList<>();
+        while (nextKeyValue()) {
+            fileList.add(data);
+        }
+        return fileList;
+    }
+
+    /**
+     * @return connection of the listed records
+     */
+    String getConnection() {
+        return connectorJson;
+    }
+
+    /**
+     * Read the plugin configuration and the connection of the records from the job configuration
+     *
+     * @param conf  job configuration
+     */
+    private void readConfig(Configuration conf) {
         configJson = conf.get(CONF_JSON_PACKAGE_KEY);
 
         config = gson.fromJson(configJson, SFTPDeltaSourceConfig.class);
@@ -70,8 +123,20 @@ public class SFTPDeltaRecordReader extends RecordReader<NullWritable, SFTPDeltaR
                 config.passphrase,
                 config.sshProperties
         ));
+    }
+
+    /**
+     * Start the listing of a split. Files are listed lazily while records are read.
+     *
+     * @param context   job context
+     * @param split     split to list
+     * @throws IOException If the files can not be listed
+     */
+    private void openListing(JobContext context, DeltaSplit split) throws IOException {
+        Configuration conf = context.getConfiguration();
+        readConfig(conf);
 
-        safetyReadTime = DeltaUtils.getSafetyTime(taskAttemptContext);
+        safetyReadTime = DeltaUtils.getSafetyTime(context);
 
         toTime = Long.parseLong(conf.get(CONF_LOGICAL_START_TIME)) / 1000 - safetyReadTime;
         fromTime = DeltaDelta.getFromTime(conf, config);
@@ -82,13 +147,18 @@ public class SFTPDeltaRecordReader extends RecordReader<NullWritable, SFTPDeltaR
             conn = DeltaUtils.getSftpConnector(connConfig);
 
             sftpChannel = conn.getSftpChannel();
-
-            List<SFTPDeltaRecord> fileList = new ArrayList<>();
-            listDirectory(sftpChannel, config.sftpPath, fileList);
-
-            records = fileList.iterator();
-            current = 0;
-            total = fileList.size();
+            pruner = new DirectoryPruner(config.sftpPath, YES.equals(config.pruneByMtime), config.datePathPattern,
+                    fromTime, toTime);
+            walker = new SFTPDirectoryWalker(conn, getListingThreads(conf), config.getMaxDepth(),
+                    fileFilter(fromTime.intValue(), toTime.intValue(), config.regexFilter),
+                    (path, attrs) -> pruner.descend(path, attrs.getMTime()));
+
+            if (split.getNumPartitions() <= 1) {
+                LOG.info("[SFTP Delta] Listing directory: " + config.sftpPath);
+                walker.add(config.sftpPath, 0);
+            } else {
+                records = listPartition(sftpChannel, split).iterator();
+            }
         } catch (Exception ex) {
             LOG.error("[SFTP Delta] An error occurred initializing record reader: " + ex.getMessage());
             ex.printStackTrace();
@@ -97,15 +167,40 @@ public class SFTPDeltaRecordReader extends RecordReader<NullWritable, SFTPDeltaR
     }
 
     @Override
-    public boolean nextKeyValue() {
-        if (!records.hasNext()) {
-            return false;
+    public boolean nextKeyValue() throws IOException {
+        if (records.hasNext()) {
+            data = records.next();
+            this.current++;
+            return true;
         }
 
-        data = records.next();
-        this.current++;
+        if (walker != null) {
+            SFTPDirectoryWalker.FileEntry entry;
+            try {
+                entry = walker.next();
+            } catch (SftpException ex) {
+                LOG.error("[SFTP Delta] An error occurred listing files: " + ex.getMessage());
+                throw new IOException(ex);
+            }
+            if (entry != null) {
+                data = new SFTPDeltaRecord(connectorJson,
+                        config.getFullPath(),
+                        config.sftpPath,
+                        entry.path,
+                        entry.attrs.getSize(),
+                        entry.attrs.getMTime()
+                );
+                this.current++;
+                LOG.debug("[SFTP Delta] File to be transferred: " + data.filename.substring(1));
+                return true;
+            }
+        }
 
-        return true;
+        if (!finished) {
+            finished = true;
+            LOG.info("[SFTP Delta] Number of files listed: " + current);
+        }
+        return false;
     }
 
     @Override
@@ -120,14 +215,18 @@ public class SFTPDeltaRecordReader extends RecordReader<NullWritable, SFTPDeltaR
 
     @Override
     public float getProgress() {
+        if (walker != null) return walker.getProgress();
+
         if (total == 0) return 1.0f;
 
-        return current / total;
+        return (float) current / total;
     }
 
     @Override
     public void close() throws IOException {
         try {
+            if (this.walker != null)
+                this.walker.close();
             if (this.conn != null)
                 this.conn.close();
         } catch (Exception e) {
@@ -137,65 +236,77 @@ public class SFTPDeltaRecordReader extends RecordReader<NullWritable, SFTPDeltaR
     }
 
     /**
-     * Validates if the modify date is between fromDelta to execution time
+     * Files to transfer: regular files modified inside the delta window whose name matches the regex filter
      *
-     * @param entry Connection to the SFTP
-     * @return delta
-     */
-    private boolean isNewFile(ChannelSftp.LsEntry entry) {
-        SftpATTRS attrs = entry.getAttrs();
-        return attrs.isReg() &&
-                attrs.getMTime() > fromTime.intValue() &&
-                attrs.getMTime() <= toTime.intValue();
-    }
-
-    /**
-     * If the filename is match or not with regexFilter
-     *
-     * @param entry Connection to the SFTP
-     * @return match
-     * @throws SftpException If any SFTP errors occur
+     * @param fromTime      start of the window, excluded, in seconds
+     * @param toTime        end of the window, included, in seconds
+     * @param regexFilter   file name filter, all the files if empty
+     * @return file filter
      */
-    private boolean isMatches(ChannelSftp.LsEntry entry) {
-        String name = entry.getFilename();
-
-        if (Strings.isNullOrEmpty(config.regexFilter)) return true;
-
-        return name.matches(config.regexFilter);
+    static Predicate<ChannelSftp.LsEntry> fileFilter(int fromTime, int toTime, String regexFilter) {
+        Pattern pattern = Strings.isNullOrEmpty(regexFilter) ? null : Pattern.compile(regexFilter);
+        return entry -> {
+            SftpATTRS attrs = entry.getAttrs();
+            return attrs.isReg() && attrs.getMTime() > fromTime && attrs.getMTime() <= toTime
+                    && (pattern == null || pattern.matcher(entry.getFilename()).matches());
+        };
     }
 
     /**
-     * listDirectory recursively list all files and subdirectories in a given directory.
+     * List the part of the path assigned to a split: the root files hashed to its partition are returned and
+     * its top level directories are queued to be walked.
      *
      * @param channelSftp Connection to the SFTP
-     * @param path        The origin directory
-     * @param fileList        The list of files
+     * @param split       The split being read
+     * @return root files of the split
      * @throws SftpException If any SFTP errors occur
      */
-    private void listDirectory(ChannelSftp channelSftp, String path, List<SFTPDeltaRecord> fileList) throws SftpException {
-        LOG.info("[SFTP Delta] Listing directory: " + path);
-        Vector<ChannelSftp.LsEntry> files = channelSftp.ls(path);
-        String name;
+    private List<SFTPDeltaRecord> listPartition(ChannelSftp channelSftp, DeltaSplit split) throws SftpException {
+        LOG.info("[SFTP Delta] Listing partition {} of {}: {}", split.getPartition() + 1, split.getNumPartitions(),
+                config.sftpPath);
+        Vector<ChannelSftp.LsEntry> files = channelSftp.ls(config.sftpPath);
+        Predicate<ChannelSftp.LsEntry> filter = fileFilter(fromTime.intValue(), toTime.intValue(), config.regexFilter);
+        List<SFTPDeltaRecord> fileList = new ArrayList<>();
+        Map<String, SftpATTRS> directories = new HashMap<>();
         for ( ChannelSftp.LsEntry entry : files ) {
-            if (isNewFile(entry) && isMatches(entry)) {
-                name = path + "/" + entry.getFilename();
+            if (entry.getAttrs().isDir()) {
+                directories.put(entry.getFilename(), entry.getAttrs());
+            }
+            if (filter.test(entry) && split.isAssigned(entry.getFilename())) {
                 fileList.add(new SFTPDeltaRecord(connectorJson,
                         config.getFullPath(),
                         config.sftpPath,
-                        name,
+                        config.sftpPath + "/" + entry.getFilename(),
                         entry.getAttrs().getSize(),
                         entry.getAttrs().getMTime()
                 ));
             }
+        }
 
-            if (entry.getAttrs().isDir() && config.recursive.equals(YES)) {
-                if (!entry.getFilename().equals(DOT) && !entry.getFilename().equals(DOUBLE_DOT)) {
-                    listDirectory(channelSftp, path + SLASH + entry.getFilename(), fileList);
-                }
+        for (String directory : split.getDirectories()) {
+            String path = config.sftpPath + SLASH + directory;
+            SftpATTRS attrs = directories.get(directory);
+            if (config.getMaxDepth() > 0 && attrs != null && pruner.descend(path, attrs.getMTime())) {
+                walker.add(path, 1);
             }
         }
-        LOG.info("[SFTP Delta] Number of files listed: " + fileList.size());
-        List<String> stringList = fileList.stream().map(file -> file.filename.substring(1)).collect(toList());
-        LOG.info("[SFTP Delta] Files to be transferred: " + stringList);
+        return fileList;
+    }
+
+    /**
+     * Number of directories listed at the same time, from the runtime arguments
+     *
+     * @param conf  job configuration
+     * @return listing threads
+     */
+    private static int getListingThreads(Configuration conf) {
+        int threads;
+        try {
+            threads = Integer.parseInt(Objects.requireNonNull(conf.get(SFTP_DELTA_LISTING_THREADS)));
+            LOG.debug("[SFTP Delta] Source listing threads param: {}", threads);
+        } catch (Exception e) {
+            threads = DEFAULT_LISTING_THREADS;
+        }
+        return Math.max(1, Math.min(threads, DEFAULT_MAX_SFTP_CHANNELS));
     }
 }
@@ -10,6 +10,7 @@ import org.apache.commons.validator.routines.UrlValidator;
 
 import javax.annotation.Nullable;
 import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -133,6 +134,39 @@ public class SFTPDeltaSourceConfig extends PluginConfig {
     @Nullable
     public final Integer proxyPort;
 
+    @Name(NUM_SPLITS)
+    @Description("Number of tasks the listing is split into. Top level directories are distributed " +
+            "between the tasks and the files of the path are partitioned by name.")
+    @Macro
+    @Nullable
+    public final String numSplits;
+
+    @Name(SPLIT_SIZE)
+    @Description("Target MB per task. When set, files are listed while planning and distributed between " +
+            "the tasks by size.")
+    @Macro
+    @Nullable
+    public final String splitSize;
+
+    @Name(MAX_DEPTH)
+    @Description("Levels of subdirectories listed when reading recursively. All of them by default.")
+    @Macro
+    @Nullable
+    public final String maxDepth;
+
+    @Name(PRUNE_BY_MTIME)
+    @Description("Skip subdirectories not modified since the last date processed. Only safe on servers where the " +
+            "modification time of a directory changes when files are created below it.")
+    @Macro
+    @Nullable
+    public final String pruneByMtime;
+
+    @Name(DATE_PATH_PATTERN)
+    @Description("Date pattern of the subdirectories, for example yyyy/MM/dd. Only the subdirectories of the dates " +
+            "between the last date processed and the execution time are listed.")
+    @Macro
+    @Nullable
+    public final String datePathPattern;
 
     public SFTPDeltaSourceConfig(String sftpServer,
                                  Integer sftpPort,
@@ -151,7 +185,12 @@ public class SFTPDeltaSourceConfig extends PluginConfig {
                                  @Nullable String serviceAccountJSON,
                                  @Nullable Long fromDelta,
                                  @Nullable String proxyIP,
-                                 @Nullable Integer proxyPort) {
+                                 @Nullable Integer proxyPort,
+                                 @Nullable String numSplits,
+                                 @Nullable String splitSize,
+                                 @Nullable String maxDepth,
+                                 @Nullable String pruneByMtime,
+                                 @Nullable String datePathPattern) {
 
         this.sftpServer = sftpServer;
         this.sftpPort = sftpPort;
@@ -171,12 +210,51 @@ public class SFTPDeltaSourceConfig extends PluginConfig {
         this.fromDelta = fromDelta;
         this.proxyIP=proxyIP;
         this.proxyPort=proxyPort;
+        this.numSplits=numSplits;
+        this.splitSize=splitSize;
+        this.maxDepth=maxDepth;
+        this.pruneByMtime=pruneByMtime;
+        this.datePathPattern=datePathPattern;
     }
 
     public String getFullPath() {
         return SFTP_ROOT + sftpUser + AT + sftpServer + COLON + sftpPort + sftpPath;
     }
 
+    public int getNumSplits() {
+        if (Strings.isNullOrEmpty(numSplits) || numSplits.startsWith(MACRO)) {
+            return DEFAULT_SPLITS;
+        }
+        return Integer.parseInt(numSplits);
+    }
+
+    /**
+     * Target bytes per split
+     *
+     * @return bytes, 0 if splits are not planned by size
+     */
+    public long getSplitSize() {
+        if (Strings.isNullOrEmpty(splitSize) || splitSize.startsWith(MACRO)) {
+            return 0;
+        }
+        return Long.parseLong(splitSize) * MB;
+    }
+
+    /**
+     * Levels of subdirectories to list
+     *
+     * @return max depth, 0 if not recursive
+     */
+    public int getMaxDepth() {
+        if (!YES.equals(recursive)) {
+            return 0;
+        }
+        if (Strings.isNullOrEmpty(maxDepth) || maxDepth.startsWith(MACRO)) {
+            return Integer.MAX_VALUE;
+        }
+        return Integer.parseInt(maxDepth);
+    }
+
     public byte[] getPrivateKey() {
         if (null != privateKey){
             return privateKey.getBytes(StandardCharsets.UTF_8);
@@ -206,6 +284,50 @@ public class SFTPDeltaSourceConfig extends PluginConfig {
             }
         }
 
+        try {
+            int splits = getNumSplits();
+            if (splits < DEFAULT_SPLITS || splits > MAX_SPLITS) {
+                collector.addFailure("Invalid Number of splits value.", "Ensure the value is between 1 and " + MAX_SPLITS + ".")
+                        .withConfigProperty(NUM_SPLITS);
+            }
+        } catch (NumberFormatException e) {
+            collector.addFailure("Invalid Number of splits value.", "Ensure the value.")
+                    .withConfigProperty(NUM_SPLITS);
+        }
+
+        if (!Strings.isNullOrEmpty(maxDepth) && !maxDepth.startsWith(MACRO)) {
+            try {
+                if (Integer.parseInt(maxDepth) < 0) {
+                    collector.addFailure("Invalid Max depth value.", "Ensure the value is not negative.")
+                            .withConfigProperty(MAX_DEPTH);
+                }
+            } catch (NumberFormatException e) {
+                collector.addFailure("Invalid Max depth value.", "Ensure the value.")
+                        .withConfigProperty(MAX_DEPTH);
+            }
+        }
+
+        if (!Strings.isNullOrEmpty(datePathPattern) && !datePathPattern.startsWith(MACRO)) {
+            try {
+                new SimpleDateFormat(datePathPattern);
+            } catch (IllegalArgumentException e) {
+                collector.addFailure("Invalid Date path pattern: " + e.getMessage(), "Ensure the value.")
+                        .withConfigProperty(DATE_PATH_PATTERN);
+            }
+        }
+
+        if (!Strings.isNullOrEmpty(splitSize) && !splitSize.startsWith(MACRO)) {
+            try {
+                if (Long.parseLong(splitSize) <= 0) {
+                    collector.addFailure("Invalid Split size value.", "Ensure the value is greater than 0.")
+                            .withConfigProperty(SPLIT_SIZE);
+                }
+            } catch (NumberFormatException e) {
+                collector.addFailure("Invalid Split size value.", "Ensure the value.")
+                        .withConfigProperty(SPLIT_SIZE);
+            }
+        }
+
         if (!Strings.isNullOrEmpty(persistDelta)) {
             String[] schemes = {HDFS, FILE, GS};
             UrlValidator urlValidator = new UrlValidator(schemes, UrlValidator.ALLOW_LOCAL_URLS);
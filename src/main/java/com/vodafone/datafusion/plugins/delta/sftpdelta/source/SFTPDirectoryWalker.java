@@ -0,0 +1,200 @@
+package com.vodafone.datafusion.plugins.delta.sftpdelta.source;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import com.vodafone.datafusion.plugins.delta.common.SFTPConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.*;
+
+/**
+ * Lazy recursive SFTP listing. Files are returned while the walk is in progress, one directory at a time.
+ * The next directories to visit are listed ahead by a bounded pool, every ls borrows its own channel from the
+ * connector, so the in-flight ls calls are bounded by the number of channels and only a few listings are kept
+ * in memory.
+ * The result does not depend on the listing order: entries are sorted by name, and the files of a directory
+ * come before the files of its subdirectories.
+ * Symbolic links are never descended, so links to a parent directory do not make the walk loop.
+ */
+public class SFTPDirectoryWalker implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(SFTPDirectoryWalker.class);
+
+    private final SFTPConnector conn;
+    private final int maxDepth;
+    private final int prefetch;
+    private final Predicate<ChannelSftp.LsEntry> filter;
+    private final BiPredicate<String, SftpATTRS> descend;
+    private final ExecutorService executor;
+
+    private final Deque<Directory> pending = new ArrayDeque<>();
+    private Iterator<FileEntry> files = Collections.emptyIterator();
+    private long listed;
+
+    /**
+     *
+     * @param conn          sftp connector, channels are borrowed from it
+     * @param parallelism   max ls calls in flight
+     * @param maxDepth      levels of subdirectories to descend, 0 lists only the given directory
+     * @param filter        files to keep
+     * @param descend       subdirectories to list, by path and attributes
+     */
+    public SFTPDirectoryWalker(SFTPConnector conn, int parallelism, int maxDepth,
+                               Predicate<ChannelSftp.LsEntry> filter, BiPredicate<String, SftpATTRS> descend) {
+        this.conn = conn;
+        this.maxDepth = maxDepth;
+        this.prefetch = parallelism * LISTING_PREFETCH_FACTOR;
+        this.filter = filter;
+        this.descend = descend;
+        this.executor = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder()
+                .setNameFormat("sftp-listing-%d")
+                .setDaemon(true)
+                .build());
+        conn.setMaxChannels(parallelism);
+    }
+
+    /**
+     * Queue a directory to walk, after the ones already queued
+     *
+     * @param path      directory to list
+     * @param depth     depth of the directory
+     */
+    public void add(String path, int depth) {
+        pending.addLast(new Directory(path, depth));
+    }
+
+    /**
+     * Next file accepted by the filter
+     *
+     * @return file, null when the walk is finished
+     * @throws SftpException If any SFTP errors occur
+     */
+    public FileEntry next() throws SftpException {
+        while (!files.hasNext()) {
+            Directory directory = pending.pollFirst();
+            if (directory == null) {
+                return null;
+            }
+            files = expand(directory).iterator();
+        }
+        return files.next();
+    }
+
+    /**
+     * Estimation of the walked fraction, from the visited and the pending directories
+     *
+     * @return progress between 0 and 1
+     */
+    public float getProgress() {
+        long total = listed + pending.size();
+        return total == 0 ? 1.0f : (float) listed / total;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private List<FileEntry> expand(Directory directory) throws SftpException {
+        directory.submit();
+        prefetch();
+        List<ChannelSftp.LsEntry> entries = directory.await();
+        listed++;
+
+        List<FileEntry> accepted = new ArrayList<>();
+        List<Directory> subdirectories = new ArrayList<>();
+        for (ChannelSftp.LsEntry entry : entries) {
+            String name = entry.getFilename();
+            String path = directory.path + SLASH + name;
+            if (filter.test(entry)) {
+                accepted.add(new FileEntry(path, entry.getAttrs()));
+            }
+            if (entry.getAttrs().isDir() && !entry.getAttrs().isLink() && directory.depth < maxDepth
+                    && !name.equals(DOT) && !name.equals(DOUBLE_DOT) && descend.test(path, entry.getAttrs())) {
+                subdirectories.add(new Directory(path, directory.depth + 1));
+            }
+        }
+        for (int i = subdirectories.size() - 1; i >= 0; i--) {
+            pending.addFirst(subdirectories.get(i));
+        }
+        prefetch();
+        return accepted;
+    }
+
+    private void prefetch() {
+        int i = 0;
+        for (Iterator<Directory> it = pending.iterator(); it.hasNext() && i < prefetch; i++) {
+            it.next().submit();
+        }
+    }
+
+    private List<ChannelSftp.LsEntry> ls(String path) throws Exception {
+        LOG.debug("[SFTP Delta] Listing directory: " + path);
+        ChannelSftp channel = conn.borrowChannel();
+        try {
+            List<ChannelSftp.LsEntry> sorted = new ArrayList<>();
+            // ls returns a raw Vector of LsEntry
+            for (Object entry : channel.ls(path)) {
+                sorted.add((ChannelSftp.LsEntry) entry);
+            }
+            sorted.sort(Comparator.comparing(ChannelSftp.LsEntry::getFilename));
+            return sorted;
+        } finally {
+            conn.returnChannel(channel);
+        }
+    }
+
+    private class Directory {
+        private final String path;
+        private final int depth;
+        private Future<List<ChannelSftp.LsEntry>> listing;
+
+        Directory(String path, int depth) {
+            this.path = path;
+            this.depth = depth;
+        }
+
+        void submit() {
+            if (listing == null) {
+                listing = executor.submit(() -> ls(path));
+            }
+        }
+
+        List<ChannelSftp.LsEntry> await() throws SftpException {
+            try {
+                return listing.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new SftpException(ChannelSftp.SSH_FX_FAILURE, "Interrupted while listing " + path, ex);
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof SftpException) {
+                    throw (SftpException) ex.getCause();
+                }
+                throw new SftpException(ChannelSftp.SSH_FX_FAILURE, ex.getCause().getMessage(), ex.getCause());
+            }
+        }
+    }
+
+    /**
+     * Listed file
+     */
+    public static class FileEntry {
+        public final String path;
+        public final SftpATTRS attrs;
+
+        FileEntry(String path, SftpATTRS attrs) {
+            this.path = path;
+            this.attrs = attrs;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.vodafone.datafusion.plugins.delta.common;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testReuse() {
+        BufferPool pool = new BufferPool(1024, false, 2);
+
+        ByteBuffer first = pool.acquire();
+        assertEquals(1024, first.remaining());
+        assertTrue(first.hasArray());
+        first.put(new byte[100]);
+        pool.release(first);
+
+        ByteBuffer second = pool.acquire(512);
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(512, second.limit());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void testCapacity() {
+        BufferPool pool = new BufferPool(1024, false, 2);
+        ByteBuffer[] buffers = {pool.acquire(), pool.acquire(), pool.acquire()};
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+
+        assertEquals(2, pool.getIdle());
+        assertEquals(3, pool.getMisses());
+    }
+
+    @Test
+    public void testForeignBuffers() {
+        BufferPool pool = new BufferPool(1024, true, 2);
+
+        ByteBuffer big = pool.acquire(2048);
+        assertTrue(big.isDirect());
+        assertEquals(2048, big.capacity());
+        pool.release(big);
+        pool.release(ByteBuffer.allocate(1024));
+        pool.release(null);
+
+        assertEquals(0, pool.getIdle());
+    }
+
+    @Test
+    public void testShared() {
+        BufferPool heap = BufferPool.shared(4096, false, 1);
+
+        assertSame(heap, BufferPool.shared(4096, false, 4));
+        assertNotSame(heap, BufferPool.shared(4096, true, 1));
+        assertFalse(heap.isDirect());
+    }
+}
@@ -0,0 +1,47 @@
+package com.vodafone.datafusion.plugins.delta.common;
+
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Checksum;
+
+import static org.junit.Assert.assertEquals;
+
+public class CRC32CUtilTest {
+
+    @Test
+    public void testCombine() {
+        byte[] data = new byte[100000];
+        new Random(42).nextBytes(data);
+        int crc = Hashing.crc32c().hashBytes(data).asInt();
+
+        for (int split : new int[]{0, 1, 4096, 33333, 99999, 100000}) {
+            int crc1 = Hashing.crc32c().hashBytes(Arrays.copyOfRange(data, 0, split)).asInt();
+            int crc2 = Hashing.crc32c().hashBytes(Arrays.copyOfRange(data, split, data.length)).asInt();
+            assertEquals(crc, CRC32CUtil.combine(crc1, crc2, data.length - split));
+        }
+    }
+
+    @Test
+    public void testCrc32c() {
+        byte[] data = new byte[100000];
+        new Random(42).nextBytes(data);
+        assertEquals(Hashing.crc32c().hashBytes(data, 10, 50000).asInt(), CRC32CUtil.crc32c(data, 10, 50000));
+
+        Checksum crc = CRC32CUtil.newChecksum();
+        crc.update(data, 0, 4096);
+        crc.update(data, 4096, data.length - 4096);
+        assertEquals(Hashing.crc32c().hashBytes(data).asInt(), (int) crc.getValue());
+        crc.reset();
+        crc.update("123456789".getBytes(), 0, 9);
+        assertEquals(0xE3069283, (int) crc.getValue());
+    }
+
+    @Test
+    public void testToBase64() {
+        assertEquals("AAAAAA==", CRC32CUtil.toBase64(0));
+        assertEquals("4waSgw==", CRC32CUtil.toBase64(Hashing.crc32c().hashBytes("123456789".getBytes()).asInt()));
+    }
+}
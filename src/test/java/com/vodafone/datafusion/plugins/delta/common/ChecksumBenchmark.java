@@ -0,0 +1,62 @@
+package com.vodafone.datafusion.plugins.delta.common;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.*;
+
+/**
+ * Compares the CPU time spent per GB by the checksums of the transfers.
+ * Every checksum is fed the same buffer in the chunk size used by the uploads, after some warm up rounds so the JIT
+ * compiled it, and the thread CPU time is reported per GB.
+ * Run with: java ChecksumBenchmark [MB per round] [rounds]
+ */
+public class ChecksumBenchmark {
+    private static final String[] CHECKSUMS = {CHECKSUM_MD5, CHECKSUM_CRC32C, CHECKSUM_NONE};
+    private static final int CHUNK = (int) (2 * MB);
+    private static final long GB = 1024 * MB;
+    private static final int WARMUP = 3;
+
+    public static void main(String[] args) {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        byte[] chunk = new byte[CHUNK];
+        new Random(42).nextBytes(chunk);
+        long bytes = (long) megabytes * MB;
+
+        for (String name : CHECKSUMS) {
+            for (int i = 0; i < WARMUP; i++) {
+                run(name, chunk, bytes);
+            }
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < rounds; i++) {
+                best = Math.min(best, run(name, chunk, bytes));
+            }
+            double perGB = best / 1e6 * GB / bytes;
+            System.out.printf("%-7s %8.1f ms CPU/GB %8.1f MB/s%n", name, perGB, 1024 / (perGB / 1000));
+        }
+        System.out.println("JDK CRC32C: " + hasJdkCrc32c());
+    }
+
+    private static long run(String name, byte[] chunk, long bytes) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        TransferChecksum checksum = TransferChecksum.of(name);
+        long start = threads.getCurrentThreadCpuTime();
+        for (long done = 0; done < bytes; done += chunk.length) {
+            checksum.update(chunk, 0, chunk.length);
+        }
+        checksum.value();
+        return threads.getCurrentThreadCpuTime() - start;
+    }
+
+    private static boolean hasJdkCrc32c() {
+        try {
+            Class.forName("java.util.zip.CRC32C");
+            return true;
+        } catch (ClassNotFoundException ex) {
+            return false;
+        }
+    }
+}
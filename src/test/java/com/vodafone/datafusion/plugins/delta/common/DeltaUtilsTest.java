@@ -1,5 +1,8 @@
 package com.vodafone.datafusion.plugins.delta.common;
 
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.RawComparator;
@@ -7,10 +10,16 @@ import org.apache.hadoop.mapreduce.*;
 import org.apache.hadoop.security.Credentials;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.URI;
+import java.util.Arrays;
+import java.util.Random;
 
-import static org.junit.Assert.assertEquals;
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.RESUMABLE_CHUNK_GRANULARITY;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
 
 public class DeltaUtilsTest {
 
@@ -497,4 +506,84 @@ public class DeltaUtilsTest {
         assertEquals(safetyTime, 300L);
     }
 
+    @Test
+    public void testWriteGCSFile() throws Exception {
+        byte[] data = new byte[2 * RESUMABLE_CHUNK_GRANULARITY + 7];
+        new Random(42).nextBytes(data);
+
+        for (boolean direct : new boolean[]{false, true}) {
+            // chunks are rounded down to the GCS granularity
+            BufferPool pool = new BufferPool(RESUMABLE_CHUNK_GRANULARITY + 100, direct, 1);
+
+            try (FakeGCS gcs = new FakeGCS(100)) {
+                Storage storage = gcs.storage();
+                for (int size : new int[]{0, 1000, 2 * RESUMABLE_CHUNK_GRANULARITY, data.length}) {
+                    byte[] content = Arrays.copyOf(data, size);
+                    Blob blob = DeltaUtils.writeGCSFile(storage, BlobInfo.newBuilder("bucket", "out/" + size).build(),
+                            new ByteArrayInputStream(content), pool);
+
+                    assertEquals(size, (long) blob.getSize());
+                    assertEquals(CRC32CUtil.toBase64(CRC32CUtil.crc32c(content, 0, size)), blob.getCrc32c());
+                    assertArrayEquals(content, gcs.objects("bucket").get("out/" + size));
+                }
+                assertEquals(0, gcs.getOpenUploads());
+                assertEquals(1, pool.getIdle());
+            }
+        }
+    }
+
+    @Test
+    public void testWriteGCSFileRetriesChunk() throws Exception {
+        byte[] content = new byte[3 * RESUMABLE_CHUNK_GRANULARITY + 7];
+        new Random(42).nextBytes(content);
+
+        try (FakeGCS gcs = new FakeGCS(100)) {
+            gcs.fail(FakeGCS.UPLOAD, 1, HTTP_UNAVAILABLE);
+            Blob blob = DeltaUtils.writeGCSFile(gcs.storage(), BlobInfo.newBuilder("bucket", "out/file").build(),
+                    new ByteArrayInputStream(content), new BufferPool(RESUMABLE_CHUNK_GRANULARITY, false, 1));
+
+            assertEquals(content.length, (long) blob.getSize());
+            assertArrayEquals(content, gcs.objects("bucket").get("out/file"));
+            assertEquals(1, gcs.getCalls().stream().filter("POST /upload/storage/v1/b/bucket/o"::equals).count());
+        }
+    }
+
+    @Test
+    public void testWriteGCSFileFromContent() throws Exception {
+        byte[] content = new byte[2 * RESUMABLE_CHUNK_GRANULARITY + 7];
+        new Random(42).nextBytes(content);
+
+        try (FakeGCS gcs = new FakeGCS(100)) {
+            Blob blob = DeltaUtils.writeGCSFile(gcs.storage(), BlobInfo.newBuilder("bucket", "out/file").build(),
+                    RESUMABLE_CHUNK_GRANULARITY, out -> out.write(content));
+
+            assertEquals(content.length, (long) blob.getSize());
+            assertArrayEquals(content, gcs.objects("bucket").get("out/file"));
+            assertEquals(0, gcs.getOpenUploads());
+        }
+    }
+
+    @Test
+    public void testWriteGCSFileFailedContent() throws Exception {
+        byte[] previous = "previous".getBytes(UTF_8);
+
+        try (FakeGCS gcs = new FakeGCS(100)) {
+            gcs.put("bucket", "out/file", previous);
+            try {
+                DeltaUtils.writeGCSFile(gcs.storage(), BlobInfo.newBuilder("bucket", "out/file").build(),
+                        RESUMABLE_CHUNK_GRANULARITY, out -> {
+                            out.write(new byte[2 * RESUMABLE_CHUNK_GRANULARITY + 7]);
+                            out.close();
+                            throw new IOException("Content failed");
+                        });
+                fail("Expected failure");
+            } catch (IOException expected) {
+                // the content failed after two chunks were sent
+            }
+
+            // the upload is not finished, even if the content closed its stream
+            assertEquals(1, gcs.getOpenUploads());
+            assertArrayEquals(previous, gcs.objects("bucket").get("out/file"));
+        }
+    }
 }
@@ -0,0 +1,529 @@
+package com.vodafone.datafusion.plugins.delta.common;
+
+import com.google.cloud.NoCredentials;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.CHECKSUM_CRC32C;
+import static java.net.HttpURLConnection.*;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Local GCS JSON API over in-memory buckets. It answers object listings page by page, object metadata and media
+ * downloads, resumable and multipart uploads, compose and deletes, batched ones included.
+ * Operations can be told to fail, to test how the callers clean up after them.
+ */
+public class FakeGCS implements AutoCloseable {
+    public static final String UPLOAD = "upload";
+    public static final String COMPOSE = "compose";
+    public static final String DELETE = "delete";
+
+    private static final Gson gson = new Gson();
+    private static final String BATCH_BOUNDARY = "batch_fake";
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\*|(\\d+)-(\\d+))/(\\*|\\d+)");
+
+    private final Map<String, NavigableMap<String, byte[]>> buckets = new ConcurrentHashMap<>();
+    private final Set<String> composed = ConcurrentHashMap.newKeySet();
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> failures = new ConcurrentHashMap<>();
+    private final Map<String, Integer> failureCodes = new ConcurrentHashMap<>();
+    private final AtomicInteger uploadIds = new AtomicInteger();
+    private final AtomicInteger partialCommits = new AtomicInteger();
+    private volatile int partialCommitBytes;
+    private final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+    private final HttpServer server;
+    private final int pageSize;
+
+    /**
+     *
+     * @param pageSize  objects and prefixes per listing page
+     */
+    public FakeGCS(int pageSize) throws IOException {
+        this.pageSize = pageSize;
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public Storage storage() {
+        return StorageOptions.newBuilder()
+                .setHost("http://localhost:" + server.getAddress().getPort())
+                .setProjectId("test")
+                .setCredentials(NoCredentials.getInstance())
+                .build()
+                .getService();
+    }
+
+    public void put(String bucket, String name, byte[] content) {
+        bucket(bucket).put(name, content);
+    }
+
+    public NavigableMap<String, byte[]> objects(String bucket) {
+        return Collections.unmodifiableNavigableMap(bucket(bucket));
+    }
+
+    /**
+     * Fail the next requests of an operation with a client error, which is not retried by the GCS client
+     *
+     * @param operation upload, compose or delete
+     * @param times     requests to fail
+     */
+    public void fail(String operation, int times) {
+        fail(operation, times, HTTP_BAD_REQUEST);
+    }
+
+    /**
+     * Fail the next requests of an operation
+     *
+     * @param operation upload, compose or delete
+     * @param times     requests to fail
+     * @param code      HTTP status of the failures, 5xx ones are retried by the GCS client
+     */
+    public void fail(String operation, int times, int code) {
+        failureCodes.put(operation, code);
+        failures.put(operation, new AtomicInteger(times));
+    }
+
+    /**
+     * Commit only the first bytes of the next chunks of resumable uploads that do not finish them
+     *
+     * @param times     chunks to commit partially
+     * @param bytes     bytes committed of each of them
+     */
+    public void commitPartially(int times, int bytes) {
+        partialCommitBytes = bytes;
+        partialCommits.set(times);
+    }
+
+    /**
+     * @return resumable uploads started and not finished
+     */
+    public int getOpenUploads() {
+        return uploads.size();
+    }
+
+    /**
+     * @return requests received, as method and path
+     */
+    public List<String> getCalls() {
+        return new ArrayList<>(calls);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private NavigableMap<String, byte[]> bucket(String bucket) {
+        return buckets.computeIfAbsent(bucket, b -> new ConcurrentSkipListMap<>());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        URI uri = exchange.getRequestURI();
+        String method = exchange.getRequestMethod();
+        calls.add(method + " " + uri.getPath());
+        Map<String, String> query = query(uri.getRawQuery());
+        try {
+            if (uri.getRawPath().startsWith("/storage/v1/b/")) {
+                handleObject(exchange, method, uri.getRawPath().substring("/storage/v1/b/".length()), query);
+            } else if (uri.getRawPath().startsWith("/download/storage/v1/b/")) {
+                handleObject(exchange, method, uri.getRawPath().substring("/download/storage/v1/b/".length()), query);
+            } else if (uri.getRawPath().startsWith("/upload/storage/v1/b/")) {
+                handleUpload(exchange, method, uri.getRawPath().substring("/upload/storage/v1/b/".length()), query);
+            } else if ("POST".equals(method) && "/batch/storage/v1".equals(uri.getRawPath())) {
+                batch(exchange);
+            } else {
+                respond(exchange, HTTP_NOT_FOUND, error(HTTP_NOT_FOUND, "Not found: " + uri.getPath()));
+            }
+        } catch (RuntimeException ex) {
+            respond(exchange, HTTP_INTERNAL_ERROR, error(HTTP_INTERNAL_ERROR, String.valueOf(ex)));
+        }
+    }
+
+    private void handleObject(HttpExchange exchange, String method, String path, Map<String, String> query)
+            throws IOException {
+        // bucket, "o", encoded object name and an optional action
+        String[] parts = path.split("/", 4);
+        if ("GET".equals(method) && parts.length == 2 && "o".equals(parts[1])) {
+            respond(exchange, HTTP_OK, list(parts[0], query));
+            return;
+        }
+        if (parts.length < 3 || !"o".equals(parts[1])) {
+            respond(exchange, HTTP_NOT_FOUND, error(HTTP_NOT_FOUND, "Not found: " + path));
+            return;
+        }
+        String bucket = parts[0];
+        String name = decode(parts[2]);
+        if (parts.length == 4 && "POST".equals(method) && "compose".equals(parts[3])) {
+            compose(exchange, bucket, name);
+        } else if (parts.length == 4) {
+            respond(exchange, HTTP_NOT_FOUND, error(HTTP_NOT_FOUND, "Not found: " + path));
+        } else if ("GET".equals(method)) {
+            byte[] content = bucket(bucket).get(name);
+            if (content == null) {
+                respond(exchange, HTTP_NOT_FOUND, error(HTTP_NOT_FOUND, "No such object: " + bucket + "/" + name));
+            } else if ("media".equals(query.get("alt"))) {
+                media(exchange, content);
+            } else {
+                respond(exchange, HTTP_OK, object(bucket, name, content));
+            }
+        } else if ("DELETE".equals(method)) {
+            int code = delete(bucket, name);
+            respond(exchange, code, code == HTTP_NO_CONTENT ? null : error(code, "No such object: " + name));
+        } else {
+            respond(exchange, HTTP_NOT_FOUND, error(HTTP_NOT_FOUND, "Not found: " + path));
+        }
+    }
+
+    private void handleUpload(HttpExchange exchange, String method, String path, Map<String, String> query)
+            throws IOException {
+        String bucket = path.split("/", 2)[0];
+        byte[] body = body(exchange);
+        if ("POST".equals(method) && "resumable".equals(query.get("uploadType"))) {
+            JsonObject metadata = gson.fromJson(new String(body, UTF_8), JsonObject.class);
+            String id = String.valueOf(uploadIds.incrementAndGet());
+            uploads.put(id, new Upload(bucket, metadata.get("name").getAsString()));
+            exchange.getResponseHeaders().add("Location", "http://localhost:" + server.getAddress().getPort()
+                    + "/upload/storage/v1/b/" + bucket + "/o?uploadType=resumable&upload_id=" + id);
+            respond(exchange, HTTP_OK, null);
+        } else if ("POST".equals(method) && "multipart".equals(query.get("uploadType"))) {
+            multipart(exchange, bucket, body);
+        } else if ("PUT".equals(method) && uploads.containsKey(query.getOrDefault("upload_id", ""))) {
+            resumable(exchange, query.get("upload_id"), body);
+        } else {
+            respond(exchange, HTTP_NOT_FOUND, error(HTTP_NOT_FOUND, "Not found: " + path));
+        }
+    }
+
+    /**
+     * Chunk of a resumable upload, or a query of its committed offset
+     */
+    private void resumable(HttpExchange exchange, String id, byte[] body) throws IOException {
+        Upload upload = uploads.get(id);
+        Matcher range = CONTENT_RANGE.matcher(exchange.getRequestHeaders().getFirst("Content-Range"));
+        if (!range.matches()) {
+            respond(exchange, HTTP_BAD_REQUEST, error(HTTP_BAD_REQUEST, "Bad range"));
+            return;
+        }
+        if (failed(UPLOAD)) {
+            respond(exchange, failureCode(UPLOAD), error(failureCode(UPLOAD), "Upload failed"));
+            return;
+        }
+        byte[] content;
+        synchronized (upload) {
+            if (range.group(2) != null) {
+                int offset = Integer.parseInt(range.group(2));
+                if (offset > upload.content.size()) {
+                    respond(exchange, HTTP_BAD_REQUEST, error(HTTP_BAD_REQUEST, "Missing bytes before " + offset));
+                    return;
+                }
+                // a chunk sent again overwrites what was received after its offset
+                byte[] received = Arrays.copyOf(upload.content.toByteArray(), offset);
+                upload.content.reset();
+                upload.content.write(received);
+                if ("*".equals(range.group(4)) && partialCommits.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                    upload.content.write(body, 0, Math.min(partialCommitBytes, body.length));
+                } else {
+                    upload.content.write(body);
+                }
+            }
+            content = upload.content.toByteArray();
+        }
+        if (!"*".equals(range.group(4)) && Long.parseLong(range.group(4)) == content.length) {
+            uploads.remove(id);
+            put(upload.bucket, upload.name, content);
+            composed.remove(upload.bucket + "/" + upload.name);
+            respond(exchange, HTTP_OK, object(upload.bucket, upload.name, content));
+        } else {
+            if (content.length > 0) {
+                exchange.getResponseHeaders().add("Range", "bytes=0-" + (content.length - 1));
+            }
+            respond(exchange, 308, null);
+        }
+    }
+
+    private void multipart(HttpExchange exchange, String bucket, byte[] body) throws IOException {
+        String type = exchange.getRequestHeaders().getFirst("Content-Type");
+        String boundary = "--" + type.substring(type.indexOf("boundary=") + "boundary=".length()).replace("\"", "");
+        String[] parts = new String(body, ISO_8859_1).split(Pattern.quote(boundary));
+        // metadata and media parts, each one after its headers
+        String metadata = parts[1].substring(parts[1].indexOf("\r\n\r\n") + 4).trim();
+        String media = parts[2].substring(parts[2].indexOf("\r\n\r\n") + 4);
+        byte[] content = media.substring(0, media.length() - 2).getBytes(ISO_8859_1);
+        if (failed(UPLOAD)) {
+            respond(exchange, failureCode(UPLOAD), error(failureCode(UPLOAD), "Upload failed"));
+            return;
+        }
+        String name = gson.fromJson(metadata, JsonObject.class).get("name").getAsString();
+        put(bucket, name, content);
+        composed.remove(bucket + "/" + name);
+        respond(exchange, HTTP_OK, object(bucket, name, content));
+    }
+
+    private void compose(HttpExchange exchange, String bucket, String name) throws IOException {
+        JsonObject request = gson.fromJson(new String(body(exchange), UTF_8),
+                JsonObject.class);
+        if (failed(COMPOSE)) {
+            respond(exchange, failureCode(COMPOSE), error(failureCode(COMPOSE), "Compose failed"));
+            return;
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (JsonElement source : request.getAsJsonArray("sourceObjects")) {
+            byte[] part = bucket(bucket).get(source.getAsJsonObject().get("name").getAsString());
+            if (part == null) {
+                respond(exchange, HTTP_NOT_FOUND, error(HTTP_NOT_FOUND, "No such object: " + source));
+                return;
+            }
+            content.write(part);
+        }
+        put(bucket, name, content.toByteArray());
+        composed.add(bucket + "/" + name);
+        respond(exchange, HTTP_OK, object(bucket, name, content.toByteArray()));
+    }
+
+    /**
+     * Batch of deletes, answered in the order of its requests
+     */
+    private void batch(HttpExchange exchange) throws IOException {
+        String body = new String(body(exchange), UTF_8);
+        StringBuilder response = new StringBuilder();
+        int id = 0;
+        for (String line : body.split("\r\n")) {
+            if (!line.startsWith("DELETE ")) {
+                continue;
+            }
+            String[] path = URI.create(line.split(" ")[1]).getRawPath().substring("/storage/v1/b/".length())
+                    .split("/", 3);
+            int code = delete(path[0], decode(path[2]));
+            byte[] error = code == HTTP_NO_CONTENT ? new byte[0]
+                    : gson.toJson(error(code, "No such object: " + path[2])).getBytes(UTF_8);
+            response.append("--").append(BATCH_BOUNDARY).append("\r\n")
+                    .append("Content-Type: application/http\r\n")
+                    .append("Content-ID: <response-").append(++id).append(">\r\n\r\n")
+                    .append("HTTP/1.1 ").append(code).append(code == HTTP_NO_CONTENT ? " No Content" : " Error")
+                    .append("\r\n")
+                    .append("Content-Type: application/json; charset=UTF-8\r\n")
+                    .append("Content-Length: ").append(error.length).append("\r\n\r\n")
+                    .append(new String(error, UTF_8)).append("\r\n");
+        }
+        response.append("--").append(BATCH_BOUNDARY).append("--\r\n");
+        byte[] bytes = response.toString().getBytes(UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "multipart/mixed; boundary=" + BATCH_BOUNDARY);
+        exchange.sendResponseHeaders(HTTP_OK, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private int delete(String bucket, String name) {
+        if (failed(DELETE)) {
+            return failureCode(DELETE);
+        }
+        composed.remove(bucket + "/" + name);
+        return bucket(bucket).remove(name) == null ? HTTP_NOT_FOUND : HTTP_NO_CONTENT;
+    }
+
+    private static byte[] body(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        // the client compresses the request bodies
+        if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            in = new GZIPInputStream(in);
+        }
+        return ByteStreams.toByteArray(in);
+    }
+
+    private static void media(HttpExchange exchange, byte[] content) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        int from = 0;
+        int to = content.length;
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring("bytes=".length()).split("-", 2);
+            from = (int) Math.min(Long.parseLong(bounds[0]), content.length);
+            if (!bounds[1].isEmpty()) {
+                to = (int) Math.min(Long.parseLong(bounds[1]) + 1, content.length);
+            }
+        }
+        exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+        if (from == to) {
+            exchange.sendResponseHeaders(range == null ? HTTP_OK : 416, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(range == null ? HTTP_OK : HTTP_PARTIAL, to - from);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(content, from, to - from);
+        }
+    }
+
+    private int failureCode(String operation) {
+        return failureCodes.getOrDefault(operation, HTTP_BAD_REQUEST);
+    }
+
+    private boolean failed(String operation) {
+        AtomicInteger remaining = failures.get(operation);
+        return remaining != null && remaining.getAndDecrement() > 0;
+    }
+
+    private Map<String, Object> list(String bucket, Map<String, String> query) {
+        String prefix = query.getOrDefault("prefix", "");
+        String delimiter = query.get("delimiter");
+        String startOffset = query.get("startOffset");
+        String endOffset = query.get("endOffset");
+
+        // objects and prefixes in name order, a prefix once
+        TreeMap<String, Object> entries = new TreeMap<>();
+        TreeSet<String> prefixes = new TreeSet<>();
+        for (Map.Entry<String, byte[]> object : bucket(bucket).tailMap(prefix, true).entrySet()) {
+            String name = object.getKey();
+            if (!name.startsWith(prefix)) {
+                break;
+            }
+            if ((startOffset != null && name.compareTo(startOffset) < 0)
+                    || (endOffset != null && name.compareTo(endOffset) >= 0)) {
+                continue;
+            }
+            int next = delimiter == null ? -1 : name.indexOf(delimiter, prefix.length());
+            if (next >= 0) {
+                String dir = name.substring(0, next + delimiter.length());
+                prefixes.add(dir);
+                entries.put(dir, dir);
+            } else {
+                entries.put(name, object(bucket, name, object.getValue()));
+            }
+        }
+
+        List<Map.Entry<String, Object>> ordered = new ArrayList<>(entries.entrySet());
+        int from = query.containsKey("pageToken") ? Integer.parseInt(query.get("pageToken")) : 0;
+        int to = Math.min(ordered.size(), from + pageSize);
+        List<Object> items = new ArrayList<>();
+        List<String> pagePrefixes = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : ordered.subList(from, to)) {
+            if (prefixes.contains(entry.getKey())) {
+                pagePrefixes.add(entry.getKey());
+            } else {
+                items.add(entry.getValue());
+            }
+        }
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("kind", "storage#objects");
+        response.put("items", items);
+        response.put("prefixes", pagePrefixes);
+        if (to < ordered.size()) {
+            response.put("nextPageToken", String.valueOf(to));
+        }
+        return response;
+    }
+
+    private Map<String, Object> object(String bucket, String name, byte[] content) {
+        TransferChecksum crc = TransferChecksum.of(CHECKSUM_CRC32C);
+        crc.update(content, 0, content.length);
+        Map<String, Object> object = new LinkedHashMap<>();
+        object.put("kind", "storage#object");
+        object.put("bucket", bucket);
+        object.put("name", name);
+        object.put("size", String.valueOf(content.length));
+        object.put("generation", "1");
+        object.put("timeCreated", "2020-01-01T00:00:00.000Z");
+        object.put("updated", "2020-01-01T00:00:00.000Z");
+        object.put("crc32c", BaseEncoding.base64().encode(crc.value()));
+        // composed objects have no MD5
+        if (!composed.contains(bucket + "/" + name)) {
+            object.put("md5Hash", BaseEncoding.base64().encode(md5(content)));
+        }
+        return object;
+    }
+
+    private static Map<String, Object> error(int code, String message) {
+        Map<String, Object> error = new HashMap<>();
+        error.put("code", code);
+        error.put("message", message);
+        return Collections.singletonMap("error", error);
+    }
+
+    private static byte[] md5(byte[] content) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(content);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int code, Object json) throws IOException {
+        if (json == null) {
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+            return;
+        }
+        byte[] body = gson.toJson(json).getBytes(UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String decode(String encoded) throws UnsupportedEncodingException {
+        return URLDecoder.decode(encoded.replace("+", "%2B"), "UTF-8");
+    }
+
+    private static Map<String, String> query(String raw) throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<>();
+        if (raw == null) {
+            return query;
+        }
+        for (String param : raw.split("&")) {
+            int eq = param.indexOf('=');
+            String key = URLDecoder.decode(eq < 0 ? param : param.substring(0, eq), "UTF-8");
+            query.put(key, eq < 0 ? "" : URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+        }
+        return query;
+    }
+
+    private static class Upload {
+        private final String bucket;
+        private final String name;
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        Upload(String bucket, String name) {
+            this.bucket = bucket;
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package com.vodafone.datafusion.plugins.delta.common;
+
+import com.google.common.io.ByteStreams;
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import com.jcraft.jsch.SftpProgressMonitor;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory sftp tree, listed and read by connectors over fake sessions.
+ * Links are listed with their own attributes, like OpenSSH does, unless the server is told to follow them.
+ */
+public class FakeSftpServer {
+    private static final int DIRECTORY = 0040755;
+    private static final int FILE = 0100644;
+    private static final int LINK = 0120777;
+
+    private final Map<String, Map<String, SftpATTRS>> directories = new HashMap<>();
+    private final Map<String, String> links = new HashMap<>();
+    private final Map<String, byte[]> contents = new HashMap<>();
+    private final AtomicInteger failedReads = new AtomicInteger();
+    private final AtomicInteger failedRemoves = new AtomicInteger();
+    private final Map<Long, Long> slowReads = new HashMap<>();
+    private final boolean followLinks;
+    private final List<String> listed = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    public FakeSftpServer(boolean followLinks) {
+        this.followLinks = followLinks;
+    }
+
+    public synchronized FakeSftpServer directory(String path, int mtime) {
+        directories.putIfAbsent(path, new LinkedHashMap<>());
+        return add(path, attrs(DIRECTORY, 0, mtime));
+    }
+
+    public synchronized FakeSftpServer file(String path, long size, int mtime) {
+        return add(path, attrs(FILE, size, mtime));
+    }
+
+    public synchronized FakeSftpServer file(String path, byte[] content, int mtime) {
+        contents.put(path, content);
+        return file(path, content.length, mtime);
+    }
+
+    public synchronized FakeSftpServer link(String path, String target) {
+        links.put(path, target);
+        return add(path, attrs(LINK, 0, 0));
+    }
+
+    /**
+     * A directory in its parent listing that fails to be listed
+     */
+    public synchronized FakeSftpServer unreadable(String path) {
+        return add(path, attrs(DIRECTORY, 0, 0));
+    }
+
+    /**
+     * Fail the next reads of file contents, when the stream is opened
+     *
+     * @param times reads to fail
+     */
+    public FakeSftpServer failReads(int times) {
+        failedReads.set(times);
+        return this;
+    }
+
+    /**
+     * Fail the next removals of files
+     *
+     * @param times removals to fail
+     */
+    public FakeSftpServer failRemoves(int times) {
+        failedRemoves.set(times);
+        return this;
+    }
+
+    /**
+     * Delay the reads starting at an offset
+     *
+     * @param offset    first byte of the read
+     * @param millis    delay
+     */
+    public synchronized FakeSftpServer slowRead(long offset, long millis) {
+        slowReads.put(offset, millis);
+        return this;
+    }
+
+    public SFTPConnector connect() throws JSchException {
+        return new SFTPConnector(new SFTPSessionPool(SFTPSessionPoolTest.FakeSessionPool::newSession, 100) {
+            @Override
+            Channel openChannel(Session session, String type, boolean connect) {
+                return new Sftp(session);
+            }
+
+            @Override
+            boolean isConnected(Session session) {
+                return true;
+            }
+
+            @Override
+            boolean isAlive(Session session) {
+                return true;
+            }
+
+            @Override
+            void disconnect(Session session) {
+            }
+        }, "fake", () -> { });
+    }
+
+    /**
+     * @return listed directories, in the order their ls started
+     */
+    public List<String> getListed() {
+        return new ArrayList<>(listed);
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    /**
+     * @param path  file path
+     * @return file content, null if there is no such file
+     */
+    public synchronized byte[] getContent(String path) {
+        return contents.get(path);
+    }
+
+    private FakeSftpServer add(String path, SftpATTRS attrs) {
+        int slash = path.lastIndexOf('/');
+        directories.computeIfAbsent(path.substring(0, slash), k -> new LinkedHashMap<>())
+                .put(path.substring(slash + 1), attrs);
+        return this;
+    }
+
+    private synchronized String resolve(String path) {
+        for (int i = 0; i < 100; i++) {
+            String resolved = path;
+            for (Map.Entry<String, String> link : links.entrySet()) {
+                if (path.equals(link.getKey()) || path.startsWith(link.getKey() + "/")) {
+                    resolved = link.getValue() + path.substring(link.getKey().length());
+                }
+            }
+            if (resolved.equals(path)) {
+                return path;
+            }
+            path = resolved;
+        }
+        return path;
+    }
+
+    private synchronized byte[] content(String path) {
+        return contents.get(path);
+    }
+
+    private synchronized SftpATTRS attrs(String path) throws SftpException {
+        Map<String, SftpATTRS> parent = directories.get(path.substring(0, Math.max(0, path.lastIndexOf('/'))));
+        SftpATTRS attrs = parent == null ? null : parent.get(path.substring(path.lastIndexOf('/') + 1));
+        if (attrs == null) {
+            throw new SftpException(ChannelSftp.SSH_FX_NO_SUCH_FILE, "No such file: " + path);
+        }
+        return attrs;
+    }
+
+    private synchronized void remove(String path) throws SftpException {
+        int slash = path.lastIndexOf('/');
+        Map<String, SftpATTRS> parent = directories.get(path.substring(0, slash));
+        if (parent == null || !contents.containsKey(path)) {
+            throw new SftpException(ChannelSftp.SSH_FX_NO_SUCH_FILE, "No such file: " + path);
+        }
+        parent.remove(path.substring(slash + 1));
+        contents.remove(path);
+    }
+
+    private synchronized void move(String from, String to) throws SftpException {
+        // like OpenSSH, a rename never replaces a file
+        if (contents.containsKey(to)) {
+            throw new SftpException(ChannelSftp.SSH_FX_FAILURE, "File exists: " + to);
+        }
+        byte[] content = content(from);
+        remove(from);
+        file(to, content, 0);
+    }
+
+    private synchronized long readDelay(long offset) {
+        return slowReads.getOrDefault(offset, 0L);
+    }
+
+    private synchronized Map<String, SftpATTRS> entries(String path) {
+        Map<String, SftpATTRS> entries = directories.get(path);
+        if (entries == null) {
+            // a file is listed alone
+            Map<String, SftpATTRS> parent = directories.get(path.substring(0, Math.max(0, path.lastIndexOf('/'))));
+            SftpATTRS file = parent == null ? null : parent.get(path.substring(path.lastIndexOf('/') + 1));
+            return file == null || file.isDir() ? null : Collections.singletonMap(path, file);
+        }
+        Map<String, SftpATTRS> listing = new LinkedHashMap<>();
+        listing.put(".", attrs(DIRECTORY, 0, 0));
+        listing.put("..", attrs(DIRECTORY, 0, 0));
+        for (Map.Entry<String, SftpATTRS> entry : entries.entrySet()) {
+            String target = links.get(path + "/" + entry.getKey());
+            if (followLinks && target != null) {
+                Map<String, SftpATTRS> parent = directories.get(target.substring(0, target.lastIndexOf('/')));
+                SftpATTRS followed = parent == null ? null : parent.get(target.substring(target.lastIndexOf('/') + 1));
+                listing.put(entry.getKey(), followed != null ? followed : attrs(DIRECTORY, 0, 0));
+            } else {
+                listing.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return listing;
+    }
+
+    private static SftpATTRS attrs(int permissions, long size, int mtime) {
+        try {
+            Constructor<SftpATTRS> constructor = SftpATTRS.class.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            SftpATTRS attrs = constructor.newInstance();
+            // setPERMISSIONS keeps only the mode bits, not the file type
+            attrs.setPERMISSIONS(permissions);
+            Field mode = SftpATTRS.class.getDeclaredField("permissions");
+            mode.setAccessible(true);
+            mode.setInt(attrs, permissions);
+            attrs.setSIZE(size);
+            attrs.setACMODTIME(mtime, mtime);
+            return attrs;
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private class Sftp extends ChannelSftp {
+        private final Session session;
+        private volatile boolean connected = true;
+
+        Sftp(Session session) {
+            this.session = session;
+        }
+
+        @Override
+        public Session getSession() {
+            return session;
+        }
+
+        @Override
+        public Vector<LsEntry> ls(String path) throws SftpException {
+            listed.add(path);
+            int running = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(running, Math::max);
+            try {
+                Thread.sleep(5);
+                Map<String, SftpATTRS> entries = entries(resolve(path));
+                if (entries == null) {
+                    throw new SftpException(SSH_FX_NO_SUCH_FILE, "No such file: " + path);
+                }
+                Vector<LsEntry> listing = new Vector<>();
+                Constructor<LsEntry> constructor = LsEntry.class.getDeclaredConstructor(ChannelSftp.class,
+                        String.class, String.class, SftpATTRS.class);
+                constructor.setAccessible(true);
+                for (Map.Entry<String, SftpATTRS> entry : entries.entrySet()) {
+                    listing.add(constructor.newInstance(this, entry.getKey(), entry.getKey(), entry.getValue()));
+                }
+                return listing;
+            } catch (InterruptedException | ReflectiveOperationException ex) {
+                throw new SftpException(SSH_FX_FAILURE, ex.getMessage());
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        @Override
+        public InputStream get(String src, SftpProgressMonitor monitor, long skip) throws SftpException {
+            byte[] content = content(resolve(src));
+            if (content == null) {
+                throw new SftpException(SSH_FX_NO_SUCH_FILE, "No such file: " + src);
+            }
+            if (failedReads.getAndDecrement() > 0) {
+                throw new SftpException(SSH_FX_FAILURE, "Read failed: " + src);
+            }
+            try {
+                Thread.sleep(readDelay(skip));
+            } catch (InterruptedException ex) {
+                throw new SftpException(SSH_FX_FAILURE, ex.getMessage());
+            }
+            int from = (int) Math.min(skip, content.length);
+            return new ByteArrayInputStream(content, from, content.length - from);
+        }
+
+        @Override
+        public InputStream get(String src) throws SftpException {
+            return get(src, null, 0);
+        }
+
+        @Override
+        public void put(InputStream src, String dst) throws SftpException {
+            try {
+                file(dst, ByteStreams.toByteArray(src), 0);
+            } catch (IOException ex) {
+                throw new SftpException(SSH_FX_FAILURE, ex.getMessage(), ex);
+            }
+        }
+
+        @Override
+        public SftpATTRS stat(String path) throws SftpException {
+            return attrs(resolve(path));
+        }
+
+        @Override
+        public void rename(String oldpath, String newpath) throws SftpException {
+            move(oldpath, newpath);
+        }
+
+        @Override
+        public void rm(String path) throws SftpException {
+            if (failedRemoves.getAndDecrement() > 0) {
+                throw new SftpException(SSH_FX_PERMISSION_DENIED, "Remove failed: " + path);
+            }
+            remove(path);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return !connected;
+        }
+
+        @Override
+        public void disconnect() {
+            connected = false;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.vodafone.datafusion.plugins.delta.common;
+
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.NoCredentials;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.GCP_CACHE_MAX_ENTRIES;
+import static java.net.HttpURLConnection.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class GCPClientCacheTest {
+
+    @Test
+    public void testCacheKey() {
+        assertEquals(GCPClientCache.cacheKey("json", "{\"a\":1}"), GCPClientCache.cacheKey("json", "{\"a\":1}"));
+        assertNotEquals(GCPClientCache.cacheKey("json", "{\"a\":1}"), GCPClientCache.cacheKey("json", "{\"a\":2}"));
+        assertNotEquals(GCPClientCache.cacheKey("json", "x"), GCPClientCache.cacheKey("filePath", "x"));
+        assertFalse(GCPClientCache.cacheKey("json", "private_key").contains("private_key"));
+    }
+
+    @Test
+    public void testCredentialsLoadedOnce() throws Exception {
+        int[] loads = {0};
+        GoogleCredentials first = GCPClientCache.getCredentials("json", "testCredentialsLoadedOnce", () -> {
+            loads[0]++;
+            return new CountingCredentials(Long.MAX_VALUE);
+        });
+        GoogleCredentials second = GCPClientCache.getCredentials("json", "testCredentialsLoadedOnce", () -> {
+            loads[0]++;
+            return new CountingCredentials(Long.MAX_VALUE);
+        });
+
+        assertSame(first, second);
+        assertEquals(1, loads[0]);
+        assertSame(GCPClientCache.getStorage(first), GCPClientCache.getStorage(second));
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        for (int i = 0; i < 2 * GCP_CACHE_MAX_ENTRIES; i++) {
+            GoogleCredentials credentials = GCPClientCache.getCredentials("json", "testBounded" + i,
+                    () -> new CountingCredentials(Long.MAX_VALUE));
+            GCPClientCache.getStorage(credentials);
+        }
+
+        assertTrue(GCPClientCache.size() <= 2 * GCP_CACHE_MAX_ENTRIES);
+    }
+
+    @Test
+    public void testLoadFailureNotCached() throws Exception {
+        try {
+            GCPClientCache.getCredentials("json", "testLoadFailureNotCached", () -> {
+                throw new IOException("invalid");
+            });
+            fail("Expected failure");
+        } catch (IOException ex) {
+            assertEquals("invalid", ex.getMessage());
+        }
+        CountingCredentials loaded = new CountingCredentials(Long.MAX_VALUE);
+        assertSame(loaded, GCPClientCache.getCredentials("json", "testLoadFailureNotCached", () -> loaded));
+    }
+
+    @Test
+    public void testRefreshExpiring() {
+        CountingCredentials expiring = new CountingCredentials(System.currentTimeMillis() + 60 * 1000L);
+        CountingCredentials valid = new CountingCredentials(System.currentTimeMillis() + 60 * 60 * 1000L);
+        GCPClientCache.getStorage(expiring);
+        GCPClientCache.getStorage(valid);
+
+        GCPClientCache.refreshExpiring();
+
+        assertEquals(1, expiring.refreshes);
+        assertEquals(0, valid.refreshes);
+    }
+
+    @Test
+    public void testBucketExists() throws Exception {
+        try (FakeGCS gcs = new FakeGCS(HTTP_OK)) {
+            GoogleCredentials credentials = new CountingCredentials(Long.MAX_VALUE);
+
+            assertTrue(GCPClientCache.bucketExists(credentials, gcs.storage(), "bucket"));
+            assertTrue(GCPClientCache.bucketExists(credentials, gcs.storage(), "bucket"));
+            assertFalse(GCPClientCache.bucketExists(credentials, gcs.storage(), "missing"));
+            assertFalse(GCPClientCache.bucketExists(credentials, gcs.storage(), "missing"));
+            assertEquals(Arrays.asList("/storage/v1/b/bucket", "/storage/v1/b/missing", "/storage/v1/b/missing"),
+                    gcs.calls);
+        }
+    }
+
+    @Test
+    public void testBucketExistsWithoutMetadataPermission() throws Exception {
+        try (FakeGCS gcs = new FakeGCS(HTTP_FORBIDDEN)) {
+            GoogleCredentials credentials = new CountingCredentials(Long.MAX_VALUE);
+
+            assertTrue(GCPClientCache.bucketExists(credentials, gcs.storage(), "bucket"));
+            assertTrue(GCPClientCache.bucketExists(credentials, gcs.storage(), "bucket"));
+            assertEquals(Arrays.asList("/storage/v1/b/bucket", "/storage/v1/b/bucket/o"), gcs.calls);
+        }
+    }
+
+    /**
+     * Local server answering bucket metadata requests with the given code, and object listings with no objects.
+     */
+    private static class FakeGCS implements AutoCloseable {
+        private final List<String> calls = new ArrayList<>();
+        private final HttpServer server;
+
+        FakeGCS(int bucketCode) throws IOException {
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            server.createContext("/storage/v1/b/", exchange -> {
+                String path = exchange.getRequestURI().getPath();
+                calls.add(path);
+                int code = path.endsWith("/o") ? HTTP_OK : path.endsWith("/missing") ? HTTP_NOT_FOUND : bucketCode;
+                byte[] body = (code == HTTP_OK ? (path.endsWith("/o") ? "{}" : "{\"name\":\"bucket\"}")
+                        : "{\"error\":{\"code\":" + code + ",\"message\":\"error\"}}").getBytes(UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+                exchange.sendResponseHeaders(code, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+        }
+
+        Storage storage() {
+            return StorageOptions.newBuilder()
+                    .setHost("http://localhost:" + server.getAddress().getPort())
+                    .setProjectId("test")
+                    .setCredentials(NoCredentials.getInstance())
+                    .build()
+                    .getService();
+        }
+
+        @Override
+        public void close() {
+            server.stop(0);
+        }
+    }
+
+    private static class CountingCredentials extends GoogleCredentials {
+        private int refreshes;
+
+        CountingCredentials(long expiration) {
+            super(new AccessToken("token", new Date(expiration)));
+        }
+
+        @Override
+        public AccessToken refreshAccessToken() {
+            refreshes++;
+            return new AccessToken("token" + refreshes, new Date(System.currentTimeMillis() + 60 * 60 * 1000L));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.vodafone.datafusion.plugins.delta.common;
+
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class PipelinedInputStreamTest {
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testRead() throws Exception {
+        byte[] data = new byte[1000];
+        new Random(42).nextBytes(data);
+        BufferPool pool = new BufferPool(64, false, 3);
+
+        try (InputStream in = new PipelinedInputStream(new ByteArrayInputStream(data), 3, pool, executor,
+                new PipelinedInputStream.Stalls())) {
+            assertEquals(data[0] & 0xff, in.read());
+            byte[] rest = ByteStreams.toByteArray(in);
+            assertEquals(data.length - 1, rest.length);
+            for (int i = 1; i < data.length; i++) {
+                assertEquals(data[i], rest[i - 1]);
+            }
+            assertEquals(-1, in.read());
+        }
+        assertEquals(3, pool.getIdle());
+    }
+
+    @Test
+    public void testSourceError() throws Exception {
+        InputStream failing = new InputStream() {
+            private int count;
+
+            @Override
+            public int read() throws IOException {
+                if (++count > 100) {
+                    throw new IOException("broken");
+                }
+                return 1;
+            }
+        };
+
+        try (InputStream in = new PipelinedInputStream(failing, 2, new BufferPool(16, false, 2), executor,
+                new PipelinedInputStream.Stalls())) {
+            ByteStreams.exhaust(in);
+            fail();
+        } catch (IOException expected) {
+            assertEquals("broken", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void testEarlyClose() throws Exception {
+        byte[] data = new byte[10000];
+        BufferPool pool = new BufferPool(16, false, 2);
+        ByteArrayInputStream source = new ByteArrayInputStream(data);
+
+        InputStream in = new PipelinedInputStream(source, 2, pool, executor, new PipelinedInputStream.Stalls());
+        assertEquals(10, in.read(new byte[10]));
+        in.close();
+
+        assertEquals(-1, in.read());
+        assertEquals(2, pool.getIdle());
+        assertTrue(source.available() > 0);
+    }
+}
@@ -0,0 +1,111 @@
+package com.vodafone.datafusion.plugins.delta.common;
+
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RangedSftpInputStreamTest {
+    private static final String PATH = "/in/file.csv";
+    private static final int CHUNK = 100;
+
+    private final byte[] data = new byte[1050];
+    private FakeSftpServer server;
+    private SFTPConnector conn;
+    private ExecutorService executor;
+    private BufferPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        new Random(42).nextBytes(data);
+        server = new FakeSftpServer(false).directory("/in", 0).file(PATH, data, 1);
+        conn = server.connect();
+        conn.setMaxChannels(4);
+        executor = Executors.newFixedThreadPool(4);
+        pool = new BufferPool(CHUNK, false, 8);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        conn.close();
+    }
+
+    @Test
+    public void testChunksInOrder() throws Exception {
+        // the first chunk is the last one to arrive
+        server.slowRead(0, 200);
+
+        try (InputStream in = new RangedSftpInputStream(conn, PATH, data.length, CHUNK, 4, executor, pool)) {
+            assertEquals(data[0] & 0xff, in.read());
+            assertArrayEquals(Arrays.copyOfRange(data, 1, data.length), ByteStreams.toByteArray(in));
+            assertEquals(-1, in.read());
+        }
+        assertEquals(0, conn.getChannelsInUse());
+    }
+
+    @Test
+    public void testFromOffset() throws Exception {
+        try (InputStream in = new RangedSftpInputStream(conn, PATH, 250, data.length, CHUNK, 3, executor, pool)) {
+            assertArrayEquals(Arrays.copyOfRange(data, 250, data.length), ByteStreams.toByteArray(in));
+        }
+    }
+
+    @Test
+    public void testShortLastChunk() throws Exception {
+        assertShorter(data.length + 10);
+    }
+
+    @Test
+    public void testShortChunkBeforeTheLast() throws Exception {
+        // the file ends in the middle of the last but one chunk
+        assertShorter(data.length + CHUNK + 10);
+    }
+
+    @Test
+    public void testReadError() throws Exception {
+        server.failReads(1);
+
+        InputStream in = new RangedSftpInputStream(conn, PATH, data.length, CHUNK, 4, executor, pool);
+        try {
+            ByteStreams.toByteArray(in);
+            fail("Expected failure");
+        } catch (IOException expected) {
+            // the first chunk failed
+        }
+        assertEquals(-1, in.read());
+        in.close();
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, conn.getChannelsInUse());
+    }
+
+    private void assertShorter(long size) throws Exception {
+        byte[] read = new byte[(int) size];
+        int total = 0;
+        try (InputStream in = new RangedSftpInputStream(conn, PATH, size, CHUNK, 2, executor, pool)) {
+            int n;
+            while ((n = in.read(read, total, read.length - total)) > 0) {
+                total += n;
+            }
+            fail("Expected failure after " + total + " bytes");
+        } catch (IOException expected) {
+            assertTrue(expected.getCause() instanceof EOFException);
+        }
+        // only whole chunks of the file are returned before the failure
+        assertTrue(total <= data.length - data.length % CHUNK);
+        assertArrayEquals(Arrays.copyOf(data, total), Arrays.copyOf(read, total));
+    }
+}
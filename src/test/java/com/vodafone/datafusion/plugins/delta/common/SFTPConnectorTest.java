@@ -0,0 +1,95 @@
+package com.vodafone.datafusion.plugins.delta.common;
+
+import com.jcraft.jsch.ChannelSftp;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class SFTPConnectorTest {
+
+    @Test
+    public void testBorrowBlocksAtMaxChannels() throws Exception {
+        SFTPSessionPoolTest.FakeSessionPool pool = new SFTPSessionPoolTest.FakeSessionPool(8, Integer.MAX_VALUE);
+        SFTPConnector conn = new SFTPConnector(pool, "conn", () -> { });
+        conn.setMaxChannels(2);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ChannelSftp first = conn.borrowChannel();
+            conn.borrowChannel();
+            assertEquals(2, conn.getChannelsInUse());
+
+            Future<ChannelSftp> third = executor.submit(conn::borrowChannel);
+            try {
+                third.get(200, TimeUnit.MILLISECONDS);
+                fail("Expected the borrow to wait");
+            } catch (TimeoutException expected) {
+                // all the channels are in use
+            }
+
+            conn.returnChannel(first);
+            assertSame(first, third.get(5, TimeUnit.SECONDS));
+            assertEquals(2, conn.getChannelsInUse());
+            assertEquals(3, conn.getBorrows());
+            // the main channel and the two borrowed ones
+            assertEquals(3, pool.openChannels());
+        } finally {
+            executor.shutdownNow();
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testBrokenChannelsReplaced() throws Exception {
+        SFTPSessionPoolTest.FakeSessionPool pool = new SFTPSessionPoolTest.FakeSessionPool(8, Integer.MAX_VALUE);
+        SFTPConnector conn = new SFTPConnector(pool, "conn", () -> { });
+
+        // broken while borrowed: closed on return
+        SFTPSessionPoolTest.FakeChannel broken = (SFTPSessionPoolTest.FakeChannel) conn.borrowChannel();
+        broken.breakChannel();
+        conn.returnChannel(broken);
+        assertEquals(0, conn.getChannelsInUse());
+        assertEquals(1, pool.openChannels());
+
+        // broken while idle: reopened on borrow
+        SFTPSessionPoolTest.FakeChannel idle = (SFTPSessionPoolTest.FakeChannel) conn.borrowChannel();
+        assertNotSame(broken, idle);
+        conn.returnChannel(idle);
+        idle.breakChannel();
+        ChannelSftp reopened = conn.borrowChannel();
+        assertNotSame(idle, reopened);
+        assertTrue(reopened.isConnected());
+        assertEquals(2, pool.openChannels());
+
+        conn.returnChannel(reopened);
+        conn.close();
+    }
+
+    @Test
+    public void testCloseGivesChannelsBack() throws Exception {
+        SFTPSessionPoolTest.FakeSessionPool pool = new SFTPSessionPoolTest.FakeSessionPool(2, Integer.MAX_VALUE);
+        AtomicBoolean released = new AtomicBoolean();
+        SFTPConnector conn = new SFTPConnector(pool, "conn", () -> released.set(true));
+        conn.setMaxChannels(5);
+
+        ChannelSftp[] channels = new ChannelSftp[5];
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = conn.borrowChannel();
+        }
+        // six channels over sessions of two
+        assertEquals(3, pool.size());
+        for (ChannelSftp channel : channels) {
+            conn.returnChannel(channel);
+        }
+
+        conn.close();
+        assertTrue(released.get());
+        assertEquals(0, pool.openChannels());
+    }
+}
@@ -0,0 +1,130 @@
+package com.vodafone.datafusion.plugins.delta.common;
+
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class SFTPFileHashTest {
+    private static final byte[] CONTENT = "file content".getBytes(UTF_8);
+    private static final byte[] MD5 = Hashing.md5().hashBytes(CONTENT).asBytes();
+    private static final String MD5_HEX = Hashing.md5().hashBytes(CONTENT).toString();
+
+    @Test
+    public void testCheckFile() throws Exception {
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        SFTPFileHash hash = new SFTPFileHash(replies(
+                version("posix-rename@openssh.com", "check-file"),
+                packet(201, 1, string("check-file"), string("md5"), MD5)), sent);
+
+        assertTrue(hash.init());
+        assertEquals(MD5_HEX, hash.md5("/out/file.csv"));
+
+        DataInputStream requests = new DataInputStream(new ByteArrayInputStream(sent.toByteArray()));
+        assertEquals(1, readPacket(requests).readByte());
+        DataInputStream request = readPacket(requests);
+        assertEquals(200, request.readUnsignedByte());
+        assertEquals(1, request.readInt());
+        assertEquals("check-file-name", readString(request));
+        assertEquals("/out/file.csv", readString(request));
+        assertEquals("md5", readString(request));
+        // the whole file in one block
+        assertEquals(0, request.readLong());
+        assertEquals(0, request.readLong());
+        assertEquals(0, request.readInt());
+    }
+
+    @Test
+    public void testMd5Hash() throws Exception {
+        SFTPFileHash hash = new SFTPFileHash(replies(version("md5-hash"),
+                packet(201, 1, string("md5-hash"), string(MD5))), new ByteArrayOutputStream());
+
+        assertTrue(hash.init());
+        assertEquals(MD5_HEX, hash.md5("/out/file.csv"));
+    }
+
+    @Test
+    public void testNoExtension() throws Exception {
+        SFTPFileHash hash = new SFTPFileHash(replies(version("posix-rename@openssh.com", "statvfs@openssh.com")),
+                new ByteArrayOutputStream());
+
+        assertFalse(hash.init());
+        assertNull(hash.md5("/out/file.csv"));
+    }
+
+    @Test
+    public void testRefusedRequest() throws Exception {
+        SFTPFileHash hash = new SFTPFileHash(replies(version("check-file"),
+                packet(101, 1, new byte[]{0, 0, 0, 2})), new ByteArrayOutputStream());
+
+        assertTrue(hash.init());
+        try {
+            hash.md5("/out/missing.csv");
+            fail("Expected failure");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("status 2"));
+        }
+    }
+
+    private static ByteArrayInputStream replies(byte[]... packets) throws IOException {
+        ByteArrayOutputStream replies = new ByteArrayOutputStream();
+        for (byte[] packet : packets) {
+            replies.write(packet);
+        }
+        return new ByteArrayInputStream(replies.toByteArray());
+    }
+
+    private static byte[] version(String... extensions) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (String extension : extensions) {
+            payload.write(string(extension));
+            payload.write(string("1"));
+        }
+        return packet(2, 3, payload.toByteArray());
+    }
+
+    private static byte[] packet(int type, int id, byte[]... fields) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(body);
+        data.writeByte(type);
+        data.writeInt(id);
+        for (byte[] field : fields) {
+            data.write(field);
+        }
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        new DataOutputStream(packet).writeInt(body.size());
+        body.writeTo(packet);
+        return packet.toByteArray();
+    }
+
+    private static byte[] string(String value) throws IOException {
+        return string(value.getBytes(UTF_8));
+    }
+
+    private static byte[] string(byte[] value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(value.length);
+        data.write(value);
+        return out.toByteArray();
+    }
+
+    private static DataInputStream readPacket(DataInputStream in) throws IOException {
+        byte[] packet = new byte[in.readInt()];
+        in.readFully(packet);
+        return new DataInputStream(new ByteArrayInputStream(packet));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] value = new byte[in.readInt()];
+        in.readFully(value);
+        return new String(value, UTF_8);
+    }
+}
@@ -0,0 +1,115 @@
+package com.vodafone.datafusion.plugins.delta.common;
+
+import com.jcraft.jsch.JSchException;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.SFTP_SESSION_IDLE_TIMEOUT_MS;
+import static org.junit.Assert.*;
+
+public class SFTPSessionCacheTest {
+
+    @Test
+    public void testCacheKey() {
+        SFTPConnectorConfig conn1 = new SFTPConnectorConfig("host", 22, "/in", "user", "pass1",
+                null, null, "password", null, null, null);
+        SFTPConnectorConfig conn2 = new SFTPConnectorConfig("host", 22, "/out", "user", "pass1",
+                null, null, "password", null, null, null);
+        SFTPConnectorConfig conn3 = new SFTPConnectorConfig("host", 22, "/in", "user", "pass2",
+                null, null, "password", null, null, null);
+        SFTPConnectorConfig conn4 = new SFTPConnectorConfig("host", 22, "/in", "user", "pass1",
+                "10.0.0.1", 3128, "password", null, null, null);
+
+        assertEquals(SFTPSessionCache.cacheKey(conn1), SFTPSessionCache.cacheKey(conn2));
+        assertNotEquals(SFTPSessionCache.cacheKey(conn1), SFTPSessionCache.cacheKey(conn3));
+        assertNotEquals(SFTPSessionCache.cacheKey(conn1), SFTPSessionCache.cacheKey(conn4));
+        assertFalse(SFTPSessionCache.cacheKey(conn1).contains("pass1"));
+    }
+
+    @Test
+    public void testAcquireReleaseEvict() throws Exception {
+        AtomicInteger pools = new AtomicInteger();
+        SFTPSessionPoolTest.FakeSessionPool[] created = new SFTPSessionPoolTest.FakeSessionPool[1];
+        String key = "acquire-release-evict";
+
+        SFTPConnector conn1 = SFTPSessionCache.acquire(key, "conn", 8, () -> {
+            pools.incrementAndGet();
+            created[0] = new SFTPSessionPoolTest.FakeSessionPool(8, Integer.MAX_VALUE);
+            return created[0];
+        });
+        SFTPConnector conn2 = SFTPSessionCache.acquire(key, "conn", 8, () -> {
+            pools.incrementAndGet();
+            return new SFTPSessionPoolTest.FakeSessionPool(8, Integer.MAX_VALUE);
+        });
+        // both connectors share one session
+        assertEquals(1, pools.get());
+        assertEquals(1, created[0].size());
+        assertEquals(2, created[0].openChannels());
+
+        // in use: nothing evicted
+        SFTPSessionCache.evictIdle(System.currentTimeMillis() + SFTP_SESSION_IDLE_TIMEOUT_MS + 1);
+        assertTrue(SFTPSessionCache.isCached(key));
+        assertEquals(1, created[0].size());
+
+        conn1.close();
+        conn2.close();
+        assertEquals(0, created[0].openChannels());
+        SFTPSessionCache.evictIdle(System.currentTimeMillis());
+        assertTrue(SFTPSessionCache.isCached(key));
+        assertEquals(1, created[0].size());
+
+        SFTPSessionCache.evictIdle(System.currentTimeMillis() + SFTP_SESSION_IDLE_TIMEOUT_MS + 1);
+        assertFalse(SFTPSessionCache.isCached(key));
+        assertEquals(1, created[0].disconnected.size());
+    }
+
+    @Test
+    public void testFailedAcquireReleased() {
+        String key = "failed-acquire";
+        try {
+            SFTPSessionCache.acquire(key, "conn", 8, () -> new SFTPSessionPoolTest.FakeSessionPool(8, 0));
+            fail("Expected failure");
+        } catch (JSchException expected) {
+            // the server refuses every channel
+        }
+        SFTPSessionCache.evictIdle(System.currentTimeMillis());
+        assertFalse(SFTPSessionCache.isCached(key));
+    }
+
+    @Test
+    public void testSlowConnectionDoesNotBlockOthers() throws Exception {
+        CountDownLatch connecting = new CountDownLatch(1);
+        CountDownLatch connect = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<SFTPConnector> slow = executor.submit(() -> SFTPSessionCache.acquire("slow", "slow", 8,
+                    () -> new SFTPSessionPoolTest.FakeSessionPool(() -> {
+                        connecting.countDown();
+                        try {
+                            connect.await();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return SFTPSessionPoolTest.FakeSessionPool.newSession();
+                    }, 8, Integer.MAX_VALUE)));
+            assertTrue(connecting.await(5, TimeUnit.SECONDS));
+
+            SFTPConnector fast = SFTPSessionCache.acquire("fast", "fast", 8,
+                    () -> new SFTPSessionPoolTest.FakeSessionPool(8, Integer.MAX_VALUE));
+            assertFalse(slow.isDone());
+            fast.close();
+
+            connect.countDown();
+            slow.get(5, TimeUnit.SECONDS).close();
+        } finally {
+            connect.countDown();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.vodafone.datafusion.plugins.delta.common;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import org.junit.Test;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.CONN_SFTP;
+import static org.junit.Assert.*;
+
+public class SFTPSessionPoolTest {
+
+    @Test
+    public void testChannelsPerSession() throws Exception {
+        FakeSessionPool pool = new FakeSessionPool(3, Integer.MAX_VALUE);
+        List<Channel> channels = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            channels.add(pool.open(CONN_SFTP, true));
+        }
+
+        assertEquals(3, pool.size());
+        assertEquals(7, pool.openChannels());
+        assertEquals(3, pool.maxServerChannels());
+
+        for (Channel channel : channels) {
+            pool.close(channel);
+        }
+        assertEquals(0, pool.openChannels());
+        assertEquals(3, pool.size());
+        assertTrue(pool.disconnected.isEmpty());
+
+        pool.evictIdle(System.currentTimeMillis(), 60000);
+        assertEquals(3, pool.size());
+        pool.evictIdle(System.currentTimeMillis() + 60001, 60000);
+        assertEquals(0, pool.size());
+        assertEquals(3, pool.disconnected.size());
+    }
+
+    @Test
+    public void testSessionRefusingChannels() throws Exception {
+        // the server allows fewer channels than the limit of the pool
+        FakeSessionPool pool = new FakeSessionPool(8, 2);
+        List<Channel> channels = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            channels.add(pool.open(CONN_SFTP, true));
+        }
+
+        assertEquals(3, pool.size());
+        assertEquals(2, pool.maxServerChannels());
+
+        // a full session is disconnected with its last channel, the others stay for later channels
+        pool.close(channels.get(0));
+        assertTrue(pool.disconnected.isEmpty());
+        pool.close(channels.get(1));
+        assertEquals(1, pool.disconnected.size());
+        assertEquals(2, pool.size());
+    }
+
+    @Test
+    public void testNewSessionRefusingChannel() {
+        FakeSessionPool pool = new FakeSessionPool(8, 0);
+        try {
+            pool.open(CONN_SFTP, true);
+            fail("Expected failure");
+        } catch (JSchException ex) {
+            assertEquals("channel is not opened.", ex.getMessage());
+        }
+        assertEquals(0, pool.size());
+        assertEquals(1, pool.disconnected.size());
+    }
+
+    @Test
+    public void testDisconnectedSessionReplaced() throws Exception {
+        FakeSessionPool pool = new FakeSessionPool(8, Integer.MAX_VALUE);
+        FakeChannel first = (FakeChannel) pool.open(CONN_SFTP, true);
+        pool.disconnected.add(first.session);
+
+        FakeChannel second = (FakeChannel) pool.open(CONN_SFTP, true);
+        assertNotSame(first.session, second.session);
+
+        pool.close(first);
+        assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void testIdleSessionProbed() throws Exception {
+        FakeSessionPool pool = new FakeSessionPool(8, Integer.MAX_VALUE);
+        pool.setProbeIdle(0);
+        FakeChannel first = (FakeChannel) pool.open(CONN_SFTP, true);
+        pool.close(first);
+
+        // an idle session answering the keepalive is used again
+        FakeChannel second = (FakeChannel) pool.open(CONN_SFTP, true);
+        assertSame(first.session, second.session);
+        assertEquals(1, pool.probed.size());
+        pool.close(second);
+
+        // a connection lost without the session noticing is discarded before it is used
+        pool.halfOpen.add(first.session);
+        FakeChannel third = (FakeChannel) pool.open(CONN_SFTP, true);
+        assertNotSame(first.session, third.session);
+        assertTrue(pool.disconnected.contains(first.session));
+        assertEquals(1, pool.size());
+
+        // sessions with open channels are not probed
+        pool.open(CONN_SFTP, true);
+        assertEquals(2, pool.probed.size());
+    }
+
+    /**
+     * Pool over fake sessions, the server refusing channels over its own limit
+     */
+    static class FakeSessionPool extends SFTPSessionPool {
+        final Set<Session> disconnected = new HashSet<>();
+        final Set<Session> halfOpen = new HashSet<>();
+        final List<Session> probed = new ArrayList<>();
+        private final Map<Session, Integer> serverChannels = new IdentityHashMap<>();
+        private final int serverMaxSessions;
+
+        FakeSessionPool(int maxChannelsPerSession, int serverMaxSessions) {
+            this(FakeSessionPool::newSession, maxChannelsPerSession, serverMaxSessions);
+        }
+
+        FakeSessionPool(SessionOpener opener, int maxChannelsPerSession, int serverMaxSessions) {
+            super(opener, maxChannelsPerSession);
+            this.serverMaxSessions = serverMaxSessions;
+        }
+
+        @Override
+        Channel openChannel(Session session, String type, boolean connect) throws JSchException {
+            synchronized (serverChannels) {
+                int open = serverChannels.getOrDefault(session, 0);
+                if (open >= serverMaxSessions) {
+                    throw new JSchException("channel is not opened.");
+                }
+                serverChannels.put(session, open + 1);
+            }
+            return new FakeChannel(this, session);
+        }
+
+        @Override
+        boolean isConnected(Session session) {
+            synchronized (serverChannels) {
+                return !disconnected.contains(session);
+            }
+        }
+
+        @Override
+        boolean isAlive(Session session) {
+            synchronized (serverChannels) {
+                probed.add(session);
+                return !halfOpen.contains(session);
+            }
+        }
+
+        @Override
+        void disconnect(Session session) {
+            synchronized (serverChannels) {
+                disconnected.add(session);
+            }
+        }
+
+        int maxServerChannels() {
+            synchronized (serverChannels) {
+                return serverChannels.values().stream().mapToInt(Integer::intValue).max().orElse(0);
+            }
+        }
+
+        void channelClosed(Session session) {
+            synchronized (serverChannels) {
+                serverChannels.merge(session, -1, Integer::sum);
+            }
+        }
+
+        static Session newSession() throws JSchException {
+            try {
+                Constructor<Session> constructor = Session.class.getDeclaredConstructor(JSch.class, String.class,
+                        String.class, int.class);
+                constructor.setAccessible(true);
+                return constructor.newInstance(new JSch(), "user", "host", 22);
+            } catch (ReflectiveOperationException ex) {
+                throw new JSchException(ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Sftp channel that is connected until it is disconnected or broken
+     */
+    static class FakeChannel extends ChannelSftp {
+        final Session session;
+        private final FakeSessionPool pool;
+        private volatile boolean connected = true;
+
+        FakeChannel(FakeSessionPool pool, Session session) {
+            this.pool = pool;
+            this.session = session;
+        }
+
+        void breakChannel() {
+            connected = false;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return !connected;
+        }
+
+        @Override
+        public void disconnect() {
+            connected = false;
+            pool.channelClosed(session);
+        }
+    }
+}
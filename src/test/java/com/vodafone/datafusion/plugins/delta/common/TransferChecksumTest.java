@@ -0,0 +1,83 @@
+package com.vodafone.datafusion.plugins.delta.common;
+
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.*;
+import static org.junit.Assert.*;
+
+public class TransferChecksumTest {
+    private static final BlobId BLOB_ID = BlobId.of("bucket", "file.csv");
+
+    @Test
+    public void testCrc32c() {
+        byte[] data = "123456789".getBytes();
+        assertEquals(0xE3069283, TransferChecksum.crc32c(data, 0, data.length));
+
+        byte[] random = new byte[100000];
+        new Random(42).nextBytes(random);
+        assertEquals(Hashing.crc32c().hashBytes(random, 10, 50000).asInt(),
+                TransferChecksum.crc32c(random, 10, 50000));
+    }
+
+    @Test
+    public void testVerifyCrc32c() throws Exception {
+        TransferChecksum checksum = TransferChecksum.of(CHECKSUM_CRC32C);
+        try (InputStream in = checksum.wrap(new ByteArrayInputStream("123456789".getBytes()))) {
+            ByteStreams.exhaust(in);
+        }
+
+        assertEquals(9, checksum.getCount());
+        assertTrue(checksum.verify(BlobInfo.newBuilder(BLOB_ID).setCrc32c("4waSgw==").build()));
+        try {
+            checksum.verify(BlobInfo.newBuilder(BLOB_ID).setCrc32c("AAAAAA==").build());
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testVerifyMd5() throws Exception {
+        byte[] data = new byte[70000];
+        new Random(7).nextBytes(data);
+        String md5 = Hashing.md5().hashBytes(data).toString();
+
+        TransferChecksum checksum = TransferChecksum.of(CHECKSUM_MD5);
+        checksum.update(new byte[]{1, 2, 3}, 0, 3);
+        checksum.reset();
+        checksum.update(data, 0, 1000);
+        // reading the value must not change the digest
+        checksum.value();
+        checksum.update(data, 1000, data.length - 1000);
+
+        assertTrue(checksum.verify(BlobInfo.newBuilder(BLOB_ID).setMd5FromHexString(md5).build()));
+        try {
+            checksum.verify(BlobInfo.newBuilder(BLOB_ID).build());
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testNone() throws Exception {
+        TransferChecksum checksum = TransferChecksum.of(CHECKSUM_NONE);
+        checksum.update(new byte[10], 0, 10);
+
+        assertNull(checksum.value());
+        assertEquals(10, checksum.getCount());
+        assertTrue(checksum.verify(BlobInfo.newBuilder(BLOB_ID).setCrc32c("AAAAAA==").build()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknown() {
+        TransferChecksum.of("sha1");
+    }
+}
@@ -0,0 +1,67 @@
+package com.vodafone.datafusion.plugins.delta.common.sink;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ParallelTransferTest {
+
+    @Test
+    public void testAllTasksCompleted() throws Exception {
+        AtomicInteger done = new AtomicInteger();
+        ParallelTransfer transfer = new ParallelTransfer("test", 4);
+
+        for (int i = 0; i < 100; i++) {
+            transfer.submit(() -> {
+                done.incrementAndGet();
+                return null;
+            });
+        }
+        transfer.awaitCompletion();
+        transfer.close();
+
+        assertEquals(100, done.get());
+    }
+
+    @Test
+    public void testFailureIsReported() throws Exception {
+        ParallelTransfer transfer = new ParallelTransfer("test", 2);
+        transfer.submit(() -> {
+            throw new Exception("Upload error");
+        });
+
+        try {
+            transfer.awaitCompletion();
+            fail("Expected failure");
+        } catch (Exception e) {
+            assertEquals("[SFTP Delta] Parallel transfer failed: Upload error", e.getMessage());
+        } finally {
+            transfer.close();
+        }
+    }
+
+    @Test
+    public void testFailureFailsNextSubmit() throws Exception {
+        ParallelTransfer transfer = new ParallelTransfer("test", 1);
+        transfer.submit(() -> {
+            throw new Exception("Upload error");
+        });
+
+        // the records after a failed transfer fail the stage, without waiting for the end of the task
+        long deadline = System.currentTimeMillis() + 5000;
+        try {
+            while (System.currentTimeMillis() < deadline) {
+                transfer.submit(() -> null);
+                Thread.sleep(10);
+            }
+            fail("Expected failure");
+        } catch (Exception e) {
+            assertEquals("[SFTP Delta] Parallel transfer failed: Upload error", e.getMessage());
+        } finally {
+            transfer.close();
+        }
+    }
+}
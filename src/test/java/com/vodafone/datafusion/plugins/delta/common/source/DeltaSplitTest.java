@@ -0,0 +1,39 @@
+package com.vodafone.datafusion.plugins.delta.common.source;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaSplitTest {
+
+    @Test
+    public void testSerialization() throws IOException {
+        DeltaSplit split = new DeltaSplit(2, 4, Arrays.asList("2020", "2021"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        split.write(new DataOutputStream(bytes));
+        DeltaSplit read = new DeltaSplit();
+        read.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(2, read.getPartition());
+        assertEquals(4, read.getNumPartitions());
+        assertEquals(Arrays.asList("2020", "2021"), read.getDirectories());
+    }
+
+    @Test
+    public void testFileAssignedToOnePartition() {
+        int assigned = 0;
+        for (int i = 0; i < 4; i++) {
+            if (new DeltaSplit(i, 4, Arrays.asList()).isAssigned("file.csv")) {
+                assigned++;
+            }
+        }
+
+        assertEquals(1, assigned);
+        assertTrue(new DeltaSplit().isAssigned("file.csv"));
+    }
+}
@@ -0,0 +1,88 @@
+package com.vodafone.datafusion.plugins.delta.common.source;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SplitPlannerTest {
+
+    @Test
+    public void testBalancedBySize() {
+        List<Long> sizes = Arrays.asList(40L, 1L, 1L, 10L, 10L, 10L, 10L, 1L, 1L);
+
+        List<List<Long>> splits = SplitPlanner.binPack(sizes, Long::longValue, 30, 10);
+
+        assertEquals(3, splits.size());
+        assertEquals(Collections.singletonList(40L), splits.get(0));
+        assertEquals(Arrays.asList(10L, 10L, 1L, 1L), splits.get(1));
+        assertEquals(Arrays.asList(10L, 10L, 1L, 1L), splits.get(2));
+    }
+
+    @Test
+    public void testSplitsBounded() {
+        List<Long> sizes = Arrays.asList(100L, 100L, 100L, 100L);
+
+        assertEquals(2, SplitPlanner.binPack(sizes, Long::longValue, 1, 2).size());
+        assertEquals(1, SplitPlanner.binPack(sizes, Long::longValue, 1000, 10).size());
+        assertEquals(1, SplitPlanner.planSplits(Collections.<Long>emptyList(), Long::longValue, 1, "conn").size());
+    }
+
+    @Test
+    public void testSplitLength() {
+        List<Long> sizes = Arrays.asList(30L, 20L, 10L);
+
+        long total = 0;
+        for (Object split : SplitPlanner.planSplits(sizes, Long::longValue, 30, "conn")) {
+            total += ((DeltaSplit) split).getLength();
+        }
+
+        assertEquals(60, total);
+    }
+
+    @Test
+    public void testSplitReferencesConnection() throws IOException {
+        String connection = "{\"sftpUser\":\"user\",\"sftpPass\":\"secret\"}";
+        List<Record> files = Arrays.asList(new Record(connection, "a", 10), new Record(connection, "b", 20));
+
+        DeltaSplit split = (DeltaSplit) SplitPlanner.planSplits(files, file -> file.size, 100, connection).get(0);
+        DataOutputBuffer out = new DataOutputBuffer();
+        split.write(out);
+        assertFalse(new String(out.getData(), 0, out.getLength(), StandardCharsets.UTF_8).contains("secret"));
+
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        DeltaSplit read = new DeltaSplit();
+        read.readFields(in);
+        assertEquals(Arrays.asList("{\"name\":\"b\",\"size\":20}", "{\"name\":\"a\",\"size\":10}"),
+                read.getRecords());
+        assertEquals(30, read.getLength());
+
+        read.checkConnection(connection);
+        try {
+            read.checkConnection("{\"sftpUser\":\"other\"}");
+            fail("Expected failure");
+        } catch (IOException expected) {
+            // listed with another connection
+        }
+    }
+
+    private static class Record {
+        private final String connection;
+        private final String name;
+        private final long size;
+
+        Record(String connection, String name, long size) {
+            this.connection = connection;
+            this.name = name;
+            this.size = size;
+        }
+    }
+}
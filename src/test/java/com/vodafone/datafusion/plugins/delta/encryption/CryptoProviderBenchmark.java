@@ -0,0 +1,148 @@
+package com.vodafone.datafusion.plugins.delta.encryption;
+
+import com.google.common.io.ByteStreams;
+import com.vodafone.datafusion.plugins.delta.common.BufferPool;
+import com.vodafone.datafusion.plugins.delta.common.FileMetaData;
+import org.apache.hadoop.conf.Configuration;
+import org.bouncycastle.openpgp.PGPEncryptedDataList;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPLiteralData;
+import org.bouncycastle.openpgp.PGPObjectFactory;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyEncryptedData;
+import org.bouncycastle.openpgp.PGPSecretKeyRingCollection;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.*;
+
+/**
+ * Compares the PGP encryption and decryption throughput of the BouncyCastle and JCE content providers.
+ * A file of random bytes, so compression does not hide the cipher, is encrypted into a stream that only counts the
+ * bytes, and an encrypted copy of it is decrypted, after a warm up round so the JIT compiled it.
+ * Run with: java CryptoProviderBenchmark [MB of file] [rounds]
+ */
+public class CryptoProviderBenchmark {
+    private static final String PUBLIC_KEY = "src/test/java/com/vodafone/datafusion/plugins/delta/data/PGP1D0.pkr";
+    private static final String PRIVATE_KEY = "src/test/java/com/vodafone/datafusion/plugins/delta/data/PGP1D0.skr";
+    private static final char[] PASSPHRASE = "12345".toCharArray();
+    private static final String[] CIPHERS = {CIPHER_AES_128, CIPHER_AES_256};
+    private static final String[] PROVIDERS = {CRYPTO_PROVIDER_BC, CRYPTO_PROVIDER_JCE};
+    private static final int BUFFER_SIZE = (int) (2 * MB);
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", org.apache.hadoop.fs.LocalFileSystem.class.getName());
+
+        PGPPublicKey encKey;
+        try (InputStream keyIn = new FileInputStream(PUBLIC_KEY)) {
+            encKey = PGPCertUtil.readPublicKey(keyIn);
+        }
+        PGPSecretKeyRingCollection secretKeys;
+        try (InputStream keyIn = new BufferedInputStream(new FileInputStream(PRIVATE_KEY))) {
+            secretKeys = new PGPSecretKeyRingCollection(PGPUtil.getDecoderStream(keyIn), new BcKeyFingerprintCalculator());
+        }
+        File plain = writeRandom(megabytes);
+        File encrypted = File.createTempFile("benchmark", ".pgp");
+        try {
+            FileMetaData file = new FileMetaData(null, plain.getAbsolutePath(), conf);
+            BufferPool buffers = BufferPool.shared(BUFFER_SIZE, false, ENCRYPTION_BUFFERS);
+
+            System.out.printf("%-8s %-8s %14s %14s%n", "cipher", "provider", "encrypt MB/s", "decrypt MB/s");
+            for (String cipher : CIPHERS) {
+                for (String provider : PROVIDERS) {
+                    try (PGPEncryptor encryptor = new PGPEncryptor("benchmark", 1, BUFFER_SIZE, buffers, cipher,
+                            COMPRESSION_NONE, DEFAULT_COMPRESSION_LEVEL, provider)) {
+                        encryptor.encrypt(new CountingStream(), null, file, encKey);
+                        long encrypt = Long.MAX_VALUE;
+                        for (int i = 0; i < rounds; i++) {
+                            long start = System.nanoTime();
+                            encryptor.encrypt(new CountingStream(), null, file, encKey);
+                            encrypt = Math.min(encrypt, System.nanoTime() - start);
+                        }
+
+                        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(encrypted), BUFFER_SIZE)) {
+                            encryptor.encrypt(out, null, file, encKey);
+                        }
+                        decrypt(encrypted, secretKeys, provider);
+                        long decrypt = Long.MAX_VALUE;
+                        for (int i = 0; i < rounds; i++) {
+                            long start = System.nanoTime();
+                            decrypt(encrypted, secretKeys, provider);
+                            decrypt = Math.min(decrypt, System.nanoTime() - start);
+                        }
+
+                        System.out.printf("%-8s %-8s %14.1f %14.1f%n", cipher, provider,
+                                plain.length() / (double) MB / (encrypt / 1e9),
+                                plain.length() / (double) MB / (decrypt / 1e9));
+                    }
+                }
+            }
+        } finally {
+            Files.delete(plain.toPath());
+            Files.delete(encrypted.toPath());
+        }
+    }
+
+    private static void decrypt(File encrypted, PGPSecretKeyRingCollection secretKeys, String provider)
+            throws IOException, PGPException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(encrypted), BUFFER_SIZE)) {
+            PGPPublicKeyEncryptedData pbe = (PGPPublicKeyEncryptedData) ((PGPEncryptedDataList) new PGPObjectFactory(
+                    in, new BcKeyFingerprintCalculator()).nextObject()).getEncryptedDataObjects().next();
+            PGPPrivateKey sKey = secretKeys.getSecretKey(pbe.getKeyID()).extractPrivateKey(
+                    new JcePBESecretKeyDecryptorBuilder().setProvider(CryptoProviders.BC).build(PASSPHRASE));
+            PGPLiteralData ld = (PGPLiteralData) new PGPObjectFactory(pbe.getDataStream(
+                    new FileEncrypt.ContentDecryptorFactory(sKey, provider)), new BcKeyFingerprintCalculator())
+                    .nextObject();
+            ByteStreams.exhaust(ld.getInputStream());
+            if (!pbe.verify()) {
+                throw new PGPException("Integrity check failed");
+            }
+        }
+    }
+
+    /**
+     * Random bytes, a block repeated to keep the file creation fast
+     */
+    private static File writeRandom(int megabytes) throws IOException {
+        File file = File.createTempFile("benchmark", ".bin");
+        byte[] block = new byte[BUFFER_SIZE];
+        new Random(42).nextBytes(block);
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (long written = 0; written < megabytes * MB; written += block.length) {
+                out.write(block);
+            }
+        }
+        return file;
+    }
+
+    private static class CountingStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.vodafone.datafusion.plugins.delta.encryption;
+
+import com.vodafone.datafusion.plugins.delta.common.BufferPool;
+import com.vodafone.datafusion.plugins.delta.common.FileMetaData;
+import org.apache.hadoop.conf.Configuration;
+import org.bouncycastle.openpgp.PGPPublicKey;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.*;
+
+/**
+ * Compares the throughput and output size of the PGP ciphers and compressions.
+ * A CSV file like the ones of the daily drops is encrypted with every combination into a stream that only counts the
+ * bytes, after some warm up rounds so the JIT compiled it, and the best round is reported.
+ * Run with: java EncryptionBenchmark [MB of CSV] [rounds]
+ */
+public class EncryptionBenchmark {
+    private static final String PUBLIC_KEY = "src/test/java/com/vodafone/datafusion/plugins/delta/data/PGP1D0.pkr";
+    private static final String[] CIPHERS = {CIPHER_CAST5, CIPHER_AES_128, CIPHER_AES_256};
+    private static final String[] COMPRESSIONS = {COMPRESSION_NONE, COMPRESSION_ZIP, COMPRESSION_ZLIB, COMPRESSION_BZIP2};
+    private static final int BUFFER_SIZE = (int) (2 * MB);
+    private static final int WARMUP = 2;
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", org.apache.hadoop.fs.LocalFileSystem.class.getName());
+
+        PGPPublicKey encKey;
+        try (InputStream keyIn = new FileInputStream(PUBLIC_KEY)) {
+            encKey = PGPCertUtil.readPublicKey(keyIn);
+        }
+        File csv = writeCsv(megabytes);
+        try {
+            FileMetaData file = new FileMetaData(null, csv.getAbsolutePath(), conf);
+            BufferPool buffers = BufferPool.shared(BUFFER_SIZE, false, ENCRYPTION_BUFFERS);
+
+            System.out.printf("%-8s %-6s %10s %8s%n", "cipher", "zip", "MB/s", "ratio");
+            for (String cipher : CIPHERS) {
+                for (String compression : COMPRESSIONS) {
+                    try (PGPEncryptor encryptor = new PGPEncryptor("benchmark", 1, BUFFER_SIZE, buffers, cipher,
+                            compression, DEFAULT_COMPRESSION_LEVEL, CRYPTO_PROVIDER_BC)) {
+                        for (int i = 0; i < WARMUP; i++) {
+                            run(encryptor, file, encKey);
+                        }
+                        long best = Long.MAX_VALUE;
+                        long size = 0;
+                        for (int i = 0; i < rounds; i++) {
+                            CountingStream out = new CountingStream();
+                            long start = System.nanoTime();
+                            encryptor.encrypt(out, null, file, encKey);
+                            best = Math.min(best, System.nanoTime() - start);
+                            size = out.count;
+                        }
+                        System.out.printf("%-8s %-6s %10.1f %8.3f%n", cipher, compression,
+                                csv.length() / (double) MB / (best / 1e9), size / (double) csv.length());
+                    }
+                }
+            }
+        } finally {
+            Files.delete(csv.toPath());
+        }
+    }
+
+    private static void run(PGPEncryptor encryptor, FileMetaData file, PGPPublicKey encKey) throws IOException {
+        encryptor.encrypt(new CountingStream(), null, file, encKey);
+    }
+
+    /**
+     * CSV with ids, dates, codes and amounts, compressible like the real files
+     */
+    private static File writeCsv(int megabytes) throws IOException {
+        File csv = File.createTempFile("benchmark", ".csv");
+        Random random = new Random(42);
+        String[] codes = {"ES", "DE", "UK", "IT", "PT", "NL", "IE", "GR"};
+        try (PrintWriter writer = new PrintWriter(csv, "UTF-8")) {
+            long line = 0;
+            while (csv.length() < megabytes * MB) {
+                for (int i = 0; i < 10000; i++, line++) {
+                    writer.printf("%d;2024-%02d-%02d %02d:%02d:%02d;%s;34%09d;%d.%02d%n", line,
+                            1 + random.nextInt(12), 1 + random.nextInt(28), random.nextInt(24), random.nextInt(60),
+                            random.nextInt(60), codes[random.nextInt(codes.length)], random.nextInt(1000000000),
+                            random.nextInt(1000), random.nextInt(100));
+                }
+                writer.flush();
+            }
+        }
+        return csv;
+    }
+
+    private static class CountingStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -1,23 +1,45 @@
 package com.vodafone.datafusion.plugins.delta.encryption;
 
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobInfo;
 import com.jcraft.jsch.ChannelSftp;
+import com.vodafone.datafusion.plugins.delta.common.BufferPool;
+import com.vodafone.datafusion.plugins.delta.common.DeltaUtils;
+import com.vodafone.datafusion.plugins.delta.common.FakeGCS;
+import com.vodafone.datafusion.plugins.delta.common.FakeSftpServer;
 import com.vodafone.datafusion.plugins.delta.common.FileMetaData;
+import com.vodafone.datafusion.plugins.delta.common.SFTPConnector;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.hadoop.conf.Configuration;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openpgp.*;
 import org.bouncycastle.openpgp.operator.KeyFingerPrintCalculator;
 import org.bouncycastle.openpgp.operator.PBESecretKeyDecryptor;
+import org.bouncycastle.openpgp.operator.PGPDataDecryptor;
 import org.bouncycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
 import org.bouncycastle.openpgp.operator.bc.BcPublicKeyDataDecryptorFactory;
+import org.bouncycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenerator;
 import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
 import org.junit.Test;
 
 import java.io.*;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.Iterator;
+import java.util.Random;
 
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.*;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class FileEncryptTest {
 
@@ -40,8 +62,146 @@ public class FileEncryptTest {
         ChannelSftp channelSftp = null;
         FileMetaData fileMetaData = new FileMetaData(channelSftp, fullSourcePath, conf);
 
-        assertEquals(FileEncrypt.encryptPipeFile(channelSftp, fileMetaData, encKey, bufferSize).getClass(),
-                java.io.PipedInputStream.class);
+        try (PGPEncryptor encryptor = new PGPEncryptor("test", 1, 64 * 1024, BufferPool.shared(bufferSize, false, 3))) {
+            byte[] piped;
+            try (InputStream in = encryptor.encrypt(channelSftp, fileMetaData, encKey)) {
+                assertTrue(in instanceof PipedInputStream);
+                piped = IOUtils.toByteArray(in);
+            }
+            ByteArrayOutputStream direct = new ByteArrayOutputStream();
+            encryptor.encrypt(direct, channelSftp, fileMetaData, encKey);
+
+            // the session key is random, and so is the length of its encrypted number, so the contents are compared
+            byte[] content = FileUtils.readFileToByteArray(new File(fullSourcePath));
+            assertTrue(Arrays.equals(content, decrypt(piped)));
+            assertTrue(Arrays.equals(content, decrypt(direct.toByteArray())));
+        }
+    }
+
+    @Test
+    public void encryptDefaultCipher() throws Exception {
+        String publicKeyFile = "src/test/java/com/vodafone/datafusion/plugins/delta/data/PGP1D0.pkr";
+        String privateKeyFile = "src/test/java/com/vodafone/datafusion/plugins/delta/data/PGP1D0.skr";
+        String fullSourcePath = "src/test/java/com/vodafone/datafusion/plugins/delta/data/in/test1.csv";
+
+        PGPPublicKey encKey = PGPCertUtil.readPublicKey(new FileInputStream(publicKeyFile));
+        FileMetaData fileMetaData = new FileMetaData(null, fullSourcePath, conf);
+
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        try (PGPEncryptor encryptor = new PGPEncryptor("test", 1, 64 * 1024, BufferPool.shared(64 * 1024, false, 3))) {
+            encryptor.encrypt(encrypted, null, fileMetaData, encKey);
+        }
+
+        PGPObjectFactory pgpF = new PGPObjectFactory(new ByteArrayInputStream(encrypted.toByteArray()),
+                new BcKeyFingerprintCalculator());
+        PGPPublicKeyEncryptedData pbe = (PGPPublicKeyEncryptedData) ((PGPEncryptedDataList) pgpF.nextObject())
+                .getEncryptedDataObjects().next();
+        PGPPrivateKey sKey = findSecretKey(new FileInputStream(privateKeyFile), pbe.getKeyID(), "12345".toCharArray());
+        assertEquals(SymmetricKeyAlgorithmTags.AES_128, pbe.getSymmetricAlgorithm(new BcPublicKeyDataDecryptorFactory(sKey)));
+        assertTrue(pbe.isIntegrityProtected());
+    }
+
+    @Test
+    public void encryptCompressed() throws Exception {
+        String publicKeyFile = "src/test/java/com/vodafone/datafusion/plugins/delta/data/PGP1D0.pkr";
+        String privateKeyFile = "src/test/java/com/vodafone/datafusion/plugins/delta/data/PGP1D0.skr";
+        String fullSourcePath = "src/test/java/com/vodafone/datafusion/plugins/delta/data/in/test1.csv";
+
+        PGPPublicKey encKey = PGPCertUtil.readPublicKey(new FileInputStream(publicKeyFile));
+        FileMetaData fileMetaData = new FileMetaData(null, fullSourcePath, conf);
+
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        try (PGPEncryptor encryptor = new PGPEncryptor("test", 1, 64 * 1024, BufferPool.shared(64 * 1024, false, 3),
+                CIPHER_AES_128, COMPRESSION_ZLIB, 9, CRYPTO_PROVIDER_BC)) {
+            encryptor.encrypt(encrypted, null, fileMetaData, encKey);
+        }
+
+        PGPObjectFactory pgpF = new PGPObjectFactory(new ByteArrayInputStream(encrypted.toByteArray()),
+                new BcKeyFingerprintCalculator());
+        PGPPublicKeyEncryptedData pbe = (PGPPublicKeyEncryptedData) ((PGPEncryptedDataList) pgpF.nextObject())
+                .getEncryptedDataObjects().next();
+        PGPPrivateKey sKey = findSecretKey(new FileInputStream(privateKeyFile), pbe.getKeyID(), "12345".toCharArray());
+        assertEquals(SymmetricKeyAlgorithmTags.AES_128, pbe.getSymmetricAlgorithm(new BcPublicKeyDataDecryptorFactory(sKey)));
+
+        PGPObjectFactory plainFact = new PGPObjectFactory(pbe.getDataStream(new BcPublicKeyDataDecryptorFactory(sKey)),
+                new BcKeyFingerprintCalculator());
+        PGPCompressedData cData = (PGPCompressedData) plainFact.nextObject();
+        assertEquals(CompressionAlgorithmTags.ZLIB, cData.getAlgorithm());
+        PGPLiteralData ld = (PGPLiteralData) new PGPObjectFactory(cData.getDataStream(),
+                new BcKeyFingerprintCalculator()).nextObject();
+
+        assertTrue(Arrays.equals(FileUtils.readFileToByteArray(new File(fullSourcePath)),
+                IOUtils.toByteArray(ld.getInputStream())));
+        assertTrue(pbe.verify());
+    }
+
+    @Test
+    public void encryptJceProvider() throws Exception {
+        String publicKeyFile = "src/test/java/com/vodafone/datafusion/plugins/delta/data/PGP1D0.pkr";
+        String privateKeyFile = "src/test/java/com/vodafone/datafusion/plugins/delta/data/PGP1D0.skr";
+        String fullSourcePath = "src/test/java/com/vodafone/datafusion/plugins/delta/data/in/test1.csv";
+
+        assertNotSame(CryptoProviders.BC, CryptoProviders.content(CRYPTO_PROVIDER_JCE, SymmetricKeyAlgorithmTags.AES_256));
+        assertSame(CryptoProviders.BC, CryptoProviders.content(CRYPTO_PROVIDER_BC, SymmetricKeyAlgorithmTags.AES_256));
+
+        PGPPublicKey encKey = PGPCertUtil.readPublicKey(new FileInputStream(publicKeyFile));
+        FileMetaData fileMetaData = new FileMetaData(null, fullSourcePath, conf);
+
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        try (PGPEncryptor encryptor = new PGPEncryptor("test", 1, 64 * 1024, BufferPool.shared(64 * 1024, false, 3),
+                CIPHER_AES_256, COMPRESSION_NONE, DEFAULT_COMPRESSION_LEVEL, CRYPTO_PROVIDER_JCE)) {
+            encryptor.encrypt(encrypted, null, fileMetaData, encKey);
+        }
+
+        // the packets do not depend on the provider, so BouncyCastle decrypts them
+        PGPObjectFactory pgpF = new PGPObjectFactory(new ByteArrayInputStream(encrypted.toByteArray()),
+                new BcKeyFingerprintCalculator());
+        PGPPublicKeyEncryptedData pbe = (PGPPublicKeyEncryptedData) ((PGPEncryptedDataList) pgpF.nextObject())
+                .getEncryptedDataObjects().next();
+        PGPPrivateKey sKey = findSecretKey(new FileInputStream(privateKeyFile), pbe.getKeyID(), "12345".toCharArray());
+        PGPLiteralData ld = (PGPLiteralData) new PGPObjectFactory(
+                pbe.getDataStream(new BcPublicKeyDataDecryptorFactory(sKey)), new BcKeyFingerprintCalculator())
+                .nextObject();
+
+        assertTrue(Arrays.equals(FileUtils.readFileToByteArray(new File(fullSourcePath)),
+                IOUtils.toByteArray(ld.getInputStream())));
+        assertTrue(pbe.verify());
+    }
+
+    @Test
+    public void encryptFailedUpload() throws Exception {
+        String publicKeyFile = "src/test/java/com/vodafone/datafusion/plugins/delta/data/PGP1D0.pkr";
+        String fullSourcePath = "src/test/java/com/vodafone/datafusion/plugins/delta/data/in/test1.csv";
+        byte[] previous = "previous".getBytes();
+
+        PGPPublicKey encKey = PGPCertUtil.readPublicKey(new FileInputStream(publicKeyFile));
+        FakeSftpServer server = new FakeSftpServer(false).directory("/in", 0)
+                .file("/in/test1.csv", FileUtils.readFileToByteArray(new File(fullSourcePath)), 1);
+        BlobInfo target = BlobInfo.newBuilder("bucket", "out/test1.csv.pgp").build();
+
+        try (FakeGCS gcs = new FakeGCS(100); SFTPConnector conn = server.connect();
+             PGPEncryptor encryptor = new PGPEncryptor("test", 1, 64 * 1024, BufferPool.shared(64 * 1024, false, 3))) {
+            gcs.put("bucket", target.getName(), previous);
+            ChannelSftp channelSftp = conn.borrowChannel();
+            FileMetaData fileMetaData = new FileMetaData(channelSftp, "/in/test1.csv", conf);
+
+            // the packet headers are written before the file fails to be read
+            server.failReads(1);
+            try {
+                DeltaUtils.writeGCSFile(gcs.storage(), target, RESUMABLE_CHUNK_GRANULARITY,
+                        out -> encryptor.encrypt(out, channelSftp, fileMetaData, encKey));
+                fail("Expected failure");
+            } catch (IOException expected) {
+                // sftp read failed
+            }
+            assertTrue(Arrays.equals(previous, gcs.objects("bucket").get(target.getName())));
+
+            Blob blob = DeltaUtils.writeGCSFile(gcs.storage(), target, RESUMABLE_CHUNK_GRANULARITY,
+                    out -> encryptor.encrypt(out, channelSftp, fileMetaData, encKey));
+            conn.returnChannel(channelSftp);
+            assertTrue(blob.getSize() > previous.length);
+            assertEquals((long) blob.getSize(), gcs.objects("bucket").get(target.getName()).length);
+        }
     }
 
     @Test
@@ -117,6 +277,90 @@ public class FileEncryptTest {
         }
     }
 
+    @Test
+    public void decryptStreamed() throws Exception {
+        String fullSourcePath = "src/test/java/com/vodafone/datafusion/plugins/delta/data/in/test1.csv";
+        FakeSftpServer server = decryptServer();
+
+        try (SFTPConnector conn = server.connect()) {
+            ChannelSftp channelSftp = conn.borrowChannel();
+            FileEncrypt.decryptFileIS(channelSftp, new ByteArrayInputStream(encrypt(fullSourcePath)), "/keys/PGP1D0.skr",
+                    "12345".toCharArray(), "/out/test1.csv", 0, CRYPTO_PROVIDER_BC);
+            conn.returnChannel(channelSftp);
+        }
+
+        // the previous file is replaced once the integrity check passed
+        assertTrue(Arrays.equals(FileUtils.readFileToByteArray(new File(fullSourcePath)),
+                server.getContent("/out/test1.csv")));
+        assertNull(server.getContent("/out/test1.csv.partial"));
+    }
+
+    @Test
+    public void decryptFailedIntegrityCheck() throws Exception {
+        String fullSourcePath = "src/test/java/com/vodafone/datafusion/plugins/delta/data/in/test1.csv";
+        byte[] encrypted = encrypt(fullSourcePath);
+        // a byte of the literal data, away from the modification detection code packet at the end
+        encrypted[encrypted.length - 60] ^= 1;
+        FakeSftpServer server = decryptServer();
+
+        try (SFTPConnector conn = server.connect()) {
+            ChannelSftp channelSftp = conn.borrowChannel();
+            try {
+                FileEncrypt.decryptFileIS(channelSftp, new ByteArrayInputStream(encrypted), "/keys/PGP1D0.skr",
+                        "12345".toCharArray(), "/out/test1.csv", 0, CRYPTO_PROVIDER_BC);
+                fail("Expected failure");
+            } catch (IntegrityException expected) {
+                assertTrue(expected.getMessage(), expected.getMessage().contains("integrity check"));
+            }
+            assertTrue(Arrays.equals("previous".getBytes(), server.getContent("/out/test1.csv")));
+            assertNull(server.getContent("/out/test1.csv.partial"));
+
+            // a partial file that can not be removed does not hide the integrity failure
+            server.failRemoves(1);
+            try {
+                FileEncrypt.decryptFileIS(channelSftp, new ByteArrayInputStream(encrypted), "/keys/PGP1D0.skr",
+                        "12345".toCharArray(), "/out/test1.csv", 0, CRYPTO_PROVIDER_BC);
+                fail("Expected failure");
+            } catch (IntegrityException expected) {
+                assertTrue(expected.getMessage(), expected.getMessage().contains("integrity check"));
+                assertEquals(1, expected.getSuppressed().length);
+            }
+            assertTrue(Arrays.equals("previous".getBytes(), server.getContent("/out/test1.csv")));
+            conn.returnChannel(channelSftp);
+        }
+    }
+
+    @Test
+    public void decryptorProviders() throws Exception {
+        String privateKeyFile = "src/test/java/com/vodafone/datafusion/plugins/delta/data/PGP1D0.skr";
+        PGPPrivateKey sKey = findSecretKey(new FileInputStream(privateKeyFile), encryptionKeyID(),
+                "12345".toCharArray());
+        byte[] key = new byte[16];
+
+        FileEncrypt.ContentDecryptorFactory jce = new FileEncrypt.ContentDecryptorFactory(sKey, CRYPTO_PROVIDER_JCE);
+        assertDecryptor("jcajce", jce.createDataDecryptor(true, SymmetricKeyAlgorithmTags.AES_128, key));
+        // the JVM has no CAST5, and JCE has no mode for files without integrity packet
+        assertDecryptor("bc", jce.createDataDecryptor(true, SymmetricKeyAlgorithmTags.CAST5, key));
+        assertDecryptor("bc", jce.createDataDecryptor(false, SymmetricKeyAlgorithmTags.AES_128, key));
+
+        FileEncrypt.ContentDecryptorFactory bc = new FileEncrypt.ContentDecryptorFactory(sKey, CRYPTO_PROVIDER_BC);
+        assertDecryptor("bc", bc.createDataDecryptor(true, SymmetricKeyAlgorithmTags.AES_128, key));
+    }
+
+    @Test
+    public void decryptJceProvider() throws Exception {
+        assertDecrypted(SymmetricKeyAlgorithmTags.AES_128, true, CRYPTO_PROVIDER_JCE);
+        assertDecrypted(SymmetricKeyAlgorithmTags.AES_256, true, CRYPTO_PROVIDER_JCE);
+        assertDecrypted(SymmetricKeyAlgorithmTags.AES_128, true, CRYPTO_PROVIDER_BC);
+    }
+
+    @Test
+    public void decryptJceFallback() throws Exception {
+        assertDecrypted(SymmetricKeyAlgorithmTags.CAST5, true, CRYPTO_PROVIDER_JCE);
+        assertDecrypted(SymmetricKeyAlgorithmTags.AES_128, false, CRYPTO_PROVIDER_JCE);
+        assertDecrypted(SymmetricKeyAlgorithmTags.CAST5, false, CRYPTO_PROVIDER_JCE);
+    }
+
     @Test
     public void compareFiles() throws IOException {
         File file1 = new File("src/test/java/com/vodafone/datafusion/plugins/delta/data/in/test1.csv");
@@ -125,6 +369,92 @@ public class FileEncryptTest {
         assertTrue("The files differ!", FileUtils.contentEquals(file1, file2));
     }
 
+    /**
+     * Encrypt a local file with the default settings
+     */
+    private static byte[] encrypt(String fullSourcePath) throws Exception {
+        String publicKeyFile = "src/test/java/com/vodafone/datafusion/plugins/delta/data/PGP1D0.pkr";
+        PGPPublicKey encKey = PGPCertUtil.readPublicKey(new FileInputStream(publicKeyFile));
+
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        try (PGPEncryptor encryptor = new PGPEncryptor("test", 1, 64 * 1024, BufferPool.shared(64 * 1024, false, 3))) {
+            encryptor.encrypt(encrypted, null, new FileMetaData(null, fullSourcePath, conf), encKey);
+        }
+        return encrypted.toByteArray();
+    }
+
+    /**
+     * Sftp server with the secret key ring in /keys and a previous file in /out
+     */
+    private static FakeSftpServer decryptServer() throws IOException {
+        String privateKeyFile = "src/test/java/com/vodafone/datafusion/plugins/delta/data/PGP1D0.skr";
+        return new FakeSftpServer(false)
+                .directory("/keys", 0).file("/keys/PGP1D0.skr", FileUtils.readFileToByteArray(new File(privateKeyFile)), 1)
+                .directory("/out", 0).file("/out/test1.csv", "previous".getBytes(), 1);
+    }
+
+    /**
+     * Encrypt random content with BouncyCastle, decrypt it into a sftp file on a provider and compare them.
+     * The content spans several cipher blocks and reads of the literal data.
+     */
+    private static void assertDecrypted(int algorithm, boolean withIntegrityPacket, String provider)
+            throws Exception {
+        String publicKeyFile = "src/test/java/com/vodafone/datafusion/plugins/delta/data/PGP1D0.pkr";
+        byte[] content = new byte[300 * 1024 + 7];
+        new Random(algorithm).nextBytes(content);
+
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        PGPEncryptedDataGenerator cPk = new PGPEncryptedDataGenerator(new BcPGPDataEncryptorBuilder(algorithm)
+                .setWithIntegrityPacket(withIntegrityPacket).setSecureRandom(new SecureRandom()));
+        cPk.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(
+                PGPCertUtil.readPublicKey(new FileInputStream(publicKeyFile))));
+        try (OutputStream cOut = cPk.open(encrypted, new byte[64 * 1024]);
+             OutputStream lOut = new PGPLiteralDataGenerator().open(cOut, PGPLiteralData.BINARY, "random.bin",
+                     new Date(), new byte[64 * 1024])) {
+            lOut.write(content);
+        }
+
+        FakeSftpServer server = decryptServer();
+        try (SFTPConnector conn = server.connect()) {
+            ChannelSftp channelSftp = conn.borrowChannel();
+            FileEncrypt.decryptFileIS(channelSftp, new ByteArrayInputStream(encrypted.toByteArray()),
+                    "/keys/PGP1D0.skr", "12345".toCharArray(), "/out/random.bin", 0, provider);
+            conn.returnChannel(channelSftp);
+        }
+        assertTrue(algorithm + " " + provider, Arrays.equals(content, server.getContent("/out/random.bin")));
+    }
+
+    private static void assertDecryptor(String operatorPackage, PGPDataDecryptor decryptor) {
+        assertTrue(decryptor.getClass().getName(), decryptor.getClass().getName()
+                .startsWith("org.bouncycastle.openpgp.operator." + operatorPackage + "."));
+    }
+
+    /**
+     * @return id of the encryption key of the test key ring
+     */
+    private static long encryptionKeyID() throws Exception {
+        String publicKeyFile = "src/test/java/com/vodafone/datafusion/plugins/delta/data/PGP1D0.pkr";
+        return PGPCertUtil.readPublicKey(new FileInputStream(publicKeyFile)).getKeyID();
+    }
+
+    /**
+     * Decrypt an uncompressed file with the test key on BouncyCastle, checking its integrity
+     */
+    private static byte[] decrypt(byte[] encrypted) throws Exception {
+        String privateKeyFile = "src/test/java/com/vodafone/datafusion/plugins/delta/data/PGP1D0.skr";
+        PGPObjectFactory pgpF = new PGPObjectFactory(new ByteArrayInputStream(encrypted),
+                new BcKeyFingerprintCalculator());
+        PGPPublicKeyEncryptedData pbe = (PGPPublicKeyEncryptedData) ((PGPEncryptedDataList) pgpF.nextObject())
+                .getEncryptedDataObjects().next();
+        PGPPrivateKey sKey = findSecretKey(new FileInputStream(privateKeyFile), pbe.getKeyID(), "12345".toCharArray());
+        PGPLiteralData ld = (PGPLiteralData) new PGPObjectFactory(
+                pbe.getDataStream(new BcPublicKeyDataDecryptorFactory(sKey)), new BcKeyFingerprintCalculator())
+                .nextObject();
+        byte[] content = IOUtils.toByteArray(ld.getInputStream());
+        assertTrue(pbe.verify());
+        return content;
+    }
+
     private static PGPPrivateKey findSecretKey(InputStream keyIn, long keyID, char[] pass)
             throws IOException, PGPException {
         PGPSecretKeyRingCollection pgpSec = new PGPSecretKeyRingCollection(PGPUtil.getDecoderStream(keyIn), new BcKeyFingerprintCalculator());
@@ -0,0 +1,140 @@
+package com.vodafone.datafusion.plugins.delta.encryption;
+
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PGPKeyCacheTest {
+
+    @Test
+    public void testCachedWithinTtl() throws Exception {
+        ConcurrentMap<String, PGPKeyCache.Entry<String>> cache = new ConcurrentHashMap<>();
+        int[] calls = {0, 0};
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("key", PGPKeyCache.get(cache, "path", 60000, () -> {
+                calls[0]++;
+                return "v1";
+            }, () -> {
+                calls[1]++;
+                return "key";
+            }));
+        }
+
+        assertEquals(1, calls[0]);
+        assertEquals(1, calls[1]);
+    }
+
+    @Test
+    public void testReloadedWhenFileChanges() throws Exception {
+        ConcurrentMap<String, PGPKeyCache.Entry<String>> cache = new ConcurrentHashMap<>();
+        String[] stamp = {"v1"};
+        int[] loads = {0};
+
+        // a time to live of 1 ms expires before the next call, so every call checks the file
+        assertEquals("key1", PGPKeyCache.get(cache, "path", 1, () -> stamp[0], () -> "key" + ++loads[0]));
+        Thread.sleep(5);
+        assertEquals("key1", PGPKeyCache.get(cache, "path", 1, () -> stamp[0], () -> "key" + ++loads[0]));
+        stamp[0] = "v2";
+        Thread.sleep(5);
+        assertEquals("key2", PGPKeyCache.get(cache, "path", 1, () -> stamp[0], () -> "key" + ++loads[0]));
+        assertEquals(2, loads[0]);
+    }
+
+    @Test
+    public void testDisabledAndMissing() throws Exception {
+        ConcurrentMap<String, PGPKeyCache.Entry<String>> cache = new ConcurrentHashMap<>();
+        int[] loads = {0};
+
+        PGPKeyCache.get(cache, "path", 0, () -> "v1", () -> "key" + ++loads[0]);
+        PGPKeyCache.get(cache, "path", 0, () -> "v1", () -> "key" + ++loads[0]);
+        assertEquals(2, loads[0]);
+        assertTrue(cache.isEmpty());
+
+        assertNull(PGPKeyCache.get(cache, "missing", 60000, () -> "v1", () -> null));
+        assertTrue(cache.isEmpty());
+    }
+
+    @Test
+    public void testFailedLoadNotCached() throws Exception {
+        ConcurrentMap<String, PGPKeyCache.Entry<String>> cache = new ConcurrentHashMap<>();
+        String[] stamp = {"v1"};
+
+        PGPKeyCache.get(cache, "path", 1, () -> stamp[0], () -> "key1");
+        stamp[0] = "v2";
+        Thread.sleep(5);
+        try {
+            PGPKeyCache.get(cache, "path", 1, () -> stamp[0], () -> {
+                throw new IllegalStateException("Wrong passphrase");
+            });
+            fail("Expected failure");
+        } catch (IllegalStateException expected) {
+            // the key of the changed file is not kept
+        }
+        assertTrue(cache.isEmpty());
+    }
+
+    @Test
+    public void testExpiredWithoutStamp() throws Exception {
+        ConcurrentMap<String, PGPKeyCache.Entry<String>> cache = new ConcurrentHashMap<>();
+        int[] loads = {0};
+
+        assertEquals("key1", PGPKeyCache.get(cache, "path", 60000, null, () -> "key" + ++loads[0]));
+        assertEquals("key1", PGPKeyCache.get(cache, "path", 60000, null, () -> "key" + ++loads[0]));
+        PGPKeyCache.evictExpired(cache, System.currentTimeMillis());
+        assertEquals(1, cache.size());
+
+        PGPKeyCache.evictExpired(cache, System.currentTimeMillis() + 60000);
+        assertTrue(cache.isEmpty());
+
+        // a value past its time to live is loaded again without checking its file
+        assertEquals("key2", PGPKeyCache.get(cache, "path", 1, null, () -> "key" + ++loads[0]));
+        Thread.sleep(5);
+        assertEquals("key3", PGPKeyCache.get(cache, "path", 1, null, () -> "key" + ++loads[0]));
+    }
+
+    @Test
+    public void testKeysLoadedInParallel() throws Exception {
+        ConcurrentMap<String, PGPKeyCache.Entry<String>> cache = new ConcurrentHashMap<>();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger slowLoads = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            Future<String> slow = executor.submit(() -> PGPKeyCache.get(cache, "slow", 60000, null, () -> {
+                slowLoads.incrementAndGet();
+                loading.countDown();
+                assertTrue(release.await(5, TimeUnit.SECONDS));
+                return "slow key";
+            }));
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+            Future<String> waiting = executor.submit(() -> PGPKeyCache.get(cache, "slow", 60000, null, () -> {
+                slowLoads.incrementAndGet();
+                return "other load";
+            }));
+
+            // another key is loaded while the slow one is still loading
+            assertEquals("fast key", PGPKeyCache.get(cache, "fast", 60000, null, () -> "fast key"));
+            assertFalse(slow.isDone());
+
+            release.countDown();
+            assertEquals("slow key", slow.get(5, TimeUnit.SECONDS));
+            // the caller of the same key waited for the load instead of repeating it
+            assertEquals("slow key", waiting.get(5, TimeUnit.SECONDS));
+            assertEquals(1, slowLoads.get());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+}
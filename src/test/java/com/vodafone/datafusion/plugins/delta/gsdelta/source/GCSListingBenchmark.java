@@ -0,0 +1,115 @@
+package com.vodafone.datafusion.plugins.delta.gsdelta.source;
+
+import com.google.cloud.NoCredentials;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.vodafone.datafusion.plugins.delta.common.DeltaUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares a full metadata listing with the projected listing used by the GS delta source.
+ * The objects.list endpoint is emulated by a local server that returns the same metadata as GCS, or only the
+ * requested fields when the request has a fields parameter, so the difference is the payload the client parses.
+ * Run with: java GCSListingBenchmark [objects] [rounds]
+ */
+public class GCSListingBenchmark {
+    private static final String BUCKET = "benchmark";
+    private static final AtomicLong bytes = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        int objects = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/storage/v1/b/" + BUCKET + "/o", exchange -> list(exchange, objects));
+        server.start();
+        try {
+            Storage storage = StorageOptions.newBuilder()
+                    .setHost("http://localhost:" + server.getAddress().getPort())
+                    .setProjectId(BUCKET)
+                    .setCredentials(NoCredentials.getInstance())
+                    .build()
+                    .getService();
+
+            for (int i = 0; i < rounds; i++) {
+                run("full", storage, Storage.BlobListOption.prefix("data/"));
+                run("projected", storage, DeltaUtils.listingOptions(Storage.BlobListOption.prefix("data/")));
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static void run(String name, Storage storage, Storage.BlobListOption... options) {
+        bytes.set(0);
+        long start = System.nanoTime();
+        long listed = 0;
+        for (Blob blob : storage.list(BUCKET, options).iterateAll()) {
+            listed += blob.getSize() > 0 ? 1 : 0;
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        System.out.printf("%-10s %8d objects %6d ms %10d KB%n", name, listed, elapsed, bytes.get() / 1024);
+    }
+
+    private static void list(HttpExchange exchange, int objects) throws IOException {
+        Map<String, String> query = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw != null) {
+            for (String param : raw.split("&")) {
+                String[] pair = param.split("=", 2);
+                query.put(pair[0], pair.length > 1 ? URLDecoder.decode(pair[1], "UTF-8") : "");
+            }
+        }
+        int from = query.containsKey("pageToken") ? Integer.parseInt(query.get("pageToken")) : 0;
+        int pageSize = query.containsKey("maxResults") ? Integer.parseInt(query.get("maxResults")) : 1000;
+        boolean projected = query.containsKey("fields");
+        int to = Math.min(objects, from + pageSize);
+
+        StringBuilder json = new StringBuilder("{\"kind\":\"storage#objects\",\"items\":[");
+        for (int i = from; i < to; i++) {
+            json.append(i > from ? "," : "").append(projected ? projectedItem(i) : fullItem(i));
+        }
+        json.append("]");
+        if (to < objects) {
+            json.append(",\"nextPageToken\":\"").append(to).append("\"");
+        }
+        json.append("}");
+
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        bytes.addAndGet(body.length);
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String projectedItem(int i) {
+        return String.format("{\"bucket\":\"%s\",\"name\":\"data/file-%08d.csv\",\"size\":\"%d\","
+                + "\"timeCreated\":\"2021-03-01T10:00:00.000Z\"}", BUCKET, i, 1024 + i);
+    }
+
+    private static String fullItem(int i) {
+        String name = String.format("data/file-%08d.csv", i);
+        return String.format("{\"kind\":\"storage#object\",\"id\":\"%1$s/%2$s/1614592800000000\","
+                + "\"selfLink\":\"https://www.googleapis.com/storage/v1/b/%1$s/o/%3$s\","
+                + "\"mediaLink\":\"https://storage.googleapis.com/download/storage/v1/b/%1$s/o/%3$s"
+                + "?generation=1614592800000000&alt=media\",\"name\":\"%2$s\",\"bucket\":\"%1$s\","
+                + "\"generation\":\"1614592800000000\",\"metageneration\":\"1\",\"contentType\":\"text/csv\","
+                + "\"storageClass\":\"STANDARD\",\"size\":\"%4$d\",\"md5Hash\":\"1B2M2Y8AsgTpgAmY7PhCfg==\","
+                + "\"crc32c\":\"AAAAAA==\",\"etag\":\"CICAgICAgICAAQ==\",\"timeCreated\":\"2021-03-01T10:00:00.000Z\","
+                + "\"updated\":\"2021-03-01T10:00:00.000Z\",\"timeStorageClassUpdated\":\"2021-03-01T10:00:00.000Z\"}",
+                BUCKET, name, name.replace("/", "%2F"), 1024 + i);
+    }
+}
@@ -0,0 +1,71 @@
+package com.vodafone.datafusion.plugins.delta.gsdelta.source;
+
+import com.google.cloud.storage.Blob;
+import com.vodafone.datafusion.plugins.delta.common.FakeGCS;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.SHARDS_PREFIXES;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+public class GCSShardedListerTest {
+    // names at and around the boundaries of the 0-9a-f shards
+    private static final List<String> NAMES = Arrays.asList(
+            "in/", "in/!", "in/-x", "in/0", "in/0/a", "in/00", "in/1", "in/8z", "in/9", "in/9/a", "in/9~",
+            "in/A", "in/Z", "in/_", "in/a", "in/a/b/c", "in/a0", "in/b", "in/e~", "in/f", "in/f/a", "in/ff",
+            "in/g", "in/z/a", "in/~");
+
+    @Test
+    public void testParseRange() {
+        assertEquals(Arrays.asList('0', '1', '2', 'a', 'b'), GCSShardedLister.parseRange("ba0-2"));
+        assertEquals(Arrays.asList('-', 'a'), GCSShardedLister.parseRange("a-"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRange() {
+        GCSShardedLister.parseRange("z-a");
+    }
+
+    @Test
+    public void testEveryObjectInOneShard() throws Exception {
+        try (FakeGCS gcs = new FakeGCS(2)) {
+            for (String name : NAMES) {
+                gcs.put("bucket", name, name.getBytes(UTF_8));
+            }
+            gcs.put("bucket", "im/a", new byte[0]);
+            gcs.put("bucket", "in", new byte[0]);
+            gcs.put("bucket", "in0", new byte[0]);
+            gcs.put("other", "in/a", new byte[0]);
+
+            GCSShardedLister lister = new GCSShardedLister(gcs.storage(), 4);
+            for (String shards : Arrays.asList("0-9a-f", "a", "9a", "-0-9a-z~", SHARDS_PREFIXES)) {
+                assertEquals(shards, NAMES, lister.list("bucket", "in/", shards, Blob::getName));
+            }
+        }
+    }
+
+    @Test
+    public void testMapperSkips() throws Exception {
+        try (FakeGCS gcs = new FakeGCS(3)) {
+            for (String name : NAMES) {
+                gcs.put("bucket", name, name.getBytes(UTF_8));
+            }
+
+            GCSShardedLister lister = new GCSShardedLister(gcs.storage(), 2);
+            List<String> expected = new ArrayList<>();
+            for (String name : NAMES) {
+                if (!name.endsWith("/a")) {
+                    expected.add(name);
+                }
+            }
+            for (String shards : Arrays.asList("0-9a-f", SHARDS_PREFIXES)) {
+                assertEquals(expected, lister.list("bucket", "in/", shards,
+                        blob -> blob.getName().endsWith("/a") ? null : blob.getName()));
+            }
+        }
+    }
+}
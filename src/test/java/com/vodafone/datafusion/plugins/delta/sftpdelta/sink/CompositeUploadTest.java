@@ -0,0 +1,136 @@
+package com.vodafone.datafusion.plugins.delta.sftpdelta.sink;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobInfo;
+import com.vodafone.datafusion.plugins.delta.common.BufferPool;
+import com.vodafone.datafusion.plugins.delta.common.FakeGCS;
+import com.vodafone.datafusion.plugins.delta.common.FakeSftpServer;
+import com.vodafone.datafusion.plugins.delta.common.SFTPConnector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.vodafone.datafusion.plugins.delta.constants.Constants.MB;
+import static org.junit.Assert.*;
+
+public class CompositeUploadTest {
+    private static final String BUCKET = "bucket";
+    private static final String SOURCE = "/in/big.csv";
+    private static final BlobInfo TARGET = BlobInfo.newBuilder(BUCKET, "out/big.csv").build();
+
+    private final byte[] content = new byte[(int) (20 * MB) + 123];
+    private FakeSftpServer server;
+    private FakeGCS gcs;
+    private SFTPConnector conn;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        new Random(42).nextBytes(content);
+        server = new FakeSftpServer(false).directory("/in", 0).file(SOURCE, content, 1);
+        gcs = new FakeGCS(100);
+        conn = server.connect();
+        conn.setMaxChannels(4);
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        conn.close();
+        gcs.close();
+    }
+
+    @Test
+    public void testNumParts() {
+        assertEquals(1, CompositeUpload.numParts(0, 8));
+        assertEquals(1, CompositeUpload.numParts(8 * MB, 8));
+        assertEquals(2, CompositeUpload.numParts(8 * MB + 1, 8));
+        assertEquals(8, CompositeUpload.numParts(30 * 1024 * MB, 8));
+        assertEquals(32, CompositeUpload.numParts(30 * 1024 * MB, 100));
+    }
+
+    @Test
+    public void testUploadComposesParts() throws Exception {
+        Blob blob = upload("0").upload(SOURCE, content.length, TARGET, 8);
+
+        assertEquals(content.length, (long) blob.getSize());
+        assertArrayEquals(content, gcs.objects(BUCKET).get(TARGET.getName()));
+        // three parts of at least 8 MB, composed and deleted
+        assertEquals(3, count("POST /upload/storage/v1/b/" + BUCKET + "/o"));
+        assertEquals(1, count("POST /storage/v1/b/" + BUCKET + "/o/" + TARGET.getName() + "/compose"));
+        assertEquals(Collections.singleton(TARGET.getName()), gcs.objects(BUCKET).keySet());
+        assertEquals(0, conn.getChannelsInUse());
+    }
+
+    @Test
+    public void testPartsUnderTheirOwnPrefix() throws Exception {
+        gcs.fail(FakeGCS.DELETE, 3);
+
+        upload("0").upload(SOURCE, content.length, TARGET, 8);
+
+        // parts that could not be deleted are left away from the target path
+        assertEquals(4, gcs.objects(BUCKET).size());
+        for (String name : gcs.objects(BUCKET).keySet()) {
+            assertTrue(name, name.equals(TARGET.getName()) || name.startsWith("_sftpdelta_composite/"));
+        }
+    }
+
+    @Test
+    public void testPartsDeletedOnComposeFailure() throws Exception {
+        gcs.fail(FakeGCS.COMPOSE, 1);
+
+        try {
+            upload("0").upload(SOURCE, content.length, TARGET, 8);
+            fail("Expected failure");
+        } catch (Exception expected) {
+            // compose refused
+        }
+
+        assertEquals(3, count("POST /upload/storage/v1/b/" + BUCKET + "/o"));
+        assertTrue(gcs.objects(BUCKET).isEmpty());
+        assertEquals(0, conn.getChannelsInUse());
+    }
+
+    @Test
+    public void testPartsDeletedOnPartFailure() throws Exception {
+        gcs.fail(FakeGCS.UPLOAD, 1);
+
+        try {
+            upload("0").upload(SOURCE, content.length, TARGET, 8);
+            fail("Expected failure");
+        } catch (Exception expected) {
+            // a part failed without retries
+        }
+
+        assertEquals(0, count("POST /storage/v1/b/" + BUCKET + "/o/" + TARGET.getName() + "/compose"));
+        assertTrue(gcs.objects(BUCKET).isEmpty());
+        assertEquals(0, conn.getChannelsInUse());
+    }
+
+    @Test
+    public void testFailedPartsRetried() throws Exception {
+        gcs.fail(FakeGCS.UPLOAD, 1);
+        server.failReads(1);
+        CompositeUpload upload = upload("2");
+
+        upload.upload(SOURCE, content.length, TARGET, 8);
+
+        assertEquals(2, upload.getRetries());
+        assertArrayEquals(content, gcs.objects(BUCKET).get(TARGET.getName()));
+        assertEquals(Collections.singleton(TARGET.getName()), gcs.objects(BUCKET).keySet());
+    }
+
+    private CompositeUpload upload(String retries) {
+        return new CompositeUpload(gcs.storage(), conn, executor, BufferPool.shared((int) MB, false, 4), retries, "0");
+    }
+
+    private long count(String call) {
+        return gcs.getCalls().stream().filter(call::equals).count();
+    }
+}
@@ -0,0 +1,213 @@
+package com.vodafone.datafusion.plugins.delta.sftpdelta.sink;
+
+import com.google.cloud.storage.BlobInfo;
+import com.jcraft.jsch.SftpATTRS;
+import com.vodafone.datafusion.plugins.delta.common.BufferPool;
+import com.vodafone.datafusion.plugins.delta.common.FakeGCS;
+import com.vodafone.datafusion.plugins.delta.common.GCSPath;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+public class ResumableUploadTest {
+    private static final int CHUNK = 256 * 1024;
+    private static final String SOURCE = "/in/file.csv";
+    private static final BlobInfo TARGET = BlobInfo.newBuilder("bucket", "out/file.csv").build();
+
+    private final byte[] content = new byte[3 * CHUNK + 100];
+    private final List<Long> opened = new ArrayList<>();
+    private FakeGCS gcs;
+    private ResumableUpload upload;
+
+    @Before
+    public void setUp() throws Exception {
+        new Random(42).nextBytes(content);
+        gcs = new FakeGCS(100);
+        upload = new ResumableUpload(gcs.storage(), GCSPath.from("gs://state/checkpoints"),
+                BufferPool.shared(CHUNK, false, 1));
+    }
+
+    @After
+    public void tearDown() {
+        gcs.close();
+    }
+
+    @Test
+    public void testAlignChunkSize() {
+        assertEquals(256 * 1024, ResumableUpload.alignChunkSize(1));
+        assertEquals(256 * 1024, ResumableUpload.alignChunkSize(256 * 1024));
+        assertEquals(512 * 1024, ResumableUpload.alignChunkSize(256 * 1024 + 1));
+        assertEquals(15 * 1024 * 1024, ResumableUpload.alignChunkSize(15 * 1024 * 1024));
+    }
+
+    @Test
+    public void testCheckpointFields() throws Exception {
+        ResumableUpload.Checkpoint checkpoint = new ResumableUpload.Checkpoint(SOURCE, attrs(content.length, 1),
+                TARGET, CHUNK, "https://storage.googleapis.com/upload/storage/v1/b/bucket/o?upload_id=x", 2 * CHUNK, 42);
+        String json = new String(ResumableUpload.serialize(checkpoint), UTF_8);
+        assertEquals("{\"sourcePath\":\"/in/file.csv\",\"size\":786532,\"mTime\":1,\"target\":\"bucket/out/file.csv\","
+                + "\"chunkSize\":262144,\"uploadId\":\"https://storage.googleapis.com/upload/storage/v1/b/bucket/o"
+                + "?upload_id\\u003dx\",\"offset\":524288,\"crc32c\":42}", json);
+
+        ResumableUpload.Checkpoint restored = ResumableUpload.deserialize(json.getBytes(UTF_8));
+        assertEquals(2 * CHUNK, restored.getOffset());
+        assertTrue(restored.isSessionOf("https://storage.googleapis.com"));
+        assertFalse(restored.isSessionOf("https://storage.example.com"));
+        assertTrue(restored.matches(SOURCE, attrs(content.length, 1), TARGET, CHUNK));
+        assertFalse(restored.matches(SOURCE, attrs(content.length, 2), TARGET, CHUNK));
+        assertFalse(restored.matches(SOURCE, attrs(content.length, 1), TARGET, 2 * CHUNK));
+        assertFalse(restored.matches("/in/other.csv", attrs(content.length, 1), TARGET, CHUNK));
+
+        try {
+            ResumableUpload.deserialize("{\"sourcePath\":\"/in/file.csv\"}".getBytes(UTF_8));
+            fail("Expected failure");
+        } catch (IOException expected) {
+            // no session
+        }
+    }
+
+    @Test
+    public void testResumeFromCheckpoint() throws Exception {
+        try {
+            upload.upload(SOURCE, attrs(content.length, 1), TARGET, source(2 * CHUNK + 10));
+            fail("Expected failure");
+        } catch (IOException expected) {
+            // connection lost in the third chunk
+        }
+        assertEquals(1, gcs.objects("state").size());
+        assertFalse(gcs.objects("bucket").containsKey(TARGET.getName()));
+
+        upload.upload(SOURCE, attrs(content.length, 1), TARGET, source(Long.MAX_VALUE));
+
+        // only the chunks not committed are read again
+        assertEquals(Arrays.asList(0L, 2L * CHUNK), opened);
+        assertArrayEquals(content, gcs.objects("bucket").get(TARGET.getName()));
+        assertTrue(gcs.objects("state").isEmpty());
+        assertEquals(0, gcs.getOpenUploads());
+    }
+
+    @Test
+    public void testPartiallyCommittedChunk() throws Exception {
+        upload = new ResumableUpload(gcs.storage(), GCSPath.from("gs://state/checkpoints"),
+                BufferPool.shared(2 * CHUNK, false, 1));
+        // the first chunk is committed half by half, the rest is sent again from the committed offset
+        gcs.commitPartially(2, CHUNK);
+
+        upload.upload(SOURCE, attrs(content.length, 1), TARGET, source(Long.MAX_VALUE));
+
+        assertEquals(Collections.singletonList(0L), opened);
+        assertArrayEquals(content, gcs.objects("bucket").get(TARGET.getName()));
+        assertTrue(gcs.objects("state").isEmpty());
+    }
+
+    @Test
+    public void testUncommittedChunkFails() throws Exception {
+        gcs.commitPartially(Integer.MAX_VALUE, 0);
+        try {
+            upload.upload(SOURCE, attrs(content.length, 1), TARGET, source(Long.MAX_VALUE));
+            fail("Expected failure");
+        } catch (IOException expected) {
+            // nothing of the first chunk was committed
+        }
+        assertTrue(gcs.objects("state").isEmpty());
+        assertFalse(gcs.objects("bucket").containsKey(TARGET.getName()));
+    }
+
+    @Test
+    public void testChangedFileStartsAgain() throws Exception {
+        try {
+            upload.upload(SOURCE, attrs(content.length, 1), TARGET, source(2 * CHUNK + 10));
+            fail("Expected failure");
+        } catch (IOException expected) {
+            // connection lost in the third chunk
+        }
+
+        upload.upload(SOURCE, attrs(content.length, 2), TARGET, source(Long.MAX_VALUE));
+
+        assertEquals(Arrays.asList(0L, 0L), opened);
+        assertArrayEquals(content, gcs.objects("bucket").get(TARGET.getName()));
+        assertTrue(gcs.objects("state").isEmpty());
+    }
+
+    @Test
+    public void testForeignSessionIgnored() throws Exception {
+        try {
+            upload.upload(SOURCE, attrs(content.length, 1), TARGET, source(2 * CHUNK + 10));
+            fail("Expected failure");
+        } catch (IOException expected) {
+            // connection lost in the third chunk
+        }
+        String name = gcs.objects("state").firstKey();
+        String json = new String(gcs.objects("state").get(name), UTF_8);
+        gcs.put("state", name, json.replaceFirst("\"uploadId\":\"http://[^/]*/", "\"uploadId\":\"http://example.com/")
+                .getBytes(UTF_8));
+
+        upload.upload(SOURCE, attrs(content.length, 1), TARGET, source(Long.MAX_VALUE));
+
+        assertEquals(Arrays.asList(0L, 0L), opened);
+        assertArrayEquals(content, gcs.objects("bucket").get(TARGET.getName()));
+    }
+
+    @Test
+    public void testWholeChunks() throws Exception {
+        byte[] whole = Arrays.copyOf(content, 2 * CHUNK);
+        upload.upload(SOURCE, attrs(whole.length, 1), TARGET, offset -> new ByteArrayInputStream(whole));
+
+        assertArrayEquals(whole, gcs.objects("bucket").get(TARGET.getName()));
+        assertEquals(Collections.singleton(TARGET.getName()), gcs.objects("bucket").keySet());
+    }
+
+    /**
+     * Source of the content from an offset, failing once a number of bytes of the file is reached
+     */
+    private ResumableUpload.Source source(long failAt) {
+        return offset -> {
+            opened.add(offset);
+            return new InputStream() {
+                private long position = offset;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (position >= failAt) {
+                        throw new IOException("Connection lost");
+                    }
+                    if (position >= content.length) {
+                        return -1;
+                    }
+                    int n = (int) Math.min(len, Math.min(content.length, failAt) - position);
+                    System.arraycopy(content, (int) position, b, off, n);
+                    position += n;
+                    return n;
+                }
+            };
+        };
+    }
+
+    private static SftpATTRS attrs(long size, int mtime) throws Exception {
+        Constructor<SftpATTRS> constructor = SftpATTRS.class.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        SftpATTRS attrs = constructor.newInstance();
+        attrs.setSIZE(size);
+        attrs.setACMODTIME(mtime, mtime);
+        return attrs;
+    }
+}
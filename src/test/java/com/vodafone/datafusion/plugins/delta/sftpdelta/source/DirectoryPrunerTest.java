@@ -0,0 +1,37 @@
+package com.vodafone.datafusion.plugins.delta.sftpdelta.source;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DirectoryPrunerTest {
+    // 2021-03-10 12:00:00 UTC to 2021-03-12 12:00:00 UTC
+    private static final long FROM = 1615377600L;
+    private static final long TO = 1615550400L;
+
+    @Test
+    public void testDatePathPattern() {
+        DirectoryPruner pruner = new DirectoryPruner("/data", false, "yyyy/MM/dd", FROM, TO);
+
+        assertTrue(pruner.descend("/data/2021", 0));
+        assertTrue(pruner.descend("/data/2021/03", 0));
+        assertTrue(pruner.descend("/data/2021/03/10", 0));
+        assertTrue(pruner.descend("/data/2021/03/12", 0));
+        assertTrue(pruner.descend("/data/2021/03/12/extra", 0));
+        assertFalse(pruner.descend("/data/2020", 0));
+        assertFalse(pruner.descend("/data/2021/02", 0));
+        assertFalse(pruner.descend("/data/2021/03/09", 0));
+        assertFalse(pruner.descend("/data/2021/03/13", 0));
+        assertFalse(pruner.descend("/data/2021/3", 0));
+        assertFalse(pruner.descend("/data/tmp", 0));
+    }
+
+    @Test
+    public void testPruneByMtime() {
+        DirectoryPruner pruner = new DirectoryPruner("/data", true, null, FROM, TO);
+
+        assertTrue(pruner.descend("/data/a", (int) FROM + 1));
+        assertFalse(pruner.descend("/data/a", (int) FROM));
+    }
+}
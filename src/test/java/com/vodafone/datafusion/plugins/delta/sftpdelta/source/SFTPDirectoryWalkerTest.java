@@ -0,0 +1,153 @@
+package com.vodafone.datafusion.plugins.delta.sftpdelta.source;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import com.vodafone.datafusion.plugins.delta.common.FakeSftpServer;
+import com.vodafone.datafusion.plugins.delta.common.SFTPConnector;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+
+public class SFTPDirectoryWalkerTest {
+    private static final Predicate<ChannelSftp.LsEntry> ALL_FILES = entry -> entry.getAttrs().isReg();
+
+    @Test
+    public void testDepth() throws Exception {
+        FakeSftpServer server = new FakeSftpServer(false)
+                .directory("/in", 0)
+                .file("/in/a.csv", 1, 100)
+                .directory("/in/d1", 0)
+                .file("/in/d1/b.csv", 1, 100)
+                .directory("/in/d1/d2", 0)
+                .file("/in/d1/d2/c.csv", 1, 100)
+                .file("/in/z.csv", 1, 100);
+
+        assertEquals(Arrays.asList("/in/a.csv", "/in/z.csv"), walk(server, 0, ALL_FILES));
+        assertEquals(Arrays.asList("/in/a.csv", "/in/z.csv", "/in/d1/b.csv"), walk(server, 1, ALL_FILES));
+        assertEquals(Arrays.asList("/in/a.csv", "/in/z.csv", "/in/d1/b.csv", "/in/d1/d2/c.csv"),
+                walk(server, Integer.MAX_VALUE, ALL_FILES));
+    }
+
+    @Test
+    public void testFilters() throws Exception {
+        FakeSftpServer server = new FakeSftpServer(false)
+                .directory("/in", 0)
+                .file("/in/before.csv", 1, 100)
+                .file("/in/inside.csv", 1, 150)
+                .file("/in/inside.txt", 1, 150)
+                .file("/in/last.csv", 1, 200)
+                .file("/in/after.csv", 1, 250)
+                .directory("/in/old", 0)
+                .file("/in/old/inside.csv", 1, 150)
+                .directory("/in/new", 0)
+                .file("/in/new/inside.csv", 1, 150);
+
+        Predicate<ChannelSftp.LsEntry> filter = SFTPDeltaRecordReader.fileFilter(100, 200, ".*\\.csv");
+        List<String> files;
+        try (SFTPConnector conn = server.connect();
+             SFTPDirectoryWalker walker = new SFTPDirectoryWalker(conn, 2, Integer.MAX_VALUE, filter,
+                     (path, attrs) -> !path.endsWith("/old"))) {
+            walker.add("/in", 0);
+            files = drain(walker);
+        }
+
+        assertEquals(Arrays.asList("/in/inside.csv", "/in/last.csv", "/in/new/inside.csv"), files);
+        assertFalse(server.getListed().contains("/in/old"));
+        assertEquals(Arrays.asList("/in/before.csv", "/in/inside.csv", "/in/inside.txt", "/in/last.csv"),
+                walk(server, 0, SFTPDeltaRecordReader.fileFilter(0, 200, null)));
+    }
+
+    @Test
+    public void testSymlinkLoop() throws Exception {
+        FakeSftpServer server = new FakeSftpServer(false)
+                .directory("/in", 0)
+                .file("/in/a.csv", 1, 100)
+                .directory("/in/d1", 0)
+                .file("/in/d1/b.csv", 1, 100)
+                .link("/in/d1/loop", "/in");
+
+        assertEquals(Arrays.asList("/in/a.csv", "/in/d1/b.csv"), walk(server, Integer.MAX_VALUE, ALL_FILES));
+        assertEquals(Arrays.asList("/in", "/in/d1"), server.getListed());
+    }
+
+    @Test
+    public void testFollowedSymlinkLoopBoundedByDepth() throws Exception {
+        // servers resolving links in listings show the loop as a directory
+        FakeSftpServer server = new FakeSftpServer(true)
+                .directory("/in", 0)
+                .directory("/in/d1", 0)
+                .file("/in/d1/b.csv", 1, 100)
+                .link("/in/d1/loop", "/in");
+
+        assertEquals(Arrays.asList("/in/d1/b.csv", "/in/d1/loop/d1/b.csv"), walk(server, 3, ALL_FILES));
+        assertEquals(4, server.getListed().size());
+    }
+
+    @Test
+    public void testListingParallelism() throws Exception {
+        FakeSftpServer server = new FakeSftpServer(false).directory("/in", 0);
+        List<String> expected = new ArrayList<>();
+        for (int i = 10; i < 40; i++) {
+            server.directory("/in/d" + i, 0).file("/in/d" + i + "/f.csv", 1, 100);
+            expected.add("/in/d" + i + "/f.csv");
+        }
+
+        List<String> files;
+        try (SFTPConnector conn = server.connect();
+             SFTPDirectoryWalker walker = new SFTPDirectoryWalker(conn, 3, 1, ALL_FILES, (path, attrs) -> true)) {
+            walker.add("/in", 0);
+            files = drain(walker);
+            assertEquals(0, conn.getChannelsInUse());
+        }
+
+        assertEquals(expected, files);
+        assertTrue(server.getMaxInFlight() > 1);
+        assertTrue(server.getMaxInFlight() <= 3);
+    }
+
+    @Test
+    public void testListingError() throws Exception {
+        FakeSftpServer server = new FakeSftpServer(false)
+                .directory("/in", 0)
+                .file("/in/a.csv", 1, 100)
+                .unreadable("/in/broken");
+
+        try (SFTPConnector conn = server.connect();
+             SFTPDirectoryWalker walker = new SFTPDirectoryWalker(conn, 2, 1, ALL_FILES, (path, attrs) -> true)) {
+            walker.add("/in", 0);
+            assertEquals("/in/a.csv", walker.next().path);
+            try {
+                walker.next();
+                fail("Expected failure");
+            } catch (SftpException ex) {
+                assertEquals(ChannelSftp.SSH_FX_NO_SUCH_FILE, ex.id);
+            }
+        }
+    }
+
+    private static List<String> walk(FakeSftpServer server, int maxDepth, Predicate<ChannelSftp.LsEntry> filter)
+            throws Exception {
+        BiPredicate<String, SftpATTRS> all = (path, attrs) -> true;
+        try (SFTPConnector conn = server.connect();
+             SFTPDirectoryWalker walker = new SFTPDirectoryWalker(conn, 2, maxDepth, filter, all)) {
+            walker.add("/in", 0);
+            return drain(walker);
+        }
+    }
+
+    private static List<String> drain(SFTPDirectoryWalker walker) throws SftpException {
+        List<String> files = new ArrayList<>();
+        for (SFTPDirectoryWalker.FileEntry entry = walker.next(); entry != null; entry = walker.next()) {
+            files.add(entry.path);
+        }
+        return Collections.unmodifiableList(files);
+    }
+}